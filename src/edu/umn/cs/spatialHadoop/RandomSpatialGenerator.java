@@ -158,6 +158,7 @@ public class RandomSpatialGenerator {
       outFs.delete(f.getPath(), false);
     }
     destOut.close();
+    SpatialSite.writeLocalIndex(outFs, file, false);
   }
   
 
@@ -228,6 +229,7 @@ public class RandomSpatialGenerator {
       writer.write(NullWritable.get(), shape);
     }
     writer.close(null);
+    SpatialSite.writeLocalIndex(outFS, outFile, false);
     long t2 = System.currentTimeMillis();
     
     System.out.println("Generation time: "+(t2-t1)+" millis");
@@ -0,0 +1,793 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package edu.umn.cs.spatialHadoop.core;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.util.Progressable;
+
+/**
+ * A binary format for non-indexed (heap) files. Shapes are stored using
+ * {@link Shape#write(java.io.DataOutput)} rather than as text lines, which
+ * avoids formatting and parsing coordinates.
+ *
+ * A file starts with a header that contains the marker
+ * {@link SpatialSite#BinaryHeapFileMarker}, a flags byte, a sync marker of
+ * {@link #SyncSize} random bytes and the name of the shape class. Records
+ * are grouped in blocks of roughly {@link #SYNC_INTERVAL} bytes. Each block
+ * starts with the sync marker followed by the size of its records in bytes,
+ * number of records and, optionally, the MBR of its records. Each record is
+ * an int length followed by the serialized shape. The MBR of each record can
+ * also be stored before the serialized shape, which allows readers to filter
+ * records, e.g., using {@link LazyShape}, without parsing complex shapes.
+ *
+ * A reader that starts at an arbitrary offset, e.g., the start of a split,
+ * looks for the next sync marker to find the first complete block. A block
+ * belongs to the split where its sync marker starts.
+ *
+ * Files of points can be written in a columnar layout instead, see
+ * {@link PointColumns}. Blocks of a columnar file always contain their MBRs
+ * which are the minimum and maximum values of the coordinate columns. This
+ * allows readers to skip blocks outside a query range without parsing them.
+ */
+public class BinaryHeapFile {
+
+  /**Number of bytes between two sync markers*/
+  public static final String SYNC_INTERVAL =
+      "spatialHadoop.storage.BinarySyncInterval";
+
+  /**Whether to write the MBR of each block in the block header*/
+  public static final String BLOCK_HEADERS =
+      "spatialHadoop.storage.BinaryBlockHeaders";
+
+  /**Whether to store points in columns rather than rows*/
+  public static final String COLUMNAR =
+      "spatialHadoop.storage.BinaryColumnar";
+
+  /**
+   * Whether to write the MBR of each record before the record. If not set,
+   * MBRs are written for all shapes except points and rectangles.
+   */
+  public static final String RECORD_MBRS =
+      "spatialHadoop.storage.BinaryRecordMBRs";
+
+  /**Whether to compress the columns of a columnar file*/
+  public static final String COMPRESS =
+      "spatialHadoop.storage.BinaryCompress";
+
+  /**Size of the sync marker in bytes*/
+  public static final int SyncSize = 16;
+
+  /**Flag set in the file header if blocks contain their MBRs*/
+  private static final int FlagBlockMBR = 1;
+
+  /**Flag set in the file header if points are stored in columns*/
+  private static final int FlagColumnar = 2;
+
+  /**Flag set in the file header if columns are compressed*/
+  private static final int FlagCompressed = 4;
+
+  /**Flag set in the file header if records are prefixed by their MBRs*/
+  private static final int FlagRecordMBR = 8;
+
+  /**
+   * The header of a binary heap file
+   */
+  public static class Header {
+    /**Whether each block header contains the MBR of its records*/
+    public boolean blockMBR;
+
+    /**Whether each record is prefixed by its MBR*/
+    public boolean recordMBR;
+
+    /**Whether blocks store points in columns*/
+    public boolean columnar;
+
+    /**Whether columns are compressed*/
+    public boolean compressed;
+
+    /**The sync marker written before each block*/
+    public byte[] sync = new byte[SyncSize];
+
+    /**Name of the class of shapes stored in the file*/
+    public String shapeClass;
+
+    /**Total size of the header in bytes including the marker*/
+    public int length;
+
+    /**
+     * Writes this header including the marker
+     * @param out
+     * @throws IOException
+     */
+    public void write(DataOutput out) throws IOException {
+      out.write(SpatialSite.BinaryHeapFileMarkerB);
+      out.writeByte((blockMBR ? FlagBlockMBR : 0) |
+          (columnar ? FlagColumnar : 0) | (compressed ? FlagCompressed : 0) |
+          (recordMBR ? FlagRecordMBR : 0));
+      out.write(sync);
+      byte[] name = shapeClass.getBytes("UTF-8");
+      out.writeShort(name.length);
+      out.write(name);
+      length = SpatialSite.BinaryHeapFileMarkerB.length + 1 + SyncSize + 2 + name.length;
+    }
+
+    /**
+     * Reads the header that follows the marker. The marker itself should be
+     * read and checked by the caller.
+     * @param in
+     * @throws IOException
+     */
+    public void readFields(DataInput in) throws IOException {
+      byte flags = in.readByte();
+      blockMBR = (flags & FlagBlockMBR) != 0;
+      columnar = (flags & FlagColumnar) != 0;
+      compressed = (flags & FlagCompressed) != 0;
+      recordMBR = (flags & FlagRecordMBR) != 0;
+      in.readFully(sync);
+      byte[] name = new byte[in.readUnsignedShort()];
+      in.readFully(name);
+      shapeClass = new String(name, "UTF-8");
+      length = SpatialSite.BinaryHeapFileMarkerB.length + 1 + SyncSize + 2 + name.length;
+    }
+
+    /**
+     * Creates an empty shape of the class stored in this header
+     * @return
+     */
+    public Shape createStockShape() {
+      try {
+        return Class.forName(shapeClass).asSubclass(Shape.class)
+            .getDeclaredConstructor().newInstance();
+      } catch (ClassNotFoundException e) {
+        throw new RuntimeException("Cannot find shape class "+shapeClass, e);
+      } catch (InstantiationException e) {
+        throw new RuntimeException("Cannot create a shape of class "+shapeClass, e);
+      } catch (IllegalAccessException e) {
+        throw new RuntimeException("Cannot create a shape of class "+shapeClass, e);
+      } catch (NoSuchMethodException e) {
+        throw new RuntimeException("Cannot create a shape of class "+shapeClass, e);
+      } catch (InvocationTargetException e) {
+        throw new RuntimeException("Cannot create a shape of class "+shapeClass, e);
+      }
+    }
+  }
+
+  /**
+   * Reads the header of the given file. Returns null if the file is not a
+   * binary heap file.
+   * @param fs
+   * @param path
+   * @return
+   * @throws IOException
+   */
+  public static Header readHeader(FileSystem fs, Path path) throws IOException {
+    InputStream in = fs.open(path);
+    CompressionCodec codec = new CompressionCodecFactory(fs.getConf()).getCodec(path);
+    Decompressor decompressor = null;
+    if (codec != null) {
+      decompressor = CodecPool.getDecompressor(codec);
+      in = codec.createInputStream(in, decompressor);
+    }
+    try {
+      DataInputStream din = new DataInputStream(in);
+      byte[] marker = new byte[SpatialSite.BinaryHeapFileMarkerB.length];
+      try {
+        din.readFully(marker);
+      } catch (EOFException e) {
+        return null;
+      }
+      if (!Arrays.equals(marker, SpatialSite.BinaryHeapFileMarkerB))
+        return null;
+      Header header = new Header();
+      header.readFields(din);
+      return header;
+    } finally {
+      in.close();
+      if (decompressor != null)
+        CodecPool.returnDecompressor(decompressor);
+    }
+  }
+
+  /**
+   * Tells whether the given file is a binary heap file. If the path is a
+   * directory, its first visible file is checked.
+   * @param fs
+   * @param path
+   * @return
+   * @throws IOException
+   */
+  public static boolean isBinaryHeapFile(FileSystem fs, Path path) throws IOException {
+    if (fs.getFileStatus(path).isDirectory()) {
+      FileStatus[] files = fs.listStatus(path, SpatialSite.NonHiddenFileFilter);
+      for (FileStatus file : files) {
+        if (!file.isDirectory())
+          return readHeader(fs, file.getPath()) != null;
+      }
+      return false;
+    }
+    return readHeader(fs, path) != null;
+  }
+
+  /**
+   * Points of one block of a columnar file. The x and y coordinates are
+   * stored in two separate columns. Other fields of subclasses of
+   * {@link Point}, e.g., the id of an {@link OSMPoint}, are stored in a third
+   * column of serialized records which is read only if requested. Each
+   * record is stored without the coordinates, which are put back in place
+   * when it is deserialized.
+   *
+   * Each column is stored as its raw length, its stored length and its bytes.
+   * Compressed columns are deflated and bytes of coordinates are shuffled
+   * first so that the similar high order bytes of nearby points are adjacent.
+   */
+  public static class PointColumns {
+    /**Number of points in the block*/
+    public int count;
+
+    /**The x column*/
+    public double[] xs = new double[1024];
+
+    /**The y column*/
+    public double[] ys = new double[1024];
+
+    /**Whether columns are compressed*/
+    private boolean compressed;
+
+    /**Whether the block contains a value column*/
+    private boolean hasValues;
+
+    /**Serialized records of the value column while writing*/
+    private DataOutputBuffer values = new DataOutputBuffer();
+
+    /**A temporary buffer used to find the size of each record*/
+    private DataOutputBuffer record = new DataOutputBuffer();
+
+    /**The value column as stored in the file*/
+    private byte[] storedValues = new byte[0];
+    private int storedValuesLength;
+    private int valuesLength;
+    /**Whether the value column was read or skipped by the last read*/
+    private boolean valuesRead;
+
+    /**The decoded value column and the start of each record in it*/
+    private byte[] valueBytes;
+    private int[] valueOffsets = new int[0];
+    private boolean valuesDecoded;
+
+    /**Used to decode the value column and deserialize its records*/
+    private DataInputBuffer valueIn = new DataInputBuffer();
+
+    /**A record of the value column with its coordinates put back*/
+    private byte[] recordBytes = new byte[0];
+
+    /**Raw and compressed bytes of the column being encoded or decoded*/
+    private byte[] columnBytes = new byte[0];
+    private byte[] compressedBytes = new byte[0];
+
+    private Deflater deflater;
+    private Inflater inflater;
+
+    public PointColumns(boolean compressed) {
+      this.compressed = compressed;
+    }
+
+    public void reset() {
+      count = 0;
+      hasValues = false;
+      values.reset();
+    }
+
+    /**
+     * Appends a point to the columns
+     * @param p
+     * @throws IOException
+     */
+    public void add(Point p) throws IOException {
+      if (count == xs.length) {
+        xs = Arrays.copyOf(xs, count * 2);
+        ys = Arrays.copyOf(ys, count * 2);
+      }
+      xs[count] = p.x;
+      ys[count] = p.y;
+      if (p.getClass() != Point.class) {
+        record.reset();
+        p.write(record);
+        int offset = findCoordinates(record.getData(), record.getLength(), p);
+        if (offset < 0) {
+          // Coordinates are not written as by Point. Store the whole record
+          WritableUtils.writeVInt(values, record.getLength());
+          WritableUtils.writeVInt(values, -1);
+          values.write(record.getData(), 0, record.getLength());
+        } else {
+          WritableUtils.writeVInt(values, record.getLength() - 16);
+          WritableUtils.writeVInt(values, offset);
+          values.write(record.getData(), 0, offset);
+          values.write(record.getData(), offset + 16,
+              record.getLength() - offset - 16);
+        }
+        hasValues = true;
+      }
+      count++;
+    }
+
+    /**
+     * Finds the coordinates of a point in its serialized record as written
+     * by {@link Point#write(DataOutput)}
+     * @param bytes
+     * @param length
+     * @param p
+     * @return the offset of the coordinates or -1 if not found
+     */
+    private static int findCoordinates(byte[] bytes, int length, Point p) {
+      long xBits = Double.doubleToLongBits(p.x);
+      long yBits = Double.doubleToLongBits(p.y);
+      for (int offset = 0; offset + 16 <= length; offset++) {
+        if (readLong(bytes, offset) == xBits && readLong(bytes, offset + 8) == yBits)
+          return offset;
+      }
+      return -1;
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+      long value = 0;
+      for (int b = 0; b < 8; b++)
+        value = (value << 8) | (bytes[offset + b] & 0xff);
+      return value;
+    }
+
+    private static void writeLong(byte[] bytes, int offset, long value) {
+      for (int b = 7; b >= 0; b--) {
+        bytes[offset + b] = (byte) value;
+        value >>>= 8;
+      }
+    }
+
+    /**
+     * Uncompressed size of all columns in bytes
+     * @return
+     */
+    public int getSize() {
+      return count * 16 + values.getLength();
+    }
+
+    /**
+     * Tells whether the points have fields other than their coordinates
+     * @return
+     */
+    public boolean hasValues() {
+      return hasValues;
+    }
+
+    public void write(DataOutput out) throws IOException {
+      out.writeBoolean(hasValues);
+      writeDoubles(out, xs);
+      writeDoubles(out, ys);
+      if (hasValues)
+        writeColumn(out, values.getData(), values.getLength());
+    }
+
+    /**
+     * Reads columns of the given number of points. The value column is
+     * skipped unless requested.
+     * @param in
+     * @param count
+     * @param readValues - whether to read fields other than coordinates
+     * @throws IOException
+     */
+    public void readFields(DataInput in, int count, boolean readValues)
+        throws IOException {
+      this.count = count;
+      if (count > xs.length) {
+        xs = new double[count];
+        ys = new double[count];
+      }
+      hasValues = in.readBoolean();
+      readDoubles(in, xs);
+      readDoubles(in, ys);
+      valuesDecoded = false;
+      valuesRead = false;
+      if (hasValues) {
+        valuesLength = in.readInt();
+        storedValuesLength = in.readInt();
+        if (readValues) {
+          if (storedValuesLength > storedValues.length)
+            storedValues = new byte[storedValuesLength];
+          in.readFully(storedValues, 0, storedValuesLength);
+          valuesRead = true;
+        } else {
+          int skipped = 0;
+          while (skipped < storedValuesLength) {
+            int n = in.skipBytes(storedValuesLength - skipped);
+            if (n <= 0)
+              throw new EOFException("Unexpected end of value column");
+            skipped += n;
+          }
+        }
+      }
+    }
+
+    /**
+     * Reads all fields of the point at the given index into the given shape
+     * using the value column. The value column is decoded the first time
+     * it is accessed.
+     * @param i
+     * @param s
+     * @throws IOException
+     */
+    public void readValue(int i, Shape s) throws IOException {
+      if (!valuesRead)
+        throw new IOException("The value column of this block was skipped");
+      if (!valuesDecoded) {
+        if (compressed) {
+          valueBytes = ensureCapacity(valueBytes, valuesLength);
+          inflate(storedValues, storedValuesLength, valueBytes, valuesLength);
+        } else {
+          valueBytes = storedValues;
+        }
+        if (valueOffsets.length < count + 1)
+          valueOffsets = new int[count + 1];
+        valueIn.reset(valueBytes, valuesLength);
+        for (int j = 0; j < count; j++) {
+          valueOffsets[j] = valueIn.getPosition();
+          int length = WritableUtils.readVInt(valueIn);
+          WritableUtils.readVInt(valueIn);
+          valueIn.skip(length);
+        }
+        valueOffsets[count] = valueIn.getPosition();
+        valuesDecoded = true;
+      }
+      valueIn.reset(valueBytes, valueOffsets[i], valueOffsets[i + 1] - valueOffsets[i]);
+      int length = WritableUtils.readVInt(valueIn);
+      int offset = WritableUtils.readVInt(valueIn);
+      int start = valueIn.getPosition();
+      if (offset < 0) {
+        valueIn.reset(valueBytes, start, length);
+      } else {
+        // Put the coordinates back in place
+        recordBytes = ensureCapacity(recordBytes, length + 16);
+        System.arraycopy(valueBytes, start, recordBytes, 0, offset);
+        writeLong(recordBytes, offset, Double.doubleToLongBits(xs[i]));
+        writeLong(recordBytes, offset + 8, Double.doubleToLongBits(ys[i]));
+        System.arraycopy(valueBytes, start + offset, recordBytes, offset + 16,
+            length - offset);
+        valueIn.reset(recordBytes, length + 16);
+      }
+      s.readFields(valueIn);
+    }
+
+    private void writeDoubles(DataOutput out, double[] column) throws IOException {
+      int length = count * 8;
+      columnBytes = ensureCapacity(columnBytes, length);
+      for (int i = 0; i < count; i++) {
+        long bits = Double.doubleToRawLongBits(column[i]);
+        for (int b = 0; b < 8; b++) {
+          byte value = (byte) (bits >>> (56 - 8 * b));
+          if (compressed)
+            columnBytes[b * count + i] = value;
+          else
+            columnBytes[i * 8 + b] = value;
+        }
+      }
+      writeColumn(out, columnBytes, length);
+    }
+
+    private void readDoubles(DataInput in, double[] column) throws IOException {
+      int length = in.readInt();
+      int storedLength = in.readInt();
+      if (length != count * 8)
+        throw new IOException("Invalid column length "+length+" for "+count+" points");
+      columnBytes = ensureCapacity(columnBytes, length);
+      if (compressed) {
+        compressedBytes = ensureCapacity(compressedBytes, storedLength);
+        in.readFully(compressedBytes, 0, storedLength);
+        inflate(compressedBytes, storedLength, columnBytes, length);
+      } else {
+        in.readFully(columnBytes, 0, length);
+      }
+      for (int i = 0; i < count; i++) {
+        long bits = 0;
+        for (int b = 0; b < 8; b++) {
+          int value = compressed ? columnBytes[b * count + i] : columnBytes[i * 8 + b];
+          bits = (bits << 8) | (value & 0xff);
+        }
+        column[i] = Double.longBitsToDouble(bits);
+      }
+    }
+
+    private void writeColumn(DataOutput out, byte[] bytes, int length) throws IOException {
+      out.writeInt(length);
+      if (!compressed) {
+        out.writeInt(length);
+        out.write(bytes, 0, length);
+        return;
+      }
+      if (deflater == null)
+        deflater = new Deflater(Deflater.BEST_SPEED);
+      deflater.reset();
+      deflater.setInput(bytes, 0, length);
+      deflater.finish();
+      compressedBytes = ensureCapacity(compressedBytes, length / 2 + 64);
+      int compressedLength = 0;
+      while (!deflater.finished()) {
+        if (compressedLength == compressedBytes.length)
+          compressedBytes = Arrays.copyOf(compressedBytes, compressedLength * 2);
+        compressedLength += deflater.deflate(compressedBytes, compressedLength,
+            compressedBytes.length - compressedLength);
+      }
+      out.writeInt(compressedLength);
+      out.write(compressedBytes, 0, compressedLength);
+    }
+
+    private void inflate(byte[] in, int inLength, byte[] out, int outLength)
+        throws IOException {
+      if (inflater == null)
+        inflater = new Inflater();
+      inflater.reset();
+      inflater.setInput(in, 0, inLength);
+      try {
+        int n = 0;
+        while (n < outLength) {
+          int r = inflater.inflate(out, n, outLength - n);
+          if (r == 0 && (inflater.finished() || inflater.needsInput()))
+            throw new IOException("Corrupted column in columnar file");
+          n += r;
+        }
+      } catch (DataFormatException e) {
+        throw new IOException("Corrupted column in columnar file", e);
+      }
+    }
+
+    private static byte[] ensureCapacity(byte[] bytes, int length) {
+      if (bytes == null || bytes.length < length)
+        return new byte[Math.max(length, bytes == null ? 0 : bytes.length * 2)];
+      return bytes;
+    }
+
+    /**
+     * Releases the native resources used for compression
+     */
+    public void close() {
+      if (deflater != null)
+        deflater.end();
+      if (inflater != null)
+        inflater.end();
+      deflater = null;
+      inflater = null;
+    }
+  }
+
+  /**
+   * Writes shapes to a binary heap file
+   * @param <S>
+   */
+  public static class Writer<S extends Shape> {
+    /**The underlying stream*/
+    private DataOutputStream out;
+
+    /**Header of the file. Written with the first block*/
+    private Header header;
+
+    /**Whether the header was written or not*/
+    private boolean headerWritten;
+
+    /**Records of the current block*/
+    private DataOutputBuffer block = new DataOutputBuffer();
+
+    /**Points of the current block if the file is columnar*/
+    private PointColumns columns;
+
+    /**A temporary buffer used to find the size of each record*/
+    private DataOutputBuffer record = new DataOutputBuffer();
+
+    /**Number of records in the current block*/
+    private int blockCount;
+
+    /**MBR of records in the current block*/
+    private Rectangle blockMBR = new Rectangle();
+
+    /**Whether record MBRs are written for the class of the first shape*/
+    private boolean autoRecordMBRs = true;
+
+    /**Written as the MBR of a record with an empty shape*/
+    private final Rectangle emptyMBR = new Rectangle();
+
+    /**Minimum size of a block in bytes*/
+    private int syncInterval;
+
+    /**Used to report progress*/
+    private Progressable progress;
+
+    /**
+     * Creates a writer with the block size and headers set in the given
+     * configuration
+     * @param out
+     * @param conf
+     * @param progress - used to report progress. Can be null
+     */
+    public Writer(OutputStream out, Configuration conf, Progressable progress) {
+      this(out, conf.getInt(SYNC_INTERVAL, conf.getBoolean(COLUMNAR, false) ?
+          1024 * 1024 : 64 * 1024), conf.getBoolean(BLOCK_HEADERS, true),
+          conf.getBoolean(COLUMNAR, false), conf.getBoolean(COMPRESS, false),
+          progress);
+      if (conf.get(RECORD_MBRS) != null)
+        setRecordMBRs(conf.getBoolean(RECORD_MBRS, false));
+    }
+
+    public Writer(OutputStream out, int syncInterval, boolean blockMBR,
+        Progressable progress) {
+      this(out, syncInterval, blockMBR, false, false, progress);
+    }
+
+    /**
+     * Creates a writer. A columnar writer accepts only points and always
+     * writes the MBR of each block.
+     * @param out
+     * @param syncInterval
+     * @param blockMBR
+     * @param columnar
+     * @param compressed - whether to compress columns of a columnar file
+     * @param progress
+     */
+    public Writer(OutputStream out, int syncInterval, boolean blockMBR,
+        boolean columnar, boolean compressed, Progressable progress) {
+      this.out = out instanceof DataOutputStream ?
+          (DataOutputStream) out : new DataOutputStream(out);
+      this.syncInterval = syncInterval;
+      this.progress = progress;
+      this.header = new Header();
+      this.header.blockMBR = blockMBR || columnar;
+      this.header.columnar = columnar;
+      this.header.compressed = columnar && compressed;
+      if (columnar)
+        this.columns = new PointColumns(header.compressed);
+      new Random().nextBytes(this.header.sync);
+      this.emptyMBR.invalidate();
+      resetBlock();
+    }
+
+    /**
+     * Sets whether to write the MBR of each record before it. If not set,
+     * MBRs are written for all shapes except points and rectangles. Ignored
+     * by columnar files. Must be called before writing any shape.
+     * @param recordMBRs
+     */
+    public void setRecordMBRs(boolean recordMBRs) {
+      this.header.recordMBR = recordMBRs && !header.columnar;
+      this.autoRecordMBRs = false;
+    }
+
+    /**
+     * Sets the class of shapes stored in the file. If not set, the class of
+     * the first written shape is used.
+     * @param shapeClass
+     */
+    public void setShapeClass(Class<? extends Shape> shapeClass) {
+      header.shapeClass = shapeClass.getName();
+    }
+
+    private void resetBlock() {
+      block.reset();
+      if (columns != null)
+        columns.reset();
+      blockCount = 0;
+      blockMBR.set(Double.MAX_VALUE, Double.MAX_VALUE,
+          -Double.MAX_VALUE, -Double.MAX_VALUE);
+    }
+
+    public void write(S shape) throws IOException {
+      // A lazy shape is written as the shape it wraps
+      Shape stockShape = shape instanceof LazyShape ?
+          ((LazyShape) shape).getStockShape() : shape;
+      if (header.shapeClass == null)
+        header.shapeClass = stockShape.getClass().getName();
+      if (columns != null) {
+        if (!(shape instanceof Point))
+          throw new RuntimeException("Cannot write "+shape.getClass()+
+              " to a columnar file");
+        Point p = (Point) shape;
+        columns.add(p);
+        blockCount++;
+        blockMBR.x1 = Math.min(blockMBR.x1, p.x);
+        blockMBR.y1 = Math.min(blockMBR.y1, p.y);
+        blockMBR.x2 = Math.max(blockMBR.x2, p.x);
+        blockMBR.y2 = Math.max(blockMBR.y2, p.y);
+        if (columns.getSize() >= syncInterval)
+          flushBlock();
+        return;
+      }
+      if (autoRecordMBRs) {
+        header.recordMBR = !(stockShape instanceof Point ||
+            stockShape instanceof Rectangle);
+        autoRecordMBRs = false;
+      }
+      record.reset();
+      shape.write(record);
+      block.writeInt(record.getLength());
+      Rectangle mbr = shape.getMBR();
+      if (header.recordMBR)
+        (mbr != null ? mbr : emptyMBR).write(block);
+      block.write(record.getData(), 0, record.getLength());
+      blockCount++;
+      if (mbr != null)
+        blockMBR.expand(mbr);
+      if (block.getLength() >= syncInterval)
+        flushBlock();
+    }
+
+    private void writeHeader() throws IOException {
+      if (!headerWritten) {
+        if (header.shapeClass == null)
+          header.shapeClass = "";
+        header.write(out);
+        headerWritten = true;
+      }
+    }
+
+    /**
+     * Writes the current block to the output
+     * @throws IOException
+     */
+    private void flushBlock() throws IOException {
+      writeHeader();
+      if (blockCount == 0)
+        return;
+      if (columns != null)
+        columns.write(block);
+      out.write(header.sync);
+      out.writeInt(block.getLength());
+      out.writeInt(blockCount);
+      if (header.blockMBR)
+        blockMBR.write(out);
+      out.write(block.getData(), 0, block.getLength());
+      resetBlock();
+      if (progress != null)
+        progress.progress();
+    }
+
+    /**
+     * Writes all remaining records and closes the underlying stream
+     * @throws IOException
+     */
+    public void close() throws IOException {
+      flushBlock();
+      out.close();
+      if (columns != null)
+        columns.close();
+    }
+  }
+}
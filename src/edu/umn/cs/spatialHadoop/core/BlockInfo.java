@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package edu.umn.cs.spatialHadoop.core;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.LineReader;
+
+import edu.umn.cs.spatialHadoop.io.TextCursor;
+import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
+
+/**
+ * The MBR and number of records of a range of bytes in a non-indexed (heap)
+ * file. The records of a range are the ones returned by a record reader
+ * that reads this range as one split. The blocks of a file are stored next
+ * to it in a file named after it which allows input formats to skip blocks
+ * outside a query range without building a global index.
+ */
+public class BlockInfo extends Rectangle {
+  /**Suffix of the file that stores the blocks of a heap file*/
+  public static final String BlocksFileSuffix = ".blocks";
+
+  /**Offset of the first byte of this block in the file*/
+  public long start;
+
+  /**Length of this block in bytes*/
+  public long length;
+
+  /**Number of records in this block. The MBR is not valid if zero*/
+  public long recordCount;
+
+  public BlockInfo() {
+  }
+
+  public BlockInfo(long start, long length) {
+    this.start = start;
+    this.length = length;
+  }
+
+  public BlockInfo(BlockInfo b) {
+    this.set(b);
+  }
+
+  public void set(BlockInfo b) {
+    super.set(b);
+    this.start = b.start;
+    this.length = b.length;
+    this.recordCount = b.recordCount;
+  }
+
+  /**
+   * Adds a record with the given MBR to this block
+   * @param mbr
+   */
+  public void addRecord(Rectangle mbr) {
+    if (recordCount++ == 0)
+      super.set(mbr);
+    else
+      expand(mbr);
+  }
+
+  /**
+   * Whether any record in this block might be inside the given range
+   * @param range
+   * @return
+   */
+  public boolean mayOverlap(Rectangle range) {
+    return recordCount > 0 && isIntersected(range);
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    out.writeLong(start);
+    out.writeLong(length);
+    out.writeLong(recordCount);
+    super.write(out);
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    this.start = in.readLong();
+    this.length = in.readLong();
+    this.recordCount = in.readLong();
+    super.readFields(in);
+  }
+
+  @Override
+  public Text toText(Text text) {
+    TextSerializerHelper.serializeLong(start, text, ',');
+    TextSerializerHelper.serializeLong(length, text, ',');
+    TextSerializerHelper.serializeLong(recordCount, text, ',');
+    return super.toText(text);
+  }
+
+  @Override
+  public void fromText(TextCursor cursor) {
+    this.start = cursor.nextLong(',');
+    this.length = cursor.nextLong(',');
+    this.recordCount = cursor.nextLong(',');
+    super.fromText(cursor);
+  }
+
+  @Override
+  public BlockInfo clone() {
+    return new BlockInfo(this);
+  }
+
+  @Override
+  public String toString() {
+    return "Block "+start+"+"+length+" with "+recordCount+" records "+super.toString();
+  }
+
+  /**
+   * The file that stores the blocks of the given heap file. It starts with
+   * an underscore so that it is not processed as an input file.
+   * @param file
+   * @return
+   */
+  public static Path getBlocksFile(Path file) {
+    return new Path(file.getParent(), "_" + file.getName() + BlocksFileSuffix);
+  }
+
+  /**
+   * Writes the blocks of a heap file next to it. Blocks must be sorted by
+   * their start offsets and must cover the whole file.
+   * @param fs
+   * @param file
+   * @param blocks
+   * @throws IOException
+   */
+  public static void writeBlocks(FileSystem fs, Path file, BlockInfo[] blocks)
+      throws IOException {
+    OutputStream out = fs.create(getBlocksFile(file), true);
+    byte[] newLine = System.getProperty("line.separator").getBytes();
+    Text text = new Text();
+    for (BlockInfo block : blocks) {
+      text.clear();
+      block.toText(text);
+      out.write(text.getBytes(), 0, text.getLength());
+      out.write(newLine);
+    }
+    out.close();
+  }
+
+  /**
+   * Reads the blocks of the given heap file. If the file has no blocks file
+   * or the file was modified after its blocks were computed, null is
+   * returned.
+   * @param fs
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  public static BlockInfo[] readBlocks(FileSystem fs, Path file)
+      throws IOException {
+    Path blocksFile = getBlocksFile(file);
+    if (!fs.exists(blocksFile))
+      return null;
+    FileStatus fileStatus = fs.getFileStatus(file);
+    if (fs.getFileStatus(blocksFile).getModificationTime() <
+        fileStatus.getModificationTime())
+      return null;
+    List<BlockInfo> blocks = new ArrayList<BlockInfo>();
+    LineReader reader = new LineReader(fs.open(blocksFile));
+    Text line = new Text();
+    long end = 0;
+    while (reader.readLine(line) > 0) {
+      if (line.getLength() == 0)
+        continue;
+      BlockInfo block = new BlockInfo();
+      block.fromText(line);
+      if (block.start != end) {
+        reader.close();
+        return null;
+      }
+      end = block.start + block.length;
+      blocks.add(block);
+    }
+    reader.close();
+    if (end != fileStatus.getLen())
+      return null;
+    return blocks.toArray(new BlockInfo[blocks.size()]);
+  }
+}
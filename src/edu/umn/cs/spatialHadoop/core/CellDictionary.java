@@ -0,0 +1,357 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package edu.umn.cs.spatialHadoop.core;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A compact, read-only list of cells with a lookup index that finds the
+ * cells overlapping a rectangle without testing all cells. Cells are stored
+ * in primitive arrays rather than one object per cell and the lookup index
+ * is a uniform grid of buckets where each bucket lists the cells that
+ * overlap it.
+ *
+ * The binary format written by {@link #write(OutputStream)} stores all
+ * arrays as is, which allows a task to memory map the file and use it
+ * without parsing it. Dictionaries opened using {@link #open(File)} are
+ * shared by all tasks that run in the same JVM.
+ *
+ * Cells are identified by their index in the dictionary, which is their
+ * position in the array it was created from.
+ */
+public class CellDictionary {
+
+  /**Number of cells in this dictionary*/
+  private final int numCells;
+
+  /**Number of columns and rows of the lookup grid*/
+  private final int columns, rows;
+
+  /**Area covered by the lookup grid*/
+  private final double gridX1, gridY1, gridX2, gridY2;
+
+  /**ID of each cell*/
+  private final LongBuffer cellIds;
+
+  /**Coordinates of cells as x1, y1, x2, y2 of each cell in order*/
+  private final DoubleBuffer coords;
+
+  /**
+   * Index of the first entry of each bucket in {@link #bucketCells}. Buckets
+   * are ordered row by row and an extra entry marks the end of the last one.
+   */
+  private final IntBuffer bucketStarts;
+
+  /**Indexes of cells that overlap each bucket*/
+  private final IntBuffer bucketCells;
+
+  /**The dictionary opened last using {@link #open(File)}*/
+  private static CellDictionary openDictionary;
+
+  /**The file from which {@link #openDictionary} was opened*/
+  private static File openFile;
+
+  /**
+   * Builds a dictionary of the given cells in memory.
+   * @param cells
+   */
+  public CellDictionary(CellInfo[] cells) {
+    this.numCells = cells.length;
+    long[] ids = new long[numCells];
+    double[] coords = new double[4 * numCells];
+    Rectangle mbr = new Rectangle(Double.MAX_VALUE, Double.MAX_VALUE,
+        -Double.MAX_VALUE, -Double.MAX_VALUE);
+    for (int i = 0; i < numCells; i++) {
+      ids[i] = cells[i].cellId;
+      coords[4 * i] = cells[i].x1;
+      coords[4 * i + 1] = cells[i].y1;
+      coords[4 * i + 2] = cells[i].x2;
+      coords[4 * i + 3] = cells[i].y2;
+      mbr.expand(cells[i]);
+    }
+    this.gridX1 = mbr.x1;
+    this.gridY1 = mbr.y1;
+    this.gridX2 = mbr.x2;
+    this.gridY2 = mbr.y2;
+    // Use around one bucket per cell. A grid over an unbounded space
+    // (e.g., cells of a curve partitioning) is useless so one bucket is used
+    int gridSize = (int) Math.ceil(Math.sqrt(numCells));
+    boolean bounded = mbr.getWidth() < Double.MAX_VALUE &&
+        mbr.getHeight() < Double.MAX_VALUE;
+    this.columns = bounded && mbr.getWidth() > 0 ? Math.max(1, gridSize) : 1;
+    this.rows = bounded && mbr.getHeight() > 0 ? Math.max(1, gridSize) : 1;
+    this.cellIds = LongBuffer.wrap(ids);
+    this.coords = DoubleBuffer.wrap(coords);
+
+    // Count cells in each bucket and then fill them in
+    int[] bucketStarts = new int[columns * rows + 1];
+    for (int i = 0; i < numCells; i++) {
+      int col1 = getColumn(coords[4 * i]), col2 = getColumn(coords[4 * i + 2]);
+      int row1 = getRow(coords[4 * i + 1]), row2 = getRow(coords[4 * i + 3]);
+      for (int row = row1; row <= row2; row++)
+        for (int col = col1; col <= col2; col++)
+          bucketStarts[row * columns + col + 1]++;
+    }
+    for (int bucket = 0; bucket < columns * rows; bucket++)
+      bucketStarts[bucket + 1] += bucketStarts[bucket];
+    int[] bucketCells = new int[bucketStarts[columns * rows]];
+    int[] bucketSizes = new int[columns * rows];
+    for (int i = 0; i < numCells; i++) {
+      int col1 = getColumn(coords[4 * i]), col2 = getColumn(coords[4 * i + 2]);
+      int row1 = getRow(coords[4 * i + 1]), row2 = getRow(coords[4 * i + 3]);
+      for (int row = row1; row <= row2; row++) {
+        for (int col = col1; col <= col2; col++) {
+          int bucket = row * columns + col;
+          bucketCells[bucketStarts[bucket] + bucketSizes[bucket]++] = i;
+        }
+      }
+    }
+    this.bucketStarts = IntBuffer.wrap(bucketStarts);
+    this.bucketCells = IntBuffer.wrap(bucketCells);
+  }
+
+  /**
+   * Creates a dictionary on top of a buffer that contains its binary
+   * representation.
+   * @param buffer
+   */
+  private CellDictionary(ByteBuffer buffer) {
+    this.numCells = buffer.getInt();
+    this.columns = buffer.getInt();
+    this.rows = buffer.getInt();
+    this.gridX1 = buffer.getDouble();
+    this.gridY1 = buffer.getDouble();
+    this.gridX2 = buffer.getDouble();
+    this.gridY2 = buffer.getDouble();
+    this.cellIds = slice(buffer, numCells * 8).asLongBuffer();
+    this.coords = slice(buffer, numCells * 4 * 8).asDoubleBuffer();
+    this.bucketStarts = slice(buffer, (columns * rows + 1) * 4).asIntBuffer();
+    this.bucketCells =
+        slice(buffer, bucketStarts.get(columns * rows) * 4).asIntBuffer();
+  }
+
+  /**
+   * Returns a buffer over the next given number of bytes in the given buffer
+   * and skips them.
+   * @param buffer
+   * @param length
+   * @return
+   */
+  private static ByteBuffer slice(ByteBuffer buffer, int length) {
+    ByteBuffer slice = buffer.slice();
+    slice.limit(length);
+    buffer.position(buffer.position() + length);
+    return slice;
+  }
+
+  /**
+   * Opens a dictionary stored in the given local file by memory mapping it.
+   * If the same file was opened last, the already open dictionary is
+   * returned. This allows tasks that run in the same JVM to share one copy.
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  public static synchronized CellDictionary open(File file) throws IOException {
+    file = file.getAbsoluteFile();
+    if (!file.equals(openFile)) {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+        FileChannel channel = raf.getChannel();
+        // The mapping stays valid after the channel is closed
+        openDictionary = new CellDictionary(
+            channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        openFile = file;
+      } finally {
+        raf.close();
+      }
+    }
+    return openDictionary;
+  }
+
+  /**
+   * Writes the binary representation of this dictionary to the given stream.
+   * @param out
+   * @throws IOException
+   */
+  public void write(OutputStream out) throws IOException {
+    DataOutputStream dout = new DataOutputStream(out);
+    dout.writeInt(numCells);
+    dout.writeInt(columns);
+    dout.writeInt(rows);
+    dout.writeDouble(gridX1);
+    dout.writeDouble(gridY1);
+    dout.writeDouble(gridX2);
+    dout.writeDouble(gridY2);
+    for (int i = 0; i < numCells; i++)
+      dout.writeLong(cellIds.get(i));
+    for (int i = 0; i < 4 * numCells; i++)
+      dout.writeDouble(coords.get(i));
+    for (int i = 0; i <= columns * rows; i++)
+      dout.writeInt(bucketStarts.get(i));
+    for (int i = 0; i < bucketStarts.get(columns * rows); i++)
+      dout.writeInt(bucketCells.get(i));
+    dout.flush();
+  }
+
+  /**
+   * Number of cells in this dictionary
+   * @return
+   */
+  public int getCellCount() {
+    return numCells;
+  }
+
+  /**
+   * Returns the ID of the cell at the given index
+   * @param index
+   * @return
+   */
+  public long getCellId(int index) {
+    return cellIds.get(index);
+  }
+
+  /**
+   * Creates the cell at the given index
+   * @param index
+   * @return
+   */
+  public CellInfo getCell(int index) {
+    return new CellInfo(cellIds.get(index), coords.get(4 * index),
+        coords.get(4 * index + 1), coords.get(4 * index + 2),
+        coords.get(4 * index + 3));
+  }
+
+  /**
+   * Creates all cells in this dictionary in order
+   * @return
+   */
+  public CellInfo[] getCells() {
+    CellInfo[] cells = new CellInfo[numCells];
+    for (int i = 0; i < numCells; i++)
+      cells[i] = getCell(i);
+    return cells;
+  }
+
+  private int getColumn(double x) {
+    if (columns == 1)
+      return 0;
+    int column = (int) ((x - gridX1) * columns / (gridX2 - gridX1));
+    return Math.max(0, Math.min(columns - 1, column));
+  }
+
+  private int getRow(double y) {
+    if (rows == 1)
+      return 0;
+    int row = (int) ((y - gridY1) * rows / (gridY2 - gridY1));
+    return Math.max(0, Math.min(rows - 1, row));
+  }
+
+  /**
+   * Tests whether the cell at the given index intersects the given rectangle.
+   * Boundaries are inclusive as in {@link Rectangle#isIntersected(Shape)}.
+   */
+  private boolean isIntersected(int index, Rectangle r) {
+    return coords.get(4 * index + 2) >= r.x1 && r.x2 >= coords.get(4 * index) &&
+        coords.get(4 * index + 3) >= r.y1 && r.y2 >= coords.get(4 * index + 1);
+  }
+
+  /**
+   * Finds all cells that overlap the given rectangle. Each cell is reported
+   * once in no specific order.
+   * @param r
+   * @param result - receives indexes of overlapping cells. It has to be
+   *   large enough to hold all of them, i.e., {@link #getCellCount()}
+   * @return - number of overlapping cells
+   */
+  public int getOverlappingCells(Rectangle r, int[] result) {
+    int resultSize = 0;
+    int col1 = getColumn(r.x1), col2 = getColumn(r.x2);
+    int row1 = getRow(r.y1), row2 = getRow(r.y2);
+    for (int row = row1; row <= row2; row++) {
+      for (int col = col1; col <= col2; col++) {
+        int bucket = row * columns + col;
+        for (int i = bucketStarts.get(bucket); i < bucketStarts.get(bucket + 1); i++) {
+          int index = bucketCells.get(i);
+          if (!isIntersected(index, r))
+            continue;
+          // A cell that spans many buckets is reported only from the bucket
+          // that contains the lower corner of its intersection with r
+          double x = Math.max(r.x1, coords.get(4 * index));
+          double y = Math.max(r.y1, coords.get(4 * index + 1));
+          if (getColumn(x) == col && getRow(y) == row)
+            result[resultSize++] = index;
+        }
+      }
+    }
+    return resultSize;
+  }
+
+  /**
+   * Finds a cell with the same boundaries as the given rectangle
+   * @param r
+   * @return - the index of the cell or -1 if not found
+   */
+  public int findCell(Rectangle r) {
+    // The cell is listed in the bucket of its lower corner
+    int bucket = getRow(r.y1) * columns + getColumn(r.x1);
+    for (int i = bucketStarts.get(bucket); i < bucketStarts.get(bucket + 1); i++) {
+      int index = bucketCells.get(i);
+      if (coords.get(4 * index) == r.x1 && coords.get(4 * index + 1) == r.y1 &&
+          coords.get(4 * index + 2) == r.x2 && coords.get(4 * index + 3) == r.y2)
+        return index;
+    }
+    return -1;
+  }
+
+  /**
+   * Finds the cell with the largest area of overlap with the given
+   * rectangle. Ties are broken by choosing the cell with the lowest index.
+   * @param r
+   * @return - the index of the cell or -1 if no cells overlap r
+   */
+  public int getMaxOverlapCell(Rectangle r) {
+    int bestCell = -1;
+    double maxOverlap = -1.0;
+    int col1 = getColumn(r.x1), col2 = getColumn(r.x2);
+    int row1 = getRow(r.y1), row2 = getRow(r.y2);
+    for (int row = row1; row <= row2; row++) {
+      for (int col = col1; col <= col2; col++) {
+        int bucket = row * columns + col;
+        for (int i = bucketStarts.get(bucket); i < bucketStarts.get(bucket + 1); i++) {
+          int index = bucketCells.get(i);
+          if (!isIntersected(index, r))
+            continue;
+          double overlapArea =
+              (Math.min(r.x2, coords.get(4 * index + 2)) - Math.max(r.x1, coords.get(4 * index))) *
+              (Math.min(r.y2, coords.get(4 * index + 3)) - Math.max(r.y1, coords.get(4 * index + 1)));
+          if (bestCell == -1 || overlapArea > maxOverlap ||
+              (overlapArea == maxOverlap && index < bestCell)) {
+            maxOverlap = overlapArea;
+            bestCell = index;
+          }
+        }
+      }
+    }
+    return bestCell;
+  }
+}
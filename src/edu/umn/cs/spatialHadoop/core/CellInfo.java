@@ -18,6 +18,7 @@ import java.io.IOException;
 
 import org.apache.hadoop.io.Text;
 
+import edu.umn.cs.spatialHadoop.io.TextCursor;
 import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
 
 
@@ -122,8 +123,8 @@ public class CellInfo extends Rectangle {
   }
   
   @Override
-  public void fromText(Text text) {
-    this.cellId = TextSerializerHelper.consumeLong(text, ',');
-    super.fromText(text);
+  public void fromText(TextCursor cursor) {
+    this.cellId = cursor.nextLong(',');
+    super.fromText(cursor);
   }
 }
@@ -20,6 +20,8 @@ import java.io.IOException;
 
 import org.apache.hadoop.io.Text;
 
+import edu.umn.cs.spatialHadoop.io.CursorParsable;
+import edu.umn.cs.spatialHadoop.io.TextCursor;
 import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
 
 /**
@@ -27,7 +29,7 @@ import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
  * @author eldawy
  *
  */
-public class Circle extends Arc2D.Double implements Shape {
+public class Circle extends Arc2D.Double implements Shape, CursorParsable {
 
   /**
    * 
@@ -94,9 +96,20 @@ public class Circle extends Arc2D.Double implements Shape {
 
   @Override
   public void fromText(Text text) {
-    double x = TextSerializerHelper.consumeDouble(text, ',');
-    double y = TextSerializerHelper.consumeDouble(text, ',');
-    double r = TextSerializerHelper.consumeDouble(text, '\0');
+    TextCursor cursor = TextCursor.acquire(text);
+    try {
+      fromText(cursor);
+    } finally {
+      cursor.release();
+    }
+  }
+
+  /**Parses the center x,y and the radius of this circle*/
+  @Override
+  public void fromText(TextCursor cursor) {
+    double x = cursor.nextDouble(',');
+    double y = cursor.nextDouble(',');
+    double r = cursor.nextDouble('\0');
     set(x, y, r);
   }
   
@@ -0,0 +1,248 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package edu.umn.cs.spatialHadoop.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.LineReader;
+
+import edu.umn.cs.spatialHadoop.io.TextCursor;
+import edu.umn.cs.spatialHadoop.io.TextSerializable;
+import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
+
+/**
+ * Partitions a file into disjoint ranges of keys on a space filling curve.
+ * Each record is assigned to exactly one partition according to the key of
+ * its center, so records are never replicated. Partition #i (starting at
+ * one) contains all keys in the range [splits[i-2], splits[i-1]).
+ *
+ * The partitioning of an indexed file is stored in the file
+ * {@link #CurveFile} next to its master file.
+ */
+public class CurvePartitioning implements TextSerializable {
+
+  /**Name of the file that stores the partitioning of an indexed file*/
+  public static final String CurveFile = "_curve";
+
+  /**The curve used to compute keys of records*/
+  public SpaceFillingCurve curve;
+
+  /**First key of each partition except the first one in ascending order*/
+  public long[] splits;
+
+  /**
+   * Width and height of the largest record in the partitioned file. Query
+   * ranges are expanded by these values before they are mapped to keys.
+   * A negative value means they are not known and partitions cannot be
+   * filtered by keys.
+   */
+  public double maxWidth, maxHeight;
+
+  public CurvePartitioning() {
+  }
+
+  /**
+   * Creates a partitioning that splits the given sample into the given
+   * number of partitions of equal sizes.
+   * @param curve
+   * @param sample
+   * @param numPartitions
+   */
+  public CurvePartitioning(SpaceFillingCurve curve, Point[] sample,
+      int numPartitions) {
+    this.curve = curve;
+    long[] keys = new long[sample.length];
+    for (int i = 0; i < sample.length; i++)
+      keys[i] = curve.computeKey(sample[i].x, sample[i].y);
+    Arrays.sort(keys);
+    numPartitions = Math.max(1, Math.min(numPartitions, keys.length));
+    // Take each split as the first key of a partition and skip duplicates
+    long[] splits = new long[numPartitions - 1];
+    int numSplits = 0;
+    for (int i = 1; i < numPartitions; i++) {
+      long split = keys[(int) ((long) i * keys.length / numPartitions)];
+      if (numSplits == 0 || split > splits[numSplits - 1])
+        splits[numSplits++] = split;
+    }
+    this.splits = Arrays.copyOf(splits, numSplits);
+  }
+
+  /**
+   * Number of partitions
+   * @return
+   */
+  public int getPartitionCount() {
+    return splits.length + 1;
+  }
+
+  /**
+   * Returns the ID of the partition that contains a record with the given
+   * MBR. IDs start at one.
+   * @param mbr
+   * @return
+   */
+  public int getPartitionId(Rectangle mbr) {
+    long key = curve.computeKey(mbr);
+    int index = Arrays.binarySearch(splits, key);
+    // An exact match is the first key of the next partition
+    return index >= 0 ? index + 2 : -index;
+  }
+
+  /**
+   * Returns one cell per partition that can be used with
+   * {@link GridRecordWriter}. Cells cover the whole space as records are
+   * assigned to them by their keys.
+   * @return
+   */
+  public CellInfo[] getCells() {
+    CellInfo[] cells = new CellInfo[getPartitionCount()];
+    for (int i = 0; i < cells.length; i++)
+      cells[i] = new CellInfo(i + 1, -Double.MAX_VALUE, -Double.MAX_VALUE,
+          Double.MAX_VALUE, Double.MAX_VALUE);
+    return cells;
+  }
+
+  /**
+   * Expands the maximum record size, if needed, to cover the given record.
+   * A record size that is not known is kept as is.
+   * @param mbr
+   */
+  public void expandRecordSize(Rectangle mbr) {
+    if (maxWidth >= 0 && maxHeight >= 0) {
+      maxWidth = Math.max(maxWidth, mbr.getWidth());
+      maxHeight = Math.max(maxHeight, mbr.getHeight());
+    }
+  }
+
+  /**
+   * Returns the key ranges that contain all records which could overlap
+   * the given query range, or <code>null</code> if the ranges cannot be
+   * computed because the size of records is not known.
+   * @param query
+   * @return - the ranges as returned by
+   *   {@link SpaceFillingCurve#decompose(Rectangle, int)}
+   */
+  public long[] getKeyRanges(Rectangle query) {
+    if (maxWidth < 0 || maxHeight < 0)
+      return null;
+    // Any record that overlaps the query has its center in this range
+    Rectangle expanded = new Rectangle(query.x1 - maxWidth / 2,
+        query.y1 - maxHeight / 2, query.x2 + maxWidth / 2,
+        query.y2 + maxHeight / 2);
+    return curve.decompose(expanded, SpaceFillingCurve.DecompositionLevels);
+  }
+
+  /**
+   * Tests whether the partition with the given ID contains any key in the
+   * given key ranges.
+   * @param partitionId
+   * @param keyRanges
+   * @return
+   */
+  public boolean isSelected(int partitionId, long[] keyRanges) {
+    if (partitionId < 1 || partitionId > getPartitionCount())
+      return true; // Not a partition of this partitioning
+    long first = partitionId == 1 ? Long.MIN_VALUE : splits[partitionId - 2];
+    long last = partitionId == getPartitionCount() ? Long.MAX_VALUE
+        : splits[partitionId - 1] - 1;
+    for (int i = 0; i < keyRanges.length; i += 2) {
+      if (keyRanges[i] <= last && first <= keyRanges[i + 1])
+        return true;
+    }
+    return false;
+  }
+
+  @Override
+  public Text toText(Text text) {
+    byte[] name = (curve.getName()+",").getBytes();
+    text.append(name, 0, name.length);
+    TextSerializerHelper.serializeDouble(curve.x1, text, ',');
+    TextSerializerHelper.serializeDouble(curve.y1, text, ',');
+    TextSerializerHelper.serializeDouble(curve.x2, text, ',');
+    TextSerializerHelper.serializeDouble(curve.y2, text, ',');
+    TextSerializerHelper.serializeDouble(maxWidth, text, ',');
+    TextSerializerHelper.serializeDouble(maxHeight, text, ',');
+    TextSerializerHelper.serializeInt(splits.length, text,
+        splits.length == 0 ? '\0' : ',');
+    for (int i = 0; i < splits.length; i++)
+      TextSerializerHelper.serializeLong(splits[i], text,
+          i == splits.length - 1 ? '\0' : ',');
+    return text;
+  }
+
+  @Override
+  public void fromText(Text text) {
+    TextCursor cursor = TextCursor.acquire(text);
+    try {
+      String name = cursor.nextString(',');
+      Rectangle space = new Rectangle();
+      space.x1 = cursor.nextDouble(',');
+      space.y1 = cursor.nextDouble(',');
+      space.x2 = cursor.nextDouble(',');
+      space.y2 = cursor.nextDouble(',');
+      curve = SpaceFillingCurve.getCurve(name, space);
+      maxWidth = cursor.nextDouble(',');
+      maxHeight = cursor.nextDouble(',');
+      splits = new long[cursor.nextInt(',')];
+      for (int i = 0; i < splits.length; i++)
+        splits[i] = cursor.nextLong(',');
+    } finally {
+      cursor.release();
+    }
+  }
+
+  /**
+   * Writes this partitioning to the file {@link #CurveFile} in the given
+   * indexed directory.
+   * @param fs
+   * @param indexDir
+   * @throws IOException
+   */
+  public void write(FileSystem fs, Path indexDir) throws IOException {
+    Text text = new Text();
+    toText(text);
+    OutputStream out = fs.create(new Path(indexDir, CurveFile), true);
+    out.write(text.getBytes(), 0, text.getLength());
+    out.write(System.getProperty("line.separator").getBytes());
+    out.close();
+  }
+
+  /**
+   * Reads the partitioning of the given indexed directory.
+   * @param fs
+   * @param indexDir
+   * @return the partitioning or <code>null</code> if the directory is not
+   *   partitioned along a space filling curve.
+   * @throws IOException
+   */
+  public static CurvePartitioning read(FileSystem fs, Path indexDir)
+      throws IOException {
+    Path curveFile = new Path(indexDir, CurveFile);
+    if (!fs.exists(curveFile))
+      return null;
+    InputStream in = fs.open(curveFile);
+    LineReader reader = new LineReader(in);
+    Text line = new Text();
+    reader.readLine(line);
+    reader.close();
+    CurvePartitioning partitioning = new CurvePartitioning();
+    partitioning.fromText(line);
+    return partitioning;
+  }
+}
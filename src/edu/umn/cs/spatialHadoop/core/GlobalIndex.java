@@ -44,6 +44,15 @@ public class GlobalIndex<S extends Shape> implements Writable, Iterable<S> {
   /**Whether objects are allowed to replicated in different partitions or not*/
   private boolean replicated;
   
+  /**Key ranges of partitions if they are partitioned along a curve*/
+  private CurvePartitioning curvePartitioning;
+  
+  /**
+   * Whether partitions are locally indexed with R-trees. Null if it was not
+   * recorded when the file was indexed.
+   */
+  private Boolean rtree;
+  
   public GlobalIndex() {
   }
   
@@ -78,8 +87,10 @@ public class GlobalIndex<S extends Shape> implements Writable, Iterable<S> {
   
   public int rangeQuery(Shape queryRange, ResultCollector<S> output) {
     int result_count = 0;
+    long[] keyRanges = curvePartitioning == null ? null :
+      curvePartitioning.getKeyRanges(queryRange.getMBR());
     for (S shape : shapes) {
-      if (shape.isIntersected(queryRange)) {
+      if (shape.isIntersected(queryRange) && isSelected(shape, keyRanges)) {
         result_count++;
         if (output != null) {
           output.collect(shape);
@@ -89,6 +100,21 @@ public class GlobalIndex<S extends Shape> implements Writable, Iterable<S> {
     return result_count;
   }
   
+  /**
+   * Tests whether a partition contains keys in the given key ranges
+   * returned by {@link CurvePartitioning#getKeyRanges(Rectangle)}. Always
+   * <code>true</code> if the index is not partitioned along a curve.
+   * @param partition
+   * @param keyRanges
+   * @return
+   */
+  public boolean isSelected(S partition, long[] keyRanges) {
+    if (keyRanges == null || !(partition instanceof CellInfo))
+      return true;
+    return curvePartitioning.isSelected((int) ((CellInfo) partition).cellId,
+        keyRanges);
+  }
+  
   public static<S1 extends Shape, S2 extends Shape>
       int spatialJoin(GlobalIndex<S1> s1, GlobalIndex<S2> s2,
           final ResultCollector2<S1, S2> output) {
@@ -240,6 +266,14 @@ public class GlobalIndex<S extends Shape> implements Writable, Iterable<S> {
     this.compact = compact;
   }
 
+  public CurvePartitioning getCurvePartitioning() {
+    return curvePartitioning;
+  }
+
+  public void setCurvePartitioning(CurvePartitioning curvePartitioning) {
+    this.curvePartitioning = curvePartitioning;
+  }
+
   public void setReplicated(boolean r) {
     this.replicated = r;
   }
@@ -247,4 +281,17 @@ public class GlobalIndex<S extends Shape> implements Writable, Iterable<S> {
   public boolean isReplicated() {
     return replicated;
   }
+
+  /**
+   * Returns whether partitions are locally indexed with R-trees or
+   * <code>null</code> if this is not recorded in the index.
+   * @return
+   */
+  public Boolean isRTree() {
+    return rtree;
+  }
+
+  public void setRTree(Boolean rtree) {
+    this.rtree = rtree;
+  }
 }
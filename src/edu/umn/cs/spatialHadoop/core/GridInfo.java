@@ -18,6 +18,7 @@ import java.io.IOException;
 
 import org.apache.hadoop.io.Text;
 
+import edu.umn.cs.spatialHadoop.io.TextCursor;
 import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
 
 /**
@@ -108,13 +109,13 @@ public class GridInfo extends Rectangle {
   }
 
   @Override
-  public void fromText(Text text) {
-    super.fromText(text);
-    if (text.getLength() > 0) {
-      // Remove the first comma
-      text.set(text.getBytes(), 1, text.getLength() - 1);
-      columns = (int) TextSerializerHelper.consumeInt(text, ',');
-      rows = (int) TextSerializerHelper.consumeInt(text, '\0');
+  public void fromText(TextCursor cursor) {
+    super.fromText(cursor);
+    if (cursor.hasMore()) {
+      // Skip the first comma
+      cursor.setPosition(cursor.getPosition() + 1);
+      columns = cursor.nextInt(',');
+      rows = cursor.nextInt('\0');
     }
   }
 
@@ -12,11 +12,19 @@
  */
 package edu.umn.cs.spatialHadoop.core;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -55,16 +63,25 @@ import edu.umn.cs.spatialHadoop.mapred.GridRecordWriter3;
  */
 public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
   public static final Log LOG = LogFactory.getLog(GridRecordWriter.class);
-  /**The spatial boundaries for each cell*/
-  protected CellInfo[] cells;
+  /**The cells to partition the file or null if not partitioned*/
+  private CellDictionary cellDictionary;
+  
+  /**Index in {@link #cellDictionary} of each cell ID or -1 if not there*/
+  private int[] cellIndexes;
+  
+  /**Cells added by {@link #write(Rectangle, Shape)}*/
+  private ArrayList<CellInfo> addedCells = new ArrayList<CellInfo>();
   
   /**Paths of intermediate files*/
   protected Path[] intermediateCellPath;
   
+  /**Indexes in {@link #cellDictionary} of cells that overlap a shape*/
+  private int[] overlappingCells;
+  
   /**An output stream for each grid cell*/
   protected OutputStream[] intermediateCellStreams;
   
-  /**MBR of the records written so far to each cell*/
+  /**MBR of the records written so far to each cell. Created when needed*/
   protected Rectangle[] cellsMbr;
   
   /**Job configuration if part of a MapReduce job*/
@@ -89,7 +106,34 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
   protected OutputStream masterFile;
   
   /**A list of threads closing cells in background*/
-  protected ArrayList<Thread> closingThreads;
+  protected ArrayList<CellClosingThread> closingThreads;
+  
+  /**Maximum number of threads that close cells at the same time*/
+  protected int maxClosingThreads = 1;
+  
+  /**
+   * Maximum total size (in bytes) of cell contents kept in memory before the
+   * largest cell buffers are spilled
+   */
+  protected long maximumBufferedBytes;
+
+  /**
+   * Total size of cell contents currently buffered in memory. This includes
+   * cells that are being closed in background.
+   */
+  protected final AtomicLong bufferedBytes = new AtomicLong();
+  
+  /**Maximum number of cell files of a heap file open at the same time*/
+  protected int maxOpenCellStreams;
+  
+  /**Number of cell files currently open for writing*/
+  protected final AtomicInteger openCellStreams = new AtomicInteger();
+  
+  /**
+   * Contents of a cell with an open file are written to it whenever they
+   * reach this size (in bytes)
+   */
+  protected static final int BURST_SIZE = 1024 * 1024;
   
   /**New line marker to separate records*/
   protected static byte[] NEW_LINE;
@@ -125,6 +169,23 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
    */
   public GridRecordWriter(Path outDir, JobConf job, String prefix,
       CellInfo[] cells, boolean pack, boolean expand) throws IOException {
+    this(outDir, job, prefix, cells == null ? null : new CellDictionary(cells),
+        pack, expand);
+  }
+
+  /**
+   * Creates a new GridRecordWriter that looks up cells in the given
+   * dictionary, e.g., one memory mapped by
+   * {@link SpatialSite#getCellDictionary(JobConf)}, without creating them.
+   * @param outDir - The directory in which all files will be stored
+   * @param job - The MapReduce job associated with this output
+   * @param prefix - A unique prefix to be associated with files of this writer
+   * @param cells - Cells to partition the file
+   * @param pack - After writing each cell, pack its MBR around contents
+   * @throws IOException
+   */
+  public GridRecordWriter(Path outDir, JobConf job, String prefix,
+      CellDictionary cells, boolean pack, boolean expand) throws IOException {
     this.pack = pack;
     this.expand = expand;
     this.prefix = prefix;
@@ -139,37 +200,44 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
       // call directly write(int, Text)
       int highest_index = 0;
       
-      for (CellInfo cell : cells) {
-        if (cell.cellId > highest_index)
-          highest_index = (int) cell.cellId;
+      for (int i = 0; i < cells.getCellCount(); i++) {
+        if (cells.getCellId(i) > highest_index)
+          highest_index = (int) cells.getCellId(i);
       }
       
       // Create a master file that contains meta information about partitions
       masterFile = fileSystem.create(getMasterFilePath());
       
-      this.cells = new CellInfo[highest_index + 1];
-      for (CellInfo cell : cells)
-        this.cells[(int) cell.cellId] = cell;
+      this.cellDictionary = cells;
+      this.cellIndexes = new int[highest_index + 1];
+      Arrays.fill(cellIndexes, -1);
+      for (int i = 0; i < cells.getCellCount(); i++)
+        cellIndexes[(int) cells.getCellId(i)] = i;
+      this.overlappingCells = new int[cells.getCellCount()];
       
       // Prepare arrays that hold cells information
-      intermediateCellStreams = new OutputStream[this.cells.length];
-      intermediateCellPath = new Path[this.cells.length];
-      cellsMbr = new Rectangle[this.cells.length];
+      intermediateCellStreams = new OutputStream[cellIndexes.length];
+      intermediateCellPath = new Path[cellIndexes.length];
+      cellsMbr = new Rectangle[cellIndexes.length];
     } else {
       intermediateCellStreams = new OutputStream[1];
       intermediateCellPath = new Path[1];
       cellsMbr = new Rectangle[1];
     }
-    for (int i = 0; i < cellsMbr.length; i++) {
-      cellsMbr[i] = new Rectangle(Double.MAX_VALUE, Double.MAX_VALUE,
-          -Double.MAX_VALUE, -Double.MAX_VALUE);
-    }
 
     this.blockSize = job == null ? fileSystem.getDefaultBlockSize(this.outDir) :
       job.getLong(SpatialSite.LOCAL_INDEX_BLOCK_SIZE,
             fileSystem.getDefaultBlockSize(this.outDir));
     
-    closingThreads = new ArrayList<Thread>();
+    Configuration conf = fileSystem.getConf();
+    this.maximumBufferedBytes = conf.getLong(SpatialSite.CELL_BUFFER_SIZE, 0);
+    if (this.maximumBufferedBytes <= 0) {
+      // Not set. Keep buffers within a quarter of the heap of this task
+      this.maximumBufferedBytes = Runtime.getRuntime().maxMemory() / 4;
+    }
+    this.maxOpenCellStreams = conf.getInt(SpatialSite.MAX_OPEN_CELL_STREAMS, 64);
+    
+    closingThreads = new ArrayList<CellClosingThread>();
     text = new Text();
   }
 
@@ -205,22 +273,62 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
   public void setStockObject(S stockObject) {
     this.stockObject = stockObject;
   }
+  
+  /**
+   * Sets the maximum number of cells that can be closed in background at the
+   * same time. Entries are still written to the master file in the same order
+   * in which cells are closed.
+   * @param maxClosingThreads
+   */
+  public void setClosingThreads(int maxClosingThreads) {
+    this.maxClosingThreads = Math.max(1, maxClosingThreads);
+  }
 
   @Override
   public synchronized void write(NullWritable dummy, S shape) throws IOException {
-    if (cells == null) {
+    if (cellDictionary == null) {
       // No cells. Write to the only stream open to this file
       writeInternal(0, shape);
     } else {
       // Check which cells should contain the given shape
       Rectangle mbr = shape.getMBR();
-      for (int cellIndex = 0; cellIndex < cells.length; cellIndex++) {
-        if (cells[cellIndex] != null && mbr.isIntersected(cells[cellIndex])) {
-          writeInternal(cellIndex, shape);
-        }
+      int numOverlappingCells =
+          cellDictionary.getOverlappingCells(mbr, overlappingCells);
+      // Write to cells in the order of their indexes
+      Arrays.sort(overlappingCells, 0, numOverlappingCells);
+      for (int i = 0; i < numOverlappingCells; i++) {
+        writeInternal((int) cellDictionary.getCellId(overlappingCells[i]), shape);
       }
     }
   }
+  
+  /**
+   * Returns the MBR of the records written so far to the given cell
+   * @param cellIndex
+   * @return
+   */
+  private Rectangle getCellMbr(int cellIndex) {
+    if (cellsMbr[cellIndex] == null)
+      cellsMbr[cellIndex] = new Rectangle(Double.MAX_VALUE, Double.MAX_VALUE,
+          -Double.MAX_VALUE, -Double.MAX_VALUE);
+    return cellsMbr[cellIndex];
+  }
+
+  /**
+   * Returns the cell with the given ID
+   * @param cellId
+   * @return the cell or null if no cell has this ID
+   */
+  protected CellInfo getCell(int cellId) {
+    if (cellIndexes != null && cellId >= 0 && cellId < cellIndexes.length &&
+        cellIndexes[cellId] != -1)
+      return cellDictionary.getCell(cellIndexes[cellId]);
+    for (CellInfo cell : addedCells) {
+      if (cell.cellId == cellId)
+        return cell;
+    }
+    return null;
+  }
 
   /**
    * Write the given shape to a specific cell. The shape is not replicated to any other cells.
@@ -232,10 +340,9 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
    */
   @Override
   public synchronized void write(CellInfo cellInfo, S shape) throws IOException {
-    for (int i_cell = 0; i_cell < cells.length; i_cell++) {
-      if (cellInfo.equals(cells[i_cell]))
-        write(i_cell, shape);
-    }
+    int i_cell = (int) cellInfo.cellId;
+    if (getCell(i_cell) != null)
+      write(i_cell, shape);
   }
 
   /**
@@ -246,39 +353,38 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
    * @throws IOException
    */
   public synchronized void write(Rectangle rect, S shape) throws IOException {
-    int i_cell = 1;
-    if (cells == null) {
-      // Initialize cells array if null
-      cells = new CellInfo[1];
+    int i_cell = -1;
+    if (cellDictionary != null) {
+      int index = cellDictionary.findCell(rect);
+      if (index != -1)
+        i_cell = (int) cellDictionary.getCellId(index);
     }
-    while (i_cell < cells.length && !rect.equals(cells[i_cell])) {
-      i_cell++;
+    for (int i = 0; i_cell == -1 && i < addedCells.size(); i++) {
+      if (rect.equals(addedCells.get(i)))
+        i_cell = (int) addedCells.get(i).cellId;
     }
-    if (i_cell >= cells.length) {
-      // Cell doesn't exist, create it first
-      CellInfo[] newCells = new CellInfo[i_cell+1];
-      System.arraycopy(cells, 0, newCells, 0, cells.length);
-      newCells[i_cell] = new CellInfo(i_cell, rect);
-      cells = newCells;
+    if (i_cell == -1) {
+      // Cell doesn't exist, create it first with the next free ID
+      i_cell = Math.max(1, intermediateCellStreams.length);
+      addedCells.add(new CellInfo(i_cell, rect));
       
       // Expand auxiliary data structures too
-      Path[] newIntermediateCellPath = new Path[cells.length];
+      int numCellIds = i_cell + 1;
+      Path[] newIntermediateCellPath = new Path[numCellIds];
       if (intermediateCellPath != null)
         System.arraycopy(intermediateCellPath, 0, newIntermediateCellPath, 0,
       		  intermediateCellPath.length);
       intermediateCellPath = newIntermediateCellPath;
       
-      OutputStream[] newIntermediateCellStreams = new OutputStream[cells.length];
+      OutputStream[] newIntermediateCellStreams = new OutputStream[numCellIds];
       if (intermediateCellStreams != null)
         System.arraycopy(intermediateCellStreams, 0, newIntermediateCellStreams,
       		  0, intermediateCellStreams.length);
       intermediateCellStreams = newIntermediateCellStreams;
       
-      Rectangle[] newCellsMbr = new Rectangle[cells.length];
+      Rectangle[] newCellsMbr = new Rectangle[numCellIds];
       if (cellsMbr != null)
         System.arraycopy(cellsMbr, 0, newCellsMbr, 0, cellsMbr.length);
-      newCellsMbr[i_cell] = new Rectangle(Double.MAX_VALUE, Double.MAX_VALUE,
-          -Double.MAX_VALUE, -Double.MAX_VALUE);
       cellsMbr = newCellsMbr;
     }
     write(i_cell, shape);
@@ -301,7 +407,7 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
       closeCell(-cellIndex);
       return;
     }
-    cellsMbr[cellIndex].expand(shape.getMBR());
+    getCellMbr(cellIndex).expand(shape.getMBR());
     // Convert shape to text
     text.clear();
     shape.toText(text);
@@ -309,6 +415,220 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
     OutputStream cellStream = getIntermediateCellStream(cellIndex);
     cellStream.write(text.getBytes(), 0, text.getLength());
     cellStream.write(NEW_LINE);
+    if (cellStream instanceof GridRecordWriter.PooledCellStream)
+      ((GridRecordWriter<?>.PooledCellStream) cellStream).burstIfFull();
+    if (bufferedBytes.get() > maximumBufferedBytes)
+      spillLargestCells();
+  }
+  
+  /**
+   * Spills the contents of the largest open cells until the total size of
+   * buffered data goes below the memory budget. Cells that are being closed
+   * are not spilled as they are owned by the closing thread.
+   * @throws IOException
+   */
+  protected void spillLargestCells() throws IOException {
+    while (bufferedBytes.get() > maximumBufferedBytes) {
+      int largestCell = -1;
+      int largestSize = 0;
+      for (int cellIndex = 0; cellIndex < intermediateCellStreams.length; cellIndex++) {
+        if (!(intermediateCellStreams[cellIndex] instanceof GridRecordWriter.CellBuffer))
+          continue;
+        GridRecordWriter<?>.CellBuffer buffer =
+            (GridRecordWriter<?>.CellBuffer) intermediateCellStreams[cellIndex];
+        if (buffer.size() > largestSize) {
+          largestCell = cellIndex;
+          largestSize = buffer.size();
+        }
+      }
+      if (largestCell == -1)
+        return; // Nothing left to spill
+      LOG.info("Spilling "+largestSize+" bytes of cell #"+largestCell);
+      ((GridRecordWriter<?>.CellBuffer) intermediateCellStreams[largestCell]).spill(largestCell);
+    }
+  }
+  
+  /**
+   * An in-memory buffer that holds the contents of one cell until they are
+   * written to the cell file. If the memory budget of the writer is
+   * exceeded, the contents are appended to a local spill file and the buffer
+   * is emptied.
+   */
+  protected class CellBuffer extends ByteArrayOutputStream {
+    /**Local file that contains contents spilled from this buffer, if any*/
+    File spillFile;
+    
+    /**Number of bytes written to the spill file so far*/
+    long spilledBytes;
+
+    @Override
+    public synchronized void write(int b) {
+      super.write(b);
+      bufferedBytes.incrementAndGet();
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+      super.write(b, off, len);
+      bufferedBytes.addAndGet(len);
+    }
+
+    /**Total number of bytes written to this buffer (in memory and spilled)*/
+    public long totalSize() {
+      return spilledBytes + count;
+    }
+
+    /**
+     * Appends all contents in memory to the spill file and empties the
+     * in-memory buffer.
+     * @param cellIndex - used to name the spill file
+     * @throws IOException
+     */
+    void spill(int cellIndex) throws IOException {
+      if (spillFile == null)
+        spillFile = File.createTempFile(String.format("%05d", cellIndex), "cell");
+      OutputStream spillOut = new FileOutputStream(spillFile, true);
+      spillOut.write(buf, 0, count);
+      spillOut.close();
+      spilledBytes += count;
+      bufferedBytes.addAndGet(-count);
+      // Release the memory taken by this buffer
+      buf = new byte[32];
+      count = 0;
+    }
+
+    /**
+     * Returns all contents written to this buffer. If nothing was spilled,
+     * the internal buffer is returned as is and no copy is made.
+     * The number of valid bytes is {@link #totalSize()}.
+     * @return
+     * @throws IOException
+     */
+    byte[] getData() throws IOException {
+      if (spillFile == null)
+        return buf;
+      byte[] data = new byte[(int) (spilledBytes + count)];
+      InputStream spillIn = new FileInputStream(spillFile);
+      int offset = 0;
+      while (offset < spilledBytes) {
+        int bytesRead = spillIn.read(data, offset, (int) (spilledBytes - offset));
+        if (bytesRead < 0)
+          throw new IOException("Unexpected end of spill file "+spillFile);
+        offset += bytesRead;
+      }
+      spillIn.close();
+      System.arraycopy(buf, 0, data, offset, count);
+      return data;
+    }
+    
+    /**
+     * Writes all contents of this buffer, spilled contents first, to the
+     * given stream and empties the buffer.
+     * @param out
+     * @throws IOException
+     */
+    void writeAllTo(OutputStream out) throws IOException {
+      if (spillFile != null) {
+        InputStream spillIn = new FileInputStream(spillFile);
+        byte[] chunk = new byte[64 * 1024];
+        int bytesRead;
+        while ((bytesRead = spillIn.read(chunk)) > 0)
+          out.write(chunk, 0, bytesRead);
+        spillIn.close();
+        spillFile.delete();
+        spillFile = null;
+        spilledBytes = 0;
+      }
+      out.write(buf, 0, count);
+      bufferedBytes.addAndGet(-count);
+      count = 0;
+    }
+
+    /**
+     * Deletes the spill file (if any) and releases the in-memory buffer.
+     */
+    void dispose() {
+      if (spillFile != null) {
+        spillFile.delete();
+        spillFile = null;
+      }
+      bufferedBytes.addAndGet(-count);
+      count = 0;
+      buf = null;
+    }
+  }
+  
+  /**
+   * Buffers the contents of one cell of a heap file and writes them to the
+   * cell file in large bursts. The cell file is opened when the first burst
+   * is written only if less than {@link #maxOpenCellStreams} cell files are
+   * open. Otherwise, contents stay in the buffer and are written in one shot
+   * when the cell is closed. The final file is the same in both cases.
+   */
+  protected class PooledCellStream extends CellBuffer {
+    /**Path of the cell file*/
+    final Path cellPath;
+    
+    /**An open stream to the cell file or null if not opened yet*/
+    OutputStream cellStream;
+
+    PooledCellStream(Path cellPath) {
+      this.cellPath = cellPath;
+    }
+    
+    /**
+     * Opens the cell file if the number of open cell files allows it.
+     * @return <code>true</code> if the cell file is open
+     * @throws IOException
+     */
+    private boolean openCellStream() throws IOException {
+      if (cellStream == null) {
+        if (openCellStreams.get() >= maxOpenCellStreams)
+          return false;
+        cellStream = createFinalCellStream(cellPath);
+        openCellStreams.incrementAndGet();
+      }
+      return true;
+    }
+
+    /**
+     * Writes buffered contents to the cell file if they are large enough to
+     * make one burst and the cell file can be open.
+     * @throws IOException
+     */
+    void burstIfFull() throws IOException {
+      if (count >= BURST_SIZE && openCellStream())
+        writeAllTo(cellStream);
+    }
+    
+    /**
+     * Writes the buffered contents to the cell file if it can be open.
+     * Otherwise, they are spilled to local disk.
+     */
+    @Override
+    void spill(int cellIndex) throws IOException {
+      if (openCellStream())
+        writeAllTo(cellStream);
+      else
+        super.spill(cellIndex);
+    }
+    
+    /**
+     * Writes all remaining contents to the cell file and closes it. The file
+     * is opened even if the maximum number of open files is reached as it is
+     * written in one shot.
+     */
+    @Override
+    public void close() throws IOException {
+      if (cellStream == null) {
+        cellStream = createFinalCellStream(cellPath);
+        openCellStreams.incrementAndGet();
+      }
+      writeAllTo(cellStream);
+      cellStream.close();
+      openCellStreams.decrementAndGet();
+      dispose();
+    }
   }
   
   /**
@@ -320,9 +640,10 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
    */
   protected OutputStream getIntermediateCellStream(int cellIndex) throws IOException {
     if (intermediateCellStreams[cellIndex] == null) {
-      // For grid file, we write directly to the final file
+      // For grid file, contents are written to the final file in bursts
       intermediateCellPath[cellIndex] = getFinalCellPath(cellIndex);
-      intermediateCellStreams[cellIndex] = createFinalCellStream(intermediateCellPath[cellIndex]);
+      intermediateCellStreams[cellIndex] =
+          new PooledCellStream(intermediateCellPath[cellIndex]);
     }
     return intermediateCellStreams[cellIndex];
   }
@@ -369,21 +690,59 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
    * @throws IOException
    */
   protected void closeCell(int cellIndex) throws IOException {
-    Rectangle cell = cells[cellIndex];
+    CellInfo cellInfo = getCell(cellIndex);
+    Rectangle cell = cellInfo;
     if (expand)
-      cell = cellsMbr[cellIndex];
+      cell = getCellMbr(cellIndex);
     else if (pack)
-      cell = cell.getIntersection(cellsMbr[cellIndex]);
+      cell = cell.getIntersection(getCellMbr(cellIndex));
 
+    // Keep the ID of the cell so that it is written to the master file
     closeCellBackground(intermediateCellPath[cellIndex],
         getFinalCellPath(cellIndex), intermediateCellStreams[cellIndex],
-        masterFile, cell);
-    cellsMbr[cellIndex] = new Rectangle(Double.MAX_VALUE, Double.MAX_VALUE,
-        -Double.MAX_VALUE, -Double.MAX_VALUE);
+        masterFile, new CellInfo(cellInfo.cellId, cell));
+    cellsMbr[cellIndex] = null;
     intermediateCellPath[cellIndex] = null;
     intermediateCellStreams[cellIndex] = null;
   }
   
+  /**
+   * A thread that closes one cell in background and keeps the partition
+   * that should be written to the master file once it is done.
+   */
+  protected class CellClosingThread extends Thread {
+    final Path intermediateCellPath;
+    final Path finalCellPath;
+    final OutputStream intermediateCellStream;
+    final OutputStream masterFile;
+    final CellInfo cellInfo;
+    /**The partition written by this thread*/
+    Partition partition;
+    /**An error that happened while closing the cell*/
+    Throwable error;
+    
+    CellClosingThread(Path intermediateCellPath, Path finalCellPath,
+        OutputStream intermediateCellStream, OutputStream masterFile,
+        CellInfo cellInfo) {
+      this.intermediateCellPath = intermediateCellPath;
+      this.finalCellPath = finalCellPath;
+      this.intermediateCellStream = intermediateCellStream;
+      this.masterFile = masterFile;
+      this.cellInfo = cellInfo;
+    }
+    
+    @Override
+    public void run() {
+      try {
+        Path finalfinalCellPath = flushAllEntries(intermediateCellPath,
+            intermediateCellStream, finalCellPath);
+        partition = new Partition(finalfinalCellPath.getName(), cellInfo);
+      } catch (Throwable e) {
+        error = e;
+      }
+    }
+  }
+  
   /**
    * Close the given cell freeing all memory reserved by it.
    * Once a cell is closed, we should not write more data to it.
@@ -392,38 +751,44 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
    */
   protected void closeCellBackground(final Path intermediateCellPath,
       final Path finalCellPath, final OutputStream intermediateCellStream,
-      final OutputStream masterFile, final Rectangle cellMbr) throws IOException {
-    
-    Thread closingThread = new Thread() {
-      @Override
-      public void run() {
-        try {
-          Path finalfinalCellPath = flushAllEntries(intermediateCellPath,
-              intermediateCellStream, finalCellPath);
-          // Write an entry to the master file
-
-          // Write a line to the master file including file name and cellInfo
-          if (masterFile != null) {
-            Partition partition = new Partition(finalfinalCellPath.getName(), cellMbr);
-            Text line = partition.toText(new Text());
-            masterFile.write(line.getBytes(), 0, line.getLength());
-            masterFile.write(NEW_LINE);
-          }
-        } catch (IOException e) {
-          throw new RuntimeException("Error closing thread", e);
-        }
-      }
-    };
+      final OutputStream masterFile, final CellInfo cellInfo) throws IOException {
     
-    closingThreads.add(closingThread);
-    // Remove previously terminated threads
+    closingThreads.add(new CellClosingThread(intermediateCellPath,
+        finalCellPath, intermediateCellStream, masterFile, cellInfo));
+    retireClosingThreads();
+  }
+  
+  /**
+   * Removes threads that finished closing their cells from the head of the
+   * list and writes their entries to the master file. This keeps the master
+   * file in the same order in which cells were closed. After that, pending
+   * threads are started such that at most {@link #maxClosingThreads} threads
+   * run at the same time.
+   * @throws IOException if closing any of the retired cells failed
+   */
+  protected void retireClosingThreads() throws IOException {
     while (!closingThreads.isEmpty() &&
         closingThreads.get(0).getState() == Thread.State.TERMINATED) {
-      closingThreads.remove(0);
+      CellClosingThread closedThread = closingThreads.remove(0);
+      if (closedThread.error != null)
+        throw new IOException("Error closing cell", closedThread.error);
+      // Write a line to the master file including file name and cellInfo
+      if (closedThread.masterFile != null) {
+        Text line = closedThread.partition.toText(new Text());
+        closedThread.masterFile.write(line.getBytes(), 0, line.getLength());
+        closedThread.masterFile.write(NEW_LINE);
+      }
+    }
+    int runningThreads = 0;
+    for (CellClosingThread closingThread : closingThreads) {
+      if (closingThread.getState() == Thread.State.TERMINATED)
+        continue;
+      if (runningThreads >= maxClosingThreads)
+        break;
+      if (closingThread.getState() == Thread.State.NEW)
+        closingThread.start();
+      runningThreads++;
     }
-    // Start first thread (if exists)
-    if (!closingThreads.isEmpty() && closingThreads.get(0).getState() == Thread.State.NEW)
-      closingThreads.get(0).start();
   }
   
   /**
@@ -455,16 +820,12 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
         progressable.progress();
     }
 
+    retireClosingThreads();
     while (!closingThreads.isEmpty()) {
       try {
-        Thread t = closingThreads.get(0);
-        switch (t.getState()) {
-        case NEW: t.start(); break;
-        case TERMINATED: closingThreads.remove(0); break;
-        default:
-          // Use limited time join to indicate progress frequently
-          t.join(10000);
-        }
+        // Use limited time join to indicate progress frequently
+        closingThreads.get(0).join(10000);
+        retireClosingThreads();
         // Indicate progress. Useful if closing a single cell takes a long time
         if (progressable != null)
           progressable.progress();
@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package edu.umn.cs.spatialHadoop.core;
+
+import java.awt.Graphics;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Wraps a shape that is stored in its binary form and parsed only when
+ * needed. If the MBR of the shape is known, e.g., read from a binary heap
+ * file with record MBRs, {@link #getMBR()} returns it without parsing the
+ * shape and {@link #isIntersected(Shape)} uses it to filter out disjoint
+ * shapes. All other methods parse the shape on first access. This allows a
+ * filter-then-refine pipeline to parse only shapes that pass the filter.
+ *
+ * Record readers of binary heap files fill a lazy shape without parsing it.
+ * If the wrapped shape is not set, the class stored in the file is used.
+ * Serializing a lazy shape writes the same bytes as its wrapped shape.
+ */
+public class LazyShape implements Shape {
+  /**The wrapped shape. Its fields are valid only if it is parsed*/
+  private Shape shape;
+
+  /**The serialized shape if it is not parsed*/
+  private byte[] bytes = new byte[0];
+  private int length;
+
+  /**Whether the wrapped shape is parsed from {@link #bytes}*/
+  private boolean parsed = true;
+
+  /**The MBR of the shape if known without parsing it*/
+  private final Rectangle mbr = new Rectangle();
+  private boolean mbrKnown;
+
+  /**Used to parse the wrapped shape*/
+  private DataInputBuffer in;
+
+  public LazyShape() {
+  }
+
+  public LazyShape(Shape shape) {
+    this.shape = shape;
+  }
+
+  /**
+   * Returns the wrapped shape without parsing it. Returns null if not set.
+   * @return
+   */
+  public Shape getStockShape() {
+    return shape;
+  }
+
+  /**
+   * Sets the shape used to parse the wrapped shape
+   * @param shape
+   */
+  public void setStockShape(Shape shape) {
+    this.shape = shape;
+  }
+
+  /**
+   * Sets the wrapped shape to the given serialized shape without parsing it
+   * @param bytes - serialized shape as written by {@link Shape#write(DataOutput)}
+   * @param offset
+   * @param length
+   * @param mbr - the MBR of the shape or <code>null</code> if not known. An
+   *   invalid rectangle indicates an empty shape.
+   */
+  public void set(byte[] bytes, int offset, int length, Rectangle mbr) {
+    if (length > this.bytes.length)
+      this.bytes = new byte[Math.max(length, this.bytes.length * 2)];
+    System.arraycopy(bytes, offset, this.bytes, 0, length);
+    this.length = length;
+    this.parsed = false;
+    this.mbrKnown = mbr != null;
+    if (mbr != null)
+      this.mbr.set(mbr.x1, mbr.y1, mbr.x2, mbr.y2);
+  }
+
+  /**
+   * Returns the wrapped shape to be filled in directly, e.g., by a reader of
+   * a text file. The lazy shape then refers to it as parsed.
+   * @return
+   */
+  public Shape unwrap() {
+    Shape stockShape = checkStockShape();
+    parsed = true;
+    mbrKnown = false;
+    return stockShape;
+  }
+
+  /**
+   * Returns the wrapped shape and parses it first if needed
+   * @return
+   */
+  public Shape getShape() {
+    if (!parsed) {
+      if (in == null)
+        in = new DataInputBuffer();
+      in.reset(bytes, length);
+      try {
+        checkStockShape().readFields(in);
+      } catch (IOException e) {
+        throw new RuntimeException("Error parsing a lazy shape", e);
+      }
+      parsed = true;
+    }
+    return shape;
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    if (parsed)
+      shape.write(out);
+    else
+      out.write(bytes, 0, length);
+  }
+
+  /**
+   * Returns the stock shape and checks that it is set
+   * @return
+   */
+  private Shape checkStockShape() {
+    if (shape == null)
+      throw new RuntimeException("The shape wrapped by a lazy shape is not set");
+    return shape;
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    checkStockShape().readFields(in);
+    parsed = true;
+    mbrKnown = false;
+  }
+
+  @Override
+  public Text toText(Text text) {
+    return getShape().toText(text);
+  }
+
+  @Override
+  public void fromText(Text text) {
+    checkStockShape().fromText(text);
+    parsed = true;
+    mbrKnown = false;
+  }
+
+  @Override
+  public Rectangle getMBR() {
+    if (!mbrKnown)
+      return getShape().getMBR();
+    return mbr.isValid() ? new Rectangle(mbr.x1, mbr.y1, mbr.x2, mbr.y2) : null;
+  }
+
+  @Override
+  public double distanceTo(double x, double y) {
+    return getShape().distanceTo(x, y);
+  }
+
+  @Override
+  public boolean isIntersected(Shape s) {
+    if (mbrKnown) {
+      Rectangle smbr = s.getMBR();
+      if (!mbr.isValid() || smbr == null || smbr.x2 < mbr.x1 ||
+          smbr.x1 > mbr.x2 || smbr.y2 < mbr.y1 || smbr.y1 > mbr.y2)
+        return false;
+    }
+    return getShape().isIntersected(s);
+  }
+
+  @Override
+  public Shape clone() {
+    // An unparsed copy only uses the clone of the stock shape to parse into
+    LazyShape copy = new LazyShape(shape == null ? null : shape.clone());
+    if (!parsed)
+      copy.set(bytes, 0, length, null);
+    copy.mbrKnown = this.mbrKnown;
+    copy.mbr.set(mbr.x1, mbr.y1, mbr.x2, mbr.y2);
+    return copy;
+  }
+
+  @Override
+  public void draw(Graphics g, Rectangle fileMBR, int imageWidth,
+      int imageHeight, boolean vflip, double scale) {
+    getShape().draw(g, fileMBR, imageWidth, imageHeight, vflip, scale);
+  }
+
+  @Override
+  public String toString() {
+    return getShape().toString();
+  }
+}
@@ -18,20 +18,23 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.Text;
 
+import com.esri.core.geometry.Envelope;
 import com.esri.core.geometry.MultiPath;
 import com.esri.core.geometry.Polygon;
 import com.esri.core.geometry.Polyline;
-import com.esri.core.geometry.ogc.OGCConcreteGeometryCollection;
 import com.esri.core.geometry.ogc.OGCGeometry;
 import com.esri.core.geometry.ogc.OGCGeometryCollection;
 import com.esri.core.geometry.ogc.OGCPoint;
+import com.esri.core.geometry.ogc.OGCPolygon;
 
+import edu.umn.cs.spatialHadoop.io.CursorParsable;
+import edu.umn.cs.spatialHadoop.io.TextCursor;
 import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
 
 /**
@@ -51,18 +54,45 @@ import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
  * always use the binary representation as it is faster and more compact. For
  * binary serialization/deserialization, we use the PostGIS writer and parser.
  * 
+ * A geometry in binary or hex WKB is kept as is and only parsed when
+ * {@link #getGeometry()} is called, e.g., by a predicate that cannot be
+ * answered by the MBR alone. Its MBR is computed directly from the WKB and
+ * cached, and it is written back without being serialized again.
+ * 
  * @author Ahmed Eldawy
  * 
  */
-public class OGCShape implements Shape {
+public class OGCShape implements Shape, CursorParsable {
   
   private static final Log LOG = LogFactory.getLog(OGCShape.class);
   
   /**
-   * The underlying geometry
+   * The underlying geometry. If the shape is read from a binary or hex WKB,
+   * the geometry is not parsed until {@link #getGeometry()} is called.
    */
   public OGCGeometry geom;
   
+  /**WKB of the geometry as read from input*/
+  private final BytesWritable wkb = new BytesWritable();
+  
+  /**Whether {@link #wkb} holds a geometry*/
+  private boolean hasWKB;
+  
+  /**
+   * The geometry parsed from {@link #wkb}. If {@link #geom} is set to another
+   * geometry, the WKB is no longer used.
+   */
+  private OGCGeometry wkbGeom;
+  
+  /**Cached MBR of the geometry*/
+  private final Rectangle mbr = new Rectangle();
+  
+  /**The geometry {@link #mbr} is computed for*/
+  private OGCGeometry mbrGeom;
+  
+  /**Whether the cached MBR is computed*/
+  private boolean mbrComputed;
+  
   public OGCShape() {
     this(null);
   }
@@ -70,20 +100,53 @@ public class OGCShape implements Shape {
   public OGCShape(OGCGeometry geom) {
     this.geom = geom;
   }
+  
+  /**
+   * Returns the underlying geometry and parses it first if needed
+   * @return
+   */
+  public OGCGeometry getGeometry() {
+    if (geom == null && hasWKB && wkbGeom == null) {
+      geom = wkbGeom = OGCGeometry.fromBinary(
+          ByteBuffer.wrap(wkb.getBytes(), 0, wkb.getLength()));
+      if (mbrComputed && mbrGeom == null)
+        mbrGeom = geom; // The cached MBR is computed from the WKB
+    }
+    return geom;
+  }
+  
+  /**
+   * Whether {@link #wkb} is the WKB of the current geometry
+   * @return
+   */
+  private boolean isWKBCurrent() {
+    return hasWKB && geom == wkbGeom;
+  }
+  
+  /**
+   * Sets this shape to the WKB stored in {@link #wkb} without parsing it
+   */
+  private void setWKB() {
+    hasWKB = true;
+    geom = wkbGeom = null;
+    mbrComputed = false;
+  }
 
   @Override
   public void write(DataOutput out) throws IOException {
-    byte[] bytes = geom.asBinary().array();
-    out.writeInt(bytes.length);
-    out.write(bytes);
+    if (!isWKBCurrent()) {
+      ByteBuffer bytes = getGeometry().asBinary();
+      wkb.set(bytes.array(), 0, bytes.limit());
+      hasWKB = true;
+      wkbGeom = geom;
+    }
+    wkb.write(out);
   }
 
   @Override
   public void readFields(DataInput in) throws IOException {
-    int size = in.readInt();
-    byte[] bytes = new byte[size];
-    in.readFully(bytes);
-    geom = OGCGeometry.fromBinary(ByteBuffer.wrap(bytes));
+    wkb.readFields(in);
+    setWKB();
   }
 
   
@@ -114,77 +177,244 @@ public class OGCShape implements Shape {
   
   @Override
   public Text toText(Text text) {
-    TextSerializerHelper.serializeGeometry(text, geom, '\0');
+    serializeGeometry(text, '\0');
     return text;
   }
 
+  /**
+   * Appends the geometry to the given text as a hex string of its WKB.
+   * A WKB read from input is written as is.
+   * @param text
+   * @param toAppend
+   */
+  protected void serializeGeometry(Text text, char toAppend) {
+    if (isWKBCurrent())
+      TextSerializerHelper.serializeHex(wkb.getBytes(), 0, wkb.getLength(),
+          text, toAppend);
+    else
+      TextSerializerHelper.serializeGeometry(text, geom, toAppend);
+  }
+
   @Override
   public void fromText(Text text) {
+    TextCursor cursor = TextCursor.acquire(text);
+    try {
+      fromText(cursor);
+    } finally {
+      cursor.release();
+    }
+  }
+
+  /**Parses the geometry of this shape as hex WKB or WKT*/
+  @Override
+  public void fromText(TextCursor cursor) {
+    consumeGeometry(cursor, '\0');
+  }
+
+  /**
+   * Parses the geometry at the position of the given cursor. A hex WKB is
+   * only decoded to binary and parsed when needed. A WKT is parsed directly.
+   * @param cursor
+   * @param separator
+   */
+  protected void consumeGeometry(TextCursor cursor, char separator) {
+    if (TextSerializerHelper.consumeHex(cursor, separator, wkb)) {
+      setWKB();
+      return;
+    }
+    int start = cursor.getPosition();
     try {
-      geom = TextSerializerHelper.consumeGeometryESRI(text, '\0');
+      hasWKB = false;
+      mbrComputed = false;
+      geom = TextSerializerHelper.consumeGeometryESRI(cursor, separator);
     } catch (RuntimeException e) {
-      LOG.error("Error parsing: "+text);
+      LOG.error("Error parsing: "+new String(cursor.getBytes(), start,
+          cursor.getEnd() - start));
       throw e;
     }
   }
 
+  /**
+   * Computes the MBR of the geometry if it is not cached. The MBR of a WKB
+   * is computed from its coordinates without parsing it.
+   * @return <code>false</code> if the geometry is empty
+   */
+  private boolean computeMBR() {
+    if (!mbrComputed || mbrGeom != geom) {
+      boolean computed = false;
+      if (isWKBCurrent()) {
+        try {
+          mbr.set(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+              Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+          computed = expandWKB(wkb.getBytes(), 0, mbr) == wkb.getLength();
+        } catch (RuntimeException e) {
+          // Unsupported or invalid WKB. Parse it to find out
+        }
+      }
+      if (!computed) {
+        OGCGeometry geom = getGeometry();
+        if (geom.isEmpty()) {
+          mbr.invalidate();
+        } else {
+          Envelope envelope = new Envelope();
+          geom.envelope().getEsriGeometry().queryEnvelope(envelope);
+          mbr.set(envelope.getXMin(), envelope.getYMin(),
+              envelope.getXMax(), envelope.getYMax());
+        }
+      } else if (mbr.x1 > mbr.x2) {
+        mbr.invalidate(); // An empty geometry
+      }
+      mbrGeom = geom;
+      mbrComputed = true;
+    }
+    return mbr.isValid();
+  }
+
+  /**
+   * Expands the given rectangle with all coordinates of the WKB geometry
+   * that starts at the given offset. Geometries in ISO and extended WKB with
+   * Z and M coordinates are supported.
+   * @param wkb
+   * @param offset
+   * @param mbr
+   * @return the offset right after the geometry
+   */
+  private static int expandWKB(byte[] wkb, int offset, Rectangle mbr) {
+    boolean littleEndian = wkb[offset++] == 1;
+    int type = readInt(wkb, offset, littleEndian);
+    offset += 4;
+    int dimensions = 2;
+    if ((type & 0x80000000) != 0)
+      dimensions++; // Extended WKB with Z
+    if ((type & 0x40000000) != 0)
+      dimensions++; // Extended WKB with M
+    if ((type & 0x20000000) != 0)
+      offset += 4; // Extended WKB with SRID
+    type &= 0x0FFFFFFF;
+    if (type >= 1000) {
+      // ISO WKB with Z (1000), M (2000) or ZM (3000)
+      dimensions += type / 1000 == 3 ? 2 : 1;
+      type %= 1000;
+    }
+    switch (type) {
+    case 1: // Point
+      return expandWKBPoints(wkb, offset, 1, dimensions, littleEndian, mbr);
+    case 2: // LineString
+      return expandWKBPoints(wkb, offset + 4, readInt(wkb, offset, littleEndian),
+          dimensions, littleEndian, mbr);
+    case 3: // Polygon
+      int numRings = readInt(wkb, offset, littleEndian);
+      offset += 4;
+      while (numRings-- > 0) {
+        offset = expandWKBPoints(wkb, offset + 4, readInt(wkb, offset, littleEndian),
+            dimensions, littleEndian, mbr);
+      }
+      return offset;
+    case 4: case 5: case 6: case 7: // Multi geometries and collections
+      int numGeoms = readInt(wkb, offset, littleEndian);
+      offset += 4;
+      while (numGeoms-- > 0)
+        offset = expandWKB(wkb, offset, mbr);
+      return offset;
+    default:
+      throw new RuntimeException("Unsupported WKB type "+type);
+    }
+  }
+
+  private static int expandWKBPoints(byte[] wkb, int offset, int numPoints,
+      int dimensions, boolean littleEndian, Rectangle mbr) {
+    if (numPoints < 0 || offset + numPoints * dimensions * 8 > wkb.length)
+      throw new RuntimeException("Invalid WKB");
+    while (numPoints-- > 0) {
+      double x = Double.longBitsToDouble(readLong(wkb, offset, littleEndian));
+      double y = Double.longBitsToDouble(readLong(wkb, offset + 8, littleEndian));
+      // An empty point is stored as NaN coordinates
+      if (!Double.isNaN(x) && !Double.isNaN(y)) {
+        mbr.x1 = Math.min(mbr.x1, x);
+        mbr.y1 = Math.min(mbr.y1, y);
+        mbr.x2 = Math.max(mbr.x2, x);
+        mbr.y2 = Math.max(mbr.y2, y);
+      }
+      offset += dimensions * 8;
+    }
+    return offset;
+  }
+
+  private static int readInt(byte[] b, int offset, boolean littleEndian) {
+    if (littleEndian)
+      return (b[offset] & 0xff) | ((b[offset + 1] & 0xff) << 8) |
+          ((b[offset + 2] & 0xff) << 16) | ((b[offset + 3] & 0xff) << 24);
+    return ((b[offset] & 0xff) << 24) | ((b[offset + 1] & 0xff) << 16) |
+        ((b[offset + 2] & 0xff) << 8) | (b[offset + 3] & 0xff);
+  }
+
+  private static long readLong(byte[] b, int offset, boolean littleEndian) {
+    long high = readInt(b, offset + (littleEndian ? 4 : 0), littleEndian) & 0xffffffffL;
+    long low = readInt(b, offset + (littleEndian ? 0 : 4), littleEndian) & 0xffffffffL;
+    return (high << 32) | low;
+  }
+
   @Override
   public Rectangle getMBR() {
-    if (geom.isEmpty())
+    if (!computeMBR())
       return null;
-    com.esri.core.geometry.Polygon mbr = (com.esri.core.geometry.Polygon) geom.envelope().getEsriGeometry();
-    int pointCount = mbr.getPointCount();
-    double xmin = mbr.getPoint(0).getX();
-    double ymin = mbr.getPoint(0).getY();
-    double xmax = xmin, ymax = ymin;
-    for (int i = 1; i < pointCount; i++) {
-      com.esri.core.geometry.Point point = mbr.getPoint(i);
-      if (point.getX() < xmin)
-        xmin = point.getX();
-      if (point.getX() > xmax)
-        xmax = point.getX();
-      if (point.getY() < ymin)
-        ymin = point.getY();
-      if (point.getY() > ymax)
-        ymax = point.getY();
-    }
-    
-    return new Rectangle(xmin, ymin, xmax, ymax);
+    return new Rectangle(mbr.x1, mbr.y1, mbr.x2, mbr.y2);
   }
 
   @Override
   public double distanceTo(double x, double y) {
-    OGCPoint point = new OGCPoint(new com.esri.core.geometry.Point(x, y), this.geom.getEsriSpatialReference());
-    return this.geom.distance(point);
+    OGCGeometry geom = getGeometry();
+    OGCPoint point = new OGCPoint(new com.esri.core.geometry.Point(x, y), geom.getEsriSpatialReference());
+    return geom.distance(point);
   }
 
   @Override
   public boolean isIntersected(Shape s) {
-    Rectangle mbr = s.getMBR();
-    ArrayList<OGCGeometry> points = new ArrayList<OGCGeometry>();
-    points.add(new OGCPoint(new com.esri.core.geometry.Point(mbr.x1, mbr.y1), geom.getEsriSpatialReference()));
-    points.add(new OGCPoint(new com.esri.core.geometry.Point(mbr.x2, mbr.y2), geom.getEsriSpatialReference()));
-    
-    OGCGeometryCollection all_points = new OGCConcreteGeometryCollection(points, geom.getEsriSpatialReference());
-    
-    return geom.intersects(all_points.envelope());
+    Rectangle smbr = s.getMBR();
+    if (smbr == null || !computeMBR())
+      return false;
+    // Filter with the MBR and parse the geometry only if needed
+    if (smbr.x2 < mbr.x1 || smbr.x1 > mbr.x2 || smbr.y2 < mbr.y1 || smbr.y1 > mbr.y2)
+      return false;
+    if (smbr.x1 <= mbr.x1 && smbr.x2 >= mbr.x2 && smbr.y1 <= mbr.y1 && smbr.y2 >= mbr.y2)
+      return true;
+    OGCGeometry geom = getGeometry();
+    Polygon envelope = new Polygon();
+    envelope.addEnvelope(new Envelope(smbr.x1, smbr.y1, smbr.x2, smbr.y2), false);
+    return geom.intersects(new OGCPolygon(envelope, geom.getEsriSpatialReference()));
+  }
+
+  /**
+   * Sets this shape to a copy of the geometry of the given shape
+   * @param other
+   */
+  protected void set(OGCShape other) {
+    this.geom = other.geom;
+    this.hasWKB = other.hasWKB;
+    if (other.hasWKB)
+      this.wkb.set(other.wkb);
+    this.wkbGeom = other.wkbGeom;
+    this.mbr.set(other.mbr.x1, other.mbr.y1, other.mbr.x2, other.mbr.y2);
+    this.mbrGeom = other.mbrGeom;
+    this.mbrComputed = other.mbrComputed;
   }
 
   @Override
   public Shape clone() {
-    OGCShape copy = new OGCShape(this.geom);
+    OGCShape copy = new OGCShape();
+    copy.set(this);
     return copy;
   }
   
   @Override
   public String toString() {
-    return geom.asText();
+    return getGeometry().asText();
   }
   
   @Override
   public void draw(Graphics g, Rectangle fileMBR, int imageWidth,
       int imageHeight, boolean vflip, double scale) {
-    OGCGeometry geom = this.geom;
+    OGCGeometry geom = getGeometry();
     Color shape_color = g.getColor();
     if (geom instanceof OGCGeometryCollection) {
       OGCGeometryCollection geom_coll = (OGCGeometryCollection) geom;
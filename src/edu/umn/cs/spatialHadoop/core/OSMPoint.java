@@ -20,6 +20,7 @@ import java.util.Map;
 
 import org.apache.hadoop.io.Text;
 
+import edu.umn.cs.spatialHadoop.io.TextCursor;
 import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
 
 
@@ -28,11 +29,11 @@ public class OSMPoint extends Point {
   public Map<String, String> tags = new HashMap<String, String>();
 
   @Override
-  public void fromText(Text text) {
-    id = TextSerializerHelper.consumeLong(text, '\t');
-    x = TextSerializerHelper.consumeDouble(text, '\t');
-    y = TextSerializerHelper.consumeDouble(text, '\t');
-    TextSerializerHelper.consumeMap(text, tags);
+  public void fromText(TextCursor cursor) {
+    id = cursor.nextLong('\t');
+    x = cursor.nextDouble('\t');
+    y = cursor.nextDouble('\t');
+    TextSerializerHelper.consumeMap(cursor, tags);
   }
 
   @Override
@@ -23,6 +23,7 @@ import org.apache.hadoop.io.WritableComparable;
 
 import com.esri.core.geometry.ogc.OGCGeometry;
 
+import edu.umn.cs.spatialHadoop.io.TextCursor;
 import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
 
 public class OSMPolygon extends OGCShape implements WritableComparable<OSMPolygon> {
@@ -42,18 +43,17 @@ public class OSMPolygon extends OGCShape implements WritableComparable<OSMPolygo
   @Override
   public Text toText(Text text) {
     TextSerializerHelper.serializeLong(id, text, SEPARATOR);
-    TextSerializerHelper.serializeGeometry(text, geom, SEPARATOR);
+    serializeGeometry(text, SEPARATOR);
     TextSerializerHelper.serializeMap(text, tags);
     return text;
   }
   
   @Override
-  public void fromText(Text text) {
-    id = TextSerializerHelper.consumeLong(text, SEPARATOR);
-    this.geom = TextSerializerHelper.consumeGeometryESRI(text, SEPARATOR);
+  public void fromText(TextCursor cursor) {
+    id = cursor.nextLong(SEPARATOR);
+    consumeGeometry(cursor, SEPARATOR);
     // Read the tags
-    tags.clear();
-    TextSerializerHelper.consumeMap(text, tags);
+    TextSerializerHelper.consumeMap(cursor, tags);
   }
   
   @Override
@@ -84,7 +84,7 @@ public class OSMPolygon extends OGCShape implements WritableComparable<OSMPolygo
   public Shape clone() {
     OSMPolygon c = new OSMPolygon();
     c.id = this.id;
-    c.geom = this.geom;
+    c.set(this);
     c.tags = new HashMap<String, String>(tags);
     return c;
   }
@@ -18,6 +18,8 @@ import java.io.IOException;
 
 import org.apache.hadoop.io.Text;
 
+import edu.umn.cs.spatialHadoop.io.TextCursor;
+
 public class Partition extends CellInfo {
   /**Name of the file that contains the data*/
   public String filename;
@@ -29,6 +31,11 @@ public class Partition extends CellInfo {
     this.set(mbr);
   }
   
+  public Partition(String filename, CellInfo cell) {
+    this.filename = filename;
+    this.set(cell);
+  }
+  
   @Override
   public void write(DataOutput out) throws IOException {
     super.write(out);
@@ -50,10 +57,11 @@ public class Partition extends CellInfo {
   }
   
   @Override
-  public void fromText(Text text) {
-    super.fromText(text);
+  public void fromText(TextCursor cursor) {
+    super.fromText(cursor);
     // Skip the comma and read filename
-    filename = new String(text.getBytes(), 1, text.getLength() - 1);
+    cursor.setPosition(cursor.getPosition() + 1);
+    filename = cursor.remaining();
   }
   
   @Override
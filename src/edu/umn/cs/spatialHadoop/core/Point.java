@@ -19,6 +19,8 @@ import java.io.IOException;
 
 import org.apache.hadoop.io.Text;
 
+import edu.umn.cs.spatialHadoop.io.CursorParsable;
+import edu.umn.cs.spatialHadoop.io.TextCursor;
 import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
 
 /**
@@ -26,7 +28,7 @@ import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
  * @author aseldawy
  *
  */
-public class Point implements Shape, Comparable<Point> {
+public class Point implements Shape, CursorParsable, Comparable<Point> {
 	public double x;
 	public double y;
 
@@ -118,8 +120,19 @@ public class Point implements Shape, Comparable<Point> {
   
   @Override
   public void fromText(Text text) {
-    x = TextSerializerHelper.consumeDouble(text, ',');
-    y = TextSerializerHelper.consumeDouble(text, '\0');
+    TextCursor cursor = TextCursor.acquire(text);
+    try {
+      fromText(cursor);
+    } finally {
+      cursor.release();
+    }
+  }
+
+  /**Parses the coordinates x,y of this point*/
+  @Override
+  public void fromText(TextCursor cursor) {
+    x = cursor.nextDouble(',');
+    y = cursor.nextDouble('\0');
   }
 
   @Override
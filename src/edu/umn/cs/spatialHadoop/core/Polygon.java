@@ -20,6 +20,8 @@ import java.io.IOException;
 
 import org.apache.hadoop.io.Text;
 
+import edu.umn.cs.spatialHadoop.io.CursorParsable;
+import edu.umn.cs.spatialHadoop.io.TextCursor;
 import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
 
 /**
@@ -27,7 +29,7 @@ import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
  * @author eldawy
  *
  */
-public class Polygon extends java.awt.Polygon implements Shape {
+public class Polygon extends java.awt.Polygon implements Shape, CursorParsable {
 
   private static final long serialVersionUID = -117491486038680078L;
 
@@ -87,14 +89,24 @@ public class Polygon extends java.awt.Polygon implements Shape {
 
   @Override
   public void fromText(Text text) {
-    this.npoints = TextSerializerHelper.consumeInt(text, ',');
+    TextCursor cursor = TextCursor.acquire(text);
+    try {
+      fromText(cursor);
+    } finally {
+      cursor.release();
+    }
+  }
+
+  /**Parses the number of points followed by the x,y of each point*/
+  @Override
+  public void fromText(TextCursor cursor) {
+    this.npoints = cursor.nextInt(',');
     this.xpoints = new int[npoints];
     this.ypoints = new int[npoints];
     
     for (int i = 0; i < npoints; i++) {
-      this.xpoints[i] = TextSerializerHelper.consumeInt(text, ',');
-      this.ypoints[i] = TextSerializerHelper.consumeInt(text,
-          i == npoints - 1 ? '\0' : ',');
+      this.xpoints[i] = cursor.nextInt(',');
+      this.ypoints[i] = cursor.nextInt(i == npoints - 1 ? '\0' : ',');
     }
   }
 
@@ -554,7 +554,31 @@ public class RTree<T extends Shape> implements Writable, Iterable<T> {
   public int getElementCount() {
     return elementCount;
   }
-  
+
+  /**
+   * Returns the height of the tree (number of levels)
+   * @return
+   */
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Returns the degree of internal nodes
+   * @return
+   */
+  public int getDegree() {
+    return degree;
+  }
+
+  /**
+   * Returns number of leaf nodes
+   * @return
+   */
+  public int getLeafNodeCount() {
+    return leafNodeCount;
+  }
+
   /**
    * Returns the MBR of the root
    * @return
@@ -12,13 +12,8 @@
  */
 package edu.umn.cs.spatialHadoop.core;
 
-import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 
 import org.apache.commons.logging.Log;
@@ -58,12 +53,29 @@ public class RTreeGridRecordWriter<S extends Shape> extends GridRecordWriter<S>
    */
   public RTreeGridRecordWriter(Path outDir, JobConf job, String prefix,
       CellInfo[] cells, boolean pack, boolean expand) throws IOException {
+    this(outDir, job, prefix, cells == null ? null : new CellDictionary(cells),
+        pack, expand);
+  }
+
+  /**
+   * Initializes a new RTreeGridRecordWriter that looks up cells in the
+   * given dictionary.
+   * @param outDir - output file path
+   * @param job
+   * @param prefix
+   * @param cells - the cells used to partition the input
+   * @param pack
+   * @param expand
+   * @throws IOException
+   */
+  public RTreeGridRecordWriter(Path outDir, JobConf job, String prefix,
+      CellDictionary cells, boolean pack, boolean expand) throws IOException {
     super(outDir, job, prefix, cells, pack, expand);
     LOG.info("Writing to RTrees");
 
     // Initialize the counters for each cell
-    cellCount = new int[this.cells.length];
-    intermediateFileSize = new int[this.cells.length];
+    cellCount = new int[intermediateCellStreams.length];
+    intermediateFileSize = new int[intermediateCellStreams.length];
     
     // Determine the size of each RTree to decide when to flush a cell
     Configuration conf = fileSystem.getConf();
@@ -115,36 +127,34 @@ public class RTreeGridRecordWriter<S extends Shape> extends GridRecordWriter<S>
   }
   
   /**
-   * Closes a cell by writing all outstanding objects and closing current file.
-   * Then, the file is read again, an RTree is built on top of it and, finally,
-   * the file is written again with the RTree built.
+   * Closes a cell by bulk loading an RTree over all the objects written to it.
+   * If the cell was never spilled, the RTree is built directly from memory.
+   * Otherwise, the spilled part is read back and combined with the part still
+   * in memory.
    */
+  @SuppressWarnings("unchecked")
   @Override
   protected Path flushAllEntries(Path intermediateCellPath,
       OutputStream intermediateCellStream, Path finalCellPath) throws IOException {
-    // Close stream to current intermediate file.
-    intermediateCellStream.close();
-
-    // Read all data of the written file in memory
-    byte[] cellData = new byte[(int) new File(intermediateCellPath.toUri()
-        .getPath()).length()];
-    InputStream cellIn = new FileInputStream(intermediateCellPath.toUri()
-        .getPath());
-    cellIn.read(cellData);
-    cellIn.close();
+    CellBuffer cellBuffer = (CellBuffer) intermediateCellStream;
+    byte[] cellData = cellBuffer.getData();
+    int cellDataLength = (int) cellBuffer.totalSize();
 
-    // Build an RTree over the elements read from file
+    // Build an RTree over the elements in the cell. The stock object is
+    // cloned as this method runs in a background thread while the writer
+    // could still be using the original stock object.
     RTree<S> rtree = new RTree<S>();
-    rtree.setStockObject(stockObject);
+    rtree.setStockObject((S) stockObject.clone());
     // It should create a new stream
     DataOutputStream cellStream =
       (DataOutputStream) createFinalCellStream(finalCellPath);
     cellStream.writeLong(SpatialSite.RTreeFileMarker);
     int degree = 4096 / RTree.NodeSize;
-    rtree.bulkLoadWrite(cellData, 0, cellData.length, degree, cellStream,
+    rtree.bulkLoadWrite(cellData, 0, cellDataLength, degree, cellStream,
         fastRTree);
     cellStream.close();
     cellData = null; // To allow GC to collect it
+    cellBuffer.dispose();
     
     return finalCellPath;
   }
@@ -153,11 +163,9 @@ public class RTreeGridRecordWriter<S extends Shape> extends GridRecordWriter<S>
   protected OutputStream getIntermediateCellStream(int cellIndex)
       throws IOException {
     if (intermediateCellStreams[cellIndex] == null) {
-      // For grid file, we write directly to the final file
-      File tempFile = File.createTempFile(String.format("%05d", cellIndex), "rtree");
-      intermediateCellStreams[cellIndex] = new BufferedOutputStream(
-          new FileOutputStream(tempFile));
-      intermediateCellPath[cellIndex] = new Path(tempFile.getPath());
+      // Contents are buffered in memory until the cell is closed
+      intermediateCellStreams[cellIndex] = new CellBuffer();
+      intermediateCellPath[cellIndex] = null;
     }
     return intermediateCellStreams[cellIndex];
   }
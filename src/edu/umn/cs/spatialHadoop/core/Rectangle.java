@@ -20,6 +20,8 @@ import java.io.IOException;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.WritableComparable;
 
+import edu.umn.cs.spatialHadoop.io.CursorParsable;
+import edu.umn.cs.spatialHadoop.io.TextCursor;
 import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
 
 /**
@@ -29,7 +31,7 @@ import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
  * @author Ahmed Eldawy
  *
  */
-public class Rectangle implements Shape, WritableComparable<Rectangle> {
+public class Rectangle implements Shape, CursorParsable, WritableComparable<Rectangle> {
   public double x1;
   public double y1;
   public double x2;
@@ -269,10 +271,21 @@ public class Rectangle implements Shape, WritableComparable<Rectangle> {
   
   @Override
   public void fromText(Text text) {
-    x1 = TextSerializerHelper.consumeDouble(text, ',');
-    y1 = TextSerializerHelper.consumeDouble(text, ',');
-    x2 = TextSerializerHelper.consumeDouble(text, ',');
-    y2 = TextSerializerHelper.consumeDouble(text, '\0');
+    TextCursor cursor = TextCursor.acquire(text);
+    try {
+      fromText(cursor);
+    } finally {
+      cursor.release();
+    }
+  }
+
+  /**Parses the corners x1,y1,x2,y2 of this rectangle*/
+  @Override
+  public void fromText(TextCursor cursor) {
+    x1 = cursor.nextDouble(',');
+    y1 = cursor.nextDouble(',');
+    x2 = cursor.nextDouble(',');
+    y2 = cursor.nextDouble('\0');
   }
 
   @Override
@@ -0,0 +1,257 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package edu.umn.cs.spatialHadoop.core;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Vector;
+
+/**
+ * A space filling curve that maps points in a rectangular space to
+ * one-dimensional keys. The space is divided into a uniform grid of
+ * 2<sup>{@link #Resolution}</sup> columns and rows and each point takes the
+ * key of the grid cell that contains it. Points outside the space are
+ * mapped to the nearest cell on the boundary.
+ *
+ * Both supported curves visit all grid cells of one quadrant before moving
+ * to the next one. This means that each quadrant, at any level, covers one
+ * contiguous range of keys which is used to map a query range to a small
+ * set of key ranges.
+ */
+public abstract class SpaceFillingCurve extends Rectangle {
+
+  /**Number of bits used to represent each dimension*/
+  public static final int Resolution = 20;
+
+  /**Number of columns (and rows) in the underlying grid*/
+  private static final int GridSize = 1 << Resolution;
+
+  /**Default number of levels used to decompose a query range*/
+  public static final int DecompositionLevels = 8;
+
+  public SpaceFillingCurve() {
+  }
+
+  public SpaceFillingCurve(Rectangle space) {
+    super(space);
+  }
+
+  /**
+   * Creates a curve with the given name that covers the given space.
+   * @param name - either <code>zcurve</code> or <code>hilbert</code>
+   * @param space
+   * @return
+   */
+  public static SpaceFillingCurve getCurve(String name, Rectangle space) {
+    if (name.equals("zcurve"))
+      return new ZCurve(space);
+    if (name.equals("hilbert"))
+      return new HilbertCurve(space);
+    throw new RuntimeException("Unsupported space filling curve: "+name);
+  }
+
+  /**
+   * The name of this curve as accepted by {@link #getCurve(String, Rectangle)}
+   * @return
+   */
+  public abstract String getName();
+
+  /**
+   * Computes the key of the grid cell at the given column and row in a grid
+   * of 2<sup>level</sup> columns and rows.
+   * @param column
+   * @param row
+   * @param level
+   * @return
+   */
+  protected abstract long computeKey(int column, int row, int level);
+
+  /**
+   * Computes the key of the given point
+   * @param x
+   * @param y
+   * @return
+   */
+  public long computeKey(double x, double y) {
+    return computeKey(getColumn(x), getRow(y), Resolution);
+  }
+
+  /**
+   * Computes the key of a shape with the given MBR which is the key of its
+   * center.
+   * @param mbr
+   * @return
+   */
+  public long computeKey(Rectangle mbr) {
+    return computeKey((mbr.x1 + mbr.x2) / 2, (mbr.y1 + mbr.y2) / 2);
+  }
+
+  private int getColumn(double x) {
+    return toGrid((x - this.x1) / (this.x2 - this.x1));
+  }
+
+  private int getRow(double y) {
+    return toGrid((y - this.y1) / (this.y2 - this.y1));
+  }
+
+  private static int toGrid(double ratio) {
+    if (!(ratio > 0))
+      return 0; // Also handles NaN of an empty space
+    if (ratio >= 1)
+      return GridSize - 1;
+    return (int) (ratio * GridSize);
+  }
+
+  /**
+   * Returns the key ranges that cover the given query range. Ranges are
+   * returned as one array of inclusive boundaries [start1, end1, start2,
+   * end2, ...] sorted by key with adjacent ranges merged together. Quadrants
+   * are divided up to the given number of levels, which means the ranges
+   * may cover a few keys outside the query range but never miss any key
+   * inside it.
+   * @param query
+   * @param levels
+   * @return
+   */
+  public long[] decompose(Rectangle query, int levels) {
+    levels = Math.min(levels, Resolution);
+    int[] queryCells = {getColumn(query.x1), getRow(query.y1),
+        getColumn(query.x2), getRow(query.y2)};
+    Vector<long[]> ranges = new Vector<long[]>();
+    decompose(queryCells, 0, 0, 0, levels, ranges);
+    Collections.sort(ranges, new Comparator<long[]>() {
+      @Override
+      public int compare(long[] r1, long[] r2) {
+        return r1[0] < r2[0] ? -1 : (r1[0] > r2[0] ? 1 : 0);
+      }
+    });
+
+    // Merge adjacent ranges
+    long[] merged = new long[2 * ranges.size()];
+    int numMerged = 0;
+    for (long[] range : ranges) {
+      if (numMerged > 0 && merged[2 * numMerged - 1] + 1 >= range[0]) {
+        merged[2 * numMerged - 1] = Math.max(merged[2 * numMerged - 1], range[1]);
+      } else {
+        merged[2 * numMerged] = range[0];
+        merged[2 * numMerged + 1] = range[1];
+        numMerged++;
+      }
+    }
+    long[] result = new long[2 * numMerged];
+    System.arraycopy(merged, 0, result, 0, result.length);
+    return result;
+  }
+
+  /**
+   * Adds the key ranges of all quadrants under the given one that overlap
+   * the query range.
+   * @param queryCells - query range as [column1, row1, column2, row2]
+   * @param column - column of the quadrant at its level
+   * @param row - row of the quadrant at its level
+   * @param level - level of the quadrant (zero for the whole space)
+   * @param maxLevel - deepest level to divide quadrants to
+   * @param ranges - output list of [start, end] key ranges
+   */
+  private void decompose(int[] queryCells, int column, int row, int level,
+      int maxLevel, Vector<long[]> ranges) {
+    int shift = Resolution - level;
+    long minColumn = (long) column << shift, maxColumn = ((long) (column + 1) << shift) - 1;
+    long minRow = (long) row << shift, maxRow = ((long) (row + 1) << shift) - 1;
+    if (maxColumn < queryCells[0] || minColumn > queryCells[2] ||
+        maxRow < queryCells[1] || minRow > queryCells[3])
+      return; // Disjoint
+    boolean contained = minColumn >= queryCells[0] && maxColumn <= queryCells[2] &&
+        minRow >= queryCells[1] && maxRow <= queryCells[3];
+    if (contained || level == maxLevel) {
+      long start = computeKey(column, row, level) << (2 * shift);
+      ranges.add(new long[] {start, start + (1L << (2 * shift)) - 1});
+      return;
+    }
+    for (int i = 0; i < 4; i++)
+      decompose(queryCells, column * 2 + (i & 1), row * 2 + (i >> 1),
+          level + 1, maxLevel, ranges);
+  }
+
+  @Override
+  public SpaceFillingCurve clone() {
+    return getCurve(getName(), this);
+  }
+
+  /**
+   * A Z-order curve which interleaves the bits of the column and the row.
+   */
+  public static class ZCurve extends SpaceFillingCurve {
+    public ZCurve() {
+    }
+
+    public ZCurve(Rectangle space) {
+      super(space);
+    }
+
+    @Override
+    public String getName() {
+      return "zcurve";
+    }
+
+    @Override
+    protected long computeKey(int column, int row, int level) {
+      long key = 0;
+      for (int bit = level - 1; bit >= 0; bit--) {
+        key = (key << 2) | (((row >> bit) & 1) << 1) | ((column >> bit) & 1);
+      }
+      return key;
+    }
+  }
+
+  /**
+   * A Hilbert curve. Consecutive keys are always adjacent cells which gives
+   * it a better locality than the Z-order curve.
+   */
+  public static class HilbertCurve extends SpaceFillingCurve {
+    public HilbertCurve() {
+    }
+
+    public HilbertCurve(Rectangle space) {
+      super(space);
+    }
+
+    @Override
+    public String getName() {
+      return "hilbert";
+    }
+
+    @Override
+    protected long computeKey(int column, int row, int level) {
+      int n = 1 << level;
+      long key = 0;
+      int x = column, y = row;
+      for (int s = n / 2; s > 0; s /= 2) {
+        int rx = (x & s) > 0 ? 1 : 0;
+        int ry = (y & s) > 0 ? 1 : 0;
+        key += (long) s * s * ((3 * rx) ^ ry);
+        // Rotate the quadrant
+        if (ry == 0) {
+          if (rx == 1) {
+            x = n - 1 - x;
+            y = n - 1 - y;
+          }
+          int t = x;
+          x = y;
+          y = t;
+        }
+      }
+      return key;
+    }
+  }
+}
@@ -14,8 +14,10 @@ package edu.umn.cs.spatialHadoop.core;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -27,7 +29,6 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.filecache.DistributedCache;
-import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
@@ -40,6 +41,7 @@ import org.apache.hadoop.io.compress.CompressionCodecFactory;
 import org.apache.hadoop.io.compress.Decompressor;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.util.ClassUtil;
+import org.apache.hadoop.util.LineReader;
 
 import edu.umn.cs.spatialHadoop.CommandLineArguments;
 import edu.umn.cs.spatialHadoop.mapred.ShapeRecordReader;
@@ -78,6 +80,18 @@ public class SpatialSite {
   public static final String RTREE_BUILD_MODE =
       "spatialHadoop.storage.RTreeBuildMode";
   
+  /**
+   * Maximum total size in bytes of cell contents a grid writer keeps in
+   * memory before spilling the largest cells. Zero or a negative value means
+   * a quarter of the maximum heap size of the JVM.
+   */
+  public static final String CELL_BUFFER_SIZE =
+      "spatialHadoop.storage.CellBufferSize";
+  
+  /**Maximum number of cell files a grid writer keeps open at the same time*/
+  public static final String MAX_OPEN_CELL_STREAMS =
+      "spatialHadoop.storage.MaxOpenCellStreams";
+  
   /**Configuration line to set the default shape class to use if not set*/
   public static final String ShapeClass = "SpatialSite.ShapeClass";
   
@@ -85,6 +99,14 @@ public class SpatialSite {
   public static final String INDEXING_OVERHEAD =
       "spatialHadoop.storage.IndexingOverhead";
   
+  /**
+   * Maximum ratio between the input size of the largest reducer and the
+   * average input size of reducers when partitioning a file. A warning is
+   * logged if it is exceeded.
+   */
+  public static final String REDUCE_IMBALANCE =
+      "spatialHadoop.mapred.ReduceImbalance";
+  
   /**Ratio of the sample to read from files to build a global R-tree*/
   public static final String SAMPLE_RATIO = "spatialHadoop.storage.SampleRatio";
   
@@ -100,6 +122,21 @@ public class SpatialSite {
    * in a field (e.g. localIndexType).
    */
   public static final long RTreeFileMarker = -0x00012345678910L;
+
+  /**
+   * A marker put in the beginning of a non-indexed file stored in the binary
+   * format of {@link BinaryHeapFile}.
+   */
+  public static final long BinaryHeapFileMarker = -0x00012345678920L;
+
+  /**
+   * Name of the file that stores the type of local index of partitions in an
+   * indexed directory. It is written next to the master file and contains
+   * either {@link #LocalIndexRTree} or {@link #LocalIndexNone}.
+   */
+  public static final String LocalIndexFile = "_local_index";
+  public static final String LocalIndexRTree = "rtree";
+  public static final String LocalIndexNone = "none";
   
   public static final String OUTPUT_CELLS = "edu.umn.cs.spatial.mapReduce.GridOutputFormat.CellsInfo";
   public static final String OVERWRITE = "edu.umn.cs.spatial.mapReduce.GridOutputFormat.Overwrite";
@@ -111,7 +148,8 @@ public class SpatialSite {
 
   /**
    * Maximum number of shapes to read in one read operation and return when
-   * reading a file as array
+   * reading a file as array. Disabled by default as the size of each read
+   * is limited by {@link #MaxBytesInOneRead}.
    */
   public static final String MaxShapesInOneRead =
       "spatialHadoop.mapred.MaxShapesPerRead";
@@ -122,10 +160,55 @@ public class SpatialSite {
   public static final String MaxBytesInOneRead =
       "spatialHadoop.mapred.MaxBytesPerRead";
 
+  /**
+   * Number of batches of shapes that array readers read ahead in a
+   * background thread while the map function processes the current batch.
+   * This overlaps reading, decompressing and parsing the input with
+   * compute-heavy map functions. Zero, the default, reads in the map thread.
+   */
+  public static final String ReadAheadBatches =
+      "spatialHadoop.mapred.ReadAheadBatches";
+
+  /**
+   * A rectangle that allows record readers to skip records outside it when
+   * the file format makes it cheap, e.g., blocks of binary heap files with
+   * MBRs. Jobs that set it must still check each record they receive.
+   */
+  public static final String INPUT_QUERY_RANGE =
+      "spatialHadoop.mapred.InputQueryRange";
+
+  /**
+   * Whether shape record readers return shapes wrapped in a
+   * {@link LazyShape}. Records of binary heap files with MBRs are then
+   * parsed only if the job needs more than their MBRs.
+   */
+  public static final String LAZY_SHAPES = "spatialHadoop.mapred.LazyShapes";
+
+  /**
+   * Target size in bytes of splits that combine small partitions of globally
+   * indexed files. This reduces the number of map tasks when a job reads
+   * many small partitions. Zero, the default, disables combining.
+   */
+  public static final String COMBINE_SPLIT_SIZE =
+      "spatialHadoop.mapred.CombineSplitSize";
+
+  /**
+   * Maximum total size in bytes of the splits of the second file in one
+   * group of pairs joined by a binary input format. These splits are kept
+   * in memory while splits of the first file are streamed. Pairs that share
+   * splits are grouped so that each split is read once by one task rather
+   * than once for each pair. Zero, the default, creates one split for each
+   * pair. Distributed join sets it to four blocks unless configured.
+   */
+  public static final String JOIN_GROUP_SIZE =
+      "spatialHadoop.mapred.JoinGroupSize";
+
   /**Expand global index partitions to cover all of its contents*/
   public static final String EXPAND_CELLS = "spatialHadoop.storage.expand";
 
   public static byte[] RTreeFileMarkerB;
+
+  public static byte[] BinaryHeapFileMarkerB;
   
   static {
     // Load configuration from files
@@ -139,6 +222,12 @@ public class SpatialSite {
       dout.close();
       bout.close();
       RTreeFileMarkerB = bout.toByteArray();
+
+      bout = new ByteArrayOutputStream();
+      dout = new DataOutputStream(bout);
+      dout.writeLong(BinaryHeapFileMarker);
+      dout.close();
+      BinaryHeapFileMarkerB = bout.toByteArray();
     } catch (IOException e) {
       e.printStackTrace();
     }
@@ -299,9 +388,12 @@ public class SpatialSite {
       }
       
       FileStatus masterFile = null;
+      FileStatus localIndexFile = null;
       int nasaFiles = 0;
       for (FileStatus fileStatus : allFiles) {
-        if (fileStatus.getPath().getName().startsWith("_master")) {
+        if (fileStatus.getPath().getName().equals(LocalIndexFile)) {
+          localIndexFile = fileStatus;
+        } else if (fileStatus.getPath().getName().startsWith("_master")) {
           if (masterFile != null)
             throw new RuntimeException("Found more than one master file in "+dir);
           masterFile = fileStatus;
@@ -323,6 +415,18 @@ public class SpatialSite {
         globalIndex.bulkLoad(partitions.toArray(new Partition[partitions.size()]));
         globalIndex.setCompact(masterFile.getPath().getName().endsWith("rtree") || masterFile.getPath().getName().endsWith("r+tree"));
         globalIndex.setReplicated(masterFile.getPath().getName().endsWith("r+tree") || masterFile.getPath().getName().endsWith("grid"));
+        CurvePartitioning partitioning = CurvePartitioning.read(fs,
+            masterFile.getPath().getParent());
+        for (Partition p : partitions) {
+          if (partitioning != null && p.cellId > partitioning.getPartitionCount()) {
+            // The master file was not yet replaced after compacting partitions
+            LOG.warn("Ignoring partitioning of '"+dir+"' as it does not match its master file");
+            partitioning = null;
+          }
+        }
+        globalIndex.setCurvePartitioning(partitioning);
+        if (localIndexFile != null)
+          globalIndex.setRTree(readLocalIndex(fs, localIndexFile.getPath()));
         return globalIndex;
       } else if (nasaFiles > allFiles.length / 2) {
         // A folder that contains HDF files
@@ -370,14 +474,54 @@ public class SpatialSite {
     }
   }
 
+  /**
+   * Records the type of local index of the partitions in the given indexed
+   * directory in the file {@link #LocalIndexFile}.
+   * @param fs
+   * @param indexDir
+   * @param rtree - whether partitions are locally indexed with R-trees
+   * @throws IOException
+   */
+  public static void writeLocalIndex(FileSystem fs, Path indexDir,
+      boolean rtree) throws IOException {
+    OutputStream out = fs.create(new Path(indexDir, LocalIndexFile), true);
+    out.write((rtree ? LocalIndexRTree : LocalIndexNone).getBytes());
+    out.write(System.getProperty("line.separator").getBytes());
+    out.close();
+  }
+
+  /**
+   * Reads the type of local index stored in the given file.
+   * @param fs
+   * @param localIndexFile
+   * @return whether partitions are locally indexed with R-trees or
+   *   <code>null</code> if the type is not known.
+   * @throws IOException
+   */
+  private static Boolean readLocalIndex(FileSystem fs, Path localIndexFile)
+      throws IOException {
+    LineReader reader = new LineReader(fs.open(localIndexFile));
+    Text line = new Text();
+    reader.readLine(line);
+    reader.close();
+    String type = line.toString().trim();
+    if (type.equals(LocalIndexRTree))
+      return true;
+    if (type.equals(LocalIndexNone))
+      return false;
+    LOG.warn("Unknown local index '"+type+"' in "+localIndexFile);
+    return null;
+  }
+
   /**
    * Checks whether a file is indexed using an R-tree or not. This allows
    * an operation to use the R-tree to speedup the processing if it exists.
    * This function opens the specified file and reads the first eight bytes
    * which include the R-tree signature. If the signatures matches with the
    * R-tree signature, true is returned. Otherwise, false is returned.
-   * If the parameter is a path to a directory, only the first data file in that
-   * directory is tested.
+   * If the parameter is a path to a directory, the type recorded in its
+   * {@link #LocalIndexFile} is returned. Only directories indexed before this
+   * file was written have their first data file tested.
    * @param fs
    * @param path
    * @return
@@ -391,6 +535,8 @@ public class SpatialSite {
       GlobalIndex<Partition> gIndex = getGlobalIndex(fs, path);
       if (gIndex == null)
         return false;
+      if (gIndex.isRTree() != null)
+        return gIndex.isRTree();
       fileToCheck = new Path(path, gIndex.iterator().next().filename);
     } else {
       fileToCheck = file.getPath();
@@ -449,10 +595,10 @@ public class SpatialSite {
   /**
    * Set an array of cells in the job configuration. As the array might be
    * very large to store as one value, an alternative approach is used.
-   * The cells are all written to a temporary file, and that file is added
-   * to the DistributedCache of the job. Later on, a call to
-   * {@link #getCells(JobConf)} will open the corresponding file from
-   * DistributedCache and parse cells from that file.
+   * The cells are all written to a temporary file as a {@link CellDictionary},
+   * and that file is added to the DistributedCache of the job. Later on, a
+   * call to {@link #getCellDictionary(JobConf)} or {@link #getCells(JobConf)}
+   * will open the corresponding file from DistributedCache.
    * @param job
    * @param cellsInfo
    * @throws IOException
@@ -464,10 +610,7 @@ public class SpatialSite {
       tempFile = new Path(job.getJobName()+"_"+(int)(Math.random()*1000000)+".cells");
     } while (fs.exists(tempFile));
     FSDataOutputStream out = fs.create(tempFile);
-    out.writeInt(cellsInfo.length);
-    for (CellInfo cell : cellsInfo) {
-      cell.write(out);
-    }
+    new CellDictionary(cellsInfo).write(out);
     out.close();
     
     fs.deleteOnExit(tempFile);
@@ -480,32 +623,35 @@ public class SpatialSite {
   /**
    * Retrieves cells that were stored earlier using
    * {@link #setCells(JobConf, CellInfo[])}. This function opens the corresponding
-   * file from DistributedCache and parses jobs from it.
+   * file from DistributedCache and creates all cells in it.
    * @param job
    * @return
    * @throws IOException
    */
   public static CellInfo[] getCells(JobConf job) throws IOException {
-    CellInfo[] cells = null;
+    CellDictionary cellDictionary = getCellDictionary(job);
+    return cellDictionary == null ? null : cellDictionary.getCells();
+  }
+  
+  /**
+   * Opens the dictionary of cells that were stored earlier using
+   * {@link #setCells(JobConf, CellInfo[])}. The file is memory mapped from
+   * the DistributedCache and shared with other tasks running in the same JVM.
+   * @param job
+   * @return the dictionary or <code>null</code> if no cells were set
+   * @throws IOException
+   */
+  public static CellDictionary getCellDictionary(JobConf job) throws IOException {
     String cells_file = job.get(OUTPUT_CELLS);
     if (cells_file != null) {
       Path[] cacheFiles = DistributedCache.getLocalCacheFiles(job);
       for (Path cacheFile : cacheFiles) {
         if (cacheFile.getName().contains(cells_file)) {
-          FSDataInputStream in = FileSystem.getLocal(job).open(cacheFile);
-          
-          int cellCount = in.readInt();
-          cells = new CellInfo[cellCount];
-          for (int i = 0; i < cellCount; i++) {
-            cells[i] = new CellInfo();
-            cells[i].readFields(in);
-          }
-          
-          in.close();
+          return CellDictionary.open(new File(cacheFile.toUri().getPath()));
         }
       }
     }
-    return cells;
+    return null;
   }
 
   /**
@@ -0,0 +1,228 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package edu.umn.cs.spatialHadoop.io;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MD5Hash;
+
+/**
+ * A cache of file blocks stored as files in a directory on the local disk.
+ * Each block is identified by the path, modification time and length of
+ * its file along with its offset so that a block of a modified file is
+ * never returned. Blocks are evicted in least recently used order once
+ * their total size exceeds the capacity of the cache.
+ *
+ * The directory can be shared by all processes on a machine, e.g., map
+ * tasks of consecutive jobs. The cache keeps no state of its own; the
+ * modification time of a block file records its last use and the capacity
+ * is checked against the files in the directory after each write, so all
+ * processes together keep the directory within the capacity. Blocks are
+ * written to temporary files and renamed so a block is never read while it
+ * is being written. A block deleted by another process is treated as a miss.
+ */
+public class BlockCache {
+  private static final Log LOG = LogFactory.getLog(BlockCache.class);
+
+  /**Local directory that stores cached blocks*/
+  public static final String CacheDir = "spatialHadoop.cache.Dir";
+
+  /**Maximum total size in bytes of cached blocks*/
+  public static final String CacheSize = "spatialHadoop.cache.Size";
+
+  /**Suffix of blocks that are still being written*/
+  private static final String TempSuffix = ".tmp";
+
+  /**One cache for each directory used by this process*/
+  private static final Map<String, BlockCache> caches =
+      new HashMap<String, BlockCache>();
+
+  /**Orders block files from least to most recently used*/
+  private static final Comparator<File> LRUOrder = new Comparator<File>() {
+    @Override
+    public int compare(File f1, File f2) {
+      long t1 = f1.lastModified(), t2 = f2.lastModified();
+      return t1 < t2 ? -1 : (t1 > t2 ? 1 : 0);
+    }
+  };
+
+  /**The directory that stores the blocks*/
+  private final File dir;
+
+  /**Maximum total size of cached blocks*/
+  private final long capacity;
+
+  /**
+   * Returns the cache configured in the given configuration. All calls
+   * with the same directory return the same cache.
+   * @param conf
+   * @return
+   * @throws IOException
+   */
+  public static synchronized BlockCache getCache(Configuration conf)
+      throws IOException {
+    String dir = conf.get(CacheDir);
+    if (dir == null)
+      dir = new File(conf.get("hadoop.tmp.dir", System.getProperty("java.io.tmpdir")),
+          "spatial-cache").getPath();
+    BlockCache cache = caches.get(dir);
+    if (cache == null) {
+      cache = new BlockCache(new File(dir),
+          conf.getLong(CacheSize, 1024L * 1024 * 1024));
+      caches.put(dir, cache);
+    }
+    return cache;
+  }
+
+  public BlockCache(File dir, long capacity) throws IOException {
+    this.dir = dir;
+    this.capacity = capacity;
+    if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+      throw new IOException("Cannot create cache directory "+dir);
+    // Blocks left by earlier processes might exceed a smaller capacity
+    evict();
+    LOG.info("Block cache at "+dir+" has "+getSize()+" bytes");
+  }
+
+  /**
+   * Returns the key of a block of a file
+   * @param path the fully qualified path of the file
+   * @param modificationTime
+   * @param fileLength
+   * @param offset of the first byte of the block in the file
+   * @return
+   */
+  public static String getKey(Path path, long modificationTime,
+      long fileLength, long offset) {
+    return MD5Hash.digest(path.toString()+"@"+modificationTime+"@"+fileLength)
+        .toString() + "_" + offset;
+  }
+
+  /**
+   * Reads a cached block into the given buffer.
+   * @param key
+   * @param buffer
+   * @param length the length of the block
+   * @return <code>true</code> if the block was found in the cache
+   * @throws IOException
+   */
+  public boolean read(String key, byte[] buffer, int length) throws IOException {
+    File file = new File(dir, key);
+    RandomAccessFile in;
+    try {
+      in = new RandomAccessFile(file, "r");
+    } catch (FileNotFoundException e) {
+      // Not cached or evicted by another process
+      return false;
+    }
+    try {
+      if (in.length() != length)
+        return false;
+      in.readFully(buffer, 0, length);
+    } finally {
+      in.close();
+    }
+    // Mark the block as recently used for all processes
+    file.setLastModified(System.currentTimeMillis());
+    return true;
+  }
+
+  /**
+   * Adds a block to the cache and evicts least recently used blocks if the
+   * cache gets full. Failures to write are logged and ignored as the block
+   * can always be read again from its file.
+   * @param key
+   * @param buffer
+   * @param length
+   */
+  public void write(String key, byte[] buffer, int length) {
+    if (length > capacity)
+      return;
+    try {
+      File tempFile = File.createTempFile("block", TempSuffix, dir);
+      FileOutputStream out = new FileOutputStream(tempFile);
+      try {
+        out.write(buffer, 0, length);
+      } finally {
+        out.close();
+      }
+      File file = new File(dir, key);
+      if (!tempFile.renameTo(file)) {
+        tempFile.delete();
+        return;
+      }
+      evict();
+    } catch (IOException e) {
+      LOG.warn("Could not cache block "+key, e);
+    }
+  }
+
+  /**
+   * Lists the blocks in the cache directory from least to most recently used
+   * @return
+   */
+  private File[] listBlocks() {
+    File[] files = dir.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return !file.getName().endsWith(TempSuffix);
+      }
+    });
+    if (files == null)
+      return new File[0];
+    Arrays.sort(files, LRUOrder);
+    return files;
+  }
+
+  /**
+   * Deletes least recently used blocks until the blocks in the directory,
+   * including those written by other processes, fit the capacity.
+   * A block that another process deleted first is skipped.
+   */
+  private synchronized void evict() {
+    File[] files = listBlocks();
+    long[] lengths = new long[files.length];
+    long size = 0;
+    for (int i = 0; i < files.length; i++)
+      size += lengths[i] = files[i].length();
+    for (int i = 0; size > capacity && i < files.length; i++) {
+      files[i].delete();
+      size -= lengths[i];
+    }
+  }
+
+  /**
+   * Total size of the blocks in the cache directory, including blocks
+   * written by other processes
+   * @return
+   */
+  public long getSize() {
+    long size = 0;
+    for (File file : listBlocks())
+      size += file.length();
+    return size;
+  }
+}
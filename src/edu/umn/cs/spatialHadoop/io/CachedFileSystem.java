@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package edu.umn.cs.spatialHadoop.io;
+
+import java.io.IOException;
+import java.net.URI;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * A {@link FileSystem} that keeps blocks of the files it reads in a
+ * {@link BlockCache} on the local disk of the machine. This speeds up
+ * operations that read the same blocks over and over, e.g., rounds of
+ * a kNN query or range queries issued from the web interface. All other
+ * operations are delegated to an underlying file system.
+ *
+ * To cache files of a scheme, set <code>fs.&lt;scheme&gt;.impl</code> to
+ * this class and <code>spatialHadoop.cache.&lt;scheme&gt;.impl</code> to
+ * the class of the file system that stores the files. For example, to cache
+ * HDFS files, set <code>fs.hdfs.impl</code> to this class and
+ * <code>spatialHadoop.cache.hdfs.impl</code> to
+ * <code>org.apache.hadoop.hdfs.DistributedFileSystem</code>.
+ *
+ * Cached blocks are keyed by the path, modification time and length of
+ * their files so a modified file is never read from the cache.
+ */
+public class CachedFileSystem extends FilterFileSystem {
+  /**Size in bytes of cached blocks*/
+  public static final String CacheBlockSize = "spatialHadoop.cache.BlockSize";
+
+  /**Class of the underlying file system of a scheme*/
+  private static final String UnderlyingFileSystem = "spatialHadoop.cache.%s.impl";
+
+  /**Cache of blocks read by this file system*/
+  private BlockCache cache;
+
+  /**Size of cached blocks*/
+  private int blockSize;
+
+  public CachedFileSystem() {
+  }
+
+  /**
+   * Caches the files of the given file system
+   * @param fs
+   */
+  public CachedFileSystem(FileSystem fs) {
+    super(fs);
+  }
+
+  @Override
+  public void initialize(URI name, Configuration conf) throws IOException {
+    if (fs == null) {
+      // Created by FileSystem#get. Create the underlying file system
+      String key = String.format(UnderlyingFileSystem, name.getScheme());
+      Class<? extends FileSystem> fsClass =
+          conf.getClass(key, null, FileSystem.class);
+      if (fsClass == null)
+        throw new IOException("No file system configured for scheme '"+
+            name.getScheme()+"'. Set "+key);
+      fs = ReflectionUtils.newInstance(fsClass, conf);
+      fs.initialize(name, conf);
+    }
+    super.initialize(name, conf);
+    this.cache = BlockCache.getCache(conf);
+    this.blockSize = conf.getInt(CacheBlockSize, 4 * 1024 * 1024);
+  }
+
+  @Override
+  public FSDataInputStream open(Path f, int bufferSize) throws IOException {
+    FileStatus fileStatus = fs.getFileStatus(f);
+    if (fileStatus.isDirectory())
+      return fs.open(f, bufferSize);
+    fileStatus.setPath(fs.makeQualified(fileStatus.getPath()));
+    return new FSDataInputStream(new CachedInputStream(fs, fileStatus,
+        cache, blockSize));
+  }
+}
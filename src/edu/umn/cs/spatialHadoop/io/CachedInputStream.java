@@ -0,0 +1,158 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package edu.umn.cs.spatialHadoop.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+
+/**
+ * Reads a file in fixed-size blocks through a {@link BlockCache}. Each
+ * block is read from the cache if found there. Otherwise, it is read from
+ * the underlying file system and added to the cache. The underlying file
+ * is opened only when a block is missing from the cache.
+ */
+public class CachedInputStream extends FSInputStream {
+  /**File system that stores the file*/
+  private final FileSystem fs;
+
+  /**Status of the file being read*/
+  private final FileStatus fileStatus;
+
+  /**Cache of blocks*/
+  private final BlockCache cache;
+
+  /**Size of each block except the last one*/
+  private final int blockSize;
+
+  /**The underlying file. Opened on the first cache miss*/
+  private FSDataInputStream in;
+
+  /**Contents of the current block*/
+  private byte[] block;
+
+  /**Offset of the current block in the file or -1 if none*/
+  private long blockStart = -1;
+
+  /**Length of the current block*/
+  private int blockLength;
+
+  /**Current position in the file*/
+  private long pos;
+
+  /**
+   * @param fs
+   * @param fileStatus the status of a file with a fully qualified path
+   * @param cache
+   * @param blockSize
+   */
+  public CachedInputStream(FileSystem fs, FileStatus fileStatus,
+      BlockCache cache, int blockSize) {
+    this.fs = fs;
+    this.fileStatus = fileStatus;
+    this.cache = cache;
+    this.blockSize = blockSize;
+  }
+
+  /**
+   * Makes the block that contains the current position the current block
+   * @throws IOException
+   */
+  private void loadBlock() throws IOException {
+    if (blockStart != -1 && pos >= blockStart && pos < blockStart + blockLength)
+      return;
+    long start = pos / blockSize * blockSize;
+    int length = (int) Math.min(blockSize, fileStatus.getLen() - start);
+    if (block == null || block.length < length)
+      block = new byte[length];
+    // Invalidate the current block in case reading the new one fails
+    blockStart = -1;
+    String key = BlockCache.getKey(fileStatus.getPath(),
+        fileStatus.getModificationTime(), fileStatus.getLen(), start);
+    if (!cache.read(key, block, length)) {
+      if (in == null)
+        in = fs.open(fileStatus.getPath());
+      in.readFully(start, block, 0, length);
+      cache.write(key, block, length);
+    }
+    blockStart = start;
+    blockLength = length;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (pos >= fileStatus.getLen())
+      return -1;
+    loadBlock();
+    return block[(int) (pos++ - blockStart)] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0)
+      return 0;
+    if (pos >= fileStatus.getLen())
+      return -1;
+    loadBlock();
+    int n = (int) Math.min(len, blockStart + blockLength - pos);
+    System.arraycopy(block, (int) (pos - blockStart), b, off, n);
+    pos += n;
+    return n;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    if (n <= 0)
+      return 0;
+    long skipped = Math.min(n, fileStatus.getLen() - pos);
+    pos += skipped;
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return (int) Math.min(Integer.MAX_VALUE, fileStatus.getLen() - pos);
+  }
+
+  @Override
+  public void seek(long newPos) throws IOException {
+    if (newPos < 0 || newPos > fileStatus.getLen())
+      throw new EOFException("Cannot seek to "+newPos+" in "+
+          fileStatus.getPath()+" of length "+fileStatus.getLen());
+    pos = newPos;
+  }
+
+  @Override
+  public long getPos() throws IOException {
+    return pos;
+  }
+
+  @Override
+  public boolean seekToNewSource(long targetPos) throws IOException {
+    return false;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (in != null) {
+      in.close();
+      in = null;
+    }
+    block = null;
+    blockStart = -1;
+  }
+}
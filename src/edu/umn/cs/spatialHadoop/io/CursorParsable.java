@@ -0,0 +1,31 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package edu.umn.cs.spatialHadoop.io;
+
+/**
+ * Implemented by objects that can be parsed directly from a
+ * {@link TextCursor}. This allows parsing a record from any part of a byte
+ * array, e.g., the buffer of a reader, without copying it into a
+ * {@link org.apache.hadoop.io.Text} first. Parsing from a cursor must give
+ * the same result as {@link TextSerializable#fromText(org.apache.hadoop.io.Text)}
+ * on the same bytes.
+ */
+public interface CursorParsable extends TextSerializable {
+  /**
+   * Parses this object at the position of the given cursor. A subclass that
+   * overrides {@link TextSerializable#fromText(org.apache.hadoop.io.Text)}
+   * to parse its own fields should override this method as well.
+   * @param cursor
+   */
+  public void fromText(TextCursor cursor);
+}
@@ -0,0 +1,537 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package edu.umn.cs.spatialHadoop.io;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+
+/**
+ * Parses and formats doubles directly on byte arrays without creating
+ * any objects in the common case.
+ * <ul>
+ * <li>Parsing is correctly rounded, i.e., it returns the same value as
+ * {@link Double#parseDouble(String)}. Numbers that are exact in double
+ * arithmetic are computed directly and others are computed using the
+ * Eisel-Lemire algorithm. The few inputs that cannot be decided this way
+ * are passed to {@link Double#parseDouble(String)}.</li>
+ * <li>Formatting writes the shortest decimal that parses back to the same
+ * double in the layout of {@link Double#toString(double)}. Digits are
+ * generated using the Grisu3 algorithm which falls back to
+ * {@link Double#toString(double)} for the few values it cannot handle.</li>
+ * <li>Formatting with a fixed number of digits after the decimal point
+ * rounds the exact value of the double half to even as
+ * {@link BigDecimal#setScale(int, RoundingMode)} does. Values that are not
+ * close to a tie are rounded in double arithmetic and others are rounded
+ * using {@link BigDecimal}.</li>
+ * </ul>
+ * Both algorithms use 128-bit approximations of powers of ten which are
+ * computed once when this class is loaded.
+ */
+public final class DoubleCodec {
+
+  /**Maximum number of bytes written by the format methods*/
+  public static final int MaxLength = 32;
+
+  private static final long SignMask = 0x8000000000000000L;
+  private static final long FractionMask = 0x000FFFFFFFFFFFFFL;
+  private static final long HiddenBit = 0x0010000000000000L;
+
+  /**Range of decimal exponents of the table of powers of ten*/
+  private static final int MinExp10 = -348, MaxExp10 = 347;
+
+  /**High and low 64 bits of 10^i normalized to 128 bits and rounded down*/
+  private static final long[] PowHi, PowLo;
+
+  /**Binary exponent of PowHi, i.e., 10^i ~ PowHi[i] * 2^PowE[i]*/
+  private static final int[] PowE;
+
+  /**Powers of ten that are exact in double*/
+  private static final double[] ExactPowers = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+    1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+  };
+
+  /**Scaled values below this limit are rounded in double arithmetic*/
+  private static final double FixedDoubleLimit = 1L << 40;
+
+  /**
+   * Scaled values below {@link #FixedDoubleLimit} have an error of at most
+   * 2^-13 so a fraction further than this margin from one half is rounded
+   * the same way as the exact value.
+   */
+  private static final double TieMargin = 1e-3;
+
+  static {
+    int count = MaxExp10 - MinExp10 + 1;
+    PowHi = new long[count];
+    PowLo = new long[count];
+    PowE = new int[count];
+    BigInteger mask64 = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+    for (int exp10 = MinExp10; exp10 <= MaxExp10; exp10++) {
+      BigInteger m;
+      int e128;
+      if (exp10 >= 0) {
+        BigInteger p = BigInteger.TEN.pow(exp10);
+        int shift = p.bitLength() - 128;
+        m = shift > 0 ? p.shiftRight(shift) : p.shiftLeft(-shift);
+        e128 = shift;
+      } else {
+        BigInteger p = BigInteger.TEN.pow(-exp10);
+        int k = 127 + p.bitLength();
+        m = BigInteger.ONE.shiftLeft(k).divide(p);
+        e128 = -k;
+      }
+      PowHi[exp10 - MinExp10] = m.shiftRight(64).longValue();
+      PowLo[exp10 - MinExp10] = m.and(mask64).longValue();
+      PowE[exp10 - MinExp10] = e128 + 64;
+    }
+  }
+
+  private DoubleCodec() {
+  }
+
+  /**
+   * Parses a double from the given part of a byte array. An empty string
+   * is parsed as zero.
+   * @param buf
+   * @param offset
+   * @param len
+   * @return
+   */
+  public static double parse(byte[] buf, int offset, int len) {
+    if (len == 0)
+      return 0;
+    int end = offset + len;
+    int i = offset;
+    boolean negative = false;
+    if (buf[i] == '-') {
+      negative = true;
+      i++;
+    } else if (buf[i] == '+') {
+      i++;
+    }
+    // Up to 19 significant digits fit in an unsigned long
+    long mantissa = 0;
+    int significantDigits = 0;
+    int exponent = 0;
+    boolean hasDigits = false, truncated = false;
+    while (i < end && buf[i] >= '0' && buf[i] <= '9') {
+      hasDigits = true;
+      if (significantDigits < 19) {
+        mantissa = mantissa * 10 + (buf[i] - '0');
+        if (mantissa != 0)
+          significantDigits++;
+      } else {
+        exponent++;
+        truncated |= buf[i] != '0';
+      }
+      i++;
+    }
+    if (i < end && buf[i] == '.') {
+      i++;
+      while (i < end && buf[i] >= '0' && buf[i] <= '9') {
+        hasDigits = true;
+        if (significantDigits < 19) {
+          mantissa = mantissa * 10 + (buf[i] - '0');
+          if (mantissa != 0)
+            significantDigits++;
+          exponent--;
+        } else {
+          truncated |= buf[i] != '0';
+        }
+        i++;
+      }
+    }
+    if (hasDigits && i < end && (buf[i] == 'e' || buf[i] == 'E')) {
+      i++;
+      boolean exponentNegative = false;
+      if (i < end && (buf[i] == '-' || buf[i] == '+'))
+        exponentNegative = buf[i++] == '-';
+      int explicitExponent = 0;
+      int exponentStart = i;
+      while (i < end && buf[i] >= '0' && buf[i] <= '9') {
+        if (explicitExponent < 100000)
+          explicitExponent = explicitExponent * 10 + (buf[i] - '0');
+        i++;
+      }
+      if (i == exponentStart)
+        hasDigits = false; // Missing exponent
+      exponent += exponentNegative ? -explicitExponent : explicitExponent;
+    }
+    if (hasDigits && i == end && !truncated) {
+      if (mantissa == 0)
+        return negative ? -0.0 : 0.0;
+      if (mantissa >= 0 && mantissa < (1L << 53) && exponent >= -22 && exponent <= 22) {
+        // Both the mantissa and the power of ten are exact
+        double d = mantissa;
+        d = exponent < 0 ? d / ExactPowers[-exponent] : d * ExactPowers[exponent];
+        return negative ? -d : d;
+      }
+      double d = eiselLemire(mantissa, exponent, negative);
+      if (!Double.isNaN(d))
+        return d;
+    }
+    // NaN, Infinity, too many digits or a value that cannot be decided
+    try {
+      return Double.parseDouble(new String(buf, offset, len));
+    } catch (NumberFormatException e) {
+      throw new RuntimeException("Error parsing double "+
+          new String(buf, offset, len), e);
+    }
+  }
+
+  /**
+   * Computes mantissa * 10^exp10 correctly rounded. Returns NaN if the
+   * result cannot be decided with the precision of the table.
+   */
+  private static double eiselLemire(long mantissa, int exp10, boolean negative) {
+    if (exp10 < MinExp10 || exp10 > MaxExp10)
+      return Double.NaN;
+    int clz = Long.numberOfLeadingZeros(mantissa);
+    mantissa <<= clz;
+    long retExp2 = ((217706L * exp10) >> 16) + 64 + 1023 - clz;
+    long powHi = PowHi[exp10 - MinExp10], powLo = PowLo[exp10 - MinExp10];
+
+    long xHi = multiplyHigh(mantissa, powHi);
+    long xLo = mantissa * powHi;
+    if ((xHi & 0x1FF) == 0x1FF && lessThan(xLo + mantissa, mantissa)) {
+      // Use the lower half of the power for a wider approximation
+      long yHi = multiplyHigh(mantissa, powLo);
+      long yLo = mantissa * powLo;
+      long mergedHi = xHi, mergedLo = xLo + yHi;
+      if (lessThan(mergedLo, xLo))
+        mergedHi++;
+      if ((mergedHi & 0x1FF) == 0x1FF && mergedLo + 1 == 0 &&
+          lessThan(yLo + mantissa, mantissa))
+        return Double.NaN;
+      xHi = mergedHi;
+      xLo = mergedLo;
+    }
+
+    long msb = xHi >>> 63;
+    long retMantissa = xHi >>> (msb + 9);
+    retExp2 -= 1 ^ msb;
+    if (xLo == 0 && (xHi & 0x1FF) == 0 && (retMantissa & 3) == 1)
+      return Double.NaN; // Exactly half way between two doubles
+    retMantissa += retMantissa & 1;
+    retMantissa >>>= 1;
+    if ((retMantissa >>> 53) > 0) {
+      retMantissa >>>= 1;
+      retExp2++;
+    }
+    if (retExp2 <= 0 || retExp2 >= 0x7FF)
+      return Double.NaN; // Subnormal or infinite
+    long bits = (retExp2 << 52) | (retMantissa & FractionMask);
+    if (negative)
+      bits |= SignMask;
+    return Double.longBitsToDouble(bits);
+  }
+
+  /**
+   * Writes the shortest representation of the given double that parses back
+   * to the same value in the same layout as {@link Double#toString(double)}.
+   * @param d
+   * @param buffer - must have at least {@link #MaxLength} bytes after offset
+   * @param offset
+   * @return the position after the last written byte
+   */
+  public static int format(double d, byte[] buffer, int offset) {
+    long bits = Double.doubleToRawLongBits(d);
+    if (Double.isNaN(d) || Double.isInfinite(d) || (bits & ~SignMask) == 0)
+      return formatSpecial(d, buffer, offset);
+    // Digits are generated after the longest prefix ("-0.00") and then
+    // moved forward to their final position
+    int digitsOffset = offset + 8;
+    long result = grisu3(Double.longBitsToDouble(bits & ~SignMask), buffer, digitsOffset);
+    if (result == Long.MIN_VALUE)
+      return formatSpecial(d, buffer, offset);
+    int length = (int) (result & 0xFF);
+    int exponent = (int) (result >> 8) + length - 1;
+
+    int pos = offset;
+    if (bits < 0)
+      buffer[pos++] = '-';
+    if (exponent >= -3 && exponent < 7) {
+      if (exponent < 0) {
+        buffer[pos++] = '0';
+        buffer[pos++] = '.';
+        for (int i = -1; i > exponent; i--)
+          buffer[pos++] = '0';
+        for (int i = 0; i < length; i++)
+          buffer[pos++] = buffer[digitsOffset + i];
+      } else {
+        for (int i = 0; i <= exponent; i++)
+          buffer[pos++] = i < length ? buffer[digitsOffset + i] : (byte) '0';
+        buffer[pos++] = '.';
+        if (length > exponent + 1) {
+          for (int i = exponent + 1; i < length; i++)
+            buffer[pos++] = buffer[digitsOffset + i];
+        } else {
+          buffer[pos++] = '0';
+        }
+      }
+    } else {
+      buffer[pos++] = buffer[digitsOffset];
+      buffer[pos++] = '.';
+      if (length > 1) {
+        for (int i = 1; i < length; i++)
+          buffer[pos++] = buffer[digitsOffset + i];
+      } else {
+        buffer[pos++] = '0';
+      }
+      buffer[pos++] = 'E';
+      if (exponent < 0) {
+        buffer[pos++] = '-';
+        exponent = -exponent;
+      }
+      if (exponent >= 100)
+        buffer[pos++] = (byte) ('0' + exponent / 100);
+      if (exponent >= 10)
+        buffer[pos++] = (byte) ('0' + exponent / 10 % 10);
+      buffer[pos++] = (byte) ('0' + exponent % 10);
+    }
+    return pos;
+  }
+
+  /**
+   * Writes the given double with exactly the given number of digits after
+   * the decimal point. The exact value of the double is rounded half to
+   * even. Values that do not fit in {@link #MaxLength} bytes at the given
+   * precision, NaN and infinity are written in the shortest form as in
+   * {@link #format(double, byte[], int)}.
+   * @param d
+   * @param precision - number of digits after the decimal point
+   * @param buffer - must have at least {@link #MaxLength} bytes after offset
+   * @param offset
+   * @return the position after the last written byte
+   */
+  public static int format(double d, int precision, byte[] buffer, int offset) {
+    if (precision < 0 || precision >= MaxLength - 2 ||
+        Double.isNaN(d) || Double.isInfinite(d) || Math.abs(d) >= 1e30)
+      return format(d, buffer, offset);
+    if (precision < ExactPowers.length) {
+      // One rounding error in the product
+      double scaled = Math.abs(d) * ExactPowers[precision];
+      if (scaled < FixedDoubleLimit) {
+        long value = (long) scaled;
+        double fraction = scaled - value;
+        if (Math.abs(fraction - 0.5) > TieMargin)
+          return formatFixed(d < 0, fraction < 0.5 ? value : value + 1,
+              precision, buffer, offset);
+      }
+    }
+    String str = new BigDecimal(d).setScale(precision, RoundingMode.HALF_EVEN)
+        .toPlainString();
+    if (str.length() > MaxLength)
+      return format(d, buffer, offset);
+    for (int i = 0; i < str.length(); i++)
+      buffer[offset + i] = (byte) str.charAt(i);
+    return offset + str.length();
+  }
+
+  /**
+   * Writes the given unsigned value scaled down by 10^precision
+   * @param negative
+   * @param value
+   * @param precision
+   * @param buffer
+   * @param offset
+   * @return the position after the last written byte
+   */
+  private static int formatFixed(boolean negative, long value, int precision,
+      byte[] buffer, int offset) {
+    int pos = offset;
+    if (negative && value != 0)
+      buffer[pos++] = '-';
+    int digits = 1;
+    for (long v = value / 10; v != 0; v /= 10)
+      digits++;
+    // At least one digit before the decimal point
+    digits = Math.max(digits, precision + 1);
+    int end = pos + digits + (precision > 0 ? 1 : 0);
+    int i = end;
+    for (int digit = 0; digit < digits; digit++) {
+      if (digit == precision && precision > 0)
+        buffer[--i] = '.';
+      buffer[--i] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+    return end;
+  }
+
+  /**Formats values that are not handled by Grisu3*/
+  private static int formatSpecial(double d, byte[] buffer, int offset) {
+    String str = Double.toString(d);
+    for (int i = 0; i < str.length(); i++)
+      buffer[offset + i] = (byte) str.charAt(i);
+    return offset + str.length();
+  }
+
+  /**
+   * Generates the shortest digits of the given positive double using the
+   * Grisu3 algorithm by Florian Loitsch.
+   * @return the decimal exponent of the last digit shifted left by eight
+   *   bits combined with the number of digits, or Long.MIN_VALUE if the
+   *   shortest digits could not be found.
+   */
+  private static long grisu3(double v, byte[] buffer, int offset) {
+    long bits = Double.doubleToRawLongBits(v);
+    int biasedExponent = (int) (bits >>> 52);
+    long fraction = bits & FractionMask;
+    long f;
+    int e;
+    if (biasedExponent == 0) {
+      f = fraction;
+      e = 1 - 1075;
+    } else {
+      f = fraction | HiddenBit;
+      e = biasedExponent - 1075;
+    }
+    // The boundaries between v and its neighbors
+    long plusF = (f << 1) + 1;
+    int plusE = e - 1;
+    int lz = Long.numberOfLeadingZeros(plusF);
+    plusF <<= lz;
+    plusE -= lz;
+    long minusF;
+    int minusE;
+    if (fraction == 0 && biasedExponent > 1) {
+      // The lower boundary is closer
+      minusF = (f << 2) - 1;
+      minusE = e - 2;
+    } else {
+      minusF = (f << 1) - 1;
+      minusE = e - 1;
+    }
+    minusF <<= minusE - plusE;
+    lz = Long.numberOfLeadingZeros(f);
+    long wF = f << lz;
+    int wE = e - lz;
+
+    // Scale by a power of ten to bring the binary exponent to [-60, -32]
+    int minExponent = -60 - (wE + 64);
+    int mk = (int) Math.ceil((minExponent + 63) * 0.30102999566398114);
+    int index = mk - MinExp10;
+    long cF = PowHi[index] + (PowLo[index] >>> 63);
+    int cE = PowE[index];
+    if (cF == 0) {
+      // Rounding the power overflowed
+      cF = SignMask;
+      cE++;
+    }
+    long scaledW = multiplyHighRounded(wF, cF);
+    long scaledMinus = multiplyHighRounded(minusF, cF);
+    long scaledPlus = multiplyHighRounded(plusF, cF);
+    int scaledE = wE + cE + 64;
+
+    // Generate digits
+    long unit = 1;
+    long tooLow = scaledMinus - unit;
+    long tooHigh = scaledPlus + unit;
+    long unsafeInterval = tooHigh - tooLow;
+    int shift = -scaledE;
+    long one = 1L << shift;
+    long integrals = tooHigh >>> shift;
+    long fractionals = tooHigh & (one - 1);
+    long divisor = 1;
+    int kappa = 0;
+    if (integrals > 0) {
+      kappa = 1;
+      while (kappa < 10 && divisor * 10 <= integrals) {
+        divisor *= 10;
+        kappa++;
+      }
+    }
+    int length = 0;
+    while (kappa > 0) {
+      int digit = (int) (integrals / divisor);
+      buffer[offset + length++] = (byte) ('0' + digit);
+      integrals %= divisor;
+      kappa--;
+      long rest = (integrals << shift) + fractionals;
+      if (lessThan(rest, unsafeInterval)) {
+        if (!roundWeed(buffer, offset + length - 1, tooHigh - scaledW,
+            unsafeInterval, rest, divisor << shift, unit))
+          return Long.MIN_VALUE;
+        return ((long) (kappa - mk) << 8) | length;
+      }
+      divisor /= 10;
+    }
+    while (true) {
+      fractionals *= 10;
+      unit *= 10;
+      unsafeInterval *= 10;
+      int digit = (int) (fractionals >>> shift);
+      buffer[offset + length++] = (byte) ('0' + digit);
+      fractionals &= one - 1;
+      kappa--;
+      if (lessThan(fractionals, unsafeInterval)) {
+        if (!roundWeed(buffer, offset + length - 1, (tooHigh - scaledW) * unit,
+            unsafeInterval, fractionals, one, unit))
+          return Long.MIN_VALUE;
+        return ((long) (kappa - mk) << 8) | length;
+      }
+      if (length > 18)
+        return Long.MIN_VALUE;
+    }
+  }
+
+  /**
+   * Moves the last generated digit towards the exact value and checks
+   * whether the result is guaranteed to be the closest shortest one.
+   */
+  private static boolean roundWeed(byte[] buffer, int last,
+      long distanceTooHighW, long unsafeInterval, long rest, long tenKappa,
+      long unit) {
+    long smallDistance = distanceTooHighW - unit;
+    long bigDistance = distanceTooHighW + unit;
+    while (lessThan(rest, smallDistance) &&
+        !lessThan(unsafeInterval - rest, tenKappa) &&
+        (lessThan(rest + tenKappa, smallDistance) ||
+         !lessThan(smallDistance - rest, rest + tenKappa - smallDistance))) {
+      buffer[last]--;
+      rest += tenKappa;
+    }
+    if (lessThan(rest, bigDistance) &&
+        !lessThan(unsafeInterval - rest, tenKappa) &&
+        (lessThan(rest + tenKappa, bigDistance) ||
+         lessThan(rest + tenKappa - bigDistance, bigDistance - rest)))
+      return false;
+    return !lessThan(rest, 2 * unit) && !lessThan(unsafeInterval - 4 * unit, rest);
+  }
+
+  /**Unsigned comparison of two longs*/
+  private static boolean lessThan(long a, long b) {
+    return (a ^ SignMask) < (b ^ SignMask);
+  }
+
+  /**High 64 bits of the unsigned 128-bit product of x and y*/
+  private static long multiplyHigh(long x, long y) {
+    long x0 = x & 0xFFFFFFFFL, x1 = x >>> 32;
+    long y0 = y & 0xFFFFFFFFL, y1 = y >>> 32;
+    long p01 = x0 * y1, p10 = x1 * y0;
+    long middle = p10 + ((x0 * y0) >>> 32) + (p01 & 0xFFFFFFFFL);
+    return x1 * y1 + (middle >>> 32) + (p01 >>> 32);
+  }
+
+  /**High 64 bits of the unsigned 128-bit product rounded to nearest*/
+  private static long multiplyHighRounded(long x, long y) {
+    long x0 = x & 0xFFFFFFFFL, x1 = x >>> 32;
+    long y0 = y & 0xFFFFFFFFL, y1 = y >>> 32;
+    long p01 = x0 * y1, p10 = x1 * y0;
+    long middle = ((x0 * y0) >>> 32) + (p01 & 0xFFFFFFFFL) + (p10 & 0xFFFFFFFFL);
+    middle += 1L << 31;
+    return x1 * y1 + (p01 >>> 32) + (p10 >>> 32) + (middle >>> 32);
+  }
+}
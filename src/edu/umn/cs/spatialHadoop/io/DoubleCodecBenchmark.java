@@ -0,0 +1,65 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package edu.umn.cs.spatialHadoop.io;
+
+import java.util.Random;
+
+/**
+ * Measures how fast {@link DoubleCodec} formats and parses doubles compared
+ * to {@link Double#toString(double)} and {@link Double#parseDouble(String)}.
+ */
+public class DoubleCodecBenchmark {
+
+  /**
+   * Compares the throughput of {@link DoubleCodec} to the JDK on the given
+   * number of random coordinates.
+   * @param args
+   */
+  public static void main(String[] args) {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    Random random = new Random(0);
+    double[] values = new double[count];
+    for (int i = 0; i < count; i++) {
+      // Half of the values have full precision and half are rounded
+      values[i] = random.nextDouble() * 360 - 180;
+      if (i % 2 == 1)
+        values[i] = Math.round(values[i] * 1e6) / 1e6;
+    }
+    byte[][] strings = new byte[count][];
+    byte[] buffer = new byte[DoubleCodec.MaxLength];
+    for (int i = 0; i < count; i++)
+      strings[i] = Double.toString(values[i]).getBytes();
+
+    for (int round = 0; round < 5; round++) {
+      long sum = 0;
+      long t1 = System.nanoTime();
+      for (int i = 0; i < count; i++)
+        sum += Double.toString(values[i]).getBytes().length;
+      long t2 = System.nanoTime();
+      for (int i = 0; i < count; i++)
+        sum += DoubleCodec.format(values[i], buffer, 0);
+      long t3 = System.nanoTime();
+      double check = 0;
+      for (int i = 0; i < count; i++)
+        check += Double.parseDouble(new String(strings[i]));
+      long t4 = System.nanoTime();
+      for (int i = 0; i < count; i++)
+        check += DoubleCodec.parse(strings[i], 0, strings[i].length);
+      long t5 = System.nanoTime();
+      System.out.printf("Format: JDK %.1f, codec %.1f; parse: JDK %.1f, codec %.1f" +
+          " (millions of values per second) %d %f%n",
+          count * 1e3 / (t2 - t1), count * 1e3 / (t3 - t2),
+          count * 1e3 / (t4 - t3), count * 1e3 / (t5 - t4), sum, check);
+    }
+  }
+}
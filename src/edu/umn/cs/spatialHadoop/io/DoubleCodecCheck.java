@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package edu.umn.cs.spatialHadoop.io;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Random;
+
+/**
+ * Compares the fixed precision output of
+ * {@link DoubleCodec#format(double, int, byte[], int)} with
+ * {@link BigDecimal#setScale(int, RoundingMode)} on random values, exact
+ * ties and their neighbors.
+ */
+public class DoubleCodecCheck {
+
+  private static byte[] buffer = new byte[DoubleCodec.MaxLength];
+
+  /**
+   * Checks one value and prints it if the output differs from BigDecimal
+   * @param d
+   * @param precision
+   * @return <code>true</code> if the output is correct
+   */
+  private static boolean check(double d, int precision) {
+    String expected = null;
+    if (!Double.isNaN(d) && !Double.isInfinite(d) && Math.abs(d) < 1e30)
+      expected = new BigDecimal(d)
+          .setScale(precision, RoundingMode.HALF_EVEN).toPlainString();
+    // Values that do not fit are written in the shortest form
+    if (expected == null || expected.length() > DoubleCodec.MaxLength)
+      expected = new String(buffer, 0, DoubleCodec.format(d, buffer, 0));
+    String actual = new String(buffer, 0, DoubleCodec.format(d, precision, buffer, 0));
+    if (!actual.equals(expected)) {
+      System.out.println("Wrong output for "+d+" at precision "+precision+
+          ": "+actual+" instead of "+expected);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Checks the given number of random values at each precision
+   * @param args
+   */
+  public static void main(String[] args) {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    Random random = new Random(0);
+    int errors = 0, checks = 0;
+    for (int precision = 0; precision <= 25; precision++) {
+      for (int i = 0; i < count; i++) {
+        // Coordinates, values of any magnitude and values with exactly
+        // precision + 1 digits after the point, the last of which is 5
+        double coordinate = random.nextDouble() * 360 - 180;
+        double any = Double.longBitsToDouble(random.nextLong());
+        double tie = (2.0 * random.nextInt(1 << 20) + 1) /
+            Math.pow(2, precision + 1) * (random.nextBoolean() ? 1 : -1);
+        double[] values = {coordinate, any, tie, Math.nextUp(tie),
+            -Math.nextUp(-tie), Math.round(coordinate * 1e6) / 1e6};
+        for (double d : values) {
+          checks++;
+          if (!check(d, precision))
+            errors++;
+        }
+      }
+    }
+    System.out.println(checks+" values checked, "+errors+" errors");
+    if (errors > 0)
+      System.exit(1);
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package edu.umn.cs.spatialHadoop.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads lines from an input stream without copying them. Unlike
+ * {@link org.apache.hadoop.util.LineReader}, which copies each line into a
+ * {@link org.apache.hadoop.io.Text}, each line read by this class is
+ * returned as a slice of its internal buffer. The slice is valid until the
+ * next call to {@link #readLine()}. The buffer grows only if a line does not
+ * fit in it, so reading lines does not allocate any objects in the steady
+ * state.
+ *
+ * A line is terminated by '\n', '\r' or "\r\n" as in LineReader and the
+ * terminator is not part of the returned slice.
+ */
+public class LineSliceReader {
+  private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+  private InputStream in;
+
+  /**Bytes read from the stream*/
+  private byte[] buffer;
+
+  /**Position of the first byte in buffer that is not consumed yet*/
+  private int bufferPos;
+
+  /**Position after the last valid byte in buffer*/
+  private int bufferEnd;
+
+  /**Whether the end of the stream has been reached*/
+  private boolean eof;
+
+  /**Start of the last line read in buffer*/
+  private int lineStart;
+
+  /**Length of the last line read without its terminator*/
+  private int lineLength;
+
+  public LineSliceReader(InputStream in) {
+    this(in, DEFAULT_BUFFER_SIZE);
+  }
+
+  public LineSliceReader(InputStream in, int bufferSize) {
+    this.in = in;
+    this.buffer = new byte[bufferSize];
+  }
+
+  /**
+   * Makes the given bytes the first bytes to be read before the stream.
+   * This is used when a few bytes were read from the stream before this
+   * reader is created.
+   * @param bytes
+   * @param offset
+   * @param length
+   */
+  public void unread(byte[] bytes, int offset, int length) {
+    if (length <= 0)
+      return;
+    int available = bufferEnd - bufferPos;
+    if (length > bufferPos) {
+      // Move the available bytes to make room for the unread bytes
+      if (length + available > buffer.length) {
+        byte[] newBuffer = new byte[length + available];
+        System.arraycopy(buffer, bufferPos, newBuffer, length, available);
+        buffer = newBuffer;
+      } else {
+        System.arraycopy(buffer, bufferPos, buffer, length, available);
+      }
+      bufferPos = length;
+      bufferEnd = length + available;
+    }
+    bufferPos -= length;
+    System.arraycopy(bytes, offset, buffer, bufferPos, length);
+  }
+
+  /**
+   * Reads more bytes from the stream keeping the bytes that are not
+   * consumed yet. The buffer is compacted first and it grows only if it
+   * is full of unconsumed bytes.
+   * @return <code>false</code> if the end of stream is reached
+   * @throws IOException
+   */
+  private boolean fill() throws IOException {
+    if (eof)
+      return false;
+    if (bufferPos > 0) {
+      System.arraycopy(buffer, bufferPos, buffer, 0, bufferEnd - bufferPos);
+      bufferEnd -= bufferPos;
+      bufferPos = 0;
+    }
+    if (bufferEnd == buffer.length) {
+      byte[] newBuffer = new byte[buffer.length * 2];
+      System.arraycopy(buffer, 0, newBuffer, 0, bufferEnd);
+      buffer = newBuffer;
+    }
+    int read = in.read(buffer, bufferEnd, buffer.length - bufferEnd);
+    if (read <= 0) {
+      eof = true;
+      return false;
+    }
+    bufferEnd += read;
+    return true;
+  }
+
+  /**
+   * Reads the next line. The line can be accessed using {@link #getBytes()},
+   * {@link #getOffset()} and {@link #getLength()} until the next call.
+   * @return Number of bytes consumed from the stream including the line
+   *   terminator. Zero indicates the end of the stream.
+   * @throws IOException
+   */
+  public int readLine() throws IOException {
+    int scanned = 0; // Number of bytes of the line scanned so far
+    while (true) {
+      int i = bufferPos + scanned;
+      while (i < bufferEnd && buffer[i] != '\n' && buffer[i] != '\r')
+        i++;
+      scanned = i - bufferPos;
+      if (i < bufferEnd) {
+        int terminator = 1;
+        if (buffer[i] == '\r') {
+          if (i + 1 == bufferEnd && fill()) {
+            // The buffer might have been compacted by fill()
+            i = bufferPos + scanned;
+          }
+          if (i + 1 < bufferEnd && buffer[i + 1] == '\n')
+            terminator = 2;
+        }
+        lineStart = bufferPos;
+        lineLength = scanned;
+        bufferPos = i + terminator;
+        return scanned + terminator;
+      }
+      if (!fill()) {
+        // Last line in the stream without a terminator
+        lineStart = bufferPos;
+        lineLength = scanned;
+        bufferPos += scanned;
+        return scanned;
+      }
+    }
+  }
+
+  /**
+   * The buffer that contains the last line read
+   * @return
+   */
+  public byte[] getBytes() {
+    return buffer;
+  }
+
+  /**
+   * Offset of the last line read in the buffer
+   * @return
+   */
+  public int getOffset() {
+    return lineStart;
+  }
+
+  /**
+   * Length of the last line read excluding its terminator
+   * @return
+   */
+  public int getLength() {
+    return lineLength;
+  }
+
+  public void close() throws IOException {
+    in.close();
+  }
+}
@@ -0,0 +1,223 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package edu.umn.cs.spatialHadoop.io;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * A cursor that parses fields of a text record in place. Unlike the
+ * consume methods of {@link TextSerializerHelper}, which remove each parsed
+ * field by shifting the rest of the text to its start, a cursor only moves
+ * a position forward. This makes parsing a record linear in its length
+ * regardless of the number of fields.
+ *
+ * Each parse method reads a field up to the first character that cannot
+ * be part of it and then skips the given separator if it comes next.
+ * A separator of <code>'\0'</code> skips nothing.
+ */
+public class TextCursor {
+  /**A cursor for each thread used by {@link #acquire(Text)}*/
+  private static final ThreadLocal<TextCursor> ThreadCursor =
+      new ThreadLocal<TextCursor>() {
+    @Override
+    protected TextCursor initialValue() {
+      return new TextCursor();
+    }
+  };
+
+  /**Bytes of the record being parsed*/
+  private byte[] bytes;
+
+  /**Position of the next byte to parse*/
+  private int position;
+
+  /**Position after the last byte of the record*/
+  private int end;
+
+  /**The text this cursor was acquired for until it is released*/
+  private Text text;
+
+  public TextCursor() {
+  }
+
+  public TextCursor(Text text) {
+    set(text);
+  }
+
+  /**
+   * Positions this cursor at the start of the given text
+   * @param text
+   * @return this cursor
+   */
+  public TextCursor set(Text text) {
+    return set(text.getBytes(), 0, text.getLength());
+  }
+
+  /**
+   * Positions this cursor at the start of a record stored in the given
+   * part of a byte array.
+   * @param bytes
+   * @param offset
+   * @param length
+   * @return this cursor
+   */
+  public TextCursor set(byte[] bytes, int offset, int length) {
+    this.bytes = bytes;
+    this.position = offset;
+    this.end = offset + length;
+    return this;
+  }
+
+  /**
+   * Returns a cursor positioned at the start of the given text. The cursor
+   * is reused by all calls in the same thread and must be returned by
+   * calling {@link #release()} when parsing is done. This is used by
+   * {@link TextSerializable#fromText(Text)} to parse a record without
+   * allocating objects.
+   * @param text
+   * @return
+   */
+  public static TextCursor acquire(Text text) {
+    TextCursor cursor = ThreadCursor.get();
+    if (cursor.text != null)
+      cursor = new TextCursor(); // Still used by an enclosing call
+    cursor.text = text;
+    return cursor.set(text);
+  }
+
+  /**
+   * Releases a cursor returned by {@link #acquire(Text)}. Bytes that were not
+   * parsed are kept in the text and all parsed bytes are removed which is
+   * what the consume methods of {@link TextSerializerHelper} do.
+   */
+  public void release() {
+    if (position >= end)
+      text.clear();
+    else if (position > 0)
+      text.set(bytes, position, end - position);
+    text = null;
+  }
+
+  public byte[] getBytes() {
+    return bytes;
+  }
+
+  public int getPosition() {
+    return position;
+  }
+
+  public void setPosition(int position) {
+    this.position = position;
+  }
+
+  /**
+   * Position after the last byte of the record
+   * @return
+   */
+  public int getEnd() {
+    return end;
+  }
+
+  /**
+   * Whether there are more bytes to parse
+   * @return
+   */
+  public boolean hasMore() {
+    return position < end;
+  }
+
+  /**
+   * Skips the next byte if it is the given character
+   * @param c
+   * @return <code>true</code> if the character was skipped
+   */
+  public boolean skip(char c) {
+    if (position < end && bytes[position] == c) {
+      position++;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Moves to the first occurrence of the given character or the end of the
+   * record if it does not occur.
+   * @param c
+   * @return the new position
+   */
+  public int skipTo(char c) {
+    while (position < end && bytes[position] != c)
+      position++;
+    return position;
+  }
+
+  public double nextDouble(char separator) {
+    int start = position;
+    position = TextSerializerHelper.skipDouble(bytes, position, end);
+    double d = TextSerializerHelper.deserializeDouble(bytes, start, position - start);
+    skip(separator);
+    return d;
+  }
+
+  public long nextLong(char separator) {
+    int start = position;
+    while (position < end && TextSerializerHelper.DecimalChars[bytes[position] & 0xff])
+      position++;
+    long l = TextSerializerHelper.deserializeLong(bytes, start, position - start);
+    skip(separator);
+    return l;
+  }
+
+  public int nextInt(char separator) {
+    int start = position;
+    while (position < end && TextSerializerHelper.DecimalChars[bytes[position] & 0xff])
+      position++;
+    int i = TextSerializerHelper.deserializeInt(bytes, start, position - start);
+    skip(separator);
+    return i;
+  }
+
+  public long nextHexLong(char separator) {
+    int start = position;
+    while (position < end && TextSerializerHelper.HexadecimalChars[bytes[position] & 0xff])
+      position++;
+    long l = TextSerializerHelper.deserializeHexLong(bytes, start, position - start);
+    skip(separator);
+    return l;
+  }
+
+  /**
+   * Returns all bytes up to the given separator, or the end of the record,
+   * as a string. The separator is skipped.
+   * @param separator
+   * @return
+   */
+  public String nextString(char separator) {
+    int start = position;
+    skipTo(separator);
+    String str = new String(bytes, start, position - start);
+    skip(separator);
+    return str;
+  }
+
+  /**
+   * Returns all remaining bytes as a string and moves to the end of the
+   * record.
+   * @return
+   */
+  public String remaining() {
+    String str = new String(bytes, position, end - position);
+    position = end;
+    return str;
+  }
+}
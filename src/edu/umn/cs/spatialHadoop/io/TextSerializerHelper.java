@@ -16,6 +16,7 @@ import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Map;
 
+import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.Text;
 
 import com.esri.core.geometry.ogc.OGCGeometry;
@@ -38,6 +39,14 @@ public final class TextSerializerHelper {
   
   /**64 bytes to append to a string if necessary*/
   final static byte[] ToAppend = new byte[64];
+
+  /**A buffer for each thread to format doubles before appending them*/
+  private final static ThreadLocal<byte[]> DoubleBuffer = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[DoubleCodec.MaxLength + 1];
+    }
+  };
   
   static {
     HexadecimalChars = new boolean[256];
@@ -160,67 +169,42 @@ public final class TextSerializerHelper {
     return l;
   }
   
-  enum DoubleParseState {BeforeDecimal, AfterDecimal, AfterExp};
+  /**
+   * Parses a double from the given part of a byte array. The result is
+   * correctly rounded and is the same as {@link Double#parseDouble(String)}.
+   * @param buf
+   * @param offset
+   * @param len
+   * @return
+   * @see DoubleCodec#parse(byte[], int, int)
+   */
   public static double deserializeDouble(byte[] buf, int offset, int len) {
-    DoubleParseState state = DoubleParseState.BeforeDecimal;
-
-    int exponent1 = 0; // Exponent part coming from the decimal point
-    boolean exponent2Negative = false;
-    int exponent2 = 0; // Exponent part written explicitly (e.g., E+32)
-
-    boolean mantissaNegative = false;
-    long mantissa = 0;
-    
-    while (len-- > 0) {
-      if (buf[offset] >= '0' && buf[offset] <= '9') {
-        switch(state) {
-        case AfterDecimal:
-          exponent1--;
-          // Fall through
-        case BeforeDecimal:
-          mantissa = mantissa * 10 + (buf[offset] - '0');
-          break;
-        case AfterExp:
-          exponent2 = exponent2 * 10 + (buf[offset] - '0');
-          break;
-        }
-      } else if (buf[offset] == '.') {
-        state = DoubleParseState.AfterDecimal;
-      } else if (buf[offset] == 'e' || buf[offset] == 'E') {
-        state = DoubleParseState.AfterExp;
-      } else if (buf[offset] == '-') {
-        if (state == DoubleParseState.BeforeDecimal) {
-          mantissaNegative = true;
-        } else if (state == DoubleParseState.AfterExp) {
-          exponent2Negative = true;
-        } else {
-          throw new RuntimeException("Error parsing double "+
-                new String(buf, offset, len)+" at position "+offset);
-        }
-      } else if (buf[offset] == '+') {
-        // Just skip. The default sign is positive
-      } else {
-        throw new RuntimeException("Error parsing double "+
-            new String(buf, offset, len)+" at position "+offset);
-      }
-      offset++;
-    }
-    
-    if (mantissaNegative)
-      mantissa = -mantissa;
-    if (exponent2Negative)
-      exponent2 = -exponent2;
+    return DoubleCodec.parse(buf, offset, len);
+  }
 
-    int exponent = exponent1 + exponent2;
-    double d = mantissa;
-    if (exponent > 0) {
-      while (exponent-- != 0)
-        d *= 10;
-    } else if (exponent < 0) {
-      while (exponent++ != 0)
-        d /= 10;
+  /**
+   * Returns the position after the double that starts at the given position
+   * which is either a decimal number or one of NaN and Infinity.
+   * @param bytes
+   * @param start
+   * @param end
+   * @return
+   */
+  static int skipDouble(byte[] bytes, int start, int end) {
+    int i = start;
+    if (i < end && (bytes[i] == '-' || bytes[i] == '+'))
+      i++;
+    if (i < end && (bytes[i] == 'N' || bytes[i] == 'I')) {
+      while (i < end && ((bytes[i] >= 'a' && bytes[i] <= 'z')
+          || (bytes[i] >= 'A' && bytes[i] <= 'Z')))
+        i++;
+      return i;
     }
-    return d;
+    while (i < end
+        && ((bytes[i] >= '0' && bytes[i] <= '9') || bytes[i] == 'e'
+            || bytes[i] == 'E' || bytes[i] == '-' || bytes[i] == '+' || bytes[i] == '.'))
+      i++;
+    return i;
   }
   
   /**
@@ -233,13 +217,9 @@ public final class TextSerializerHelper {
    * @return
    */
   public static double consumeDouble(Text text, char separator) {
-    int i = 0;
     byte[] bytes = text.getBytes();
     // Skip until the separator or end of text
-    while (i < text.getLength()
-        && ((bytes[i] >= '0' && bytes[i] <= '9') || bytes[i] == 'e'
-            || bytes[i] == 'E' || bytes[i] == '-' || bytes[i] == '+' || bytes[i] == '.'))
-      i++;
+    int i = skipDouble(bytes, 0, text.getLength());
     double d = deserializeDouble(bytes, 0, i);
     if (i < text.getLength() && bytes[i] == separator)
       i++;
@@ -249,20 +229,39 @@ public final class TextSerializerHelper {
   }
   
   /**
-   * Appends hex representation of the given number to the given string.
-   * If append is set to true, a comma is also appended to the text.
-   * @param i
+   * Appends the shortest representation of the given double that parses
+   * back to the same value. The representation is the same as
+   * {@link Double#toString(double)} in almost all cases.
+   * If toAppend is non-zero, it is appended after the number.
+   * @param d
    * @param t
-   * @param appendComma
+   * @param toAppend
    */
   public static void serializeDouble(double d, Text t, char toAppend) {
-    byte[] bytes = Double.toString(d).getBytes();
-    t.append(bytes, 0, bytes.length);
-    if (toAppend != '\0') {
-      t.append(new byte[] {(byte)toAppend}, 0, 1);
-    }
+    byte[] buffer = DoubleBuffer.get();
+    int length = DoubleCodec.format(d, buffer, 0);
+    if (toAppend != '\0')
+      buffer[length++] = (byte) toAppend;
+    t.append(buffer, 0, length);
   }
-  
+
+  /**
+   * Appends the given double with a fixed number of digits after the
+   * decimal point. If toAppend is non-zero, it is appended after the number.
+   * @param d
+   * @param t
+   * @param precision
+   * @param toAppend
+   * @see DoubleCodec#format(double, int, byte[], int)
+   */
+  public static void serializeDouble(double d, Text t, int precision, char toAppend) {
+    byte[] buffer = DoubleBuffer.get();
+    int length = DoubleCodec.format(d, precision, buffer, 0);
+    if (toAppend != '\0')
+      buffer[length++] = (byte) toAppend;
+    t.append(buffer, 0, length);
+  }
+
   public static void serializeLong(long i, Text t, char toAppend) {
     // Calculate number of bytes needed to serialize the given long
     int bytes_needed = 0;
@@ -443,6 +442,40 @@ public final class TextSerializerHelper {
   }
   
 
+  /**
+   * Parses a map written by {@link #serializeMap(Text, Map)} at the position
+   * of the given cursor. If the cursor is not at the start of a map, the
+   * map is cleared and nothing is parsed.
+   * @param cursor
+   * @param tags
+   */
+  public static void consumeMap(TextCursor cursor, Map<String, String> tags) {
+    tags.clear();
+    byte[] tagsBytes = cursor.getBytes();
+    int end = cursor.getEnd();
+    int i1 = cursor.getPosition();
+    if (i1 >= end || tagsBytes[i1] != Separators[MapStart])
+      return;
+    i1++;
+    while (i1 < end && tagsBytes[i1] != Separators[MapEnd]) {
+      int i2 = i1 + 1;
+      while (i2 < end && tagsBytes[i2] != Separators[KeyValueSeparator])
+        i2++;
+      String key = new String(tagsBytes, i1, i2 - i1);
+      i1 = i2 + 1;
+
+      i2 = i1 + 1;
+      while (i2 < end && tagsBytes[i2] != Separators[FieldSeparator] && tagsBytes[i2] != Separators[MapEnd])
+        i2++;
+      String value = new String(tagsBytes, i1, i2 - i1);
+      tags.put(key, value);
+      i1 = i2;
+      if (i1 < end && tagsBytes[i1] == Separators[FieldSeparator])
+        i1++;
+    }
+    cursor.setPosition(i1);
+  }
+
   public static Text serializeMap(Text text, Map<String, String> tags) {
     if (!tags.isEmpty()) {
       boolean first = true;
@@ -509,6 +542,84 @@ public final class TextSerializerHelper {
     return geom;
   }
   
+  /**
+   * Parses a geometry, either as WKT or as a hex string of its WKB, at the
+   * position of the given cursor. A geometry that starts with a quote ends
+   * at the closing quote, otherwise, it ends at the given separator. The
+   * closing quote and the separator are skipped.
+   * @param cursor
+   * @param separator
+   * @return
+   */
+  public static OGCGeometry consumeGeometryESRI(TextCursor cursor, char separator) {
+    char terminator = separator;
+    if (cursor.skip('\''))
+      terminator = '\'';
+    else if (cursor.skip('\"'))
+      terminator = '\"';
+    int i1 = cursor.getPosition();
+    int i2 = cursor.skipTo(terminator);
+    String str = new String(cursor.getBytes(), i1, i2 - i1);
+    if (terminator != separator)
+      cursor.skip(terminator);
+    if (separator != '\0')
+      cursor.skip(separator);
+    return parseText(str);
+  }
+
+  /**
+   * Decodes a field of hex digits, e.g., the WKB of a geometry, at the
+   * position of the given cursor into the given bytes. Quotes and
+   * separators are handled as in {@link #consumeGeometryESRI(TextCursor, char)}.
+   * If the field is empty or contains a character that is not a hex digit,
+   * the cursor is not moved and <code>false</code> is returned.
+   * @param cursor
+   * @param separator
+   * @param bytes
+   * @return
+   */
+  public static boolean consumeHex(TextCursor cursor, char separator,
+      BytesWritable bytes) {
+    int start = cursor.getPosition();
+    char terminator = separator;
+    if (cursor.skip('\''))
+      terminator = '\'';
+    else if (cursor.skip('\"'))
+      terminator = '\"';
+    byte[] hex = cursor.getBytes();
+    int i1 = cursor.getPosition();
+    int i2 = i1;
+    while (i2 < cursor.getEnd() && hex[i2] != terminator) {
+      if (!HexadecimalChars[hex[i2] & 0xff]) {
+        cursor.setPosition(start);
+        return false;
+      }
+      i2++;
+    }
+    if (i2 == i1 || (i2 - i1) % 2 != 0) {
+      cursor.setPosition(start);
+      return false;
+    }
+    bytes.setSize((i2 - i1) / 2);
+    byte[] binary = bytes.getBytes();
+    for (int i = 0; i < bytes.getLength(); i++)
+      binary[i] = (byte) ((hexValue(hex[i1 + 2 * i]) << 4) | hexValue(hex[i1 + 2 * i + 1]));
+    cursor.setPosition(i2);
+    if (terminator != separator)
+      cursor.skip(terminator);
+    if (separator != '\0')
+      cursor.skip(separator);
+    return true;
+  }
+
+  private static int hexValue(byte digit) {
+    if (digit <= '9')
+      return digit - '0';
+    if (digit <= 'F')
+      return digit - 'A' + 0xA;
+    return digit - 'a' + 0xa;
+  }
+
   public static OGCGeometry parseText(String str) {
     OGCGeometry geom = null;
     try {
@@ -559,6 +670,27 @@ public final class TextSerializerHelper {
       text.append(new byte[] {(byte) toAppend}, 0, 1);
   }
   
+  /**
+   * Appends the given bytes to the text as a hex string, e.g., to write the
+   * WKB of a geometry without parsing it.
+   * @param bytes
+   * @param offset
+   * @param length
+   * @param text
+   * @param toAppend
+   */
+  public static void serializeHex(byte[] bytes, int offset, int length,
+      Text text, char toAppend) {
+    byte[] hex = new byte[length * 2 + (toAppend != '\0' ? 1 : 0)];
+    for (int i = 0; i < length; i++) {
+      hex[2*i] = HexLookupTable[(bytes[offset + i] & 0xFF) >>> 4];
+      hex[2*i+1] = HexLookupTable[bytes[offset + i] & 0xF];
+    }
+    if (toAppend != '\0')
+      hex[hex.length - 1] = (byte) toAppend;
+    text.append(hex, 0, hex.length);
+  }
+
   private static final byte[] HexLookupTable = {
     '0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
     'A', 'B', 'C', 'D', 'E', 'F'
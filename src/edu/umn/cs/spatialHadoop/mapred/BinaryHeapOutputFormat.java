@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package edu.umn.cs.spatialHadoop.mapred;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordWriter;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.Progressable;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import edu.umn.cs.spatialHadoop.core.BinaryHeapFile;
+import edu.umn.cs.spatialHadoop.core.Shape;
+
+/**
+ * Writes shapes to binary heap files using {@link BinaryHeapFile}. Keys are
+ * ignored and only values are written. Output files can be read back by all
+ * input formats that extend {@link SpatialInputFormat}.
+ */
+public class BinaryHeapOutputFormat<K, V extends Shape> extends FileOutputFormat<K, V> {
+
+  protected static class BinaryHeapRecordWriter<K, V extends Shape>
+      implements RecordWriter<K, V> {
+    private BinaryHeapFile.Writer<V> writer;
+
+    public BinaryHeapRecordWriter(BinaryHeapFile.Writer<V> writer) {
+      this.writer = writer;
+    }
+
+    @Override
+    public synchronized void write(K key, V value) throws IOException {
+      if (value != null)
+        writer.write(value);
+    }
+
+    @Override
+    public synchronized void close(Reporter reporter) throws IOException {
+      writer.close();
+    }
+  }
+
+  @Override
+  public RecordWriter<K, V> getRecordWriter(FileSystem ignored, JobConf job,
+      String name, Progressable progress) throws IOException {
+    Path file;
+    OutputStream out;
+    if (!getCompressOutput(job)) {
+      file = FileOutputFormat.getTaskOutputPath(job, name);
+      out = file.getFileSystem(job).create(file, progress);
+    } else {
+      Class<? extends CompressionCodec> codecClass =
+          getOutputCompressorClass(job, GzipCodec.class);
+      CompressionCodec codec = ReflectionUtils.newInstance(codecClass, job);
+      file = FileOutputFormat.getTaskOutputPath(job,
+          name + codec.getDefaultExtension());
+      out = codec.createOutputStream(file.getFileSystem(job).create(file, progress));
+    }
+    return new BinaryHeapRecordWriter<K, V>(
+        new BinaryHeapFile.Writer<V>(out, job, progress));
+  }
+}
@@ -13,18 +13,26 @@
 package edu.umn.cs.spatialHadoop.mapred;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.RecordReader;
 import org.apache.hadoop.mapred.lib.CombineFileSplit;
 
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
 
 
 /**
  * Reads every possible pair of values from two underlying record readers.
  * In other words, it makes a Cartesian product from the records stored in
  * the two splits given to this reader.
+ * 
+ * If the split is a {@link JoinGroupSplit}, each split of the first file in
+ * the group is read once and every value of it is paired with all values of
+ * the splits of the second file it is paired with. Splits of the second file
+ * are read once into memory and dropped after their last pair is read.
  * @author eldawy
  *
  * @param <K>
@@ -45,6 +53,43 @@ public abstract class BinaryRecordReader<K extends Writable, V extends Writable>
   
   /**Configuration of the current job*/
   protected Configuration conf;
+
+  /**The group read by this reader or null if it reads one pair*/
+  protected JoinGroupSplit group;
+
+  /**Reads splits of the second file of a group in one shot*/
+  private Configuration groupConf;
+
+  /**Indexes of the splits of the second file paired with each split of the first*/
+  private int[][] pairedSplits;
+
+  /**Number of splits of the first file not read yet for each split of the second*/
+  private int[] remainingPairs;
+
+  /**Keys of the splits of the second file in memory*/
+  private List<K>[] cachedKeys;
+
+  /**Values of the splits of the second file in memory*/
+  private List<V>[] cachedValues;
+
+  /**
+   * Readers of the splits of the second file in memory. They are kept open
+   * until the split is dropped as values such as R-trees may read their
+   * contents lazily from the reader.
+   */
+  private RecordReader<K, V>[] cachedReaders;
+
+  /**Creates keys and values of both files when reading a group*/
+  private RecordReader<K, V> stockReader;
+
+  /**The split of the first file currently being read*/
+  private int currentFirst;
+
+  /**Position of the current split of the second file in pairedSplits*/
+  private int currentSecond;
+
+  /**Position of the next value in the current split of the second file*/
+  private int currentValue;
   
   /**
    * Creates a record reader for one of the two splits parsed by this reader.
@@ -58,15 +103,55 @@ public abstract class BinaryRecordReader<K extends Writable, V extends Writable>
   public BinaryRecordReader(Configuration conf, CombineFileSplit split) throws IOException {
     this.conf = conf;
     this.split = split;
+    if (split instanceof JoinGroupSplit) {
+      initializeGroup((JoinGroupSplit) split);
+      return;
+    }
     internalReaders = new RecordReader[(int) split.getNumPaths()];
     // Initialize all record readers
     for (int i = 0; i < split.getNumPaths(); i++) {
       this.internalReaders[i] = createRecordReader(this.conf, this.split, i);
     }
   }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private void initializeGroup(JoinGroupSplit group) throws IOException {
+    this.group = group;
+    int numFirst = group.getNumFirst();
+    int numSecond = group.getNumPaths() - numFirst;
+    List<List<Integer>> paired = new ArrayList<List<Integer>>();
+    for (int i = 0; i < numFirst; i++)
+      paired.add(new ArrayList<Integer>());
+    remainingPairs = new int[numSecond];
+    for (int i = 0; i < group.getNumPairs(); i++) {
+      paired.get(group.getFirst(i)).add(group.getSecond(i));
+      remainingPairs[group.getSecond(i) - numFirst]++;
+    }
+    pairedSplits = new int[numFirst][];
+    for (int i = 0; i < numFirst; i++) {
+      pairedSplits[i] = new int[paired.get(i).size()];
+      for (int j = 0; j < pairedSplits[i].length; j++)
+        pairedSplits[i][j] = paired.get(i).get(j);
+    }
+    cachedKeys = new List[numSecond];
+    cachedValues = new List[numSecond];
+    cachedReaders = new RecordReader[numSecond];
+    // Read each split of the second file as one value if it is read as arrays
+    groupConf = new Configuration(conf);
+    groupConf.setInt(SpatialSite.MaxShapesInOneRead, -1);
+    groupConf.setInt(SpatialSite.MaxBytesInOneRead, -1);
+    groupConf.setInt(SpatialSite.ReadAheadBatches, 0);
+    internalReaders = new RecordReader[1];
+    internalReaders[0] = createRecordReader(conf, group, 0);
+    // Both files are read by the same type of readers
+    stockReader = internalReaders[0];
+    currentFirst = 0;
+  }
   
   @Override
   public boolean next(PairWritable<K> key, PairWritable<V> value) throws IOException {
+    if (group != null)
+      return nextInGroup(key, value);
     if (firstTime) {
       if (!internalReaders[0].next(key.first, value.first)) {
         return false;
@@ -89,35 +174,141 @@ public abstract class BinaryRecordReader<K extends Writable, V extends Writable>
     return internalReaders[1].next(key.second, value.second);
   }
 
+  /**
+   * Returns the next pair of values of a group. The second key and value
+   * are set to the ones kept in memory rather than copied.
+   * @param key
+   * @param value
+   * @return
+   * @throws IOException
+   */
+  private boolean nextInGroup(PairWritable<K> key, PairWritable<V> value)
+      throws IOException {
+    while (true) {
+      if (firstTime) {
+        if (currentFirst == group.getNumFirst())
+          return false;
+        if (internalReaders[0].next(key.first, value.first)) {
+          firstTime = false;
+          currentSecond = 0;
+          currentValue = 0;
+        } else {
+          // Done with this split. Drop splits of the second file not needed
+          for (int second : pairedSplits[currentFirst]) {
+            int i = second - group.getNumFirst();
+            if (--remainingPairs[i] == 0 && cachedReaders[i] != null) {
+              cachedReaders[i].close();
+              cachedReaders[i] = null;
+              cachedKeys[i] = null;
+              cachedValues[i] = null;
+            }
+          }
+          internalReaders[0].close();
+          internalReaders[0] = ++currentFirst < group.getNumFirst() ?
+              createRecordReader(conf, group, currentFirst) : null;
+          continue;
+        }
+      }
+      int[] seconds = pairedSplits[currentFirst];
+      while (currentSecond < seconds.length) {
+        int i = seconds[currentSecond] - group.getNumFirst();
+        if (cachedValues[i] == null)
+          readSecond(i);
+        if (currentValue < cachedValues[i].size()) {
+          key.second = cachedKeys[i].get(currentValue);
+          value.second = cachedValues[i].get(currentValue);
+          currentValue++;
+          return true;
+        }
+        currentSecond++;
+        currentValue = 0;
+      }
+      firstTime = true;
+    }
+  }
+
+  /**
+   * Reads all keys and values of a split of the second file into memory.
+   * Each value is read into a new object so that it is not overwritten by
+   * later values. The reader stays open until the split is dropped.
+   * @param i the index of the split among splits of the second file
+   * @throws IOException
+   */
+  private void readSecond(int i) throws IOException {
+    List<K> keys = new ArrayList<K>();
+    List<V> values = new ArrayList<V>();
+    RecordReader<K, V> reader = createRecordReader(groupConf, group,
+        group.getNumFirst() + i);
+    K k = reader.createKey();
+    V v = reader.createValue();
+    while (reader.next(k, v)) {
+      keys.add(k);
+      values.add(v);
+      k = reader.createKey();
+      v = reader.createValue();
+    }
+    cachedReaders[i] = reader;
+    cachedKeys[i] = keys;
+    cachedValues[i] = values;
+  }
+
   @Override
   public PairWritable<K> createKey() {
     PairWritable<K> key = new PairWritable<K>();
-    key.first = internalReaders[0].createKey();
-    key.second = internalReaders[1].createKey();
+    if (group != null) {
+      key.first = stockReader.createKey();
+      key.second = stockReader.createKey();
+    } else {
+      key.first = internalReaders[0].createKey();
+      key.second = internalReaders[1].createKey();
+    }
     return key;
   }
 
   @Override
   public PairWritable<V> createValue() {
     PairWritable<V> value = new PairWritable<V>();
-    value.first = internalReaders[0].createValue();
-    value.second = internalReaders[1].createValue();
+    if (group != null) {
+      value.first = stockReader.createValue();
+      value.second = stockReader.createValue();
+    } else {
+      value.first = internalReaders[0].createValue();
+      value.second = internalReaders[1].createValue();
+    }
     return value;
   }
 
   @Override
   public long getPos() throws IOException {
+    if (group != null)
+      return internalReaders[0] == null ? 0 : internalReaders[0].getPos();
     return internalReaders[0].getPos() + internalReaders[1].getPos();
   }
 
   @Override
   public void close() throws IOException {
-    internalReaders[0].close();
-    internalReaders[1].close();
+    for (RecordReader<K, V> reader : internalReaders) {
+      if (reader != null)
+        reader.close();
+    }
+    if (cachedReaders != null) {
+      for (int i = 0; i < cachedReaders.length; i++) {
+        if (cachedReaders[i] != null) {
+          cachedReaders[i].close();
+          cachedReaders[i] = null;
+        }
+      }
+    }
   }
 
   @Override
   public float getProgress() throws IOException {
+    if (group != null) {
+      if (currentFirst == group.getNumFirst())
+        return 1.0f;
+      return (currentFirst + internalReaders[0].getProgress()) /
+          group.getNumFirst();
+    }
     float progress1 = internalReaders[0].getProgress();
     float progress2 = internalReaders[1].getProgress();
     // Scale 0-9 for most significant digit
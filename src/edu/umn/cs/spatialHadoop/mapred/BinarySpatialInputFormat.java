@@ -13,8 +13,15 @@
 package edu.umn.cs.spatialHadoop.mapred;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.Vector;
 
 import org.apache.commons.logging.Log;
@@ -31,6 +38,8 @@ import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.lib.CombineFileSplit;
 import org.apache.hadoop.net.NetworkTopology;
 
+import edu.umn.cs.spatialHadoop.core.BinaryHeapFile;
+import edu.umn.cs.spatialHadoop.core.BlockInfo;
 import edu.umn.cs.spatialHadoop.core.GlobalIndex;
 import edu.umn.cs.spatialHadoop.core.Partition;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
@@ -101,25 +110,48 @@ public abstract class BinarySpatialInputFormat<K extends Writable, V extends Wri
     if (gIndexes[0] == null || gIndexes[1] == null) {
       // Join every possible pair (Cartesian product)
       BlockLocation[][] fileBlockLocations = new BlockLocation[inputFiles.length][];
+      // Check the format of each file once rather than in each reader
+      BinaryHeapFile.Header[] binaryHeaders =
+          new BinaryHeapFile.Header[inputFiles.length];
       for (int i_file = 0; i_file < inputFiles.length; i_file++) {
         FileSystem fs = inputFiles[i_file].getFileSystem(job);
         FileStatus fileStatus = fs.getFileStatus(inputFiles[i_file]);
         fileBlockLocations[i_file] = fs.getFileBlockLocations(fileStatus, 0,
             fileStatus.getLen());
+        if (!fileStatus.isDirectory())
+          binaryHeaders[i_file] = BinaryHeapFile.readHeader(fs, inputFiles[i_file]);
+      }
+      // Skip pairs of blocks that cannot have overlapping records according
+      // to the blocks files of the two files
+      Rectangle[][] blockMBRs = new Rectangle[inputFiles.length][];
+      for (int i_file = 0; i_file < inputFiles.length; i_file++) {
+        FileSystem fs = inputFiles[i_file].getFileSystem(job);
+        blockMBRs[i_file] = getBlockMBRs(fs, inputFiles[i_file],
+            fileBlockLocations[i_file]);
       }
       LOG.info("Doing a Cartesian product of blocks: "+
             fileBlockLocations[0].length+"x"+fileBlockLocations[1].length);
-      for (BlockLocation block1 : fileBlockLocations[0]) {
-        for (BlockLocation block2 : fileBlockLocations[1]) {
-          FileSplit fsplit1 = new FileSplit(inputFiles[0],
-              block1.getOffset(), block1.getLength(), block1.getHosts());
-          FileSplit fsplit2 = new FileSplit(inputFiles[1],
-              block2.getOffset(), block2.getLength(), block2.getHosts());
+      for (int i1 = 0; i1 < fileBlockLocations[0].length; i1++) {
+        BlockLocation block1 = fileBlockLocations[0][i1];
+        for (int i2 = 0; i2 < fileBlockLocations[1].length; i2++) {
+          BlockLocation block2 = fileBlockLocations[1][i2];
+          if (!mayOverlap(blockMBRs[0][i1], blockMBRs[1][i2]))
+            continue;
+          FileSplit fsplit1 = new SpatialFileSplit(new FileSplit(inputFiles[0],
+              block1.getOffset(), block1.getLength(), block1.getHosts()),
+              binaryHeaders[0]);
+          FileSplit fsplit2 = new SpatialFileSplit(new FileSplit(inputFiles[1],
+              block2.getOffset(), block2.getLength(), block2.getHosts()),
+              binaryHeaders[1]);
           CombineFileSplit combinedSplit = (CombineFileSplit) FileSplitUtil
               .combineFileSplits(job, fsplit1, fsplit2);
           matchedSplits.add(combinedSplit);
         }
       }
+      int numPairs = fileBlockLocations[0].length * fileBlockLocations[1].length;
+      if (matchedSplits.size() < numPairs)
+        LOG.info("Pruned "+(numPairs - matchedSplits.size())+" of "+numPairs+
+            " pairs of blocks using their blocks files");
     } else {
       // Filter block pairs by the BlockFilter
       blockFilter.selectCellPairs(gIndexes[0], gIndexes[1],
@@ -137,8 +169,10 @@ public abstract class BinarySpatialInputFormat<K extends Writable, V extends Wri
                 
                 for (FileSplit split1 : splits1) {
                   for (FileSplit split2 : splits2) {
+                    // Splits carry their partitions to the record readers
                     matchedSplits.add((CombineFileSplit) FileSplitUtil
-                        .combineFileSplits(job, split1, split2));
+                        .combineFileSplits(job, new SpatialFileSplit(split1, p1),
+                            new SpatialFileSplit(split2, p2)));
                   }
                 }
                 
@@ -152,10 +186,254 @@ public abstract class BinarySpatialInputFormat<K extends Writable, V extends Wri
 
     LOG.info("Matched "+matchedSplits.size()+" combine splits");
 
+    long groupSize = job.getLong(SpatialSite.JOIN_GROUP_SIZE, 0);
+    if (groupSize > 0 && matchedSplits.size() > 1)
+      return groupPairs(job, matchedSplits, groupSize);
+
     // Return all matched splits
     return matchedSplits.toArray(new InputSplit[matchedSplits.size()]);
   }
 
+  /**
+   * Returns the MBR of the records in each of the given blocks of a
+   * non-indexed file according to its blocks file as computed by
+   * {@link edu.umn.cs.spatialHadoop.operations.BlockMBR}. An entry is
+   * <code>null</code> if the records of its block are unknown, e.g., the
+   * file has no valid blocks file, and is invalid if the block has no
+   * records.
+   * @param fs
+   * @param file
+   * @param blockLocations
+   * @return
+   * @throws IOException
+   */
+  public static Rectangle[] getBlockMBRs(FileSystem fs, Path file,
+      BlockLocation[] blockLocations) throws IOException {
+    Rectangle[] mbrs = new Rectangle[blockLocations.length];
+    BlockInfo[] blocks = BlockInfo.readBlocks(fs, file);
+    if (blocks == null)
+      return mbrs;
+    Set<Long> boundaries = new HashSet<Long>();
+    for (BlockInfo block : blocks) {
+      boundaries.add(block.start);
+      boundaries.add(block.start + block.length);
+    }
+    for (int i = 0; i < blockLocations.length; i++) {
+      long start = blockLocations[i].getOffset();
+      long end = start + blockLocations[i].getLength();
+      // Each block in the blocks file has exactly the records read by a
+      // split with the same boundaries. If the boundaries do not match, a
+      // record that starts anywhere in [start, end] may be read with this
+      // block, so the blocks that touch either end are included as well
+      boolean aligned = boundaries.contains(start) && boundaries.contains(end);
+      mbrs[i] = new Rectangle();
+      mbrs[i].invalidate();
+      for (BlockInfo block : blocks) {
+        boolean inBlock = aligned ?
+            (block.start >= start && block.start < end) :
+            (block.start <= end && block.start + block.length >= start);
+        if (block.recordCount > 0 && inBlock) {
+          if (mbrs[i].isValid())
+            mbrs[i].expand(block);
+          else
+            mbrs[i].set(block);
+        }
+      }
+    }
+    return mbrs;
+  }
+
+  /**
+   * Whether two blocks with the given MBRs, as returned by
+   * {@link #getBlockMBRs(FileSystem, Path, BlockLocation[])}, may contain
+   * overlapping records.
+   * @param mbr1
+   * @param mbr2
+   * @return
+   */
+  public static boolean mayOverlap(Rectangle mbr1, Rectangle mbr2) {
+    if ((mbr1 != null && !mbr1.isValid()) || (mbr2 != null && !mbr2.isValid()))
+      return false;
+    return mbr1 == null || mbr2 == null || mbr1.isIntersected(mbr2);
+  }
+
+  /**
+   * Counts pairs of blocks of two non-indexed files that are joined
+   * together, i.e., pairs that may contain overlapping records.
+   * @param fs
+   * @param files
+   * @return
+   * @throws IOException
+   */
+  public static int countBlockPairs(FileSystem fs, Path[] files)
+      throws IOException {
+    Rectangle[][] blockMBRs = new Rectangle[files.length][];
+    for (int i_file = 0; i_file < files.length; i_file++) {
+      FileStatus fileStatus = fs.getFileStatus(files[i_file]);
+      BlockLocation[] blockLocations = fs.getFileBlockLocations(fileStatus, 0,
+          fileStatus.getLen());
+      blockMBRs[i_file] = getBlockMBRs(fs, files[i_file], blockLocations);
+    }
+    int numPairs = 0;
+    for (Rectangle mbr1 : blockMBRs[0]) {
+      for (Rectangle mbr2 : blockMBRs[1]) {
+        if (mayOverlap(mbr1, mbr2))
+          numPairs++;
+      }
+    }
+    return numPairs;
+  }
+
+  /**
+   * Groups pairs of splits that share splits into {@link JoinGroupSplit}s
+   * so that a split paired with many others is read by one task rather than
+   * by one task for each pair. Pairs are visited in a breadth-first order
+   * of the graph of splits connected by pairs and added to the current
+   * group until the total size of its distinct splits of the second file
+   * exceeds the given size. Only these splits count as they are kept in
+   * memory while splits of the first file are streamed. A group does not
+   * span two connected components. A group of one pair is returned as the
+   * original pair.
+   * @param job
+   * @param pairs
+   * @param groupSize
+   * @return
+   * @throws IOException
+   */
+  protected InputSplit[] groupPairs(JobConf job, List<CombineFileSplit> pairs,
+      long groupSize) throws IOException {
+    // Assign an ID to each distinct split in the pairs
+    Map<String, Integer> splitIds = new HashMap<String, Integer>();
+    List<FileSplit> splits = new ArrayList<FileSplit>();
+    List<List<Integer>> splitPairs = new ArrayList<List<Integer>>();
+    int[][] pairSplits = new int[pairs.size()][2];
+    for (int i_pair = 0; i_pair < pairs.size(); i_pair++) {
+      for (int side = 0; side < 2; side++) {
+        FileSplit split =
+            SpatialCombineFileSplit.getFileSplit(pairs.get(i_pair), side);
+        String key = side+"@"+split.getPath()+"@"+split.getStart();
+        Integer id = splitIds.get(key);
+        if (id == null) {
+          id = splits.size();
+          splitIds.put(key, id);
+          splits.add(split);
+          splitPairs.add(new ArrayList<Integer>());
+        }
+        pairSplits[i_pair][side] = id;
+        splitPairs.get(id).add(i_pair);
+      }
+    }
+
+    List<InputSplit> groups = new ArrayList<InputSplit>();
+    boolean[] visitedSplits = new boolean[splits.size()];
+    boolean[] visitedPairs = new boolean[pairs.size()];
+    Set<Integer> groupSplits = new HashSet<Integer>();
+    List<Integer> groupPairs = new ArrayList<Integer>();
+    long currentSize = 0;
+    Queue<Integer> queue = new ArrayDeque<Integer>();
+    for (int root = 0; root < splits.size(); root++) {
+      if (visitedSplits[root])
+        continue;
+      visitedSplits[root] = true;
+      queue.add(root);
+      while (!queue.isEmpty()) {
+        int split = queue.poll();
+        for (int i_pair : splitPairs.get(split)) {
+          if (visitedPairs[i_pair])
+            continue;
+          visitedPairs[i_pair] = true;
+          int second = pairSplits[i_pair][1];
+          long addedSize = groupSplits.contains(second) ? 0 :
+              splits.get(second).getLength();
+          if (!groupPairs.isEmpty() && currentSize + addedSize > groupSize) {
+            groups.add(createGroup(job, pairs, splits, pairSplits,
+                groupPairs));
+            groupSplits.clear();
+            groupPairs.clear();
+            currentSize = 0;
+            addedSize = splits.get(second).getLength();
+          }
+          groupPairs.add(i_pair);
+          for (int id : pairSplits[i_pair]) {
+            groupSplits.add(id);
+            if (!visitedSplits[id]) {
+              visitedSplits[id] = true;
+              queue.add(id);
+            }
+          }
+          currentSize += addedSize;
+        }
+      }
+      // Close the group at the end of each connected component
+      if (!groupPairs.isEmpty()) {
+        groups.add(createGroup(job, pairs, splits, pairSplits,
+            groupPairs));
+        groupSplits.clear();
+        groupPairs.clear();
+        currentSize = 0;
+      }
+    }
+    LOG.info("Grouped "+pairs.size()+" pairs of "+splits.size()+
+        " splits into "+groups.size()+" splits");
+    return groups.toArray(new InputSplit[groups.size()]);
+  }
+
+  /**
+   * Creates a split for the given group of pairs
+   * @return
+   */
+  private InputSplit createGroup(JobConf job, List<CombineFileSplit> pairs,
+      List<FileSplit> splits, int[][] pairSplits,
+      List<Integer> groupPairs) throws IOException {
+    if (groupPairs.size() == 1)
+      return pairs.get(groupPairs.get(0));
+    // Order the splits of the first file before the splits of the second file
+    Map<Integer, Integer> indexes = new HashMap<Integer, Integer>();
+    List<Integer> ids = new ArrayList<Integer>();
+    int numFirst = 0;
+    for (int side = 0; side < 2; side++) {
+      for (int i_pair : groupPairs) {
+        int id = pairSplits[i_pair][side];
+        if (!indexes.containsKey(id)) {
+          indexes.put(id, ids.size());
+          ids.add(id);
+        }
+      }
+      if (side == 0)
+        numFirst = ids.size();
+    }
+    Path[] paths = new Path[ids.size()];
+    long[] starts = new long[ids.size()];
+    long[] lengths = new long[ids.size()];
+    Partition[] partitions = new Partition[ids.size()];
+    boolean[] formatChecked = new boolean[ids.size()];
+    BinaryHeapFile.Header[] binaryHeaders = new BinaryHeapFile.Header[ids.size()];
+    Vector<String> vlocations = new Vector<String>();
+    for (int i = 0; i < ids.size(); i++) {
+      FileSplit split = splits.get(ids.get(i));
+      paths[i] = split.getPath();
+      starts[i] = split.getStart();
+      lengths[i] = split.getLength();
+      if (split instanceof SpatialFileSplit) {
+        SpatialFileSplit spatialSplit = (SpatialFileSplit) split;
+        partitions[i] = spatialSplit.getPartition();
+        formatChecked[i] = spatialSplit.isFormatChecked();
+        binaryHeaders[i] = spatialSplit.getBinaryHeader();
+      }
+      vlocations.addAll(Arrays.asList(split.getLocations()));
+    }
+    int[] firsts = new int[groupPairs.size()];
+    int[] seconds = new int[groupPairs.size()];
+    for (int i = 0; i < groupPairs.size(); i++) {
+      firsts[i] = indexes.get(pairSplits[groupPairs.get(i)][0]);
+      seconds[i] = indexes.get(pairSplits[groupPairs.get(i)][1]);
+    }
+    String[] locations = vlocations.isEmpty() ? new String[0] :
+        FileSplitUtil.prioritizeLocations(vlocations);
+    return new JoinGroupSplit(job, paths, starts, lengths, locations,
+        partitions, formatChecked, binaryHeaders, numFirst, firsts, seconds);
+  }
+
   public void splitFile(JobConf job, Path path, List<FileSplit> splits)
       throws IOException {
     NetworkTopology clusterMap = new NetworkTopology();
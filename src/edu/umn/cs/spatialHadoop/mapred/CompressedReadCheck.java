@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package edu.umn.cs.spatialHadoop.mapred;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import edu.umn.cs.spatialHadoop.core.BinaryHeapFile;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+
+/**
+ * Writes random rectangles to gzip compressed binary heap and text files
+ * and reads them back with {@link ShapeRecordReader} as one split each.
+ * A compressed file cannot be split so its split covers the compressed
+ * length of the file and all records must be read back.
+ */
+public class CompressedReadCheck {
+
+  /**
+   * Writes the given number of rectangles to a compressed file, reads them
+   * back and returns the number of mismatches.
+   * @param fs
+   * @param file
+   * @param count
+   * @param binary
+   * @return
+   * @throws IOException
+   */
+  private static int check(FileSystem fs, Path file, int count,
+      boolean binary) throws IOException {
+    Configuration conf = fs.getConf();
+    CompressionCodec codec = ReflectionUtils.newInstance(GzipCodec.class, conf);
+    OutputStream out = codec.createOutputStream(fs.create(file, true));
+    BinaryHeapFile.Writer<Rectangle> writer = binary ?
+        new BinaryHeapFile.Writer<Rectangle>(out, conf, null) : null;
+    Random random = new Random(0);
+    Text line = new Text();
+    for (int i = 0; i < count; i++) {
+      double x = random.nextInt(1000000), y = random.nextInt(1000000);
+      Rectangle rect = new Rectangle(x, y, x + 10, y + 10);
+      if (binary) {
+        writer.write(rect);
+      } else {
+        line.clear();
+        rect.toText(line);
+        out.write(line.getBytes(), 0, line.getLength());
+        out.write('\n');
+      }
+    }
+    if (binary)
+      writer.close();
+    else
+      out.close();
+
+    long length = fs.getFileStatus(file).getLen();
+    conf.setClass(SpatialSite.ShapeClass, Rectangle.class, Shape.class);
+    ShapeRecordReader<Rectangle> reader = new ShapeRecordReader<Rectangle>(
+        conf, new FileSplit(file, 0, length, new String[0]));
+    Rectangle key = reader.createKey();
+    Rectangle value = new Rectangle();
+    random = new Random(0);
+    int read = 0, mismatches = 0;
+    while (reader.next(key, value)) {
+      double x = random.nextInt(1000000), y = random.nextInt(1000000);
+      if (!value.equals(new Rectangle(x, y, x + 10, y + 10)))
+        mismatches++;
+      read++;
+    }
+    reader.close();
+    fs.delete(file, false);
+    System.out.println(file.getName()+": "+length+" compressed bytes, "+
+        count+" records written, "+read+" read, "+mismatches+" mismatches");
+    return mismatches + Math.abs(count - read);
+  }
+
+  /**
+   * Checks both file formats in the given directory
+   * @param args
+   * @throws IOException
+   */
+  public static void main(String[] args) throws IOException {
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    Path dir = new Path(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+    int count = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+    int errors = check(fs, new Path(dir, "compressed_check.bin.gz"), count, true) +
+        check(fs, new Path(dir, "compressed_check.txt.gz"), count, false);
+    if (errors > 0) {
+      System.err.println("Compressed files were not read back correctly");
+      System.exit(1);
+    }
+  }
+}
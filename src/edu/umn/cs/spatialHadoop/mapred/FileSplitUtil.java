@@ -30,6 +30,9 @@ import org.apache.hadoop.mapred.InputSplit;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.lib.CombineFileSplit;
 
+import edu.umn.cs.spatialHadoop.core.BinaryHeapFile;
+import edu.umn.cs.spatialHadoop.core.Partition;
+
 /**
  * A set of method and algorithms used to support management of file splits.
  * 
@@ -75,7 +78,9 @@ public class FileSplitUtil {
   }
   
   /**
-   * Combines two file splits into a CombineFileSplit.
+   * Combines two file splits into a CombineFileSplit. If any of them is a
+   * {@link SpatialFileSplit}, a {@link SpatialCombineFileSplit} that carries
+   * the partitions and formats of both splits is returned.
    * @param conf
    * @param split1
    * @param split2
@@ -97,6 +102,22 @@ public class FileSplitUtil {
     lengths[1] = split2.getLength();
     vlocations.addAll(Arrays.asList(split2.getLocations()));
     String[] locations = prioritizeLocations(vlocations);
+    if (split1 instanceof SpatialFileSplit || split2 instanceof SpatialFileSplit) {
+      Partition[] partitions = new Partition[2];
+      boolean[] formatChecked = new boolean[2];
+      BinaryHeapFile.Header[] binaryHeaders = new BinaryHeapFile.Header[2];
+      FileSplit[] splits = {split1, split2};
+      for (int i = 0; i < 2; i++) {
+        if (splits[i] instanceof SpatialFileSplit) {
+          SpatialFileSplit spatialSplit = (SpatialFileSplit) splits[i];
+          partitions[i] = spatialSplit.getPartition();
+          formatChecked[i] = spatialSplit.isFormatChecked();
+          binaryHeaders[i] = spatialSplit.getBinaryHeader();
+        }
+      }
+      return new SpatialCombineFileSplit(conf, paths, starts, lengths,
+          locations, partitions, formatChecked, binaryHeaders);
+    }
     return new CombineFileSplit(conf, paths, starts, lengths, locations);
   }
   
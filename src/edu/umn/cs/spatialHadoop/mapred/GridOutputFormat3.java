@@ -20,7 +20,7 @@ import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.RecordWriter;
 import org.apache.hadoop.util.Progressable;
 
-import edu.umn.cs.spatialHadoop.core.CellInfo;
+import edu.umn.cs.spatialHadoop.core.CellDictionary;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
@@ -34,10 +34,10 @@ public class GridOutputFormat3<S extends Shape> extends FileOutputFormat<Rectang
       Progressable progress)
       throws IOException {
     // Get grid info
-    CellInfo[] cellsInfo = SpatialSite.getCells(job);
+    CellDictionary cells = SpatialSite.getCellDictionary(job);
     boolean pack = job.getBoolean(SpatialSite.PACK_CELLS, false);
     boolean expand = job.getBoolean(SpatialSite.EXPAND_CELLS, false);
-    GridRecordWriter3<S> writer = new GridRecordWriter3<S>(job, name, cellsInfo, pack, expand);
+    GridRecordWriter3<S> writer = new GridRecordWriter3<S>(job, name, cells, pack, expand);
     return writer;
   }
   
@@ -19,7 +19,7 @@ import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.RecordWriter;
 import org.apache.hadoop.mapred.Reporter;
 
-import edu.umn.cs.spatialHadoop.core.CellInfo;
+import edu.umn.cs.spatialHadoop.core.CellDictionary;
 import edu.umn.cs.spatialHadoop.core.Shape;
 
 /**
@@ -33,7 +33,7 @@ import edu.umn.cs.spatialHadoop.core.Shape;
 public class GridRecordWriter2<S extends Shape>
 extends edu.umn.cs.spatialHadoop.core.GridRecordWriter<S> implements RecordWriter<NullWritable, S> {
 
-  public GridRecordWriter2(JobConf job, String name, CellInfo[] cells, boolean pack, boolean expand) throws IOException {
+  public GridRecordWriter2(JobConf job, String name, CellDictionary cells, boolean pack, boolean expand) throws IOException {
     super(null, job, name, cells, pack, expand);
   }
   
@@ -18,7 +18,7 @@ import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.RecordWriter;
 import org.apache.hadoop.mapred.Reporter;
 
-import edu.umn.cs.spatialHadoop.core.CellInfo;
+import edu.umn.cs.spatialHadoop.core.CellDictionary;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.Shape;
 
@@ -36,7 +36,7 @@ import edu.umn.cs.spatialHadoop.core.Shape;
 public class GridRecordWriter3<S extends Shape>
 extends edu.umn.cs.spatialHadoop.core.GridRecordWriter<S> implements RecordWriter<Rectangle, S> {
 
-  public GridRecordWriter3(JobConf job, String name, CellInfo[] cells, boolean pack, boolean expand) throws IOException {
+  public GridRecordWriter3(JobConf job, String name, CellDictionary cells, boolean pack, boolean expand) throws IOException {
     super(null, job, name, cells, pack, expand);
   }
   
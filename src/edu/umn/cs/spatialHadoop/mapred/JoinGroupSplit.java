@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package edu.umn.cs.spatialHadoop.mapred;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+
+import edu.umn.cs.spatialHadoop.core.BinaryHeapFile;
+import edu.umn.cs.spatialHadoop.core.Partition;
+
+/**
+ * A group of pairs of splits to be joined by one task. Each split appears
+ * once in the group even if it is paired with many splits from the other
+ * file, which allows the task to read it once. Splits of the first file
+ * come first followed by splits of the second file. Each pair is stored as
+ * the indexes of its two splits in the group.
+ */
+public class JoinGroupSplit extends SpatialCombineFileSplit {
+  /**Number of splits from the first file*/
+  private int numFirst;
+
+  /**Index of the first split of each pair*/
+  private int[] firsts;
+
+  /**Index of the second split of each pair*/
+  private int[] seconds;
+
+  public JoinGroupSplit() {
+  }
+
+  public JoinGroupSplit(JobConf job, Path[] files, long[] start,
+      long[] lengths, String[] locations, Partition[] partitions,
+      boolean[] formatChecked, BinaryHeapFile.Header[] binaryHeaders,
+      int numFirst, int[] firsts, int[] seconds) {
+    super(job, files, start, lengths, locations, partitions, formatChecked,
+        binaryHeaders);
+    this.numFirst = numFirst;
+    this.firsts = firsts;
+    this.seconds = seconds;
+  }
+
+  /**
+   * Number of splits from the first file. These are the splits with
+   * indexes [0, numFirst)
+   * @return
+   */
+  public int getNumFirst() {
+    return numFirst;
+  }
+
+  public int getNumPairs() {
+    return firsts.length;
+  }
+
+  /**
+   * Index of the split of the first file in the given pair
+   * @param pair
+   * @return
+   */
+  public int getFirst(int pair) {
+    return firsts[pair];
+  }
+
+  /**
+   * Index of the split of the second file in the given pair
+   * @param pair
+   * @return
+   */
+  public int getSecond(int pair) {
+    return seconds[pair];
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    super.write(out);
+    out.writeInt(numFirst);
+    out.writeInt(firsts.length);
+    for (int i = 0; i < firsts.length; i++) {
+      out.writeInt(firsts[i]);
+      out.writeInt(seconds[i]);
+    }
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    super.readFields(in);
+    numFirst = in.readInt();
+    int numPairs = in.readInt();
+    firsts = new int[numPairs];
+    seconds = new int[numPairs];
+    for (int i = 0; i < numPairs; i++) {
+      firsts[i] = in.readInt();
+      seconds[i] = in.readInt();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "Group of "+getNumPairs()+" pairs of "+getNumPaths()+" splits";
+  }
+}
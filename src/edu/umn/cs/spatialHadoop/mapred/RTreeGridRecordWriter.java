@@ -19,14 +19,14 @@ import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.RecordWriter;
 import org.apache.hadoop.mapred.Reporter;
 
-import edu.umn.cs.spatialHadoop.core.CellInfo;
+import edu.umn.cs.spatialHadoop.core.CellDictionary;
 import edu.umn.cs.spatialHadoop.core.Shape;
 
 public class RTreeGridRecordWriter<S extends Shape>
     extends edu.umn.cs.spatialHadoop.core.RTreeGridRecordWriter<S>
     implements RecordWriter<IntWritable, S> {
 
-  public RTreeGridRecordWriter(JobConf job, String prefix, CellInfo[] cells, boolean pack, boolean expand) throws IOException {
+  public RTreeGridRecordWriter(JobConf job, String prefix, CellDictionary cells, boolean pack, boolean expand) throws IOException {
     super(null, job, prefix, cells, pack, expand);
   }
   
@@ -61,7 +61,7 @@ public class ShapeArrayRecordReader extends SpatialRecordReader<Rectangle, Array
   public boolean next(Rectangle key, ArrayWritable shapes) throws IOException {
     // Get cellInfo for the current position in file
     boolean element_read = nextShapes(shapes);
-    key.set(cellMbr); // Set the cellInfo for the last block read
+    key.set(batchCellMbr); // Set the cellInfo of the returned shapes
     return element_read;
   }
 
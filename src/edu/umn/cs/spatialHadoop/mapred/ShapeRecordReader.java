@@ -22,6 +22,7 @@ import org.apache.hadoop.mapred.FileSplit;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.lib.CombineFileSplit;
 
+import edu.umn.cs.spatialHadoop.core.LazyShape;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
@@ -43,13 +44,27 @@ public class ShapeRecordReader<S extends Shape>
   public ShapeRecordReader(Configuration job, FileSplit split)
       throws IOException {
     super(job, split);
-    stockShape = (S) SpatialSite.createStockShape(job);
+    stockShape = createStockShape(job);
   }
 
   public ShapeRecordReader(CombineFileSplit split, Configuration conf,
       Reporter reporter, Integer index) throws IOException {
     super(split, conf, reporter, index);
-    stockShape = (S) SpatialSite.createStockShape(conf);
+    stockShape = createStockShape(conf);
+  }
+
+  /**
+   * Creates the shape returned by {@link #createValue()}. It is wrapped in a
+   * {@link LazyShape} if {@link SpatialSite#LAZY_SHAPES} is set.
+   * @param conf
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  private S createStockShape(Configuration conf) {
+    Shape shape = SpatialSite.createStockShape(conf);
+    if (conf.getBoolean(SpatialSite.LAZY_SHAPES, false))
+      shape = new LazyShape(shape);
+    return (S) shape;
   }
   
   public ShapeRecordReader(InputStream in, long offset, long endOffset)
@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package edu.umn.cs.spatialHadoop.mapred;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.lib.CombineFileSplit;
+
+import edu.umn.cs.spatialHadoop.core.BinaryHeapFile;
+import edu.umn.cs.spatialHadoop.core.Partition;
+
+/**
+ * A combined split that carries the partition and the format of each of its
+ * files as in {@link SpatialFileSplit}.
+ */
+public class SpatialCombineFileSplit extends CombineFileSplit {
+  /**The partition of each path or null for non-indexed files*/
+  private Partition[] partitions;
+
+  /**Whether the format of each file was checked while creating the split*/
+  private boolean[] formatChecked;
+
+  /**Header of each file that is a binary heap file*/
+  private BinaryHeapFile.Header[] binaryHeaders;
+
+  public SpatialCombineFileSplit() {
+  }
+
+  public SpatialCombineFileSplit(JobConf job, Path[] files, long[] start,
+      long[] lengths, String[] locations, Partition[] partitions) {
+    this(job, files, start, lengths, locations, partitions,
+        new boolean[files.length], new BinaryHeapFile.Header[files.length]);
+    // Files of a global index are never binary heap files
+    for (int i = 0; i < files.length; i++)
+      formatChecked[i] = partitions[i] != null;
+  }
+
+  public SpatialCombineFileSplit(JobConf job, Path[] files, long[] start,
+      long[] lengths, String[] locations, Partition[] partitions,
+      boolean[] formatChecked, BinaryHeapFile.Header[] binaryHeaders) {
+    super(job, files, start, lengths, locations);
+    this.partitions = partitions;
+    this.formatChecked = formatChecked;
+    this.binaryHeaders = binaryHeaders;
+  }
+
+  /**
+   * The partition that contains the path at the given index or null if its
+   * file is not globally indexed.
+   * @param i
+   * @return
+   */
+  public Partition getPartition(int i) {
+    return partitions[i];
+  }
+
+  /**
+   * Returns the part of the given index as a file split. The returned split
+   * is a {@link SpatialFileSplit} if the given split carries partitions.
+   * @param split
+   * @param i
+   * @return
+   * @throws IOException
+   */
+  public static FileSplit getFileSplit(CombineFileSplit split, int i)
+      throws IOException {
+    if (split instanceof SpatialCombineFileSplit)
+      return ((SpatialCombineFileSplit) split).getFileSplit(i);
+    return new FileSplit(split.getPath(i), split.getOffset(i),
+        split.getLength(i), split.getLocations());
+  }
+
+  /**
+   * Returns the part of the given index as a file split that carries its
+   * partition and format
+   * @param i
+   * @return
+   * @throws IOException
+   */
+  public SpatialFileSplit getFileSplit(int i) throws IOException {
+    return new SpatialFileSplit(getPath(i), getOffset(i), getLength(i),
+        getLocations(), partitions[i], formatChecked[i], binaryHeaders[i]);
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    super.write(out);
+    for (int i = 0; i < partitions.length; i++) {
+      out.writeBoolean(partitions[i] != null);
+      if (partitions[i] != null)
+        partitions[i].write(out);
+      SpatialFileSplit.writeFormat(out, formatChecked[i], binaryHeaders[i]);
+    }
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    super.readFields(in);
+    partitions = new Partition[getNumPaths()];
+    formatChecked = new boolean[getNumPaths()];
+    binaryHeaders = new BinaryHeapFile.Header[getNumPaths()];
+    for (int i = 0; i < partitions.length; i++) {
+      if (in.readBoolean()) {
+        partitions[i] = new Partition();
+        partitions[i].readFields(in);
+      }
+      formatChecked[i] = in.readBoolean();
+      if (formatChecked[i])
+        binaryHeaders[i] = SpatialFileSplit.readBinaryHeader(in);
+    }
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package edu.umn.cs.spatialHadoop.mapred;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileSplit;
+
+import edu.umn.cs.spatialHadoop.core.BinaryHeapFile;
+import edu.umn.cs.spatialHadoop.core.Partition;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+
+/**
+ * A file split that carries the partition of the global index that
+ * contains the split. The partition is looked up once while creating splits
+ * which saves each record reader from reading the global index of its file
+ * at the start of the task. A split with no partition belongs to a file that
+ * is not globally indexed.
+ *
+ * A split of a non-indexed file can also carry the format of its file, i.e.,
+ * the header of the file if it is a binary heap file. The format is checked
+ * once for each file while creating splits so that readers of splits in the
+ * middle of the file do not open it again to read its header.
+ */
+public class SpatialFileSplit extends FileSplit {
+  /**The partition that contains this split or null if not indexed*/
+  private Partition partition;
+
+  /**Whether the format of the file was checked while creating this split*/
+  private boolean formatChecked;
+
+  /**Header of the file if it is a binary heap file*/
+  private BinaryHeapFile.Header binaryHeader;
+
+  public SpatialFileSplit() {
+  }
+
+  public SpatialFileSplit(Path file, long start, long length, String[] hosts,
+      Partition partition) {
+    // Files of a global index are never binary heap files
+    this(file, start, length, hosts, partition, partition != null, null);
+  }
+
+  public SpatialFileSplit(Path file, long start, long length, String[] hosts,
+      Partition partition, boolean formatChecked,
+      BinaryHeapFile.Header binaryHeader) {
+    super(file, start, length, hosts);
+    this.partition = partition;
+    this.formatChecked = formatChecked;
+    this.binaryHeader = binaryHeader;
+  }
+
+  public SpatialFileSplit(FileSplit split, Partition partition)
+      throws IOException {
+    this(split.getPath(), split.getStart(), split.getLength(),
+        split.getLocations(), partition);
+  }
+
+  /**
+   * Creates a split of a non-indexed file whose format is checked
+   * @param split
+   * @param binaryHeader the header of the file if it is a binary heap file
+   *   or null otherwise
+   * @throws IOException
+   */
+  public SpatialFileSplit(FileSplit split, BinaryHeapFile.Header binaryHeader)
+      throws IOException {
+    this(split.getPath(), split.getStart(), split.getLength(),
+        split.getLocations(), null, true, binaryHeader);
+  }
+
+  /**
+   * The partition that contains this split. This includes the MBR of the
+   * partition and its cell ID. If the file is not globally indexed,
+   * null is returned.
+   * @return
+   */
+  public Partition getPartition() {
+    return partition;
+  }
+
+  /**
+   * Whether the format of the file was checked while creating this split.
+   * If not, {@link #getBinaryHeader()} tells nothing about the file.
+   * @return
+   */
+  public boolean isFormatChecked() {
+    return formatChecked;
+  }
+
+  /**
+   * The header of the file if it is a binary heap file and its format was
+   * checked while creating this split. Null otherwise.
+   * @return
+   */
+  public BinaryHeapFile.Header getBinaryHeader() {
+    return binaryHeader;
+  }
+
+  /**
+   * Writes the format of a file as carried by a split
+   * @param out
+   * @param formatChecked
+   * @param binaryHeader
+   * @throws IOException
+   */
+  static void writeFormat(DataOutput out, boolean formatChecked,
+      BinaryHeapFile.Header binaryHeader) throws IOException {
+    out.writeBoolean(formatChecked);
+    if (formatChecked) {
+      out.writeBoolean(binaryHeader != null);
+      if (binaryHeader != null)
+        binaryHeader.write(out);
+    }
+  }
+
+  /**
+   * Reads the header of a binary heap file written by
+   * {@link #writeFormat(DataOutput, boolean, BinaryHeapFile.Header)} after
+   * its format is read and found checked.
+   * @param in
+   * @return
+   * @throws IOException
+   */
+  static BinaryHeapFile.Header readBinaryHeader(DataInput in)
+      throws IOException {
+    if (!in.readBoolean())
+      return null;
+    in.skipBytes(SpatialSite.BinaryHeapFileMarkerB.length);
+    BinaryHeapFile.Header binaryHeader = new BinaryHeapFile.Header();
+    binaryHeader.readFields(in);
+    return binaryHeader;
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    super.write(out);
+    out.writeBoolean(partition != null);
+    if (partition != null)
+      partition.write(out);
+    writeFormat(out, formatChecked, binaryHeader);
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    super.readFields(in);
+    if (in.readBoolean()) {
+      if (partition == null)
+        partition = new Partition();
+      partition.readFields(in);
+    } else {
+      partition = null;
+    }
+    formatChecked = in.readBoolean();
+    binaryHeader = formatChecked ? readBinaryHeader(in) : null;
+  }
+
+  @Override
+  public String toString() {
+    return partition == null ? super.toString() :
+      super.toString() + " in cell #" + partition.cellId;
+  }
+}
@@ -16,7 +16,13 @@ import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Vector;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
@@ -34,11 +40,17 @@ import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.LineRecordReader;
 import org.apache.hadoop.mapred.RecordReader;
 import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.lib.CombineFileRecordReader;
+import org.apache.hadoop.mapred.lib.CombineFileSplit;
 
 import edu.umn.cs.spatialHadoop.CommandLineArguments;
+import edu.umn.cs.spatialHadoop.core.BinaryHeapFile;
+import edu.umn.cs.spatialHadoop.core.BlockInfo;
 import edu.umn.cs.spatialHadoop.core.GlobalIndex;
 import edu.umn.cs.spatialHadoop.core.Partition;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.ResultCollector;
+import edu.umn.cs.spatialHadoop.core.SpaceFillingCurve;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
 import edu.umn.cs.spatialHadoop.nasa.HDFRecordReader;
 import edu.umn.cs.spatialHadoop.nasa.HTTPFileSystem;
@@ -75,6 +87,11 @@ public abstract class SpatialInputFormat<K, V> extends FileInputFormat<K, V> {
     // Create compressionCodecs to be used by isSplitable method
     if (compressionCodecs == null)
       compressionCodecs = new CompressionCodecFactory(job);
+    if (split instanceof SpatialCombineFileSplit) {
+      // Partitions combined by getSplits. Each one is read by its own reader
+      return new CombineFileRecordReader<K, V>(job,
+          (CombineFileSplit) split, reporter, (Class<RecordReader<K, V>>) rrClass);
+    }
     if (split instanceof FileSplit) {
       FileSplit fsplit = (FileSplit) split;
       if (fsplit.getPath().getName().toLowerCase().endsWith(".hdf")) {
@@ -196,6 +213,276 @@ public abstract class SpatialInputFormat<K, V> extends FileInputFormat<K, V> {
     }
   }
 
+  /**
+   * Information about a directory of input files that is looked up once for
+   * all files in the directory.
+   */
+  private static class DirectoryInfo {
+    /**Partitions of the global index by file name. Null if not indexed*/
+    Map<String, Partition> partitions;
+    /**
+     * Whether files are locally indexed with R-trees. It is recorded in the
+     * index when the directory is indexed. Null if it is not recorded, in
+     * which case one file of the directory is checked the first time it is
+     * needed.
+     */
+    Boolean rtree;
+  }
+
+  /**Directories of input files looked up while creating splits*/
+  private Map<Path, DirectoryInfo> directories;
+
+  /**
+   * Returns the information of the directory that contains the given file.
+   * The directory is looked up only the first time it is seen.
+   * @param fs
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  private DirectoryInfo getDirectoryInfo(FileSystem fs, Path file)
+      throws IOException {
+    if (directories == null)
+      directories = new HashMap<Path, DirectoryInfo>();
+    Path dir = file.getParent();
+    DirectoryInfo info = directories.get(dir);
+    if (info == null) {
+      info = new DirectoryInfo();
+      GlobalIndex<Partition> gindex = SpatialSite.getGlobalIndex(fs, dir);
+      if (gindex != null) {
+        info.partitions = new HashMap<String, Partition>();
+        for (Partition partition : gindex)
+          info.partitions.put(partition.filename, partition);
+        info.rtree = gindex.isRTree();
+      }
+      directories.put(dir, info);
+    }
+    return info;
+  }
+
+  /**
+   * Creates splits as {@link FileInputFormat} does and attaches to each split
+   * the partition that contains it. This reads the global index of each
+   * input directory once rather than in each record reader. Splits in the
+   * middle of non-indexed files also carry the format of their files.
+   */
+  @Override
+  public InputSplit[] getSplits(JobConf job, int numSplits) throws IOException {
+    // Look up directories again in case they changed since the last call
+    directories = null;
+    InputSplit[] splits = super.getSplits(job, numSplits);
+    Map<Path, BinaryHeapFile.Header> binaryHeaders =
+        new HashMap<Path, BinaryHeapFile.Header>();
+    for (int i = 0; i < splits.length; i++) {
+      if (!(splits[i] instanceof FileSplit))
+        continue;
+      FileSplit fsplit = (FileSplit) splits[i];
+      Path path = fsplit.getPath();
+      // HDF files are read by HDFRecordReader which does not use partitions
+      if (path.getName().toLowerCase().endsWith(".hdf"))
+        continue;
+      FileSystem fs = path.getFileSystem(job);
+      DirectoryInfo info = getDirectoryInfo(fs, path);
+      if (info.partitions != null) {
+        splits[i] = new SpatialFileSplit(fsplit,
+            info.partitions.get(path.getName()));
+      } else if (fsplit.getStart() != 0) {
+        // Readers of splits in the middle of a binary heap file need its
+        // header. Check the format once for all splits of the file.
+        if (!binaryHeaders.containsKey(path))
+          binaryHeaders.put(path, BinaryHeapFile.readHeader(fs, path));
+        splits[i] = new SpatialFileSplit(fsplit, binaryHeaders.get(path));
+      } else {
+        // The reader of the first split checks the format from its first bytes
+        splits[i] = new SpatialFileSplit(fsplit, (Partition) null);
+      }
+    }
+    Rectangle queryRange =
+        SpatialSite.getRectangle(job, SpatialSite.INPUT_QUERY_RANGE);
+    if (queryRange != null)
+      splits = pruneBlocks(job, splits, queryRange);
+    long combineSize = job.getLong(SpatialSite.COMBINE_SPLIT_SIZE, 0);
+    if (combineSize > 0)
+      splits = combineSplits(job, splits, combineSize);
+    return splits;
+  }
+
+  /**
+   * Removes splits of non-indexed files that contain no records in the
+   * given range according to the blocks file of their files as computed by
+   * {@link edu.umn.cs.spatialHadoop.operations.BlockMBR}. A split is kept
+   * if its file has no valid blocks file or if any block that overlaps the
+   * split may have records in the range.
+   * @param job
+   * @param splits
+   * @param queryRange
+   * @return
+   * @throws IOException
+   */
+  protected InputSplit[] pruneBlocks(JobConf job, InputSplit[] splits,
+      Rectangle queryRange) throws IOException {
+    Map<Path, BlockInfo[]> fileBlocks = new HashMap<Path, BlockInfo[]>();
+    List<InputSplit> result = new ArrayList<InputSplit>();
+    for (InputSplit split : splits) {
+      if (!(split instanceof SpatialFileSplit) ||
+          ((SpatialFileSplit)split).getPartition() != null) {
+        result.add(split);
+        continue;
+      }
+      FileSplit fsplit = (FileSplit) split;
+      Path path = fsplit.getPath();
+      BlockInfo[] blocks;
+      if (fileBlocks.containsKey(path)) {
+        blocks = fileBlocks.get(path);
+      } else {
+        blocks = BlockInfo.readBlocks(path.getFileSystem(job), path);
+        fileBlocks.put(path, blocks);
+      }
+      if (blocks == null) {
+        result.add(split);
+        continue;
+      }
+      // A record that starts anywhere in [start, end] may be read by this
+      // split, so the blocks that touch either end are checked as well
+      long start = fsplit.getStart();
+      long end = start + fsplit.getLength();
+      boolean mayOverlap = false;
+      for (int i = 0; !mayOverlap && i < blocks.length; i++) {
+        BlockInfo block = blocks[i];
+        if (block.start <= end && block.start + block.length >= start)
+          mayOverlap = block.mayOverlap(queryRange);
+      }
+      if (mayOverlap)
+        result.add(split);
+    }
+    if (result.size() < splits.length)
+      LOG.info("Pruned "+(splits.length - result.size())+" of "+
+          splits.length+" splits using their blocks files");
+    return result.toArray(new InputSplit[result.size()]);
+  }
+
+  /**
+   * Groups splits of small partitions into combined splits of up to the
+   * given size. Partitions are grouped by the first host that stores them
+   * and then in the order of a Hilbert curve over their centers. This way,
+   * each combined split reads adjacent partitions stored on the same
+   * machine. Partitions left over from all hosts are grouped in the order
+   * of the curve. Other splits are returned as is.
+   * @param job
+   * @param splits
+   * @param combineSize
+   * @return
+   * @throws IOException
+   */
+  protected InputSplit[] combineSplits(JobConf job, InputSplit[] splits,
+      long combineSize) throws IOException {
+    List<InputSplit> combinedSplits = new ArrayList<InputSplit>();
+    Map<String, List<SpatialFileSplit>> splitsPerHost =
+        new HashMap<String, List<SpatialFileSplit>>();
+    Rectangle space = null;
+    int numCandidates = 0;
+    for (InputSplit split : splits) {
+      Partition partition = split instanceof SpatialFileSplit ?
+          ((SpatialFileSplit)split).getPartition() : null;
+      if (partition == null || split.getLength() >= combineSize) {
+        combinedSplits.add(split);
+        continue;
+      }
+      String[] hosts = split.getLocations();
+      String host = hosts.length == 0 ? "" : hosts[0];
+      List<SpatialFileSplit> hostSplits = splitsPerHost.get(host);
+      if (hostSplits == null)
+        splitsPerHost.put(host, hostSplits = new ArrayList<SpatialFileSplit>());
+      hostSplits.add((SpatialFileSplit) split);
+      if (space == null)
+        space = new Rectangle(partition);
+      else
+        space.expand(partition);
+      numCandidates++;
+    }
+    if (numCandidates == 0)
+      return splits;
+
+    final SpaceFillingCurve curve = SpaceFillingCurve.getCurve("hilbert", space);
+    Comparator<SpatialFileSplit> curveOrder = new Comparator<SpatialFileSplit>() {
+      @Override
+      public int compare(SpatialFileSplit s1, SpatialFileSplit s2) {
+        long k1 = curve.computeKey(s1.getPartition());
+        long k2 = curve.computeKey(s2.getPartition());
+        return k1 < k2 ? -1 : (k1 > k2 ? 1 : 0);
+      }
+    };
+    List<SpatialFileSplit> leftovers = new ArrayList<SpatialFileSplit>();
+    for (List<SpatialFileSplit> hostSplits : splitsPerHost.values()) {
+      Collections.sort(hostSplits, curveOrder);
+      int groupStart = groupSplits(job, hostSplits, combineSize, combinedSplits);
+      leftovers.addAll(hostSplits.subList(groupStart, hostSplits.size()));
+    }
+    Collections.sort(leftovers, curveOrder);
+    int groupStart = groupSplits(job, leftovers, combineSize, combinedSplits);
+    if (groupStart < leftovers.size())
+      combinedSplits.add(combine(job, leftovers.subList(groupStart, leftovers.size())));
+    LOG.info("Combined "+numCandidates+" partitions into "+
+      (combinedSplits.size() - (splits.length - numCandidates))+" splits");
+    return combinedSplits.toArray(new InputSplit[combinedSplits.size()]);
+  }
+
+  /**
+   * Combines consecutive splits in the given list into groups of up to the
+   * given size. A group is created only when the next split does not fit in
+   * it so the last group is not created.
+   * @param job
+   * @param splits
+   * @param combineSize
+   * @param combinedSplits - groups are added to this list
+   * @return the index of the first split that was not combined
+   * @throws IOException
+   */
+  private static int groupSplits(JobConf job, List<SpatialFileSplit> splits,
+      long combineSize, List<InputSplit> combinedSplits) throws IOException {
+    int groupStart = 0;
+    long groupSize = 0;
+    for (int i = 0; i < splits.size(); i++) {
+      long length = splits.get(i).getLength();
+      if (i > groupStart && groupSize + length > combineSize) {
+        combinedSplits.add(combine(job, splits.subList(groupStart, i)));
+        groupStart = i;
+        groupSize = 0;
+      }
+      groupSize += length;
+    }
+    return groupStart;
+  }
+
+  /**
+   * Combines the given splits into one split that keeps the partition of
+   * each of them. A single split is returned as is.
+   * @param job
+   * @param splits
+   * @return
+   * @throws IOException
+   */
+  private static InputSplit combine(JobConf job, List<SpatialFileSplit> splits)
+      throws IOException {
+    if (splits.size() == 1)
+      return splits.get(0);
+    Path[] paths = new Path[splits.size()];
+    long[] starts = new long[splits.size()];
+    long[] lengths = new long[splits.size()];
+    Partition[] partitions = new Partition[splits.size()];
+    Vector<String> vlocations = new Vector<String>();
+    for (int i = 0; i < splits.size(); i++) {
+      SpatialFileSplit split = splits.get(i);
+      paths[i] = split.getPath();
+      starts[i] = split.getStart();
+      lengths[i] = split.getLength();
+      partitions[i] = split.getPartition();
+      vlocations.addAll(Arrays.asList(split.getLocations()));
+    }
+    return new SpatialCombineFileSplit(job, paths, starts, lengths,
+        FileSplitUtil.prioritizeLocations(vlocations), partitions);
+  }
+
   @Override
   protected boolean isSplitable(FileSystem fs, Path file) {
     // HDF files are not splittable
@@ -210,7 +497,17 @@ public abstract class SpatialInputFormat<K, V> extends FileInputFormat<K, V> {
       // isRTree needs to open the file and reads the first 8 bytes. Doing this
       // in the input format means it will open all files in input which is
       // very costly.
-      return !(fs instanceof HTTPFileSystem) && !SpatialSite.isRTree(fs, file);
+      if (fs instanceof HTTPFileSystem)
+        return false;
+      // R-trees are only written as partitions of an indexed directory
+      DirectoryInfo info = getDirectoryInfo(fs, file);
+      if (info.partitions == null)
+        return true;
+      if (info.rtree == null) {
+        // Indexed before the local index was recorded. Check one file.
+        info.rtree = SpatialSite.isRTree(fs, file);
+      }
+      return !info.rtree;
     } catch (IOException e) {
       return super.isSplitable(fs, file);
     }
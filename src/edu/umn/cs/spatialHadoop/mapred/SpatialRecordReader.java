@@ -12,12 +12,19 @@
  */
 package edu.umn.cs.spatialHadoop.mapred;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.DataInput;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.lang.reflect.InvocationTargetException;
 import java.util.Arrays;
-import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -27,6 +34,7 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.Seekable;
 import org.apache.hadoop.io.ArrayWritable;
+import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.compress.CodecPool;
 import org.apache.hadoop.io.compress.CompressionCodec;
@@ -38,19 +46,25 @@ import org.apache.hadoop.mapred.FileSplit;
 import org.apache.hadoop.mapred.RecordReader;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.lib.CombineFileSplit;
-import org.apache.hadoop.util.LineReader;
 
+import edu.umn.cs.spatialHadoop.core.BinaryHeapFile;
 import edu.umn.cs.spatialHadoop.core.GlobalIndex;
+import edu.umn.cs.spatialHadoop.core.LazyShape;
 import edu.umn.cs.spatialHadoop.core.Partition;
+import edu.umn.cs.spatialHadoop.core.Point;
 import edu.umn.cs.spatialHadoop.core.RTree;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.io.CursorParsable;
+import edu.umn.cs.spatialHadoop.io.LineSliceReader;
+import edu.umn.cs.spatialHadoop.io.TextCursor;
 
 /**
  * A base class to read shapes from files. It reads either single shapes,
  * list of shapes, or R-trees. It automatically detects the format of the
- * underlying block and parses it accordingly.
+ * underlying block and parses it accordingly. Non-indexed files are either
+ * text files or binary files written by {@link BinaryHeapFile}.
  * 
  * The class implement the RecordReader interface allowing it to be used in
  * MapReduce programs with an appropriate InputFormat. The key is always
@@ -73,7 +87,7 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
   /**Maximum size in bytes that can be read in one read*/
   private int maxBytesInOneRead;
   
-  enum BlockType { HEAP, RTREE};
+  enum BlockType { HEAP, RTREE, BINARY};
   
   /** First offset that is read from the input */
   protected long start;
@@ -87,9 +101,21 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
   private Seekable filePosition;
   private CompressionCodec codec;
   private Decompressor decompressor;
+  /**
+   * Set for compressed files that cannot be split. The whole file is one
+   * split and is read to its end as positions in the decompressed data
+   * cannot be compared with {@link #end}.
+   */
+  private boolean readToEOF;
   
   /** Reads lines from text files */
-  protected LineReader lineReader;
+  protected LineSliceReader lineReader;
+  /** Parses shapes from lines of {@link #lineReader} */
+  private TextCursor lineCursor = new TextCursor();
+  /** The last class checked by {@link #isCursorParsable(Shape)} */
+  private Class<?> cursorCheckedClass;
+  /** Whether {@link #cursorCheckedClass} can be parsed from a cursor */
+  private boolean cursorParsable;
   /** A temporary text to read lines from lineReader */
   protected Text tempLine = new Text();
   /** Some bytes that were read from the stream but not parsed yet */
@@ -107,8 +133,64 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
   /** The boundary of the partition currently being read */
   protected Rectangle cellMbr;
 
+  /** The split being read if it carries its partition */
+  private SpatialFileSplit spatialSplit;
+
   /**The type of the currently parsed block*/
   protected BlockType blockType;
+
+  /**Reads blocks of a binary heap file*/
+  private DataInputStream binaryIn;
+
+  /**Header of the binary heap file being read*/
+  private BinaryHeapFile.Header binaryHeader;
+
+  /**Whether a sync marker has been found in this split of a binary file*/
+  private boolean syncFound;
+
+  /**Number of records not read yet from the current binary block*/
+  private int blockRemaining;
+
+  /**MBR of the current binary block if stored in the file*/
+  protected Rectangle blockMbr = new Rectangle();
+
+  /**MBR of the last record read from a binary file with record MBRs*/
+  private Rectangle recordMbr = new Rectangle();
+
+  /**Bytes of the last record read from a binary file*/
+  private byte[] recordBytes = new byte[1024];
+
+  /**Used to deserialize records of a binary file*/
+  private DataInputBuffer recordIn = new DataInputBuffer();
+
+  /**Batch used by {@link #nextShapes(ArrayWritable)} when not reading ahead*/
+  private ShapeBatch shapeBatch = new ShapeBatch();
+
+  /**
+   * The partition of the shapes returned by the last call to
+   * {@link #nextShapes(ArrayWritable)}. This is {@link #cellMbr} unless
+   * shapes are read ahead in which case the reader may be in a later
+   * partition already.
+   */
+  protected Rectangle batchCellMbr = new Rectangle();
+
+  /**Number of batches read ahead. See {@link SpatialSite#ReadAheadBatches}*/
+  private int readAheadBatches;
+
+  /**Reads batches of shapes in the background. Started by the first read*/
+  private ReadAheadThread readAhead;
+
+  /**Used to read binary records as text lines*/
+  private Shape binaryStockShape;
+
+  /**Points of the current block of a columnar binary file*/
+  private BinaryHeapFile.PointColumns pointColumns;
+
+  /**
+   * Records outside this range can be skipped if it is cheap to do so.
+   * See {@link SpatialSite#INPUT_QUERY_RANGE}
+   */
+  private Rectangle queryRange;
   
   /**
    * Initialize from an input split
@@ -120,8 +202,7 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
    */
   public SpatialRecordReader(CombineFileSplit split, Configuration conf,
       Reporter reporter, Integer index) throws IOException {
-    this(conf, split.getStartOffsets()[index], split.getLength(index),
-        split.getPath(index));
+    this(conf, SpatialCombineFileSplit.getFileSplit(split, index));
   }
   
   /**
@@ -131,7 +212,8 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
    * @throws IOException
    */
   public SpatialRecordReader(Configuration job, FileSplit split) throws IOException {
-    this(job, split.getStart(), split.getLength(), split.getPath());
+    this(job, split.getStart(), split.getLength(), split.getPath(),
+        split instanceof SpatialFileSplit ? (SpatialFileSplit) split : null);
   }
 
   /**
@@ -143,6 +225,22 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
    * @throws IOException
    */
   public SpatialRecordReader(Configuration job, long s, long l, Path p) throws IOException {
+    this(job, s, l, p, null);
+  }
+
+  /**
+   * Initialize from a path and file range. If a spatial split is given, the
+   * partition it carries is used instead of reading the global index.
+   * @param job
+   * @param s
+   * @param l
+   * @param p
+   * @param spatialSplit
+   * @throws IOException
+   */
+  private SpatialRecordReader(Configuration job, long s, long l, Path p,
+      SpatialFileSplit spatialSplit) throws IOException {
+    this.spatialSplit = spatialSplit;
     this.start = s;
     this.end = s + l;
     this.path = p;
@@ -169,6 +267,7 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
       } else {
         in = codec.createInputStream(fileIn, decompressor);
         filePosition = fileIn;
+        readToEOF = true;
       }
     } else {
       fileIn.seek(start);
@@ -176,8 +275,10 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
       filePosition = fileIn;
     }
     this.pos = start;
-    this.maxShapesInOneRead = job.getInt(SpatialSite.MaxShapesInOneRead, 1000000);
+    this.maxShapesInOneRead = job.getInt(SpatialSite.MaxShapesInOneRead, -1);
     this.maxBytesInOneRead = job.getInt(SpatialSite.MaxBytesInOneRead, 32*1024*1024);
+    this.readAheadBatches = job.getInt(SpatialSite.ReadAheadBatches, 0);
+    this.queryRange = SpatialSite.getRectangle(job, SpatialSite.INPUT_QUERY_RANGE);
 
     initializeReader();
   }
@@ -233,11 +334,15 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
    */
   @Override
   public long getPos() throws IOException {
-    return pos;
+    return readAhead != null ? readAhead.pos : pos;
   }
 
   @Override
   public void close() throws IOException {
+    if (readAhead != null) {
+      readAhead.shutdown();
+      readAhead = null;
+    }
     try {
     if (lineReader != null) {
       lineReader.close();
@@ -250,6 +355,8 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
       if (decompressor != null) {
         CodecPool.returnDecompressor(decompressor);
       }
+      if (pointColumns != null)
+        pointColumns.close();
     }
   }
 
@@ -258,8 +365,9 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
     if (start == end) {
       return 0.0f;
     } else {
+      long filePos = readAhead != null ? readAhead.filePos : getFilePosition();
       return Math.min(1.0f,
-        (getFilePosition() - start) / (float)(end - start));
+        (filePos - start) / (float)(end - start));
     }
   }
   
@@ -273,7 +381,11 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
   protected boolean initializeReader() throws IOException {
     // Get the cell info for the current block
     cellMbr.invalidate(); // Initialize to invalid rectangle
-    if (path != null) {
+    if (spatialSplit != null) {
+      // The partition was found while creating the split
+      if (spatialSplit.getPartition() != null)
+        cellMbr.set(spatialSplit.getPartition());
+    } else if (path != null) {
       GlobalIndex<Partition> globalIndex =
           SpatialSite.getGlobalIndex(fs, path.getParent());
       if (globalIndex != null) {
@@ -287,55 +399,44 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
     
     // Read the first part of the block to determine its type
     buffer = new byte[8];
-    in.read(buffer);
+    int bufferLength = in.read(buffer);
     if (Arrays.equals(buffer, SpatialSite.RTreeFileMarkerB)) {
       blockType = BlockType.RTREE;
       pos += 8;
       // Ignore the signature
       buffer = null;
+    } else if (pos == 0 ? Arrays.equals(buffer, SpatialSite.BinaryHeapFileMarkerB)
+        : (binaryHeader = getBinaryHeader()) != null) {
+      blockType = BlockType.BINARY;
+      InputStream blockIn = in;
+      if (pos != 0 && bufferLength > 0) {
+        // Bytes read to detect the type belong to the split
+        blockIn = new SequenceInputStream(
+            new ByteArrayInputStream(buffer, 0, bufferLength), in);
+      }
+      binaryIn = new DataInputStream(new BufferedInputStream(blockIn, 64 * 1024));
+      if (pos == 0) {
+        binaryHeader = new BinaryHeapFile.Header();
+        binaryHeader.readFields(binaryIn);
+        pos = binaryHeader.length;
+      }
+      if (binaryHeader.columnar)
+        pointColumns = new BinaryHeapFile.PointColumns(binaryHeader.compressed);
+      buffer = null;
     } else {
       blockType = BlockType.HEAP;
-      // The read buffer might contain some data that must be read
-      // File is text file
-      lineReader = new LineReader(in);
+      // File is text file. Bytes read to detect the type are read first
+      lineReader = new LineSliceReader(in);
+      lineReader.unread(buffer, 0, Math.max(bufferLength, 0));
+      buffer = null;
   
       // Skip the first line unless we are reading the first block in file
       // For globally indexed blocks, never skip the first line in the block
-      boolean skipFirstLine = getPos() != 0;
+      boolean skipFirstLine = pos != 0;
       if (skipFirstLine) {
-        // Search for the first occurrence of a new line
-        int eol = RTree.skipToEOL(buffer, 0);
-        // If we found an end of line in the buffer, we do not need to skip
-        // a line from the open stream. This happens if the EOL returned is
-        // beyond the end of buffer and the buffer is not a complete line
-        // by itself
-        boolean skip_another_line_from_stream = eol >= buffer.length &&
-            buffer[buffer.length - 1] != '\n';
-        if (eol < buffer.length) {
-          // Found an EOL in the buffer and there are some remaining bytes
-          byte[] tmp = new byte[buffer.length - eol];
-          System.arraycopy(buffer, eol, tmp, 0, tmp.length);
-          buffer = tmp;
-          // Advance current position to skip the first partial line
-          this.pos += eol;
-        } else {
-          // Did not find an EOL in the buffer or found it at the very end
-          pos += buffer.length;
-          // Buffer does not contain any useful data
-          buffer = null;
-        }
-        
-        if (skip_another_line_from_stream) {
-          // Didn't find an EOL in the buffer, need to skip it from the stream
-          pos += lineReader.readLine(tempLine, Integer.MAX_VALUE, (int)(end - pos));
-          if (pos >= end) {
-            // Special case when the whole split is in the middle of a line
-            // Skip the split
-            // Increase position beyond end to ensure the next call to
-            // nextLine would return false
-            pos++;
-          }
-        }
+        // Skip the first partial line. If the whole split is in the middle
+        // of a line, this moves beyond the end and nothing is read.
+        pos += lineReader.readLine();
       }
     }
     
@@ -343,6 +444,19 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
     return true;
   }
 
+  /**
+   * Returns the header of the file if it is a binary heap file or null
+   * otherwise. The format is taken from the split if it was checked while
+   * creating the split. Otherwise, the header is read from the file.
+   * @return
+   * @throws IOException
+   */
+  private BinaryHeapFile.Header getBinaryHeader() throws IOException {
+    if (spatialSplit != null && spatialSplit.isFormatChecked())
+      return spatialSplit.getBinaryHeader();
+    return path == null ? null : BinaryHeapFile.readHeader(fs, path);
+  }
+
   /**
    * Reads the next line from input and return true if a line was read.
    * If no more lines are available in this split, a false is returned.
@@ -351,50 +465,48 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
    * @throws IOException
    */
   protected boolean nextLine(Text value) throws IOException {
+    if (blockType == BlockType.BINARY) {
+      // Parse the next record and return it in its text format
+      if (binaryStockShape == null)
+        binaryStockShape = binaryHeader.createStockShape();
+      if (!nextShape(binaryStockShape))
+        return false;
+      value.clear();
+      binaryStockShape.toText(value);
+      return true;
+    }
+    if (!nextLineSlice())
+      return false;
+    value.set(lineReader.getBytes(), lineReader.getOffset(), lineReader.getLength());
+    return true;
+  }
+
+  /**
+   * Reads the next line of a text block without copying it. The line is
+   * available as a slice of the buffer of {@link #lineReader} until the
+   * next line is read.
+   * @return <code>true</code> if a line was read
+   * @throws IOException
+   */
+  private boolean nextLineSlice() throws IOException {
     if (blockType == BlockType.RTREE && pos == 8) {
       // File is positioned at the RTree header
       // Skip the header and go to first data object in file
       pos += RTree.skipHeader(in);
       LOG.info("Skipped R-tree to position: "+pos);
       // Reinitialize record reader at the new position
-      lineReader = new LineReader(in);
+      lineReader = new LineSliceReader(in);
     }
     while (getFilePosition() <= end) {
-      value.clear();
-      int b = 0;
-      if (buffer != null) {
-        // Read the first line encountered in buffer
-        int eol = RTree.skipToEOL(buffer, 0);
-        b += eol;
-        value.append(buffer, 0, eol);
-        if (eol < buffer.length) {
-          // There are still some bytes remaining in buffer
-          byte[] tmp = new byte[buffer.length - eol];
-          System.arraycopy(buffer, eol, tmp, 0, tmp.length);
-          buffer = tmp;
-        } else {
-          buffer = null;
-        }
-        // Check if a complete line has been read from the buffer
-        byte last_byte = value.getBytes()[value.getLength()-1];
-        if (last_byte == '\n' || last_byte == '\r')
-          return true;
-      }
-      
-      // Read the first line from stream
-      Text temp = new Text();
-      b += lineReader.readLine(temp);
+      int b = lineReader.readLine();
       if (b == 0) {
         // Indicates an end of stream
         return false;
       }
       pos += b;
       
-      // Append the part read from stream to the part extracted from buffer
-      value.append(temp.getBytes(), 0, temp.getLength());
-      
-      if (value.getLength() > 1) {
-        // Read a non-empty line. Note that end-of-line character is included
+      if (lineReader.getLength() > 1) {
+        // Read a non-empty line
         return true;
       }
     }
@@ -406,70 +518,468 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
    * Reads next shape from input and returns true. If no more shapes are left
    * in the split, a false is returned. This function first reads a line
    * by calling the method {@link #nextLine(Text)} then parses the returned
-   * line by calling {@link Shape#fromText(Text)} on that line. If no stock
-   * shape is set, a {@link NullPointerException} is thrown.
+   * line by calling {@link Shape#fromText(Text)} on that line. Shapes that
+   * implement {@link CursorParsable} are parsed directly from the buffer of
+   * the line reader without copying the line. A {@link LazyShape} is only
+   * left unparsed for binary heap files. If no stock shape is set,
+   * a {@link NullPointerException} is thrown.
    * @param s
    * @return
    * @throws IOException 
    */
   protected boolean nextShape(Shape s) throws IOException {
+    if (blockType == BlockType.BINARY)
+      return nextBinaryShape(s);
+    if (s instanceof LazyShape)
+      s = ((LazyShape) s).unwrap();
+    if (isCursorParsable(s)) {
+      // Parse the shape directly from the buffer of the line reader
+      if (!nextLineSlice())
+        return false;
+      lineCursor.set(lineReader.getBytes(), lineReader.getOffset(),
+          lineReader.getLength());
+      ((CursorParsable)s).fromText(lineCursor);
+      return true;
+    }
     if (!nextLine(tempLine))
       return false;
     s.fromText(tempLine);
     return true;
   }
+
+  /**
+   * Whether the given shape can be parsed from a {@link TextCursor}. A shape
+   * is not parsed from a cursor if it overrides {@link Shape#fromText(Text)}
+   * without overriding {@link CursorParsable#fromText(TextCursor)}. The
+   * answer is cached for the last class of shapes.
+   * @param s
+   * @return
+   */
+  private boolean isCursorParsable(Shape s) {
+    if (s.getClass() != cursorCheckedClass) {
+      cursorCheckedClass = s.getClass();
+      cursorParsable = false;
+      if (s instanceof CursorParsable) {
+        try {
+          Class<?> textParser =
+              cursorCheckedClass.getMethod("fromText", Text.class).getDeclaringClass();
+          Class<?> cursorParser =
+              cursorCheckedClass.getMethod("fromText", TextCursor.class).getDeclaringClass();
+          cursorParsable = textParser.isAssignableFrom(cursorParser);
+        } catch (NoSuchMethodException e) {
+          cursorParsable = false;
+        }
+      }
+    }
+    return cursorParsable;
+  }
   
   /**
    * Reads all shapes left in the current block in one shot. This function
    * runs a loop where it keeps reading shapes by calling the method
    * {@link #nextShape(Shape)} until one of the following conditions happen.
    * 1. The whole file is read. No more records to read.
-   * 2. Number of parsed records reaches the threshold defined by the
-   *    configuration parameter spatialHadoop.mapred.MaxShapesPerRead.
-   *    To disable this check, set the configuration parameter to -1
-   * 3. Total size of parsed data from file reaches the threshold defined by
+   * 2. Total size of parsed data from file reaches the threshold defined by
    *    the configuration parameter spatialHadoop.mapred.MaxBytesPerRead.
    *    To disable this check, set the configuration parameter to -1.
+   * 3. Number of parsed records reaches the threshold defined by the
+   *    configuration parameter spatialHadoop.mapred.MaxShapesPerRead.
+   *    This check is disabled by default.
    * 
+   * Shapes are read into a pool of objects that is reused by all calls, as
+   * well as the returned array if it has the same size. Shapes returned by
+   * one call are overwritten by the next call.
+   * 
+   * If {@link SpatialSite#ReadAheadBatches} is set, batches are read by a
+   * background thread while the caller processes the current batch. Each
+   * batch has its own pool of shapes so a batch is reused only after the
+   * next call.
    * @param shapes
    * @return
    * @throws IOException
    */
   protected boolean nextShapes(ArrayWritable shapes) throws IOException {
-    // Prepare a vector that will hold all objects in this 
-    Vector<Shape> vshapes = new Vector<Shape>();
+    if (readAheadBatches > 0) {
+      if (readAhead == null) {
+        readAhead = new ReadAheadThread(shapes.getValueClass(), readAheadBatches);
+        readAhead.start();
+      }
+      return readAhead.next(shapes);
+    }
+    if (!readShapes(shapes.getValueClass(), shapeBatch))
+      return false;
+    shapes.set(shapeBatch.shapes);
+    batchCellMbr.set(shapeBatch.cellMbr);
+    return true;
+  }
+
+  /**
+   * Shapes read by one call to {@link SpatialRecordReader#readShapes(Class, ShapeBatch)}
+   */
+  private static class ShapeBatch {
+    /**Shapes reused by all reads into this batch*/
+    Shape[] pool = new Shape[0];
+    /**Shapes read by the last read. Reused if the next read has the same size*/
+    Shape[] shapes;
+    /**The partition that contains the shapes*/
+    Rectangle cellMbr = new Rectangle();
+    /**Position in the data after the shapes*/
+    long pos;
+    /**Position in the file after the shapes. See getFilePosition()*/
+    long filePos;
+    /**Whether the read found any shapes*/
+    boolean read;
+    /**An error thrown while reading this batch in the background*/
+    Throwable error;
+  }
+
+  /**
+   * Reads the shapes of one call to {@link #nextShapes(ArrayWritable)} into
+   * the given batch.
+   * @param shapeClass
+   * @param batch
+   * @return <code>true</code> if any shapes were read
+   * @throws IOException
+   */
+  private boolean readShapes(Class<?> shapeClass,
+      ShapeBatch batch) throws IOException {
+    int count = 0;
+    batch.read = false;
     try {
-      Shape stockObject = (Shape) shapes.getValueClass().newInstance();
-      // Reached the end of this split
-      if (getPos() >= end)
+      // Reached the end of this split. A binary block that starts in this
+      // split is read to its end even if it goes beyond the split. A text
+      // line that starts exactly at the end of the split belongs to it.
+      if (!readToEOF && (blockType == BlockType.BINARY ?
+          pos >= end && blockRemaining == 0 : pos > end))
         return false;
       
-      long initialReadPos = getPos();
+      long initialReadPos = pos;
       long readBytes = 0;
+      Shape[] pool = batch.pool;
       
       // Read all shapes in this block
-      while ((maxShapesInOneRead <= 0 || vshapes.size() < maxShapesInOneRead) &&
-          (maxBytesInOneRead <= 0 || readBytes < maxBytesInOneRead) &&
-          nextShape(stockObject)) {
-        vshapes.add(stockObject.clone());
-        readBytes = getPos() - initialReadPos;
+      while ((maxShapesInOneRead <= 0 || count < maxShapesInOneRead) &&
+          (maxBytesInOneRead <= 0 || readBytes < maxBytesInOneRead)) {
+        if (count == pool.length)
+          batch.pool = pool = Arrays.copyOf(pool, Math.max(64, count * 2));
+        if (pool[count] == null || pool[count].getClass() != shapeClass)
+          pool[count] = (Shape) shapeClass.getDeclaredConstructor().newInstance();
+        if (!nextShape(pool[count]))
+          break;
+        count++;
+        readBytes = pos - initialReadPos;
       }
 
-      // Store them in the return value
-      shapes.set(vshapes.toArray(new Shape[vshapes.size()]));
+      // Store them in the batch
+      if (batch.shapes == null || batch.shapes.length != count)
+        batch.shapes = new Shape[count];
+      System.arraycopy(pool, 0, batch.shapes, 0, count);
+      batch.cellMbr.set(cellMbr);
+      batch.pos = pos;
+      batch.filePos = getFilePosition();
       
-      return vshapes.size() > 0;
+      return batch.read = count > 0;
     } catch (InstantiationException e1) {
       e1.printStackTrace();
     } catch (IllegalAccessException e1) {
       e1.printStackTrace();
+    } catch (NoSuchMethodException e1) {
+      e1.printStackTrace();
+    } catch (InvocationTargetException e1) {
+      e1.printStackTrace();
     } catch (OutOfMemoryError e) {
-      LOG.error("Error reading shapes. Stopped with "+vshapes.size()+" shapes");
+      LOG.error("Error reading shapes. Stopped with "+count+" shapes");
       throw e;
     }
     return false;
   }
+
+  /**
+   * Reads batches of shapes ahead of the caller of
+   * {@link SpatialRecordReader#nextShapes(ArrayWritable)}. Batches circulate
+   * between a queue of free batches, which this thread fills, and a queue of
+   * full batches, which the caller takes one at a time. The batch returned
+   * to the caller goes back to the free queue on the next call. Once this
+   * thread starts, it is the only one that touches the state of the reader.
+   * An error while reading is stored in the batch and thrown to the caller
+   * when it takes that batch.
+   */
+  private class ReadAheadThread extends Thread {
+    /**Class of the shapes to read*/
+    private final Class<?> shapeClass;
+    /**Batches ready to be filled*/
+    private final BlockingQueue<ShapeBatch> freeBatches;
+    /**Batches filled and waiting to be returned*/
+    private final BlockingQueue<ShapeBatch> fullBatches;
+    /**The batch returned by the last call to {@link #next(ArrayWritable)}*/
+    private ShapeBatch current;
+    /**Set after the last batch is returned*/
+    private boolean done;
+    /**Set when the reader is closed*/
+    private volatile boolean stopped;
+    /**Position in the data after the batch returned last*/
+    long pos;
+    /**Position in the file after the batch returned last*/
+    long filePos;
+
+    ReadAheadThread(Class<?> shapeClass, int numBatches)
+        throws IOException {
+      super("Read ahead "+path);
+      setDaemon(true);
+      this.shapeClass = shapeClass;
+      this.pos = SpatialRecordReader.this.pos;
+      this.filePos = getFilePosition();
+      // One more batch for the one being processed by the caller
+      freeBatches = new ArrayBlockingQueue<ShapeBatch>(numBatches + 1);
+      fullBatches = new ArrayBlockingQueue<ShapeBatch>(numBatches + 1);
+      for (int i = 0; i <= numBatches; i++)
+        freeBatches.add(new ShapeBatch());
+    }
+
+    @Override
+    public void run() {
+      try {
+        boolean read = true;
+        while (read && !stopped) {
+          ShapeBatch batch = freeBatches.take();
+          batch.error = null;
+          try {
+            read = readShapes(shapeClass, batch);
+          } catch (Throwable e) {
+            batch.error = e;
+            read = false;
+          }
+          fullBatches.put(batch);
+        }
+      } catch (InterruptedException e) {
+        // Interrupted by shutdown
+      }
+    }
+
+    /**
+     * Returns the next batch of shapes read in the background.
+     * @param shapes
+     * @return
+     * @throws IOException
+     */
+    boolean next(ArrayWritable shapes) throws IOException {
+      if (done)
+        return false;
+      if (current != null)
+        freeBatches.add(current);
+      try {
+        current = fullBatches.take();
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException("Interrupted while reading "+path);
+      }
+      if (current.error != null) {
+        done = true;
+        if (current.error instanceof Error)
+          throw (Error) current.error;
+        throw new IOException("Error reading ahead "+path, current.error);
+      }
+      if (!current.read) {
+        done = true;
+        return false;
+      }
+      shapes.set(current.shapes);
+      batchCellMbr.set(current.cellMbr);
+      pos = current.pos;
+      filePos = current.filePos;
+      return true;
+    }
+
+    /**
+     * Stops this thread and waits for it to finish the batch it is reading
+     * @throws IOException
+     */
+    void shutdown() throws IOException {
+      stopped = true;
+      interrupt();
+      try {
+        join();
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException("Interrupted while closing "+path);
+      }
+    }
+  }
   
+  /**
+   * Reads the next shape from a binary heap file. Records are read from
+   * blocks that start in this split. If records are stored with their MBRs,
+   * records outside the query range, if set, are skipped without parsing
+   * them, and a {@link LazyShape} is set without parsing the record.
+   * @param s
+   * @return
+   * @throws IOException
+   */
+  private boolean nextBinaryShape(Shape s) throws IOException {
+    if (pointColumns != null)
+      return nextColumnarShape(s);
+    while (true) {
+      while (blockRemaining == 0) {
+        if (!nextBinaryBlock(false))
+          return false;
+      }
+      int length = binaryIn.readInt();
+      pos += 4 + length;
+      blockRemaining--;
+      if (binaryHeader.recordMBR) {
+        recordMbr.readFields(binaryIn);
+        pos += 32;
+        if (queryRange != null && recordMbr.isValid() &&
+            (recordMbr.x2 < queryRange.x1 || recordMbr.x1 > queryRange.x2 ||
+             recordMbr.y2 < queryRange.y1 || recordMbr.y1 > queryRange.y2)) {
+          if (binaryIn.skipBytes(length) != length)
+            throw new EOFException("Unexpected end of binary file "+path);
+          continue;
+        }
+      }
+      if (length > recordBytes.length)
+        recordBytes = new byte[Math.max(length, recordBytes.length * 2)];
+      binaryIn.readFully(recordBytes, 0, length);
+      if (s instanceof LazyShape) {
+        LazyShape lazy = (LazyShape) s;
+        if (lazy.getStockShape() == null)
+          lazy.setStockShape(binaryHeader.createStockShape());
+        lazy.set(recordBytes, 0, length,
+            binaryHeader.recordMBR ? recordMbr : null);
+      } else {
+        recordIn.reset(recordBytes, length);
+        s.readFields(recordIn);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Reads the next point from a columnar binary file. Points outside the
+   * query range, if set, are skipped. Fields other than coordinates are
+   * read only if the given shape is a subclass of {@link Point}.
+   * @param s
+   * @return
+   * @throws IOException
+   */
+  private boolean nextColumnarShape(Shape s) throws IOException {
+    while (true) {
+      while (blockRemaining == 0) {
+        if (!nextBinaryBlock(s.getClass() != Point.class))
+          return false;
+      }
+      int i = pointColumns.count - blockRemaining--;
+      double x = pointColumns.xs[i];
+      double y = pointColumns.ys[i];
+      if (queryRange != null && (x < queryRange.x1 || x > queryRange.x2 ||
+          y < queryRange.y1 || y > queryRange.y2))
+        continue;
+      if (pointColumns.hasValues() && s.getClass() != Point.class) {
+        pointColumns.readValue(i, s);
+      } else if (s instanceof Point) {
+        ((Point) s).x = x;
+        ((Point) s).y = y;
+      } else {
+        throw new RuntimeException("Cannot read "+s.getClass()+
+            " from a columnar file of points");
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Moves to the next block of a binary heap file and reads its header.
+   * The first call searches for a sync marker from the start of the split.
+   * Subsequent calls expect the next block to start directly after the
+   * current one. Only blocks that start before the end of the split are
+   * read. Blocks with MBRs outside the query range, if set, are skipped.
+   * Blocks of columnar files are read completely except for fields other
+   * than coordinates which are skipped unless requested.
+   * @param readValues - whether to read fields other than coordinates of a
+   *   columnar block
+   * @return <code>true</code> if a block was found
+   * @throws IOException
+   */
+  private boolean nextBinaryBlock(boolean readValues) throws IOException {
+    byte[] sync = binaryHeader.sync;
+    byte[] window = new byte[sync.length];
+    while (true) {
+      if (!nextBinaryBlockHeader(sync, window))
+        return false;
+      int blockLength = binaryIn.readInt();
+      blockRemaining = binaryIn.readInt();
+      pos += 8;
+      if (binaryHeader.blockMBR) {
+        blockMbr.readFields(binaryIn);
+        pos += 32;
+        if (queryRange != null && (blockMbr.x2 < queryRange.x1 ||
+            blockMbr.x1 > queryRange.x2 || blockMbr.y2 < queryRange.y1 ||
+            blockMbr.y1 > queryRange.y2)) {
+          // Skip the whole block without parsing it
+          if (binaryIn.skipBytes(blockLength) != blockLength)
+            throw new EOFException("Unexpected end of binary file "+path);
+          pos += blockLength;
+          blockRemaining = 0;
+          continue;
+        }
+      } else {
+        blockMbr.invalidate();
+      }
+      if (pointColumns != null) {
+        pointColumns.readFields(binaryIn, blockRemaining, readValues);
+        pos += blockLength;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Finds the sync marker of the next block of a binary heap file
+   * @param sync
+   * @param window
+   * @return <code>true</code> if a block that belongs to this split was found
+   * @throws IOException
+   */
+  private boolean nextBinaryBlockHeader(byte[] sync, byte[] window) throws IOException {
+    if (!syncFound) {
+      // Search for the sync marker in a circular window of the last bytes
+      long n = 0;
+      while (true) {
+        if (n >= sync.length) {
+          if (!readToEOF && pos - sync.length >= end)
+            return false;
+          int first = (int) (n % sync.length);
+          int i = 0;
+          while (i < sync.length && window[(first + i) % sync.length] == sync[i])
+            i++;
+          if (i == sync.length)
+            break;
+        }
+        int b = binaryIn.read();
+        if (b < 0)
+          return false;
+        window[(int) (n++ % sync.length)] = (byte) b;
+        pos++;
+      }
+      syncFound = true;
+    } else {
+      if (!readToEOF && pos >= end)
+        return false;
+      int read = 0;
+      while (read < window.length) {
+        int r = binaryIn.read(window, read, window.length - read);
+        if (r < 0)
+          break;
+        read += r;
+      }
+      if (read == 0)
+        return false; // End of file
+      if (read < window.length || !Arrays.equals(window, sync))
+        throw new IOException("Sync marker not found at position "+pos+
+            " in binary file "+path);
+      pos += sync.length;
+    }
+    return true;
+  }
+
   /**
    * Reads the next RTree from file. The file must be part of an R-tree index.
    * If the file is not locally indexed using an R-tree, a runtime exception
@@ -482,7 +992,7 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
    */
   protected boolean nextRTree(RTree<? extends Shape> rtree) throws IOException {
     if (blockType == BlockType.RTREE) {
-      if (getPos() != 8)
+      if (pos != 8)
         return false;
       // Signature was already read in initialization.
       buffer = null;
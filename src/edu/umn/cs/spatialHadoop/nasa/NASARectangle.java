@@ -22,6 +22,7 @@ import java.io.IOException;
 import org.apache.hadoop.io.Text;
 
 import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.io.TextCursor;
 import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
 
 /**
@@ -79,11 +80,11 @@ public class NASARectangle extends Rectangle implements NASAShape {
   }
   
   @Override
-  public void fromText(Text text) {
-    super.fromText(text);
-    byte[] bytes = text.getBytes();
-    text.set(bytes, 1, text.getLength() - 1);
-    value = TextSerializerHelper.consumeInt(text, '\0');
+  public void fromText(TextCursor cursor) {
+    super.fromText(cursor);
+    // Skip the separator
+    cursor.setPosition(cursor.getPosition() + 1);
+    value = cursor.nextInt('\0');
   }
   
   @Override
@@ -0,0 +1,617 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package edu.umn.cs.spatialHadoop.operations;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Vector;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ChecksumFileSystem;
+import org.apache.hadoop.fs.FileContext;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Options;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.ClusterStatus;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+
+import edu.umn.cs.spatialHadoop.CommandLineArguments;
+import edu.umn.cs.spatialHadoop.core.CellInfo;
+import edu.umn.cs.spatialHadoop.core.CurvePartitioning;
+import edu.umn.cs.spatialHadoop.core.GlobalIndex;
+import edu.umn.cs.spatialHadoop.core.GridRecordWriter;
+import edu.umn.cs.spatialHadoop.core.Partition;
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.RTreeGridRecordWriter;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.mapred.GridOutputFormat;
+import edu.umn.cs.spatialHadoop.mapred.RTreeGridOutputFormat;
+import edu.umn.cs.spatialHadoop.mapred.ShapeInputFormat;
+import edu.umn.cs.spatialHadoop.mapred.ShapeRecordReader;
+
+/**
+ * Appends the records of a new file to a file that is already spatially
+ * indexed using {@link Repartition}. New records are assigned to the existing
+ * partitions and written as additional partition files in the indexed
+ * directory. Finally, the master file is replaced with one that contains
+ * both the old and the new partitions.
+ */
+public class Append {
+  static final Log LOG = LogFactory.getLog(Append.class);
+  
+  /**Whether records are replicated to all overlapping partitions or not*/
+  private static final String REPLICATE = "Append.Replicate";
+  
+  /**Whether partition files are R-trees or heap files*/
+  private static final String LOCAL_INDEX = "Append.LocalIndex";
+  
+  /**
+   * Assigns a shape to the cells it should be written to. If the index
+   * replicates records, the shape is assigned to all cells it overlaps.
+   * Otherwise, it is assigned to the cell with maximum overlap. If the shape
+   * does not overlap any cell, it is assigned to the nearest one.
+   * @param cells
+   * @param shapeMbr
+   * @param replicate
+   * @param output
+   */
+  static void assignToCells(CellInfo[] cells, Rectangle shapeMbr,
+      boolean replicate, ResultCollector<CellInfo> output) {
+    int bestCell = -1;
+    double maxOverlap = -1.0;
+    for (int cellIndex = 0; cellIndex < cells.length; cellIndex++) {
+      Rectangle overlap = cells[cellIndex].getIntersection(shapeMbr);
+      if (overlap != null) {
+        if (replicate) {
+          output.collect(cells[cellIndex]);
+          bestCell = cellIndex;
+        } else {
+          double overlapArea = overlap.getWidth() * overlap.getHeight();
+          if (bestCell == -1 || overlapArea > maxOverlap) {
+            maxOverlap = overlapArea;
+            bestCell = cellIndex;
+          }
+        }
+      }
+    }
+    if (bestCell == -1) {
+      // Shape lies outside all partitions. Choose the nearest one
+      double minDistance = Double.MAX_VALUE;
+      for (int cellIndex = 0; cellIndex < cells.length; cellIndex++) {
+        double distance = cells[cellIndex].getMinDistance(shapeMbr);
+        if (distance < minDistance) {
+          minDistance = distance;
+          bestCell = cellIndex;
+        }
+      }
+      output.collect(cells[bestCell]);
+    } else if (!replicate) {
+      output.collect(cells[bestCell]);
+    }
+  }
+  
+  /**
+   * The map function assigns each record to the existing partitions.
+   */
+  public static class AppendMap<T extends Shape> extends MapReduceBase
+      implements Mapper<Rectangle, T, IntWritable, T> {
+    /**List of cells used by the mapper*/
+    private CellInfo[] cellInfos;
+    
+    /**Whether to replicate records to all overlapping cells or not*/
+    private boolean replicate;
+    
+    /**Assigns records to cells by their keys if the index is partitioned
+     * along a curve*/
+    private CurvePartitioning partitioning;
+    
+    /**Used to output intermediate records*/
+    private IntWritable cellId = new IntWritable();
+    
+    @Override
+    public void configure(JobConf job) {
+      try {
+        cellInfos = SpatialSite.getCells(job);
+        replicate = job.getBoolean(REPLICATE, false);
+        if (job.get(Repartition.CURVE_PARTITIONING) != null) {
+          partitioning = new CurvePartitioning();
+          partitioning.fromText(new Text(job.get(Repartition.CURVE_PARTITIONING)));
+        }
+        super.configure(job);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+    
+    public void map(Rectangle cellMbr, final T shape,
+        final OutputCollector<IntWritable, T> output, Reporter reporter)
+        throws IOException {
+      Rectangle shape_mbr = shape.getMBR();
+      if (shape_mbr == null)
+        return;
+      // Only send shape to output if its lowest corner lies in the cellMBR
+      // This ensures that a replicated shape in an already partitioned file
+      // doesn't get send to output from all partitions
+      if (!cellMbr.isValid() || cellMbr.contains(shape_mbr.x1, shape_mbr.y1)) {
+        if (partitioning != null) {
+          cellId.set(partitioning.getPartitionId(shape_mbr));
+          output.collect(cellId, shape);
+          return;
+        }
+        assignToCells(cellInfos, shape_mbr, replicate, new ResultCollector<CellInfo>() {
+          @Override
+          public void collect(CellInfo cell) {
+            try {
+              cellId.set((int) cell.cellId);
+              output.collect(cellId, shape);
+            } catch (IOException e) {
+              throw new RuntimeException(e);
+            }
+          }
+        });
+      }
+    }
+  }
+  
+  /**
+   * Writes all records of one cell. For heap files, the cell is closed and
+   * a new file is started whenever the current file reaches the block size.
+   * R-tree files are split by the record writer itself.
+   */
+  public static class AppendReduce<T extends Shape> extends MapReduceBase
+      implements Reducer<IntWritable, T, IntWritable, T> {
+    
+    /**Maximum size of one partition file. Zero for no limit*/
+    private long blockSize;
+    
+    /**Used to calculate the size of each record*/
+    private Text text = new Text();
+
+    @Override
+    public void configure(JobConf job) {
+      super.configure(job);
+      blockSize = job.getBoolean(LOCAL_INDEX, false) ? 0 :
+        job.getLong(SpatialSite.LOCAL_INDEX_BLOCK_SIZE, 0);
+    }
+    
+    @Override
+    public void reduce(IntWritable cellIndex, Iterator<T> shapes,
+        OutputCollector<IntWritable, T> output, Reporter reporter)
+        throws IOException {
+      T shape = null;
+      long cellSize = 0;
+      while (shapes.hasNext()) {
+        shape = shapes.next();
+        if (blockSize > 0) {
+          text.clear();
+          shape.toText(text);
+          if (cellSize > 0 && cellSize + text.getLength() + 1 > blockSize) {
+            // Close current file and start a new one
+            output.collect(new IntWritable(-cellIndex.get()), shape);
+            cellSize = 0;
+          }
+          cellSize += text.getLength() + 1;
+        }
+        output.collect(cellIndex, shape);
+      }
+      // Close cell
+      output.collect(new IntWritable(-cellIndex.get()), shape);
+    }
+  }
+  
+  /**
+   * Computes the cells to which new records are assigned. If the index
+   * replicates records, partitions that belong to the same cell (i.e.,
+   * overlapping partitions) are merged into one cell and the cells are grown
+   * to close the gaps left by packing partitions to their contents. Cells on
+   * the boundary of the index are extended to cover the new data. Otherwise,
+   * each partition is used as a cell.
+   * @param gIndex
+   * @param newDataMBR
+   * @return
+   */
+  static CellInfo[] cellsForAppend(GlobalIndex<Partition> gIndex,
+      Rectangle newDataMBR) {
+    Vector<Rectangle> cells = new Vector<Rectangle>();
+    // New cells take new IDs to keep them apart from the existing ones
+    long firstCellId = 1;
+    for (Partition p : gIndex) {
+      firstCellId = Math.max(firstCellId, p.cellId + 1);
+      Rectangle cell = new Rectangle(p);
+      if (gIndex.isReplicated()) {
+        // Merge with all cells that overlap its interior
+        int i = 0;
+        while (i < cells.size()) {
+          Rectangle c = cells.elementAt(i);
+          if (c.x1 < cell.x2 && cell.x1 < c.x2 && c.y1 < cell.y2 && cell.y1 < c.y2) {
+            cell = cell.union(c);
+            cells.remove(i);
+            i = 0;
+          } else {
+            i++;
+          }
+        }
+      }
+      cells.add(cell);
+    }
+    if (gIndex.isReplicated() && newDataMBR != null) {
+      // Grow along x first then along y. Each cell is extended towards its
+      // nearest neighbor to the right (top) so that cells never overlap.
+      Rectangle[] original = new Rectangle[cells.size()];
+      for (int i = 0; i < original.length; i++)
+        original[i] = new Rectangle(cells.elementAt(i));
+      for (int i = 0; i < original.length; i++) {
+        Rectangle cell = cells.elementAt(i);
+        double right = newDataMBR.x2;
+        boolean leftBoundary = true;
+        for (Rectangle c : original) {
+          if (c.y1 < cell.y2 && cell.y1 < c.y2) {
+            if (c.x1 >= cell.x2)
+              right = Math.min(right, c.x1);
+            if (c.x2 <= cell.x1)
+              leftBoundary = false;
+          }
+        }
+        cell.x2 = Math.max(cell.x2, right);
+        if (leftBoundary)
+          cell.x1 = Math.min(cell.x1, newDataMBR.x1);
+      }
+      for (int i = 0; i < original.length; i++)
+        original[i] = new Rectangle(cells.elementAt(i));
+      for (int i = 0; i < original.length; i++) {
+        Rectangle cell = cells.elementAt(i);
+        double top = newDataMBR.y2;
+        boolean bottomBoundary = true;
+        for (Rectangle c : original) {
+          if (c.x1 < cell.x2 && cell.x1 < c.x2) {
+            if (c.y1 >= cell.y2)
+              top = Math.min(top, c.y1);
+            if (c.y2 <= cell.y1)
+              bottomBoundary = false;
+          }
+        }
+        cell.y2 = Math.max(cell.y2, top);
+        if (bottomBoundary)
+          cell.y1 = Math.min(cell.y1, newDataMBR.y1);
+      }
+    }
+    CellInfo[] cellInfos = new CellInfo[cells.size()];
+    for (int i = 0; i < cells.size(); i++)
+      cellInfos[i] = new CellInfo(firstCellId + i, cells.elementAt(i));
+    return cellInfos;
+  }
+  
+  /**
+   * Returns the master file of an indexed directory or <code>null</code>
+   * if the directory is not indexed.
+   * @param fs
+   * @param indexDir
+   * @return
+   * @throws IOException
+   */
+  static Path getMasterFile(FileSystem fs, Path indexDir) throws IOException {
+    FileStatus[] masterFiles = fs.listStatus(indexDir, new PathFilter() {
+      @Override
+      public boolean accept(Path path) {
+        return path.getName().startsWith("_master");
+      }
+    });
+    return masterFiles.length == 0 ? null : masterFiles[0].getPath();
+  }
+  
+  /**
+   * Appends the records in the given file to an indexed directory.
+   * @param inFile - the file that contains new records
+   * @param indexDir - a directory indexed using {@link Repartition}
+   * @param params
+   * @throws IOException
+   */
+  public static void append(Path inFile, Path indexDir,
+      CommandLineArguments params) throws IOException {
+    Shape stockShape = params.getShape("shape");
+    FileSystem inFs = inFile.getFileSystem(params);
+    FileSystem indexFs = indexDir.getFileSystem(params);
+    
+    GlobalIndex<Partition> gIndex = SpatialSite.getGlobalIndex(indexFs, indexDir);
+    Path masterFile = getMasterFile(indexFs, indexDir);
+    if (gIndex == null || masterFile == null)
+      throw new RuntimeException("'"+indexDir+"' is not spatially indexed");
+    String masterName = masterFile.getName();
+    boolean pack = masterName.endsWith(".r+tree");
+    boolean expand = masterName.endsWith(".rtree");
+    boolean localIndex = SpatialSite.isRTree(indexFs, indexDir);
+    long blockSize = indexFs.getFileStatus(new Path(indexDir,
+        gIndex.iterator().next().filename)).getBlockSize();
+    
+    CurvePartitioning partitioning = gIndex.getCurvePartitioning();
+    CellInfo[] cells;
+    if (partitioning != null) {
+      // Keep the key ranges of the existing partitions
+      cells = partitioning.getCells();
+    } else {
+      Rectangle newDataMBR = gIndex.isReplicated() ?
+          FileMBR.fileMBR(inFs, inFile, params) : null;
+      cells = cellsForAppend(gIndex, newDataMBR);
+    }
+    LOG.info("Appending '"+inFile+"' to "+cells.length+" cells of '"+indexDir+"'");
+    
+    // New partitions are first written to a hidden directory in the index
+    Path tempDir;
+    do {
+      tempDir = new Path(indexDir, "_append_"+(int)(Math.random()*1000000));
+    } while (indexFs.exists(tempDir));
+    
+    FileStatus inFStatus = inFs.getFileStatus(inFile);
+    boolean autoLocal = !(inFStatus.isDirectory() ||
+        inFStatus.getLen() / inFStatus.getBlockSize() > 3);
+    try {
+      if (params.is("local", autoLocal)) {
+        appendLocal(inFile, tempDir, stockShape, blockSize, cells,
+            gIndex.isReplicated(), pack, expand, localIndex, partitioning);
+      } else {
+        appendMapReduce(inFile, tempDir, stockShape, blockSize, cells,
+            gIndex.isReplicated(), pack, expand, localIndex, partitioning);
+        if (partitioning != null && !(stockShape instanceof Point))
+          partitioning.maxWidth = partitioning.maxHeight = -1;
+      }
+      commitAppend(indexFs, indexDir, tempDir, masterName, partitioning);
+    } finally {
+      indexFs.delete(tempDir, true);
+    }
+  }
+  
+  /**
+   * Writes new partitions on the local machine without MapReduce.
+   */
+  private static <S extends Shape> void appendLocal(Path inFile, Path tempDir,
+      S stockShape, long blockSize, CellInfo[] cells, final boolean replicate,
+      boolean pack, boolean expand, boolean localIndex,
+      CurvePartitioning partitioning) throws IOException {
+    FileSystem inFs = inFile.getFileSystem(new Configuration());
+    FileSystem outFs = tempDir.getFileSystem(new Configuration());
+    outFs.mkdirs(tempDir);
+    
+    final GridRecordWriter<Shape> writer;
+    if (localIndex) {
+      writer = new RTreeGridRecordWriter<Shape>(tempDir, null, null, cells, pack, expand);
+      writer.setStockObject(stockShape);
+    } else {
+      writer = new GridRecordWriter<Shape>(tempDir, null, null, cells, pack, expand);
+    }
+    writer.setBlockSize(blockSize);
+    
+    // Size of the current file of each cell. Used to split heap files
+    int highestCellId = 0;
+    for (CellInfo cell : cells)
+      highestCellId = Math.max(highestCellId, (int) cell.cellId);
+    final long[] cellSizes = new long[highestCellId + 1];
+    final long maxCellSize = localIndex ? 0 : blockSize;
+    final Text text = new Text();
+    
+    long length = inFs.getFileStatus(inFile).getLen();
+    ShapeRecordReader<S> reader = new ShapeRecordReader<S>(new Configuration(),
+        new FileSplit(inFile, 0, length, new String[] {}));
+    Rectangle c = reader.createKey();
+    final Shape shape = stockShape;
+    ResultCollector<CellInfo> cellWriter = new ResultCollector<CellInfo>() {
+      @Override
+      public void collect(CellInfo cell) {
+        try {
+          int cellIndex = (int) cell.cellId;
+          if (maxCellSize > 0) {
+            text.clear();
+            shape.toText(text);
+            if (cellSizes[cellIndex] > 0 &&
+                cellSizes[cellIndex] + text.getLength() + 1 > maxCellSize) {
+              // Close current file and start a new one
+              writer.write(-cellIndex, shape);
+              cellSizes[cellIndex] = 0;
+            }
+            cellSizes[cellIndex] += text.getLength() + 1;
+          }
+          writer.write(cellIndex, shape);
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    while (reader.next(c, stockShape)) {
+      Rectangle mbr = stockShape.getMBR();
+      if (mbr == null)
+        continue;
+      if (partitioning != null) {
+        partitioning.expandRecordSize(mbr);
+        cellWriter.collect(cells[partitioning.getPartitionId(mbr) - 1]);
+      } else {
+        assignToCells(cells, mbr, replicate, cellWriter);
+      }
+    }
+    reader.close();
+    writer.close(null);
+  }
+  
+  /**
+   * Writes new partitions using a MapReduce job.
+   */
+  private static void appendMapReduce(Path inFile, Path tempDir,
+      Shape stockShape, long blockSize, CellInfo[] cells, boolean replicate,
+      boolean pack, boolean expand, boolean localIndex,
+      CurvePartitioning partitioning) throws IOException {
+    JobConf job = new JobConf(Append.class);
+    job.setJobName("Append");
+    
+    job.setMapperClass(AppendMap.class);
+    job.setMapOutputKeyClass(IntWritable.class);
+    job.setMapOutputValueClass(stockShape.getClass());
+    ShapeInputFormat.setInputPaths(job, inFile);
+    job.setInputFormat(ShapeInputFormat.class);
+    job.setBoolean(SpatialSite.PACK_CELLS, pack);
+    job.setBoolean(SpatialSite.EXPAND_CELLS, expand);
+    job.setBoolean(REPLICATE, replicate);
+    job.setBoolean(LOCAL_INDEX, localIndex);
+    if (partitioning != null) {
+      Text text = new Text();
+      partitioning.toText(text);
+      job.set(Repartition.CURVE_PARTITIONING, text.toString());
+    }
+
+    ClusterStatus clusterStatus = new JobClient(job).getClusterStatus();
+    job.setNumMapTasks(10 * Math.max(1, clusterStatus.getMaxMapTasks()));
+    SpatialSite.setShapeClass(job, stockShape.getClass());
+    
+    FileOutputFormat.setOutputPath(job, tempDir);
+    if (localIndex)
+      job.setOutputFormat(RTreeGridOutputFormat.class);
+    else
+      job.setOutputFormat(GridOutputFormat.class);
+    job.setLong(SpatialSite.LOCAL_INDEX_BLOCK_SIZE, blockSize);
+    SpatialSite.setCells(job, cells);
+
+    job.setReducerClass(AppendReduce.class);
+    job.setNumReduceTasks(Math.max(1, Math.min(cells.length,
+        (clusterStatus.getMaxReduceTasks() * 9 + 5) / 10)));
+    // Combines master files written by reducers into one file
+    job.setOutputCommitter(Repartition.RepartitionOutputCommitter.class);
+    
+    JobClient.runJob(job);
+  }
+  
+  /**
+   * Moves the partitions written to the temporary directory into the index
+   * directory and replaces the master file with one that lists both the old
+   * and the new partitions. The new master file is first written to the
+   * temporary directory and then renamed over the old one in one step, so
+   * readers see either the old or the new index.
+   * @param fs
+   * @param indexDir
+   * @param tempDir
+   * @param masterName - name of the master file in the index directory
+   * @param partitioning - the partitioning of an index along a curve updated
+   *   with the size of new records or <code>null</code>
+   * @throws IOException
+   */
+  private static void commitAppend(FileSystem fs, Path indexDir, Path tempDir,
+      String masterName, CurvePartitioning partitioning) throws IOException {
+    GlobalIndex<Partition> newPartitions = SpatialSite.getGlobalIndex(fs, tempDir);
+    if (newPartitions == null) {
+      LOG.warn("No records were appended to '"+indexDir+"'");
+      return;
+    }
+    
+    Vector<Partition> appendedPartitions = new Vector<Partition>();
+    for (Partition p : newPartitions) {
+      Path dst = new Path(indexDir, p.filename);
+      for (int i = 1; fs.exists(dst); i++)
+        dst = new Path(indexDir, String.format("a%d_%s", i, p.filename));
+      if (!fs.rename(new Path(tempDir, p.filename), dst))
+        throw new IOException("Could not move '"+p.filename+"' to '"+dst+"'");
+      Partition newPartition = p.clone();
+      newPartition.filename = dst.getName();
+      appendedPartitions.add(newPartition);
+    }
+    
+    Path masterPath = new Path(indexDir, masterName);
+    Path newMaster = new Path(tempDir, "_new_master");
+    OutputStream out = fs.create(newMaster);
+    // Old entries are copied as is to keep their boundaries unchanged
+    InputStream in = fs.open(masterPath);
+    IOUtils.copyBytes(in, out, fs.getConf(), false);
+    in.close();
+    Text line = new Text();
+    byte[] newLine = System.getProperty("line.separator").getBytes();
+    for (Partition p : appendedPartitions) {
+      line.clear();
+      p.toText(line);
+      out.write(line.getBytes(), 0, line.getLength());
+      out.write(newLine);
+    }
+    out.close();
+    if (partitioning != null) {
+      // Record sizes can only grow so the new partitioning is also valid
+      // for the old index. Replace it first.
+      partitioning.write(fs, tempDir);
+      replaceFile(fs, new Path(tempDir, CurvePartitioning.CurveFile),
+          new Path(indexDir, CurvePartitioning.CurveFile));
+    }
+    // Replace the master file in one step so that readers see either the old
+    // or the new global index
+    replaceFile(fs, newMaster, masterPath);
+    LOG.info("Appended "+newPartitions.size()+" partitions to '"+indexDir+"'");
+  }
+  
+  /**
+   * Renames a file over an existing one in one step.
+   * @param fs
+   * @param src
+   * @param dst
+   * @throws IOException
+   */
+  static void replaceFile(FileSystem fs, Path src, Path dst)
+      throws IOException {
+    FileContext.getFileContext(fs.getUri(), fs.getConf()).rename(
+        fs.makeQualified(src), fs.makeQualified(dst), Options.Rename.OVERWRITE);
+    if (fs instanceof ChecksumFileSystem) {
+      // The local file system leaves the old checksum file behind
+      ChecksumFileSystem cfs = (ChecksumFileSystem) fs;
+      cfs.getRawFileSystem().delete(cfs.getChecksumFile(dst), false);
+      cfs.getRawFileSystem().rename(cfs.getChecksumFile(src),
+          cfs.getChecksumFile(dst));
+    }
+  }
+  
+  private static void printUsage() {
+    System.out.println("Appends new records to a spatially indexed file");
+    System.out.println("Parameters (* marks required parameters):");
+    System.out.println("<input file> - (*) Path to file with new records");
+    System.out.println("<indexed file> - (*) Path to the indexed file");
+    System.out.println("shape:<point|rectangle|polygon> - (*) Type of shapes stored in input file");
+    System.out.println("-local - Write new partitions on the local machine");
+  }
+  
+  /**
+   * @param args
+   * @throws IOException
+   */
+  public static void main(String[] args) throws IOException {
+    CommandLineArguments params = new CommandLineArguments(args);
+    Path[] paths = params.getPaths();
+    if (paths.length != 2 || params.getShape("shape") == null) {
+      printUsage();
+      return;
+    }
+    long t1 = System.currentTimeMillis();
+    append(paths[0], paths[1], params);
+    long t2 = System.currentTimeMillis();
+    System.out.println("Total append time in millis "+(t2-t1));
+  }
+}
@@ -0,0 +1,283 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package edu.umn.cs.spatialHadoop.operations;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileOutputCommitter;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.JobContext;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.LineReader;
+
+import edu.umn.cs.spatialHadoop.CommandLineArguments;
+import edu.umn.cs.spatialHadoop.core.BlockInfo;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.mapred.ShapeInputFormat;
+import edu.umn.cs.spatialHadoop.mapred.ShapeRecordReader;
+import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat;
+
+/**
+ * Computes the MBR and number of records of each block of a non-indexed
+ * file and stores them next to the file as described in {@link BlockInfo}.
+ * Jobs that set {@link SpatialSite#INPUT_QUERY_RANGE} skip blocks outside
+ * the range which gives non-indexed files a coarse index in one pass.
+ */
+public class BlockMBR {
+  /**Logger for BlockMBR*/
+  private static final Log LOG = LogFactory.getLog(BlockMBR.class);
+
+  /**
+   * Summarizes each split into one block. The block is written when the
+   * split is done as the mapper does not know the last record of a split.
+   */
+  public static class BlockMBRMapper extends MapReduceBase implements
+      Mapper<Rectangle, Shape, Text, BlockInfo> {
+
+    /**Last input split processed (initially null)*/
+    private InputSplit lastSplit = null;
+
+    /**Path of the file currently being processed*/
+    private Text filePath;
+
+    /**Summary of the current split*/
+    private BlockInfo block;
+
+    /**Used to write the summary of the last split when the mapper closes*/
+    private OutputCollector<Text, BlockInfo> output;
+
+    public void map(Rectangle dummy, Shape shape,
+        OutputCollector<Text, BlockInfo> output, Reporter reporter)
+            throws IOException {
+      if (lastSplit != reporter.getInputSplit()) {
+        flush();
+        lastSplit = reporter.getInputSplit();
+        FileSplit fsplit = (FileSplit) lastSplit;
+        filePath = new Text(fsplit.getPath().toString());
+        block = new BlockInfo(fsplit.getStart(), fsplit.getLength());
+        this.output = output;
+      }
+      Rectangle mbr = shape.getMBR();
+      if (mbr != null)
+        block.addRecord(mbr);
+    }
+
+    private void flush() throws IOException {
+      if (block != null && block.recordCount > 0)
+        output.collect(filePath, block);
+      block = null;
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
+
+  /**
+   * Writes the blocks computed by the job next to each input file
+   */
+  public static class BlockMBROutputCommitter extends FileOutputCommitter {
+    @Override
+    public void commitJob(JobContext context) throws IOException {
+      super.commitJob(context);
+      JobConf job = context.getJobConf();
+      Path outPath = TextOutputFormat.getOutputPath(job);
+      FileSystem outFs = outPath.getFileSystem(job);
+      Map<String, List<BlockInfo>> fileBlocks =
+          new HashMap<String, List<BlockInfo>>();
+      for (FileStatus fileStatus : outFs.listStatus(outPath)) {
+        if (fileStatus.getLen() > 0 && fileStatus.getPath().getName().startsWith("part-")) {
+          LineReader lineReader = new LineReader(outFs.open(fileStatus.getPath()));
+          Text line = new Text();
+          while (lineReader.readLine(line) > 0) {
+            String str = line.toString();
+            int tab = str.indexOf('\t');
+            String file = str.substring(0, tab);
+            BlockInfo block = new BlockInfo();
+            block.fromText(new Text(str.substring(tab + 1)));
+            List<BlockInfo> blocks = fileBlocks.get(file);
+            if (blocks == null)
+              fileBlocks.put(file, blocks = new ArrayList<BlockInfo>());
+            blocks.add(block);
+          }
+          lineReader.close();
+        }
+      }
+      for (Map.Entry<String, List<BlockInfo>> entry : fileBlocks.entrySet()) {
+        Path file = new Path(entry.getKey());
+        FileSystem fs = file.getFileSystem(job);
+        writeBlocks(fs, file, entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Writes the given blocks of a file after sorting them. Gaps between
+   * blocks are splits with no records and they are stored as empty blocks.
+   * @param fs
+   * @param file
+   * @param blocks
+   * @throws IOException
+   */
+  private static void writeBlocks(FileSystem fs, Path file,
+      List<BlockInfo> blocks) throws IOException {
+    Collections.sort(blocks, new Comparator<BlockInfo>() {
+      @Override
+      public int compare(BlockInfo b1, BlockInfo b2) {
+        return b1.start < b2.start ? -1 : (b1.start > b2.start ? 1 : 0);
+      }
+    });
+    long fileLength = fs.getFileStatus(file).getLen();
+    List<BlockInfo> allBlocks = new ArrayList<BlockInfo>();
+    long end = 0;
+    for (BlockInfo block : blocks) {
+      if (block.start > end)
+        allBlocks.add(new BlockInfo(end, block.start - end));
+      allBlocks.add(block);
+      end = block.start + block.length;
+    }
+    if (end < fileLength)
+      allBlocks.add(new BlockInfo(end, fileLength - end));
+    BlockInfo.writeBlocks(fs, file,
+        allBlocks.toArray(new BlockInfo[allBlocks.size()]));
+  }
+
+  public static void blockMBRMapReduce(FileSystem fs, Path file,
+      CommandLineArguments params) throws IOException {
+    Shape shape = params.getShape("shape");
+    JobConf job = new JobConf(BlockMBR.class);
+
+    Path outputPath;
+    FileSystem outFs = FileSystem.get(job);
+    do {
+      outputPath = new Path(file.getName()+".blocks_"+(int)(Math.random()*1000000));
+    } while (outFs.exists(outputPath));
+
+    job.setJobName("BlockMBR");
+    job.setMapOutputKeyClass(Text.class);
+    job.setMapOutputValueClass(BlockInfo.class);
+    job.setMapperClass(BlockMBRMapper.class);
+    job.setNumReduceTasks(0);
+
+    job.setInputFormat(ShapeInputFormat.class);
+    SpatialSite.setShapeClass(job, shape.getClass());
+    job.setOutputFormat(TextOutputFormat.class);
+
+    ShapeInputFormat.setInputPaths(job, file);
+    TextOutputFormat.setOutputPath(job, outputPath);
+    job.setOutputCommitter(BlockMBROutputCommitter.class);
+
+    JobClient.runJob(job);
+    outFs.delete(outputPath, true);
+  }
+
+  public static void blockMBRLocal(FileSystem fs, Path file,
+      CommandLineArguments params) throws IOException {
+    Shape shape = params.getShape("shape");
+    FileStatus fileStatus = fs.getFileStatus(file);
+    if (fileStatus.isDirectory()) {
+      for (FileStatus status : fs.listStatus(file, SpatialSite.NonHiddenFileFilter))
+        blockMBRLocal(fs, status.getPath(), params);
+      return;
+    }
+    long length = fileStatus.getLen();
+    long blockSize = fileStatus.getBlockSize();
+    List<BlockInfo> blocks = new ArrayList<BlockInfo>();
+    for (long start = 0; start < length; start += blockSize) {
+      BlockInfo block = new BlockInfo(start, Math.min(blockSize, length - start));
+      ShapeRecordReader<Shape> reader = new ShapeRecordReader<Shape>(params,
+          new FileSplit(file, block.start, block.length, new String[] {}));
+      Rectangle key = reader.createKey();
+      while (reader.next(key, shape)) {
+        Rectangle mbr = shape.getMBR();
+        if (mbr != null)
+          block.addRecord(mbr);
+      }
+      reader.close();
+      blocks.add(block);
+    }
+    writeBlocks(fs, file, blocks);
+  }
+
+  public static void blockMBR(FileSystem fs, Path inFile,
+      CommandLineArguments params) throws IOException {
+    if (SpatialSite.getGlobalIndex(fs, inFile) != null)
+      throw new RuntimeException("'"+inFile+"' is globally indexed");
+    FileStatus inFStatus = fs.getFileStatus(inFile);
+    boolean autoLocal = !(inFStatus.isDirectory() ||
+        inFStatus.getLen() / inFStatus.getBlockSize() > 3);
+    if (params.is("local", autoLocal)) {
+      LOG.info("Computing blocks of '"+inFile+"' locally");
+      blockMBRLocal(fs, inFile, params);
+    } else {
+      blockMBRMapReduce(fs, inFile, params);
+    }
+  }
+
+  private static void printUsage() {
+    System.out.println("Computes the MBR of each block of a non-indexed file");
+    System.out.println("Parameters: (* marks required parameters)");
+    System.out.println("<input file>: (*) Path to input file");
+    System.out.println("shape:<input shape>: (*) Input file format");
+    System.out.println("-local: Compute without MapReduce");
+  }
+
+  /**
+   * @param args
+   * @throws IOException
+   */
+  public static void main(String[] args) throws IOException {
+    CommandLineArguments params = new CommandLineArguments(args);
+    Path inputFile = params.getInputPath();
+    if (inputFile == null) {
+      printUsage();
+      return;
+    }
+    FileSystem fs = inputFile.getFileSystem(params);
+    if (!fs.exists(inputFile)) {
+      LOG.error("Input file '"+inputFile+"' does not exist");
+      printUsage();
+      return;
+    }
+    if (params.getShape("shape") == null) {
+      LOG.error("Input file format not specified");
+      printUsage();
+      return;
+    }
+    long t1 = System.currentTimeMillis();
+    blockMBR(fs, inputFile, params);
+    long t2 = System.currentTimeMillis();
+    System.out.println("Total processing time: "+(t2-t1)+" millis");
+  }
+}
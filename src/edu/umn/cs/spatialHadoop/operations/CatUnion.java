@@ -164,7 +164,7 @@ public class CatUnion {
       Vector<OGCGeometry> shapes = new Vector<OGCGeometry>();
       while (shape_lines.hasNext()) {
         shape.fromText(shape_lines.next());
-        shapes.add(shape.geom);
+        shapes.add(shape.getGeometry());
       }
       OGCGeometryCollection geo_collection = new OGCConcreteGeometryCollection(shapes,
           shapes.firstElement().getEsriSpatialReference());
@@ -266,7 +266,7 @@ public class CatUnion {
           geometries = new Vector<OGCGeometry>();
           categoryShapes.put(category, geometries);
         }
-        geometries.add(shape.geom);
+        geometries.add(shape.getGeometry());
       }
     }
     
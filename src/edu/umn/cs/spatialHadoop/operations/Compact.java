@@ -0,0 +1,587 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package edu.umn.cs.spatialHadoop.operations;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Vector;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.util.LineReader;
+
+import edu.umn.cs.spatialHadoop.CommandLineArguments;
+import edu.umn.cs.spatialHadoop.core.CellInfo;
+import edu.umn.cs.spatialHadoop.core.CurvePartitioning;
+import edu.umn.cs.spatialHadoop.core.GlobalIndex;
+import edu.umn.cs.spatialHadoop.core.GridRecordWriter;
+import edu.umn.cs.spatialHadoop.core.Partition;
+import edu.umn.cs.spatialHadoop.core.RTreeGridRecordWriter;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpaceFillingCurve;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
+import edu.umn.cs.spatialHadoop.mapred.ShapeRecordReader;
+
+/**
+ * Merges small partitions of a file indexed using {@link Repartition} into
+ * partitions of up to one block each. Only small partitions that are next
+ * to each other are merged:
+ * <ul>
+ * <li>For an index partitioned along a curve, consecutive partitions in
+ * curve order are merged and the key ranges of the partitioning are updated.
+ * </li>
+ * <li>For an index that replicates records, two partitions are merged only
+ * if they share a complete edge, so that the merged partition is still a
+ * rectangle, and records replicated to both of them are written once.</li>
+ * <li>For other indexes, partitions are merged in the order of the Hilbert
+ * curve of their centers.</li>
+ * </ul>
+ * Merged partitions are written to a temporary directory, including their
+ * local indexes, and moved into the indexed directory. The master file is
+ * then replaced in one step. All other partitions are not touched.
+ */
+public class Compact {
+  static final Log LOG = LogFactory.getLog(Compact.class);
+
+  /**
+   * A set of partitions that are merged into one partition
+   */
+  static class PartitionGroup {
+    Vector<Partition> partitions = new Vector<Partition>();
+    /**Union of the MBRs of all partitions*/
+    Rectangle mbr;
+    /**Total size of all partition files in bytes*/
+    long size;
+
+    void add(Partition p, long partitionSize) {
+      partitions.add(p);
+      size += partitionSize;
+      if (mbr == null)
+        mbr = new Rectangle(p);
+      else
+        mbr = mbr.union(p);
+    }
+
+    void addAll(PartitionGroup group) {
+      partitions.addAll(group.partitions);
+      size += group.size;
+      mbr = mbr.union(group.mbr);
+    }
+  }
+
+  /**
+   * Groups small partitions of an index partitioned along a curve. A run of
+   * consecutive cells that consist only of small partitions is merged into
+   * one cell. Small partitions of a cell that also has large ones (e.g.,
+   * written by {@link Append}) are merged together. No group exceeds the
+   * block size unless it has a single partition.
+   * @param gIndex
+   * @param sizes - size of each partition file
+   * @param smallSize - partitions smaller than this size are merged
+   * @param blockSize - maximum size of a merged partition
+   * @return
+   */
+  static Vector<PartitionGroup> groupAlongCurve(GlobalIndex<Partition> gIndex,
+      Map<String, Long> sizes, long smallSize, long blockSize) {
+    TreeMap<Long, Vector<Partition>> cells = new TreeMap<Long, Vector<Partition>>();
+    for (Partition p : gIndex) {
+      if (!cells.containsKey(p.cellId))
+        cells.put(p.cellId, new Vector<Partition>());
+      cells.get(p.cellId).add(p);
+    }
+    Vector<PartitionGroup> groups = new Vector<PartitionGroup>();
+    PartitionGroup run = null;
+    for (Vector<Partition> cell : cells.values()) {
+      long cellSize = 0;
+      boolean allSmall = true;
+      for (Partition p : cell) {
+        cellSize += sizes.get(p.filename);
+        allSmall = allSmall && sizes.get(p.filename) < smallSize;
+      }
+      if (allSmall) {
+        if (run == null || run.size + cellSize > blockSize) {
+          addGroup(groups, run);
+          run = new PartitionGroup();
+        }
+        // A cell of many small partitions may itself exceed the block size
+        for (Partition p : cell) {
+          long size = sizes.get(p.filename);
+          if (run.size > 0 && run.size + size > blockSize) {
+            addGroup(groups, run);
+            run = new PartitionGroup();
+          }
+          run.add(p, size);
+        }
+      } else {
+        addGroup(groups, run);
+        run = null;
+        PartitionGroup small = new PartitionGroup();
+        for (Partition p : cell) {
+          long size = sizes.get(p.filename);
+          if (size >= smallSize)
+            continue;
+          if (small.size + size > blockSize) {
+            addGroup(groups, small);
+            small = new PartitionGroup();
+          }
+          small.add(p, size);
+        }
+        addGroup(groups, small);
+      }
+    }
+    addGroup(groups, run);
+    return groups;
+  }
+
+  /**
+   * Groups small partitions of an index that replicates records. First,
+   * partitions in the same row that share a vertical edge are merged, then
+   * the resulting partitions in the same column that share a horizontal
+   * edge. Partitions that overlap other partitions, e.g., because the cell
+   * was written in more than one file, are never merged as the merged
+   * partition would cover records of the other ones.
+   * @param gIndex
+   * @param sizes
+   * @param smallSize
+   * @param blockSize
+   * @return
+   */
+  static Vector<PartitionGroup> groupAdjacentCells(GlobalIndex<Partition> gIndex,
+      Map<String, Long> sizes, long smallSize, long blockSize) {
+    Vector<PartitionGroup> candidates = new Vector<PartitionGroup>();
+    for (Partition p : gIndex) {
+      if (sizes.get(p.filename) >= smallSize)
+        continue;
+      boolean overlaps = false;
+      for (Partition other : gIndex) {
+        if (other != p && other.x1 < p.x2 && p.x1 < other.x2 &&
+            other.y1 < p.y2 && p.y1 < other.y2)
+          overlaps = true;
+      }
+      if (!overlaps) {
+        PartitionGroup group = new PartitionGroup();
+        group.add(p, sizes.get(p.filename));
+        candidates.add(group);
+      }
+    }
+    candidates = mergeAdjacent(candidates, blockSize, true);
+    candidates = mergeAdjacent(candidates, blockSize, false);
+    Vector<PartitionGroup> groups = new Vector<PartitionGroup>();
+    for (PartitionGroup group : candidates)
+      addGroup(groups, group);
+    return groups;
+  }
+
+  /**
+   * Merges groups that share a complete edge along one axis.
+   * @param groups
+   * @param blockSize
+   * @param alongX - merge groups in the same row if <code>true</code> or
+   *   in the same column if <code>false</code>
+   * @return
+   */
+  private static Vector<PartitionGroup> mergeAdjacent(
+      Vector<PartitionGroup> groups, long blockSize, final boolean alongX) {
+    Collections.sort(groups, new Comparator<PartitionGroup>() {
+      @Override
+      public int compare(PartitionGroup g1, PartitionGroup g2) {
+        Rectangle r1 = g1.mbr, r2 = g2.mbr;
+        double[] keys1 = alongX ? new double[] {r1.y1, r1.y2, r1.x1} :
+          new double[] {r1.x1, r1.x2, r1.y1};
+        double[] keys2 = alongX ? new double[] {r2.y1, r2.y2, r2.x1} :
+          new double[] {r2.x1, r2.x2, r2.y1};
+        for (int i = 0; i < keys1.length; i++) {
+          if (keys1[i] != keys2[i])
+            return keys1[i] < keys2[i] ? -1 : 1;
+        }
+        return 0;
+      }
+    });
+    Vector<PartitionGroup> merged = new Vector<PartitionGroup>();
+    PartitionGroup current = null;
+    for (PartitionGroup group : groups) {
+      boolean adjacent = current != null && (alongX ?
+          current.mbr.y1 == group.mbr.y1 && current.mbr.y2 == group.mbr.y2 &&
+          current.mbr.x2 == group.mbr.x1 :
+          current.mbr.x1 == group.mbr.x1 && current.mbr.x2 == group.mbr.x2 &&
+          current.mbr.y2 == group.mbr.y1);
+      if (adjacent && current.size + group.size <= blockSize) {
+        current.addAll(group);
+      } else {
+        current = group;
+        merged.add(current);
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * Groups small partitions of an index that does not replicate records in
+   * the order of the Hilbert curve of their centers.
+   * @param gIndex
+   * @param sizes
+   * @param smallSize
+   * @param blockSize
+   * @return
+   */
+  static Vector<PartitionGroup> groupNearbyPartitions(
+      GlobalIndex<Partition> gIndex, Map<String, Long> sizes, long smallSize,
+      long blockSize) {
+    final SpaceFillingCurve curve =
+        SpaceFillingCurve.getCurve("hilbert", gIndex.getMBR());
+    Vector<Partition> small = new Vector<Partition>();
+    for (Partition p : gIndex) {
+      if (sizes.get(p.filename) < smallSize)
+        small.add(p);
+    }
+    Collections.sort(small, new Comparator<Partition>() {
+      @Override
+      public int compare(Partition p1, Partition p2) {
+        long k1 = curve.computeKey(p1), k2 = curve.computeKey(p2);
+        return k1 < k2 ? -1 : (k1 > k2 ? 1 : 0);
+      }
+    });
+    Vector<PartitionGroup> groups = new Vector<PartitionGroup>();
+    PartitionGroup run = null;
+    for (Partition p : small) {
+      long size = sizes.get(p.filename);
+      if (run == null || run.size + size > blockSize) {
+        addGroup(groups, run);
+        run = new PartitionGroup();
+      }
+      run.add(p, size);
+    }
+    addGroup(groups, run);
+    return groups;
+  }
+
+  /**
+   * Adds the given group to the list if it merges at least two partitions.
+   */
+  private static void addGroup(Vector<PartitionGroup> groups,
+      PartitionGroup group) {
+    if (group != null && group.partitions.size() > 1)
+      groups.add(group);
+  }
+
+  /**
+   * Merges small partitions of an indexed directory.
+   * @param indexDir - a directory indexed using {@link Repartition}
+   * @param params
+   * @throws IOException
+   */
+  public static void compact(Path indexDir, CommandLineArguments params)
+      throws IOException {
+    Shape stockShape = params.getShape("shape");
+    FileSystem fs = indexDir.getFileSystem(params);
+    GlobalIndex<Partition> gIndex = SpatialSite.getGlobalIndex(fs, indexDir);
+    Path masterFile = Append.getMasterFile(fs, indexDir);
+    if (gIndex == null || masterFile == null)
+      throw new RuntimeException("'"+indexDir+"' is not spatially indexed");
+    String masterName = masterFile.getName();
+    boolean pack = masterName.endsWith(".r+tree");
+    boolean expand = masterName.endsWith(".rtree");
+    boolean localIndex = SpatialSite.isRTree(fs, indexDir);
+    long blockSize = fs.getFileStatus(new Path(indexDir,
+        gIndex.iterator().next().filename)).getBlockSize();
+    if (params.getSize("blocksize") != 0)
+      blockSize = params.getSize("blocksize");
+    long smallSize = (long) (blockSize * params.getFloat("threshold", 0.5f));
+
+    Map<String, Long> sizes = new HashMap<String, Long>();
+    for (Partition p : gIndex)
+      sizes.put(p.filename, fs.getFileStatus(new Path(indexDir, p.filename)).getLen());
+
+    CurvePartitioning partitioning = gIndex.getCurvePartitioning();
+    Vector<PartitionGroup> groups;
+    if (partitioning != null)
+      groups = groupAlongCurve(gIndex, sizes, smallSize, blockSize);
+    else if (gIndex.isReplicated())
+      groups = groupAdjacentCells(gIndex, sizes, smallSize, blockSize);
+    else
+      groups = groupNearbyPartitions(gIndex, sizes, smallSize, blockSize);
+    if (groups.isEmpty()) {
+      LOG.info("No partitions to merge in '"+indexDir+"'");
+      return;
+    }
+    int mergedPartitions = 0;
+    for (PartitionGroup group : groups)
+      mergedPartitions += group.partitions.size();
+    LOG.info("Merging "+mergedPartitions+" partitions of '"+indexDir+"' into "+
+        groups.size()+" partitions");
+
+    Path tempDir;
+    do {
+      tempDir = new Path(indexDir, "_compact_"+(int)(Math.random()*1000000));
+    } while (fs.exists(tempDir));
+    try {
+      writeGroups(fs, indexDir, tempDir, stockShape, blockSize, groups,
+          gIndex.isReplicated(), pack, expand, localIndex);
+      commitCompact(fs, indexDir, tempDir, masterName, groups, partitioning);
+    } finally {
+      fs.delete(tempDir, true);
+    }
+  }
+
+  /**
+   * Writes the records of each group of partitions as one cell. Groups are
+   * assigned cell IDs starting at one in the order of the list.
+   */
+  private static <S extends Shape> void writeGroups(FileSystem fs,
+      Path indexDir, Path tempDir, S stockShape, long blockSize,
+      Vector<PartitionGroup> groups, boolean replicated, boolean pack,
+      boolean expand, boolean localIndex) throws IOException {
+    fs.mkdirs(tempDir);
+    CellInfo[] cells = new CellInfo[groups.size()];
+    for (int i = 0; i < groups.size(); i++)
+      cells[i] = new CellInfo(i + 1, groups.get(i).mbr);
+    GridRecordWriter<S> writer;
+    if (localIndex) {
+      writer = new RTreeGridRecordWriter<S>(tempDir, null, null, cells, pack, expand);
+      writer.setStockObject(stockShape);
+    } else {
+      writer = new GridRecordWriter<S>(tempDir, null, null, cells, pack, expand);
+    }
+    writer.setBlockSize(blockSize);
+
+    Text text = new Text();
+    for (int cellId = 1; cellId <= groups.size(); cellId++) {
+      Vector<Partition> partitions = groups.get(cellId - 1).partitions;
+      // Number of copies still expected in the next partitions of each
+      // record written so far that is replicated to more than one partition
+      Map<String, Integer> pendingCopies = new HashMap<String, Integer>();
+      for (int i = 0; i < partitions.size(); i++) {
+        Path partitionFile = new Path(indexDir, partitions.get(i).filename);
+        long length = fs.getFileStatus(partitionFile).getLen();
+        ShapeRecordReader<S> reader = new ShapeRecordReader<S>(new Configuration(),
+            new FileSplit(partitionFile, 0, length, new String[] {}));
+        Rectangle key = reader.createKey();
+        while (reader.next(key, stockShape)) {
+          if (replicated) {
+            Rectangle mbr = stockShape.getMBR();
+            boolean inPrevious = false;
+            int inNext = 0;
+            for (int j = 0; j < partitions.size(); j++) {
+              if (j != i && partitions.get(j).isIntersected(mbr)) {
+                if (j < i)
+                  inPrevious = true;
+                else
+                  inNext++;
+              }
+            }
+            if (inPrevious || inNext > 0) {
+              text.clear();
+              stockShape.toText(text);
+              String record = text.toString();
+              Integer pending = pendingCopies.get(record);
+              if (inPrevious && pending != null && pending > 0) {
+                // Already written from a previous partition
+                pendingCopies.put(record, pending - 1);
+                continue;
+              }
+              if (inNext > 0)
+                pendingCopies.put(record, (pending == null ? 0 : pending) + inNext);
+            }
+          }
+          writer.write(cellId, stockShape);
+        }
+        reader.close();
+      }
+    }
+    writer.close(null);
+  }
+
+  /**
+   * Moves merged partitions into the index directory and replaces the
+   * master file with one that lists them instead of the partitions they
+   * replace. Entries of all other partitions are copied as is. For an index
+   * partitioned along a curve, the key ranges of merged cells are combined
+   * and all cells are renumbered.
+   */
+  private static void commitCompact(FileSystem fs, Path indexDir, Path tempDir,
+      String masterName, Vector<PartitionGroup> groups,
+      CurvePartitioning partitioning) throws IOException {
+    // Compute the ID of each merged partition and the new IDs of all cells
+    long[] groupIds = new long[groups.size()];
+    long[] newCellIds = null;
+    if (partitioning != null) {
+      boolean[] mergedWithPrevious = new boolean[partitioning.getPartitionCount() + 1];
+      for (PartitionGroup group : groups) {
+        long firstId = Long.MAX_VALUE, lastId = Long.MIN_VALUE;
+        for (Partition p : group.partitions) {
+          firstId = Math.min(firstId, p.cellId);
+          lastId = Math.max(lastId, p.cellId);
+        }
+        for (long id = firstId + 1; id <= lastId; id++)
+          mergedWithPrevious[(int) id] = true;
+      }
+      newCellIds = new long[mergedWithPrevious.length];
+      long[] newSplits = new long[partitioning.splits.length];
+      int numSplits = 0;
+      for (int id = 1; id < newCellIds.length; id++) {
+        if (id == 1) {
+          newCellIds[id] = 1;
+        } else if (mergedWithPrevious[id]) {
+          newCellIds[id] = newCellIds[id - 1];
+        } else {
+          newCellIds[id] = newCellIds[id - 1] + 1;
+          // Partition #id starts at splits[id - 2]
+          newSplits[numSplits++] = partitioning.splits[id - 2];
+        }
+      }
+      partitioning.splits = Arrays.copyOf(newSplits, numSplits);
+      for (int i = 0; i < groups.size(); i++)
+        groupIds[i] = newCellIds[(int) groups.get(i).partitions.get(0).cellId];
+    } else {
+      for (int i = 0; i < groups.size(); i++) {
+        groupIds[i] = Long.MAX_VALUE;
+        for (Partition p : groups.get(i).partitions)
+          groupIds[i] = Math.min(groupIds[i], p.cellId);
+      }
+    }
+
+    HashSet<String> mergedFiles = new HashSet<String>();
+    for (PartitionGroup group : groups) {
+      for (Partition p : group.partitions)
+        mergedFiles.add(p.filename);
+    }
+
+    // Entries are edited as text to keep the boundaries of partitions as is
+    Path masterPath = new Path(indexDir, masterName);
+    Path newMaster = new Path(tempDir, "_new_master");
+    OutputStream out = fs.create(newMaster);
+    byte[] newLine = System.getProperty("line.separator").getBytes();
+    Text line = new Text();
+    LineReader in = new LineReader(fs.open(masterPath));
+    while (in.readLine(line) > 0) {
+      String entry = line.toString();
+      if (entry.isEmpty())
+        continue;
+      String filename = entry.substring(entry.lastIndexOf(',') + 1);
+      if (mergedFiles.contains(filename))
+        continue;
+      if (newCellIds != null) {
+        long cellId = Long.parseLong(entry.substring(0, entry.indexOf(',')));
+        entry = newCellIds[(int) cellId] + entry.substring(entry.indexOf(','));
+      }
+      out.write(entry.getBytes());
+      out.write(newLine);
+    }
+    in.close();
+
+    Path tempMaster = Append.getMasterFile(fs, tempDir);
+    in = new LineReader(fs.open(tempMaster));
+    int newPartitions = 0;
+    while (in.readLine(line) > 0) {
+      String entry = line.toString();
+      if (entry.isEmpty())
+        continue;
+      String filename = entry.substring(entry.lastIndexOf(',') + 1);
+      int groupIndex = Integer.parseInt(entry.substring(0, entry.indexOf(','))) - 1;
+      Path dst = new Path(indexDir, filename);
+      for (int i = 1; fs.exists(dst); i++)
+        dst = new Path(indexDir, String.format("c%d_%s", i, filename));
+      if (!fs.rename(new Path(tempDir, filename), dst))
+        throw new IOException("Could not move '"+filename+"' to '"+dst+"'");
+      entry = groupIds[groupIndex] +
+          entry.substring(entry.indexOf(','), entry.lastIndexOf(',') + 1) +
+          dst.getName();
+      out.write(entry.getBytes());
+      out.write(newLine);
+      newPartitions++;
+    }
+    in.close();
+    out.close();
+
+    if (partitioning != null) {
+      // Until the master file is replaced, the new partitioning has fewer
+      // cells than the master file which makes readers ignore it
+      writeCurveFile(fs, indexDir, tempDir, partitioning.splits);
+      Append.replaceFile(fs, new Path(tempDir, CurvePartitioning.CurveFile),
+          new Path(indexDir, CurvePartitioning.CurveFile));
+    }
+    Append.replaceFile(fs, newMaster, masterPath);
+    for (String filename : mergedFiles)
+      fs.delete(new Path(indexDir, filename), false);
+    LOG.info("Replaced "+mergedFiles.size()+" partitions of '"+indexDir+
+        "' with "+newPartitions+" partitions");
+  }
+
+  /**
+   * Writes a copy of the curve file of the index directory to the given
+   * directory with the given splits. All other fields are copied as text
+   * so that the space and the record size do not change by parsing them.
+   */
+  private static void writeCurveFile(FileSystem fs, Path indexDir,
+      Path dir, long[] splits) throws IOException {
+    LineReader in = new LineReader(fs.open(new Path(indexDir, CurvePartitioning.CurveFile)));
+    Text line = new Text();
+    in.readLine(line);
+    in.close();
+    // Name, space and record size are the first seven fields
+    String str = line.toString();
+    int end = -1;
+    for (int i = 0; i < 7; i++)
+      end = str.indexOf(',', end + 1);
+    Text text = new Text(str.substring(0, end + 1));
+    TextSerializerHelper.serializeInt(splits.length, text,
+        splits.length == 0 ? '\0' : ',');
+    for (int i = 0; i < splits.length; i++)
+      TextSerializerHelper.serializeLong(splits[i], text,
+          i == splits.length - 1 ? '\0' : ',');
+    OutputStream out = fs.create(new Path(dir, CurvePartitioning.CurveFile), true);
+    out.write(text.getBytes(), 0, text.getLength());
+    out.write(System.getProperty("line.separator").getBytes());
+    out.close();
+  }
+
+  private static void printUsage() {
+    System.out.println("Merges small partitions of a spatially indexed file");
+    System.out.println("Parameters (* marks required parameters):");
+    System.out.println("<indexed file> - (*) Path to the indexed file");
+    System.out.println("shape:<point|rectangle|polygon> - (*) Type of shapes stored in the file");
+    System.out.println("threshold:<ratio> - Partitions smaller than this ratio of a block are merged (default 0.5)");
+    System.out.println("blocksize:<size> - Maximum size of a merged partition (default: block size of the file)");
+  }
+
+  /**
+   * @param args
+   * @throws IOException
+   */
+  public static void main(String[] args) throws IOException {
+    CommandLineArguments params = new CommandLineArguments(args);
+    Path[] paths = params.getPaths();
+    if (paths.length != 1 || params.getShape("shape") == null) {
+      printUsage();
+      return;
+    }
+    long t1 = System.currentTimeMillis();
+    compact(paths[0], params);
+    long t2 = System.currentTimeMillis();
+    System.out.println("Total compaction time in millis "+(t2-t1));
+  }
+}
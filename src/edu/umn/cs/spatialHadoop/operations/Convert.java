@@ -0,0 +1,228 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package edu.umn.cs.spatialHadoop.operations;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+
+import edu.umn.cs.spatialHadoop.CommandLineArguments;
+import edu.umn.cs.spatialHadoop.core.BinaryHeapFile;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.mapred.BinaryHeapOutputFormat;
+import edu.umn.cs.spatialHadoop.mapred.ShapeInputFormat;
+import edu.umn.cs.spatialHadoop.mapred.ShapeRecordReader;
+import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat;
+
+/**
+ * Converts a non-indexed file between the text format and the binary format
+ * of {@link BinaryHeapFile}. By default, text files are converted to binary
+ * and binary files are converted to text. Files of points can also be
+ * converted to the columnar layout of {@link BinaryHeapFile.PointColumns}.
+ */
+public class Convert {
+  private static final Log LOG = LogFactory.getLog(Convert.class);
+
+  public static class ConvertMap extends MapReduceBase implements
+      Mapper<Rectangle, Shape, NullWritable, Shape> {
+    private final NullWritable dummy = NullWritable.get();
+
+    @Override
+    public void map(Rectangle cell, Shape shape,
+        OutputCollector<NullWritable, Shape> output, Reporter reporter)
+        throws IOException {
+      output.collect(dummy, shape);
+    }
+  }
+
+  /**
+   * Returns the class of shapes in the input. The shape parameter is used if
+   * set. Otherwise, the class stored in the header of a binary input is used.
+   * @param fs
+   * @param inFile
+   * @param params
+   * @return
+   * @throws IOException
+   */
+  private static Shape getShape(FileSystem fs, Path inFile,
+      CommandLineArguments params) throws IOException {
+    Shape shape = params.getShape("shape");
+    if (shape != null)
+      return shape;
+    Path file = inFile;
+    if (fs.getFileStatus(inFile).isDirectory()) {
+      for (FileStatus status : fs.listStatus(inFile, SpatialSite.NonHiddenFileFilter)) {
+        if (!status.isDirectory()) {
+          file = status.getPath();
+          break;
+        }
+      }
+    }
+    BinaryHeapFile.Header header = BinaryHeapFile.readHeader(fs, file);
+    if (header == null || header.shapeClass.length() == 0)
+      throw new RuntimeException("Input shape is not specified");
+    return header.createStockShape();
+  }
+
+  /**
+   * Whether the output should be binary. This is set by the format parameter
+   * and defaults to the opposite of the input format. The columnar format
+   * is a binary format that is enabled in the given parameters.
+   * @param fs
+   * @param inFile
+   * @param params
+   * @return
+   * @throws IOException
+   */
+  private static boolean isBinaryOutput(FileSystem fs, Path inFile,
+      CommandLineArguments params) throws IOException {
+    String format = params.get("format");
+    if (format == null)
+      return !BinaryHeapFile.isBinaryHeapFile(fs, inFile);
+    if (format.equalsIgnoreCase("binary"))
+      return true;
+    if (format.equalsIgnoreCase("text"))
+      return false;
+    if (format.equalsIgnoreCase("columnar")) {
+      params.setBoolean(BinaryHeapFile.COLUMNAR, true);
+      params.setBoolean(BinaryHeapFile.COMPRESS, params.is("compress"));
+      return true;
+    }
+    throw new RuntimeException("Unknown format '"+format+"'");
+  }
+
+  public static void convertMapReduce(Path inFile, Path outFile,
+      CommandLineArguments params) throws IOException {
+    FileSystem inFs = inFile.getFileSystem(params);
+    Shape shape = getShape(inFs, inFile, params);
+    boolean binary = isBinaryOutput(inFs, inFile, params);
+    JobConf job = new JobConf(params, Convert.class);
+    job.setJobName("Convert");
+
+    job.setMapperClass(ConvertMap.class);
+    job.setNumReduceTasks(0);
+    job.setMapOutputKeyClass(NullWritable.class);
+    job.setMapOutputValueClass(shape.getClass());
+    job.setOutputKeyClass(NullWritable.class);
+    job.setOutputValueClass(shape.getClass());
+
+    job.setInputFormat(ShapeInputFormat.class);
+    SpatialSite.setShapeClass(job, shape.getClass());
+    ShapeInputFormat.setInputPaths(job, inFile);
+    job.setOutputFormat(binary ? BinaryHeapOutputFormat.class : TextOutputFormat.class);
+    TextOutputFormat.setOutputPath(job, outFile);
+
+    JobClient.runJob(job);
+  }
+
+  public static void convertLocal(Path inFile, Path outFile,
+      CommandLineArguments params) throws IOException {
+    FileSystem inFs = inFile.getFileSystem(params);
+    Shape shape = getShape(inFs, inFile, params);
+    boolean binary = isBinaryOutput(inFs, inFile, params);
+
+    // All files of an input directory are written to the same output file
+    FileStatus inFStatus = inFs.getFileStatus(inFile);
+    FileStatus[] inFiles = inFStatus.isDirectory() ?
+        inFs.listStatus(inFile, SpatialSite.NonHiddenFileFilter) :
+        new FileStatus[] {inFStatus};
+    OutputStream out = outFile.getFileSystem(params).create(outFile);
+    BinaryHeapFile.Writer<Shape> writer = null;
+    if (binary) {
+      writer = new BinaryHeapFile.Writer<Shape>(out, params, null);
+      writer.setShapeClass(shape.getClass());
+    }
+    Text line = new Text();
+    for (FileStatus file : inFiles) {
+      if (file.isDirectory())
+        continue;
+      ShapeRecordReader<Shape> reader = new ShapeRecordReader<Shape>(params,
+          new FileSplit(file.getPath(), 0, file.getLen(), new String[] {}));
+      Rectangle key = reader.createKey();
+      while (reader.next(key, shape)) {
+        if (binary) {
+          writer.write(shape);
+        } else {
+          line.clear();
+          shape.toText(line);
+          out.write(line.getBytes(), 0, line.getLength());
+          out.write('\n');
+        }
+      }
+      reader.close();
+    }
+    if (binary)
+      writer.close();
+    else
+      out.close();
+  }
+
+  public static void convert(Path inFile, Path outFile,
+      CommandLineArguments params) throws IOException {
+    FileSystem inFs = inFile.getFileSystem(params);
+    FileStatus inFStatus = inFs.getFileStatus(inFile);
+    boolean autoLocal = !(inFStatus.isDirectory() ||
+        inFStatus.getLen() / inFStatus.getBlockSize() > 3);
+    if (params.is("local", autoLocal)) {
+      LOG.info("Converting '"+inFile+"' locally");
+      convertLocal(inFile, outFile, params);
+    } else {
+      convertMapReduce(inFile, outFile, params);
+    }
+  }
+
+  private static void printUsage() {
+    System.out.println("Converts a non-indexed file between text and binary formats");
+    System.out.println("Parameters: (* marks required parameters)");
+    System.out.println("<input file>: (*) Path to input file");
+    System.out.println("<output file>: (*) Path to output file");
+    System.out.println("shape:<input shape>: Input file format (required for text input)");
+    System.out.println("format:<text|binary|columnar>: Output format (default: the opposite of input)");
+    System.out.println("-compress: Compress columns of columnar output");
+    System.out.println("-overwrite: Overwrite output file without notice");
+    System.out.println("-local: Convert without MapReduce");
+  }
+
+  /**
+   * @param args
+   * @throws IOException
+   */
+  public static void main(String[] args) throws IOException {
+    CommandLineArguments params = new CommandLineArguments(args);
+    if (params.getPaths().length < 2 || !params.checkInputOutput()) {
+      printUsage();
+      return;
+    }
+    long t1 = System.currentTimeMillis();
+    convert(params.getInputPath(), params.getOutputPath(), params);
+    long t2 = System.currentTimeMillis();
+    System.out.println("Total conversion time in millis "+(t2-t1));
+  }
+}
@@ -36,6 +36,7 @@ import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
 
 import edu.umn.cs.spatialHadoop.CommandLineArguments;
+import edu.umn.cs.spatialHadoop.core.CellInfo;
 import edu.umn.cs.spatialHadoop.core.GlobalIndex;
 import edu.umn.cs.spatialHadoop.core.GridRecordWriter;
 import edu.umn.cs.spatialHadoop.core.Partition;
@@ -140,7 +141,7 @@ public class ConvexHull {
         FileSystem outFs = outFile.getFileSystem(new Configuration());
         outFs.delete(outFile, true);
       }
-      GridRecordWriter<Point> out = new GridRecordWriter<Point>(outFile, null, null, null, false, false);
+      GridRecordWriter<Point> out = new GridRecordWriter<Point>(outFile, null, null, (CellInfo[]) null, false, false);
       for (Point pt : convex_hull) {
         out.write(NullWritable.get(), pt);
       }
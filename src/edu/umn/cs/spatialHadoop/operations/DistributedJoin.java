@@ -43,6 +43,7 @@ import org.apache.hadoop.util.IndexedSortable;
 import org.apache.hadoop.util.QuickSort;
 
 import edu.umn.cs.spatialHadoop.CommandLineArguments;
+import edu.umn.cs.spatialHadoop.core.BlockInfo;
 import edu.umn.cs.spatialHadoop.core.CellInfo;
 import edu.umn.cs.spatialHadoop.core.GlobalIndex;
 import edu.umn.cs.spatialHadoop.core.Partition;
@@ -59,6 +60,7 @@ import edu.umn.cs.spatialHadoop.mapred.DefaultBlockFilter;
 import edu.umn.cs.spatialHadoop.mapred.PairWritable;
 import edu.umn.cs.spatialHadoop.mapred.RTreeRecordReader;
 import edu.umn.cs.spatialHadoop.mapred.ShapeArrayRecordReader;
+import edu.umn.cs.spatialHadoop.mapred.SpatialCombineFileSplit;
 import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat;
 
 /**
@@ -294,9 +296,7 @@ public class DistributedJoin {
       @Override
       protected RecordReader<Rectangle, ArrayWritable> createRecordReader(
           Configuration conf, CombineFileSplit split, int i) throws IOException {
-        FileSplit fsplit = new FileSplit(split.getPath(i),
-            split.getStartOffsets()[i],
-            split.getLength(i), split.getLocations());
+        FileSplit fsplit = SpatialCombineFileSplit.getFileSplit(split, i);
         return new ShapeArrayRecordReader(conf, fsplit);
       }
     }
@@ -330,9 +330,7 @@ public class DistributedJoin {
       @Override
       protected RecordReader<Rectangle, RTree<S>> createRecordReader(
           Configuration conf, CombineFileSplit split, int i) throws IOException {
-        FileSplit fsplit = new FileSplit(split.getPath(i),
-            split.getStartOffsets()[i],
-            split.getLength(i), split.getLocations());
+        FileSplit fsplit = SpatialCombineFileSplit.getFileSplit(split, i);
         return new RTreeRecordReader<S>(conf, fsplit);
       }
     }
@@ -390,11 +388,8 @@ public class DistributedJoin {
     long t1 = System.currentTimeMillis();
   
     // Repartition the smaller file
-    Path partitioned_file;
-    do {
-      partitioned_file = new Path(files[file_to_repartition].getName()+
-          ".repartitioned_"+(int)(Math.random() * 1000000));
-    } while (fs.exists(partitioned_file));
+    Path partitioned_file = tempPath(fs, files[file_to_repartition],
+        ".repartitioned_");
     
     // Get the cells to use for repartitioning
     GlobalIndex<Partition> gindex = SpatialSite.getGlobalIndex(fs, files[1-file_to_repartition]);
@@ -417,15 +412,69 @@ public class DistributedJoin {
     long t2 = System.currentTimeMillis();
     System.out.println("Repartition time "+(t2-t1)+" millis");
   
-    // Continue with the join step
-    if (fs.exists(partitioned_file)) {
-      // An output file might not existent if the two files are disjoint
+    // Continue with the join step. An output file might not exist if the
+    // two files are disjoint
+    replaceWithTemp(fs, files, file_to_repartition, partitioned_file);
+  }
 
-      // Replace the smaller file with its repartitioned copy
-      files[file_to_repartition] = partitioned_file;
+  /**
+   * Builds a grid index for a non-indexed file so that the other file can be
+   * repartitioned to match it when neither file is indexed.
+   * @param fs
+   * @param files
+   * @param file_to_index
+   * @param stockShape
+   * @throws IOException
+   */
+  protected static void indexStep(FileSystem fs, final Path[] files,
+      int file_to_index, Shape stockShape) throws IOException {
+    long t1 = System.currentTimeMillis();
+    Path indexed_file = tempPath(fs, files[file_to_index], ".indexed_");
+
+    CommandLineArguments params = new CommandLineArguments();
+    if (stockShape != null)
+      params.setClass("shape", stockShape.getClass(), Shape.class);
+    params.set("sindex", "grid");
+    params.setBoolean("overwrite", true);
+    Repartition.repartitionMapReduce(files[file_to_index], indexed_file, params);
+    long t2 = System.currentTimeMillis();
+    System.out.println("Index time "+(t2-t1)+" millis");
 
-      // Delete temporary repartitioned file upon exit
-      fs.deleteOnExit(partitioned_file);
+    replaceWithTemp(fs, files, file_to_index, indexed_file);
+  }
+
+  /**
+   * Returns a new path named after the given input file and suffix, followed
+   * by a random number, that does not exist yet.
+   * @param fs
+   * @param file
+   * @param suffix
+   * @return
+   * @throws IOException
+   */
+  private static Path tempPath(FileSystem fs, Path file, String suffix)
+      throws IOException {
+    Path tempFile;
+    do {
+      tempFile = new Path(file.getName()+suffix+(int)(Math.random() * 1000000));
+    } while (fs.exists(tempFile));
+    return tempFile;
+  }
+
+  /**
+   * Replaces an input file with a temporary copy written by a previous step,
+   * if the copy was written, and deletes the copy upon exit.
+   * @param fs
+   * @param files
+   * @param i_file - index of the file to replace
+   * @param tempFile
+   * @throws IOException
+   */
+  private static void replaceWithTemp(FileSystem fs, Path[] files, int i_file,
+      Path tempFile) throws IOException {
+    if (fs.exists(tempFile)) {
+      files[i_file] = tempFile;
+      fs.deleteOnExit(tempFile);
     }
   }
 
@@ -495,6 +544,11 @@ public class DistributedJoin {
       DJInputFormatArray.addInputPaths(job, commaSeparatedFiles);
     }
     job.setClass(SpatialSite.FilterClass, SpatialJoinFilter.class, BlockFilter.class);
+    // Join pairs that share partitions in one task reading each partition
+    // once. Each task keeps up to a few blocks of the second file in memory
+    if (job.get(SpatialSite.JOIN_GROUP_SIZE) == null)
+      job.setLong(SpatialSite.JOIN_GROUP_SIZE,
+          4 * fs.getDefaultBlockSize(inputFiles[1]));
     SpatialSite.setShapeClass(job, stockShape.getClass());
     job.setOutputFormat(TextOutputFormat.class);
     
@@ -527,19 +581,73 @@ public class DistributedJoin {
     }
   }
   
+  /**
+   * Computes the MBRs of the blocks of each of the given non-indexed files
+   * that does not have a valid blocks file. The blocks file is written next
+   * to the input file as {@link BlockInfo#getBlocksFile(Path)}. Failures are
+   * logged and ignored as a file without a blocks file can still be joined.
+   * @param fs
+   * @param files
+   * @param numBlocks - number of blocks in each file
+   * @param stockShape
+   * @return the number of blocks read to compute the missing blocks files
+   */
+  protected static int computeBlockMBRs(FileSystem fs, Path[] files,
+      int[] numBlocks, Shape stockShape) {
+    if (stockShape == null)
+      return 0;
+    int blocksRead = 0;
+    for (int i_file = 0; i_file < files.length; i_file++) {
+      Path file = files[i_file];
+      try {
+        if (BlockInfo.readBlocks(fs, file) != null)
+          continue;
+        LOG.info("Computing the MBRs of the blocks of '"+file+"' into '"+
+            BlockInfo.getBlocksFile(file)+"'");
+        CommandLineArguments params = new CommandLineArguments();
+        params.setClass("shape", stockShape.getClass(), Shape.class);
+        BlockMBR.blockMBR(fs, file, params);
+        blocksRead += numBlocks[i_file];
+      } catch (IOException e) {
+        LOG.warn("Could not compute the blocks of '"+file+"'", e);
+      }
+    }
+    return blocksRead;
+  }
+
+  /**
+   * Spatially joins two files. Missing blocks files of non-indexed inputs
+   * are not computed.
+   * @param fs
+   * @param inputFiles
+   * @param stockShape
+   * @param output
+   * @return
+   * @throws IOException
+   */
+  public static long distributedJoinSmart(FileSystem fs,
+      final Path[] inputFiles, Path userOutputPath, Shape stockShape,
+      boolean overwrite) throws IOException {
+    return distributedJoinSmart(fs, inputFiles, userOutputPath, stockShape,
+        overwrite, false);
+  }
+
   /**
    * Spatially joins two files. 
    * @param fs
    * @param inputFiles
    * @param stockShape
    * @param output
+   * @param computeBlocks - compute the blocks files of two non-indexed
+   *   inputs, if missing, when it is expected to cost less than joining all
+   *   pairs of blocks. The blocks files are written next to the input files.
    * @return
    * @throws IOException
    */
   @SuppressWarnings("unchecked")
   public static long distributedJoinSmart(FileSystem fs,
       final Path[] inputFiles, Path userOutputPath, Shape stockShape,
-      boolean overwrite) throws IOException {
+      boolean overwrite, boolean computeBlocks) throws IOException {
     Path[] originalInputFiles = inputFiles.clone();
     FileSystem outFs = inputFiles[0].getFileSystem(new Configuration());
     Path outputPath = userOutputPath;
@@ -585,6 +693,8 @@ public class DistributedJoin {
     };
     
     new QuickSort().sort(filesBySize, 0, inputFiles.length);
+    // Input files might be replaced with repartitioned copies afterwards
+    boolean filesSwapped = inputFiles[1] != originalInputFiles[1];
     GlobalIndex<Partition>[] gIndexes = new GlobalIndex[fStatus.length];
     int[] numBlocks = new int[fStatus.length];
     for (int i_file = 0; i_file < fStatus.length; i_file++) {
@@ -592,7 +702,7 @@ public class DistributedJoin {
       if (gIndexes[i_file] != null) {
         // Number of blocks is equal to number of partitions in global index
         numBlocks[i_file] = gIndexes[i_file].size();
-      } else if (fStatus[i_file].isDir()) {
+      } else if (fStatus[i_file].isDirectory()) {
         // Add up number of file system blocks in all subfiles of this directory
         numBlocks[i_file] = 0;
         FileStatus[] subfiles = outFs.listStatus(inputFiles[i_file], SpatialSite.NonHiddenFileFilter);
@@ -605,22 +715,47 @@ public class DistributedJoin {
       }
     }
     
-    cost_without_repartition = gIndexes[0] != null && gIndexes[1] != null ?
-        GlobalIndex.spatialJoin(gIndexes[0], gIndexes[1], null) :
-        (numBlocks[0] * numBlocks[1]);
-    // Total cost = Cost of repartition (=== 2 * numBlocks[0]) +
-    //    cost of join (=== numBlocks[0] + numBlocks[1])
-    cost_with_repartition = numBlocks[0] * 3 + numBlocks[1];
+    if (gIndexes[0] != null && gIndexes[1] != null) {
+      cost_without_repartition =
+          GlobalIndex.spatialJoin(gIndexes[0], gIndexes[1], null);
+    } else if (gIndexes[0] == null && gIndexes[1] == null &&
+        !fStatus[0].isDirectory() && !fStatus[1].isDirectory()) {
+      // Only pairs of blocks with overlapping MBRs are joined. Compute the
+      // MBRs of the blocks if it costs less than joining all pairs
+      int cost_of_blocks = 0;
+      if (computeBlocks && numBlocks[0] * numBlocks[1] > numBlocks[0] + numBlocks[1])
+        cost_of_blocks = computeBlockMBRs(outFs, inputFiles, numBlocks, stockShape);
+      cost_without_repartition = cost_of_blocks +
+          BinarySpatialInputFormat.countBlockPairs(outFs, inputFiles);
+    } else {
+      cost_without_repartition = numBlocks[0] * numBlocks[1];
+    }
+    if (gIndexes[0] == null && gIndexes[1] == null) {
+      // Total cost = Cost of indexing the larger file (=== 2 * numBlocks[1]) +
+      //    cost of repartition (=== 2 * numBlocks[0]) +
+      //    cost of join (=== numBlocks[0] + numBlocks[1])
+      cost_with_repartition = numBlocks[0] * 3 + numBlocks[1] * 3;
+    } else {
+      // Total cost = Cost of repartition (=== 2 * numBlocks[0]) +
+      //    cost of join (=== numBlocks[0] + numBlocks[1])
+      cost_with_repartition = numBlocks[0] * 3 + numBlocks[1];
+    }
     LOG.info("Cost with repartition is estimated to "+cost_with_repartition);
     LOG.info("Cost without repartition is estimated to "+cost_without_repartition);
     boolean need_repartition = cost_with_repartition < cost_without_repartition;
     if (need_repartition) {
       int file_to_repartition = selectRepartition(fs, inputFiles);
-      repartitionStep(fs, inputFiles, file_to_repartition, stockShape);
+      if (file_to_repartition == -1) {
+        // Neither file is indexed. Index the larger file first
+        indexStep(fs, inputFiles, 1, stockShape);
+        file_to_repartition = selectRepartition(fs, inputFiles);
+      }
+      if (file_to_repartition != -1)
+        repartitionStep(fs, inputFiles, file_to_repartition, stockShape);
     }
     
     // Restore inputFiles to the original order by user
-    if (inputFiles[1] != originalInputFiles[1]) {
+    if (filesSwapped) {
       Path temp = inputFiles[0];
       inputFiles[0] = inputFiles[1];
       inputFiles[1] = temp;
@@ -643,6 +778,7 @@ public class DistributedJoin {
     System.out.println("<input file 2> - (*) Path to the second input file");
     System.out.println("<output file> - Path to output file");
     System.out.println("-overwrite - Overwrite output file without notice");
+    System.out.println("-blocks - Compute missing blocks files of non-indexed inputs to join only overlapping blocks");
   }
 
   public static void main(String[] args) throws IOException {
@@ -670,10 +806,19 @@ public class DistributedJoin {
 
     long result_size;
     if (repartition == null || repartition.equals("auto")) {
-      result_size = distributedJoinSmart(fs, inputFiles, outputPath, stockShape, overwrite);
+      result_size = distributedJoinSmart(fs, inputFiles, outputPath,
+          stockShape, overwrite, cla.is("blocks"));
     } else if (repartition.equals("yes")) {
       int file_to_repartition = selectRepartition(fs, inputFiles);
-      repartitionStep(fs, inputFiles, file_to_repartition, stockShape);
+      if (file_to_repartition == -1) {
+        // Neither file is indexed. Index the larger file first
+        int larger_file = fs.getContentSummary(inputFiles[0]).getLength() >
+            fs.getContentSummary(inputFiles[1]).getLength() ? 0 : 1;
+        indexStep(fs, inputFiles, larger_file, stockShape);
+        file_to_repartition = selectRepartition(fs, inputFiles);
+      }
+      if (file_to_repartition != -1)
+        repartitionStep(fs, inputFiles, file_to_repartition, stockShape);
       result_size = joinStep(fs, inputFiles, outputPath, stockShape, overwrite, false);
     } else if (repartition.equals("no")) {
       result_size = joinStep(fs, inputFiles, outputPath, stockShape, overwrite, false);
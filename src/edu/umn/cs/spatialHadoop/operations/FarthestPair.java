@@ -58,6 +58,7 @@ import edu.umn.cs.spatialHadoop.mapred.GridOutputFormat2;
 import edu.umn.cs.spatialHadoop.mapred.PairWritable;
 import edu.umn.cs.spatialHadoop.mapred.ShapeArrayRecordReader;
 import edu.umn.cs.spatialHadoop.mapred.ShapeRecordReader;
+import edu.umn.cs.spatialHadoop.mapred.SpatialCombineFileSplit;
 import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat;
 
 /**
@@ -412,9 +413,7 @@ public class FarthestPair {
       @Override
       protected RecordReader<Rectangle, ArrayWritable> createRecordReader(
           Configuration conf, CombineFileSplit split, int i) throws IOException {
-        FileSplit fsplit = new FileSplit(split.getPath(i),
-            split.getStartOffsets()[i],
-            split.getLength(i), split.getLocations());
+        FileSplit fsplit = SpatialCombineFileSplit.getFileSplit(split, i);
         return new ShapeArrayRecordReader(conf, fsplit);
       }
     }
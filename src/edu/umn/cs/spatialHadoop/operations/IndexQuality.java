@@ -0,0 +1,351 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and limitations under the License.
+ */
+package edu.umn.cs.spatialHadoop.operations;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Vector;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import edu.umn.cs.spatialHadoop.CommandLineArguments;
+import edu.umn.cs.spatialHadoop.core.CurvePartitioning;
+import edu.umn.cs.spatialHadoop.core.GlobalIndex;
+import edu.umn.cs.spatialHadoop.core.Partition;
+import edu.umn.cs.spatialHadoop.core.RTree;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+
+/**
+ * Measures the quality of a file indexed using {@link Repartition} without
+ * running any queries on it. The report is computed from the master file
+ * and the sizes of partition files and, optionally, from the headers of
+ * the local R-trees of a sample of partitions. It covers:
+ * <ul>
+ * <li>Distribution of partition sizes</li>
+ * <li>Overlap between partitions and space not covered by any partition
+ * (dead space)</li>
+ * <li>Replication factor, if the indexed source file is given</li>
+ * <li>Height and fill factor of local R-trees</li>
+ * <li>Expected number of partitions and blocks read by range queries of
+ * a given size at random locations</li>
+ * </ul>
+ * The report is printed as one <code>key=value</code> pair per line so that
+ * reports of the same file indexed in different ways can be compared.
+ */
+public class IndexQuality {
+
+  /**
+   * Computes the quality report of an indexed directory.
+   * @param fs
+   * @param indexDir
+   * @param params
+   * @return - all measures in the order they are printed
+   * @throws IOException
+   */
+  public static Map<String, Object> analyze(FileSystem fs, Path indexDir,
+      CommandLineArguments params) throws IOException {
+    GlobalIndex<Partition> gIndex = SpatialSite.getGlobalIndex(fs, indexDir);
+    Path masterFile = Append.getMasterFile(fs, indexDir);
+    if (gIndex == null || masterFile == null)
+      throw new RuntimeException("'"+indexDir+"' is not spatially indexed");
+    Random random = new Random(params.getLong("seed", System.currentTimeMillis()));
+    Map<String, Object> report = new LinkedHashMap<String, Object>();
+
+    String masterName = masterFile.getName();
+    report.put("index.type", masterName.substring(masterName.lastIndexOf('.') + 1));
+    CurvePartitioning partitioning = gIndex.getCurvePartitioning();
+    if (partitioning != null)
+      report.put("index.curve", partitioning.curve.getName());
+    report.put("index.replicated", gIndex.isReplicated());
+    boolean localIndex = SpatialSite.isRTree(fs, indexDir);
+    report.put("index.local", localIndex ? "rtree" : "none");
+
+    // Partition sizes
+    final Vector<Partition> partitions = new Vector<Partition>();
+    for (Partition p : gIndex)
+      partitions.add(p);
+    int n = partitions.size();
+    final Map<String, FileStatus> statuses = new LinkedHashMap<String, FileStatus>();
+    for (Partition p : partitions)
+      statuses.put(p.filename, fs.getFileStatus(new Path(indexDir, p.filename)));
+    long blockSize = statuses.values().iterator().next().getBlockSize();
+    if (params.getSize("blocksize") != 0)
+      blockSize = params.getSize("blocksize");
+    long[] sizes = new long[n];
+    long totalSize = 0, totalBlocks = 0;
+    int underfilled = 0;
+    for (int i = 0; i < n; i++) {
+      sizes[i] = statuses.get(partitions.get(i).filename).getLen();
+      totalSize += sizes[i];
+      totalBlocks += (sizes[i] + blockSize - 1) / blockSize;
+      if (sizes[i] < blockSize / 2)
+        underfilled++;
+    }
+    Arrays.sort(sizes);
+    double meanSize = (double) totalSize / n;
+    double sumSquares = 0;
+    for (long size : sizes)
+      sumSquares += (size - meanSize) * (size - meanSize);
+    report.put("partitions.count", n);
+    report.put("partitions.blocks", totalBlocks);
+    report.put("partitions.underfilled", underfilled);
+    report.put("size.blocksize", blockSize);
+    report.put("size.total", totalSize);
+    report.put("size.min", sizes[0]);
+    report.put("size.median", sizes[n / 2]);
+    report.put("size.p90", sizes[Math.min(n - 1, (int) (n * 0.9))]);
+    report.put("size.max", sizes[n - 1]);
+    report.put("size.mean", meanSize);
+    report.put("size.stddev", Math.sqrt(sumSquares / n));
+
+    // Areas, overlap and dead space
+    Rectangle mbr = gIndex.getMBR();
+    double mbrArea = area(mbr);
+    double totalArea = 0, totalOverlap = 0, maxOverlap = 0;
+    int overlappingPairs = 0;
+    for (int i = 0; i < n; i++) {
+      Partition p1 = partitions.get(i);
+      totalArea += area(p1);
+      for (int j = i + 1; j < n; j++) {
+        Partition p2 = partitions.get(j);
+        double overlap =
+            Math.max(0, Math.min(p1.x2, p2.x2) - Math.max(p1.x1, p2.x1)) *
+            Math.max(0, Math.min(p1.y2, p2.y2) - Math.max(p1.y1, p2.y1));
+        if (overlap > 0) {
+          overlappingPairs++;
+          totalOverlap += overlap;
+          maxOverlap = Math.max(maxOverlap, overlap);
+          if (params.is("pairs"))
+            report.put("overlap.pair."+p1.filename+"."+p2.filename, overlap);
+        }
+      }
+    }
+    double unionArea = unionArea(partitions);
+    report.put("area.mbr", mbrArea);
+    report.put("area.total", totalArea);
+    report.put("area.union", unionArea);
+    report.put("area.coverage", totalArea / mbrArea);
+    report.put("overlap.pairs", overlappingPairs);
+    report.put("overlap.total", totalOverlap);
+    report.put("overlap.max", maxOverlap);
+    report.put("overlap.ratio", totalOverlap / totalArea);
+    report.put("deadspace.uncovered", 1 - unionArea / mbrArea);
+
+    // Local indexes of a random sample of partitions
+    int rtreeSample = localIndex ? Math.min(n, params.getInt("rtrees", 100)) : 0;
+    if (localIndex && rtreeSample > 0) {
+      Vector<Partition> sample = new Vector<Partition>(partitions);
+      Collections.shuffle(sample, random);
+      int minHeight = Integer.MAX_VALUE, maxHeight = 0, maxDegree = 0;
+      double sumHeight = 0, sumFill = 0, sumEmptySpace = 0;
+      int trees = 0, finitePartitions = 0;
+      for (Partition p : sample.subList(0, rtreeSample)) {
+        RTree<Shape> rtree = readRTree(fs, new Path(indexDir, p.filename));
+        if (rtree == null || rtree.getHeight() == 0)
+          continue;
+        trees++;
+        minHeight = Math.min(minHeight, rtree.getHeight());
+        maxHeight = Math.max(maxHeight, rtree.getHeight());
+        maxDegree = Math.max(maxDegree, rtree.getDegree());
+        sumHeight += rtree.getHeight();
+        sumFill += (double) rtree.getElementCount() /
+            ((long) rtree.getLeafNodeCount() * rtree.getDegree());
+        // Part of the partition that has no data in it
+        double partitionArea = area(p);
+        if (partitionArea > 0 && !Double.isInfinite(partitionArea)) {
+          Rectangle dataMBR = rtree.getMBR().getIntersection(p);
+          sumEmptySpace += 1 - (dataMBR == null ? 0 : area(dataMBR)) / partitionArea;
+          finitePartitions++;
+        }
+      }
+      report.put("rtree.sampled", trees);
+      if (trees > 0) {
+        report.put("rtree.height.min", minHeight);
+        report.put("rtree.height.max", maxHeight);
+        report.put("rtree.height.mean", sumHeight / trees);
+        report.put("rtree.degree", maxDegree);
+        report.put("rtree.fill.mean", sumFill / trees);
+      }
+      if (finitePartitions > 0)
+        report.put("deadspace.empty", sumEmptySpace / finitePartitions);
+    }
+
+    // Replication compared to the source file
+    Path source = params.getPaths().length > 1 ? params.getPaths()[1] : null;
+    if (source != null) {
+      long indexedRecords = 0;
+      for (Partition p : partitions) {
+        Path partitionFile = new Path(indexDir, p.filename);
+        RTree<Shape> rtree = localIndex ? readRTree(fs, partitionFile) : null;
+        indexedRecords += rtree != null ? rtree.getElementCount() :
+          RecordCount.recordCountLocal(fs, partitionFile);
+      }
+      long sourceRecords = RecordCount.recordCountLocal(fs, source);
+      report.put("records.indexed", indexedRecords);
+      report.put("records.source", sourceRecords);
+      report.put("replication.factor", (double) indexedRecords / sourceRecords);
+    }
+
+    // Random range queries over the MBR of the index
+    int numQueries = params.getInt("queries", 1000);
+    double ratio = Double.parseDouble(params.get("ratio", "0.001"));
+    if (numQueries > 0) {
+      double width = mbr.getWidth() * Math.sqrt(ratio);
+      double height = mbr.getHeight() * Math.sqrt(ratio);
+      final long finalBlockSize = blockSize;
+      final long[] counts = new long[3]; // Partitions, blocks and bytes
+      long maxBlocks = 0;
+      for (int i = 0; i < numQueries; i++) {
+        double x = mbr.x1 + random.nextDouble() * (mbr.getWidth() - width);
+        double y = mbr.y1 + random.nextDouble() * (mbr.getHeight() - height);
+        long blocksBefore = counts[1];
+        gIndex.rangeQuery(new Rectangle(x, y, x + width, y + height),
+            new ResultCollector<Partition>() {
+          @Override
+          public void collect(Partition p) {
+            long length = statuses.get(p.filename).getLen();
+            counts[0]++;
+            counts[1] += (length + finalBlockSize - 1) / finalBlockSize;
+            counts[2] += length;
+          }
+        });
+        maxBlocks = Math.max(maxBlocks, counts[1] - blocksBefore);
+      }
+      report.put("query.count", numQueries);
+      report.put("query.ratio", ratio);
+      report.put("query.partitions.mean", (double) counts[0] / numQueries);
+      report.put("query.blocks.mean", (double) counts[1] / numQueries);
+      report.put("query.blocks.max", maxBlocks);
+      report.put("query.bytes.mean", (double) counts[2] / numQueries);
+    }
+    return report;
+  }
+
+  private static double area(Rectangle r) {
+    return r.getWidth() * r.getHeight();
+  }
+
+  /**
+   * Computes the area covered by the union of the given rectangles by
+   * sweeping vertical strips between all distinct x coordinates.
+   * @param rects
+   * @return
+   */
+  static double unionArea(Vector<? extends Rectangle> rects) {
+    double[] xs = new double[rects.size() * 2];
+    for (int i = 0; i < rects.size(); i++) {
+      xs[2 * i] = rects.get(i).x1;
+      xs[2 * i + 1] = rects.get(i).x2;
+    }
+    Arrays.sort(xs);
+    double area = 0;
+    Vector<Rectangle> strip = new Vector<Rectangle>();
+    for (int i = 0; i + 1 < xs.length; i++) {
+      if (xs[i] == xs[i + 1])
+        continue;
+      strip.clear();
+      for (Rectangle r : rects) {
+        if (r.x1 <= xs[i] && r.x2 >= xs[i + 1])
+          strip.add(r);
+      }
+      Collections.sort(strip, new Comparator<Rectangle>() {
+        @Override
+        public int compare(Rectangle r1, Rectangle r2) {
+          return Double.compare(r1.y1, r2.y1);
+        }
+      });
+      double covered = 0, y1 = 0, y2 = 0;
+      boolean open = false;
+      for (Rectangle r : strip) {
+        if (open && r.y1 <= y2) {
+          y2 = Math.max(y2, r.y2);
+        } else {
+          if (open)
+            covered += y2 - y1;
+          y1 = r.y1;
+          y2 = r.y2;
+          open = true;
+        }
+      }
+      if (open)
+        covered += y2 - y1;
+      area += covered * (xs[i + 1] - xs[i]);
+    }
+    return area;
+  }
+
+  /**
+   * Reads the structure of the local R-tree of a partition file. Records
+   * stay on disk and are never read.
+   * @param fs
+   * @param file
+   * @return - the R-tree or <code>null</code> if the file is not R-tree
+   *   indexed
+   * @throws IOException
+   */
+  private static RTree<Shape> readRTree(FileSystem fs, Path file)
+      throws IOException {
+    FSDataInputStream in = fs.open(file);
+    try {
+      if (fs.getFileStatus(file).getLen() < 8 ||
+          in.readLong() != SpatialSite.RTreeFileMarker)
+        return null;
+      RTree<Shape> rtree = new RTree<Shape>();
+      rtree.readFields(in);
+      return rtree;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void printUsage() {
+    System.out.println("Reports measures of the quality of a spatially indexed file");
+    System.out.println("Parameters (* marks required parameters):");
+    System.out.println("<indexed file> - (*) Path to the indexed file");
+    System.out.println("<source file> - The file that was indexed to compute the replication factor");
+    System.out.println("rtrees:<n> - Number of local R-trees to read (default 100)");
+    System.out.println("queries:<n> - Number of random range queries (default 1000)");
+    System.out.println("ratio:<r> - Area of each query as a ratio of the file MBR (default 0.001)");
+    System.out.println("seed:<s> - Seed of the random sample and queries");
+    System.out.println("blocksize:<size> - Block size used to count blocks (default: block size of the file)");
+    System.out.println("-pairs - Report the overlap of each pair of partitions");
+  }
+
+  /**
+   * @param args
+   * @throws IOException
+   */
+  public static void main(String[] args) throws IOException {
+    CommandLineArguments params = new CommandLineArguments(args);
+    Path indexDir = params.getPath();
+    if (indexDir == null || params.getPaths().length > 2) {
+      printUsage();
+      return;
+    }
+    FileSystem fs = indexDir.getFileSystem(params);
+    Map<String, Object> report = analyze(fs, indexDir, params);
+    for (Map.Entry<String, Object> entry : report.entrySet())
+      System.out.println(entry.getKey()+"="+entry.getValue());
+  }
+}
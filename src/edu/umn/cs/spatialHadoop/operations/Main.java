@@ -55,9 +55,24 @@ public class Main {
       pgd.addClass("index", Repartition.class,
           "Builds an index on an input file");
       
+      pgd.addClass("append", Append.class,
+          "Appends new records to an indexed file");
+      
+      pgd.addClass("compact", Compact.class,
+          "Merges small partitions of an indexed file");
+      
+      pgd.addClass("indexquality", IndexQuality.class,
+          "Reports measures of the quality of an indexed file");
+      
+      pgd.addClass("convert", Convert.class,
+          "Converts a file between text and binary formats");
+      
       pgd.addClass("mbr", FileMBR.class,
           "Finds the minimal bounding rectangle of an input file");
       
+      pgd.addClass("blockmbr", BlockMBR.class,
+          "Computes the MBR of each block of a non-indexed file");
+      
       pgd.addClass("readfile", ReadFile.class,
           "Retrieve some information about the index of a file");
 
@@ -351,6 +351,8 @@ public class Plot {
       if (plotRange != null) {
         job.setClass(SpatialSite.FilterClass, RangeFilter.class, BlockFilter.class);
         RangeFilter.setQueryRange(job, plotRange); // Set query range for filter
+        // Allows readers to skip blocks of binary files outside plot range
+        SpatialSite.setRectangle(job, SpatialSite.INPUT_QUERY_RANGE, plotRange.getMBR());
       }
       
       // A heap file. The map function should partition the file
@@ -360,6 +362,8 @@ public class Plot {
           (int) Math.max(1, clusterStatus.getMaxReduceTasks()));
       SpatialSite.setShape(job, PartitionGrid, partitionGrid);
       
+      // Read small partitions in a few tasks when the plot range is wide
+      job.setLong(SpatialSite.COMBINE_SPLIT_SIZE, inFs.getDefaultBlockSize(inFile));
       job.setInputFormat(ShapeInputFormat.class);
       ShapeInputFormat.addInputPath(job, inFile);
       // Set output committer which will stitch images together after all reducers
@@ -17,6 +17,7 @@ import java.util.Vector;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BooleanWritable;
@@ -26,6 +27,7 @@ import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.ClusterStatus;
 import org.apache.hadoop.mapred.Counters;
 import org.apache.hadoop.mapred.Counters.Counter;
+import org.apache.hadoop.mapred.FileSplit;
 import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapReduceBase;
@@ -37,6 +39,7 @@ import org.apache.hadoop.mapred.Task;
 
 import edu.umn.cs.spatialHadoop.CommandLineArguments;
 import edu.umn.cs.spatialHadoop.core.GlobalIndex;
+import edu.umn.cs.spatialHadoop.core.LazyShape;
 import edu.umn.cs.spatialHadoop.core.Partition;
 import edu.umn.cs.spatialHadoop.core.RTree;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
@@ -111,6 +114,9 @@ public class RangeQuery {
         LOG.info("Selected "+numPartitions+" partitions overlapping "+queryRange);
       } else {
         Rectangle queryRange = this.queryRange.getMBR();
+        // Partitions along a space filling curve are also filtered by keys
+        long[] keyRanges = gIndex.getCurvePartitioning() == null ? null :
+          gIndex.getCurvePartitioning().getKeyRanges(queryRange);
         // Need to process only partitions on the perimeter of the query range
         // Partitions that are totally contained in query range should not be
         // processed and should be copied to output directly
@@ -124,7 +130,8 @@ public class RangeQuery {
             // similar to R+-tree
             output.collect(p);
             numPartitions++;
-          } else if (p.isIntersected(queryRange)) {
+          } else if (p.isIntersected(queryRange) &&
+              gIndex.isSelected(p, keyRanges)) {
             output.collect(p);
             numPartitions++;
           }
@@ -135,6 +142,16 @@ public class RangeQuery {
   }
   
   
+  /**
+   * Returns the parsed shape wrapped by a {@link LazyShape} so that results
+   * are written as the shape class of the job
+   * @param shape
+   * @return
+   */
+  static Shape unwrap(Shape shape) {
+    return shape instanceof LazyShape ? ((LazyShape) shape).getShape() : shape;
+  }
+
   /**
    * The map function used for range query
    * @author eldawy
@@ -189,7 +206,7 @@ public class RangeQuery {
           }
           
           if (report_result)
-            output.collect(dummy, shape);
+            output.collect(dummy, unwrap(shape));
         }
       } else if (value instanceof RTree) {
         RTree<Shape> shapes = (RTree<Shape>) value;
@@ -260,7 +277,7 @@ public class RangeQuery {
       if (value instanceof Shape) {
         Shape shape = (Shape) value;
         if (shape.isIntersected(queryShape)) {
-          output.collect(dummy, shape);
+          output.collect(dummy, unwrap(shape));
         }
       } else if (value instanceof RTree) {
         RTree<Shape> shapes = (RTree<Shape>) value;
@@ -314,6 +331,12 @@ public class RangeQuery {
     job.setJobName("RangeQuery");
     job.setClass(SpatialSite.FilterClass, RangeFilter.class, BlockFilter.class);
     RangeFilter.setQueryRange(job, queryShape); // Set query range for filter
+    // Allows readers to skip blocks of binary files outside query range
+    SpatialSite.setRectangle(job, SpatialSite.INPUT_QUERY_RANGE, queryShape.getMBR());
+    // Records of binary files are filtered by their MBRs before parsing them
+    job.setBoolean(SpatialSite.LAZY_SHAPES, true);
+    // Read small partitions in a few tasks when the query range is wide
+    job.setLong(SpatialSite.COMBINE_SPLIT_SIZE, fs.getDefaultBlockSize(inputFile));
 
     ClusterStatus clusterStatus = new JobClient(job).getClusterStatus();
     job.setNumMapTasks(clusterStatus.getMaxMapTasks() * 5);
@@ -371,6 +394,8 @@ public class RangeQuery {
   
   /**
    * Runs a range query on the local machine by iterating over the whole file.
+   * Records of binary heap files outside the query range are skipped by
+   * their MBRs without parsing them.
    * @param fs - FileSystem that contains input file
    * @param file - path to the input file
    * @param queryRange - The range to look in
@@ -384,19 +409,23 @@ public class RangeQuery {
       Shape queryRange, S shape, ResultCollector<S> output)
       throws IOException {
     long file_size = fs.getFileStatus(file).getLen();
-    ShapeRecordReader<S> shapeReader =
-        new ShapeRecordReader<S>(fs.open(file), 0, file_size);
+    Configuration conf = new Configuration(fs.getConf());
+    SpatialSite.setRectangle(conf, SpatialSite.INPUT_QUERY_RANGE, queryRange.getMBR());
+    ShapeRecordReader<Shape> shapeReader = new ShapeRecordReader<Shape>(conf,
+        new FileSplit(file, 0, file_size, new String[0]));
+    // Parses into the given shape only the records that are reported
+    LazyShape lazyShape = new LazyShape(shape);
 
     long resultCount = 0;
     Rectangle cell = shapeReader.createKey();
 
-    while (shapeReader.next(cell, shape)) {
-      if (shape.isIntersected(queryRange)) {
+    while (shapeReader.next(cell, lazyShape)) {
+      if (lazyShape.isIntersected(queryRange)) {
         boolean report_result;
         if (cell.isValid()) {
           // Check for duplicate avoidance
           Rectangle intersection_mbr =
-              queryRange.getMBR().getIntersection(shape.getMBR());
+              queryRange.getMBR().getIntersection(lazyShape.getMBR());
           report_result = cell.contains(intersection_mbr.x1, intersection_mbr.y1);
         } else {
           report_result = true;
@@ -404,6 +433,8 @@ public class RangeQuery {
         if (report_result) {
           resultCount++;
           if (output != null) {
+            // Parse the record into the given shape
+            lazyShape.getShape();
             output.collect(shape);
           }
         }
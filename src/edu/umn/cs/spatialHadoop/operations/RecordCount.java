@@ -23,6 +23,7 @@ import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.ClusterStatus;
+import org.apache.hadoop.mapred.FileSplit;
 import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapReduceBase;
@@ -34,14 +35,21 @@ import org.apache.hadoop.util.LineReader;
 
 import edu.umn.cs.spatialHadoop.CommandLineArguments;
 import edu.umn.cs.spatialHadoop.Estimator;
+import edu.umn.cs.spatialHadoop.core.BinaryHeapFile;
 import edu.umn.cs.spatialHadoop.core.CellInfo;
+import edu.umn.cs.spatialHadoop.core.LazyShape;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.mapred.ShapeLineInputFormat;
+import edu.umn.cs.spatialHadoop.mapred.ShapeRecordReader;
+import edu.umn.cs.spatialHadoop.mapred.SpatialFileSplit;
 import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat;
 
 
 /**
  * Calculates number of records in a file depending on its type. If the file
- * is a text file, it counts number of lines. If it's a grid file with no local
+ * is a text file, it counts number of lines. If it is a binary heap file, it
+ * counts its records. If it's a grid file with no local
  * index, it counts number of non-empty lines. If it's a grid file with RTree
  * index, it counts total number of records stored in all RTrees.
  * @author Ahmed Eldawy
@@ -133,13 +141,18 @@ public class RecordCount {
   
   /**
    * Counts the exact number of lines in a file by opening the file and
-   * reading it line by line
+   * reading it line by line. Records of a binary heap file are counted
+   * instead.
    * @param fs
    * @param file
    * @return
    * @throws IOException
    */
   public static long recordCountLocal(FileSystem fs, Path file) throws IOException {
+    BinaryHeapFile.Header header = BinaryHeapFile.readHeader(fs, file);
+    if (header != null)
+      return countBinaryRecords(fs, file, header, 0,
+          fs.getFileStatus(file).getLen());
     LineReader lineReader = new LineReader(fs.open(file));
     Text line = new Text();
     long lineCount = 0;
@@ -161,6 +174,9 @@ public class RecordCount {
    * @throws IOException
    */
   public static<T> long recordCountApprox(FileSystem fs, Path file) throws IOException {
+    final BinaryHeapFile.Header header = BinaryHeapFile.readHeader(fs, file);
+    if (header != null)
+      return recordCountApproxBinary(fs, file, header);
     final long fileSize = fs.getFileStatus(file).getLen();
     final FSDataInputStream in = fs.open(file);
     
@@ -215,6 +231,103 @@ public class RecordCount {
     return (lineCount.limit1 + lineCount.limit2) / 2;
   }
   
+  /**
+   * Counts the approximate number of records in a binary heap file by
+   * getting an approximate average record size. Sizes are measured over runs
+   * of consecutive records from random positions so that they include the
+   * headers of blocks.
+   * @param fs
+   * @param file
+   * @param header
+   * @return
+   * @throws IOException
+   */
+  private static long recordCountApproxBinary(final FileSystem fs,
+      final Path file, final BinaryHeapFile.Header header) throws IOException {
+    final long fileSize = fs.getFileStatus(file).getLen();
+    final int runLength = 100;
+
+    Estimator<Long> recordEstimator = new Estimator<Long>(0.05);
+    recordEstimator.setRandomSample(new Estimator.RandomSample() {
+      @Override
+      public double next() {
+        try {
+          while (true) {
+            long start = (long)(Math.random() * fileSize);
+            ShapeRecordReader<Shape> reader = new ShapeRecordReader<Shape>(
+                fs.getConf(), new SpatialFileSplit(new FileSplit(file, start,
+                    fileSize - start, new String[0]), header));
+            Rectangle key = reader.createKey();
+            Shape shape = header.columnar ? header.createStockShape() :
+              new LazyShape();
+            try {
+              // Measure from the end of the first record to skip the search
+              // for the first block
+              if (!reader.next(key, shape))
+                continue;
+              long runStart = reader.getPos();
+              int records = 0;
+              while (records < runLength && reader.next(key, shape))
+                records++;
+              if (records > 0)
+                return (double) (reader.getPos() - runStart) / records;
+            } finally {
+              reader.close();
+            }
+          }
+        } catch (IOException e) {
+          throw new RuntimeException("Error reading "+file, e);
+        }
+      }
+    });
+
+    recordEstimator.setUserFunction(new Estimator.UserFunction<Long>() {
+      @Override
+      public Long calculate(double x) {
+        return (long)(fileSize / x);
+      }
+    });
+
+    recordEstimator.setQualityControl(new Estimator.QualityControl<Long>() {
+      @Override
+      public boolean isAcceptable(Long y1, Long y2) {
+        return (double)Math.abs(y2 - y1) / Math.min(y1, y2) < 0.01;
+      }
+    });
+
+    Estimator.Range<Long> recordCount = recordEstimator.getEstimate();
+    return (recordCount.limit1 + recordCount.limit2) / 2;
+  }
+
+  /**
+   * Counts the records in the blocks that start in the given range of a
+   * binary heap file. Records are not parsed unless the file is columnar.
+   * @param fs
+   * @param file
+   * @param header
+   * @param start
+   * @param length
+   * @return
+   * @throws IOException
+   */
+  private static long countBinaryRecords(FileSystem fs, Path file,
+      BinaryHeapFile.Header header, long start, long length)
+      throws IOException {
+    ShapeRecordReader<Shape> reader = new ShapeRecordReader<Shape>(
+        fs.getConf(), new SpatialFileSplit(new FileSplit(file, start, length,
+            new String[0]), header));
+    Rectangle key = reader.createKey();
+    Shape shape = header.columnar ? header.createStockShape() : new LazyShape();
+    long recordCount = 0;
+    try {
+      while (reader.next(key, shape))
+        recordCount++;
+    } finally {
+      reader.close();
+    }
+    return recordCount;
+  }
+
   /**
    * @param args
    * @throws IOException 
@@ -15,8 +15,18 @@ package edu.umn.cs.spatialHadoop.operations;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.PriorityQueue;
+import java.util.Queue;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -27,6 +37,8 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.PathFilter;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
 import org.apache.hadoop.mapred.ClusterStatus;
 import org.apache.hadoop.mapred.FileOutputCommitter;
 import org.apache.hadoop.mapred.FileOutputFormat;
@@ -37,11 +49,14 @@ import org.apache.hadoop.mapred.JobContext;
 import org.apache.hadoop.mapred.MapReduceBase;
 import org.apache.hadoop.mapred.Mapper;
 import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Partitioner;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
 
 import edu.umn.cs.spatialHadoop.CommandLineArguments;
+import edu.umn.cs.spatialHadoop.core.CellDictionary;
 import edu.umn.cs.spatialHadoop.core.CellInfo;
+import edu.umn.cs.spatialHadoop.core.CurvePartitioning;
 import edu.umn.cs.spatialHadoop.core.GlobalIndex;
 import edu.umn.cs.spatialHadoop.core.GridInfo;
 import edu.umn.cs.spatialHadoop.core.GridRecordWriter;
@@ -53,6 +68,7 @@ import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.ShapeRecordWriter;
+import edu.umn.cs.spatialHadoop.core.SpaceFillingCurve;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
 import edu.umn.cs.spatialHadoop.mapred.GridOutputFormat;
 import edu.umn.cs.spatialHadoop.mapred.RTreeGridOutputFormat;
@@ -75,7 +91,10 @@ public class Repartition {
   public static class RepartitionMap<T extends Shape> extends MapReduceBase
       implements Mapper<Rectangle, T, IntWritable, T> {
     /**List of cells used by the mapper*/
-    private CellInfo[] cellInfos;
+    private CellDictionary cellDictionary;
+    
+    /**Indexes of cells that overlap the current shape*/
+    private int[] overlappingCells;
     
     /**Used to output intermediate records*/
     private IntWritable cellId = new IntWritable();
@@ -83,7 +102,8 @@ public class Repartition {
     @Override
     public void configure(JobConf job) {
       try {
-        cellInfos = SpatialSite.getCells(job);
+        cellDictionary = SpatialSite.getCellDictionary(job);
+        overlappingCells = new int[cellDictionary.getCellCount()];
         super.configure(job);
       } catch (IOException e) {
         e.printStackTrace();
@@ -108,11 +128,11 @@ public class Repartition {
       // This ensures that a replicated shape in an already partitioned file
       // doesn't get send to output from all partitions
       if (!cellMbr.isValid() || cellMbr.contains(shape_mbr.x1, shape_mbr.y1)) {
-        for (int cellIndex = 0; cellIndex < cellInfos.length; cellIndex++) {
-          if (cellInfos[cellIndex].isIntersected(shape_mbr)) {
-            cellId.set((int) cellInfos[cellIndex].cellId);
-            output.collect(cellId, shape);
-          }
+        int numOverlappingCells =
+            cellDictionary.getOverlappingCells(shape_mbr, overlappingCells);
+        for (int i = 0; i < numOverlappingCells; i++) {
+          cellId.set((int) cellDictionary.getCellId(overlappingCells[i]));
+          output.collect(cellId, shape);
         }
       }
     }
@@ -126,7 +146,7 @@ public class Repartition {
   public static class RepartitionMapNoReplication<T extends Shape> extends MapReduceBase
       implements Mapper<Rectangle, T, IntWritable, T> {
     /**List of cells used by the mapper*/
-    private CellInfo[] cellInfos;
+    private CellDictionary cellDictionary;
     
     /**Used to output intermediate records*/
     private IntWritable cellId = new IntWritable();
@@ -134,7 +154,7 @@ public class Repartition {
     @Override
     public void configure(JobConf job) {
       try {
-        cellInfos = SpatialSite.getCells(job);
+        cellDictionary = SpatialSite.getCellDictionary(job);
         super.configure(job);
       } catch (IOException e) {
         e.printStackTrace();
@@ -155,25 +175,15 @@ public class Repartition {
       Rectangle shape_mbr = shape.getMBR();
       if (shape_mbr == null)
         return;
-      double maxOverlap = -1.0;
       int bestCell = -1;
       // Only send shape to output if its lowest corner lies in the cellMBR
       // This ensures that a replicated shape in an already partitioned file
       // doesn't get send to output from all partitions
       if (!cellMbr.isValid() || cellMbr.contains(shape_mbr.x1, shape_mbr.y1)) {
-        for (int cellIndex = 0; cellIndex < cellInfos.length; cellIndex++) {
-          Rectangle overlap = cellInfos[cellIndex].getIntersection(shape_mbr);
-          if (overlap != null) {
-            double overlapArea = overlap.getWidth() * overlap.getHeight();
-            if (bestCell == -1 || overlapArea > maxOverlap) {
-              maxOverlap = overlapArea;
-              bestCell = cellIndex;
-            }
-          }
-        }
+        bestCell = cellDictionary.getMaxOverlapCell(shape_mbr);
       }
       if (bestCell != -1) {
-        cellId.set((int) cellInfos[bestCell].cellId);
+        cellId.set((int) cellDictionary.getCellId(bestCell));
         output.collect(cellId, shape);
       } else {
         LOG.warn("Shape: "+shape+" doesn't overlap any partitions");
@@ -181,6 +191,44 @@ public class Repartition {
     }
   }
   
+  /**Name of the config line that stores the partitioning along a curve*/
+  static final String CURVE_PARTITIONING = "Repartition.CurvePartitioning";
+  
+  /**
+   * The map class maps each object to the partition that contains its key
+   * along a space filling curve.
+   */
+  public static class RepartitionMapCurve<T extends Shape> extends MapReduceBase
+      implements Mapper<Rectangle, T, IntWritable, T> {
+    /**Key ranges of all partitions*/
+    private CurvePartitioning partitioning;
+    
+    /**Used to output intermediate records*/
+    private IntWritable cellId = new IntWritable();
+    
+    @Override
+    public void configure(JobConf job) {
+      super.configure(job);
+      partitioning = new CurvePartitioning();
+      partitioning.fromText(new Text(job.get(CURVE_PARTITIONING)));
+    }
+    
+    public void map(Rectangle cellMbr, T shape,
+        OutputCollector<IntWritable, T> output, Reporter reporter)
+        throws IOException {
+      Rectangle shape_mbr = shape.getMBR();
+      if (shape_mbr == null)
+        return;
+      // Only send shape to output if its lowest corner lies in the cellMBR
+      // This ensures that a replicated shape in an already partitioned file
+      // doesn't get send to output from all partitions
+      if (!cellMbr.isValid() || cellMbr.contains(shape_mbr.x1, shape_mbr.y1)) {
+        cellId.set(partitioning.getPartitionId(shape_mbr));
+        output.collect(cellId, shape);
+      }
+    }
+  }
+  
   public static class RepartitionReduce<T extends Shape> extends MapReduceBase
   implements Reducer<IntWritable, T, IntWritable, T> {
 
@@ -199,6 +247,165 @@ public class Repartition {
     
   }
   
+  /**
+   * Name of the config line that stores the reducer of each cell ID as a
+   * comma separated list
+   */
+  static final String CELL_REDUCERS = "Repartition.CellReducers";
+  
+  /**
+   * Sends each cell to the reducer assigned to it before the job starts.
+   * The table of assignments is read from the job. Cells that are not in
+   * the table are assigned by hashing their IDs.
+   */
+  public static class RepartitionPartitioner<T extends Shape>
+      implements Partitioner<IntWritable, T> {
+    /**The reducer assigned to each cell ID or -1 if not assigned*/
+    private int[] cellReducers = new int[0];
+
+    @Override
+    public void configure(JobConf job) {
+      cellReducers = job.getInts(CELL_REDUCERS);
+    }
+
+    @Override
+    public int getPartition(IntWritable cellId, T shape, int numReduceTasks) {
+      int id = cellId.get();
+      if (id >= 0 && id < cellReducers.length && cellReducers[id] >= 0 &&
+          cellReducers[id] < numReduceTasks)
+        return cellReducers[id];
+      return (cellId.hashCode() & Integer.MAX_VALUE) % numReduceTasks;
+    }
+  }
+  
+  /**
+   * Assigns cells to reducers such that all reducers receive inputs of
+   * similar sizes. The size of each cell is estimated from a sample of the
+   * input file, which is read only if the cells were not computed from a
+   * sample already, then cells are assigned, largest first, to the reducer with
+   * the least load. A warning is logged if the largest reducer is loaded more
+   * than {@link SpatialSite#REDUCE_IMBALANCE} times the average, which
+   * happens when a few cells are very large.
+   * The assignment is stored in the job and used by
+   * {@link RepartitionPartitioner}.
+   * @param job
+   * @param inFile
+   * @param stockShape
+   * @param cellInfos
+   * @param sindex
+   * @param partitioning - used to assign records if not <code>null</code>
+   * @param sample - MBRs of a sample of the input or <code>null</code>
+   * @param numReducers - number of reducers of the job
+   * @return - the number of reducers to use
+   * @throws IOException
+   */
+  private static int assignCellsToReducers(JobConf job, Path inFile,
+      Shape stockShape, CellInfo[] cellInfos, String sindex,
+      CurvePartitioning partitioning, Vector<Rectangle> sample,
+      int numReducers) throws IOException {
+    if (numReducers <= 1)
+      return numReducers;
+    // Estimate the size of each cell by the number of sample records in it
+    final CellDictionary cellDictionary = new CellDictionary(cellInfos);
+    final long[] cellSizes = new long[cellInfos.length];
+    final int[] overlappingCells = new int[cellInfos.length];
+    final boolean replicate = !sindex.equals("rtree") && !sindex.equals("str");
+    final CurvePartitioning fPartitioning = partitioning;
+    ResultCollector<Rectangle> resultCollector = new ResultCollector<Rectangle>() {
+      @Override
+      public void collect(Rectangle mbr) {
+        if (fPartitioning != null) {
+          // Cell IDs of a curve partitioning follow their indexes
+          cellSizes[fPartitioning.getPartitionId(mbr) - 1]++;
+        } else if (replicate) {
+          int numOverlappingCells =
+              cellDictionary.getOverlappingCells(mbr, overlappingCells);
+          for (int i = 0; i < numOverlappingCells; i++)
+            cellSizes[overlappingCells[i]]++;
+        } else {
+          int bestCell = cellDictionary.getMaxOverlapCell(mbr);
+          if (bestCell != -1)
+            cellSizes[bestCell]++;
+        }
+      }
+    };
+    int sampleCount;
+    if (sample != null) {
+      for (Rectangle mbr : sample)
+        resultCollector.collect(mbr);
+      sampleCount = sample.size();
+    } else {
+      FileSystem inFs = inFile.getFileSystem(job);
+      double sample_ratio = job.getFloat(SpatialSite.SAMPLE_RATIO, 0.01f);
+      long sample_size = job.getLong(SpatialSite.SAMPLE_SIZE, 100*1024*1024);
+      sampleCount = Sampler.sampleWithRatio(inFs, new Path[] {inFile},
+          sample_ratio, sample_size, System.currentTimeMillis(), resultCollector,
+          stockShape, new Rectangle());
+    }
+    if (sampleCount <= 0)
+      return numReducers;
+    
+    // Sort cells by size, largest first
+    Integer[] sortedCells = new Integer[cellInfos.length];
+    for (int i = 0; i < sortedCells.length; i++)
+      sortedCells[i] = i;
+    Arrays.sort(sortedCells, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer c1, Integer c2) {
+        return cellSizes[c1] > cellSizes[c2] ? -1 :
+          (cellSizes[c1] < cellSizes[c2] ? 1 : 0);
+      }
+    });
+    long totalSize = 0;
+    for (long cellSize : cellSizes)
+      totalSize += cellSize;
+    
+    int[] assignment = new int[cellInfos.length];
+    final long[] loads = new long[numReducers];
+    PriorityQueue<Integer> leastLoaded = new PriorityQueue<Integer>(numReducers,
+        new Comparator<Integer>() {
+      @Override
+      public int compare(Integer r1, Integer r2) {
+        return loads[r1] < loads[r2] ? -1 :
+          (loads[r1] > loads[r2] ? 1 : r1 - r2);
+      }
+    });
+    for (int r = 0; r < numReducers; r++)
+      leastLoaded.add(r);
+    long maxLoad = 0;
+    for (int cell : sortedCells) {
+      int reducer = leastLoaded.poll();
+      assignment[cell] = reducer;
+      loads[reducer] += cellSizes[cell];
+      maxLoad = Math.max(maxLoad, loads[reducer]);
+      leastLoaded.add(reducer);
+    }
+    LOG.info("Assigned "+cellInfos.length+" cells to "+numReducers+
+        " reducers with a maximum load of "+maxLoad+" out of "+totalSize+
+        " sampled records");
+    float maxImbalance = job.getFloat(SpatialSite.REDUCE_IMBALANCE, 1.1f);
+    if (maxLoad > (double) totalSize / numReducers * maxImbalance)
+      LOG.warn("The most loaded reducer receives "+
+          (float) (maxLoad * numReducers) / totalSize+
+          " times the average input which exceeds the imbalance factor "+
+          maxImbalance);
+    
+    // Store the assignment as a table indexed by cell ID
+    int highestId = 0;
+    for (CellInfo cell : cellInfos)
+      highestId = Math.max(highestId, (int) cell.cellId);
+    int[] cellReducers = new int[highestId + 1];
+    Arrays.fill(cellReducers, -1);
+    for (int i = 0; i < cellInfos.length; i++)
+      cellReducers[(int) cellInfos[i].cellId] = assignment[i];
+    String[] reducers = new String[cellReducers.length];
+    for (int i = 0; i < cellReducers.length; i++)
+      reducers[i] = Integer.toString(cellReducers[i]);
+    job.setStrings(CELL_REDUCERS, reducers);
+    job.setPartitionerClass(RepartitionPartitioner.class);
+    return numReducers;
+  }
+  
   /**
    * Calculates number of partitions required to index the given file
    * @param inFs
@@ -280,8 +487,28 @@ public class Repartition {
       cellInfos = gridInfo.getAllCells();
     } else if (sindex.equals("rtree") || sindex.equals("r+tree") ||
         sindex.equals("str") || sindex.equals("str+")) {
-      // Pack in rectangles using an RTree
-      cellInfos = packInRectangles(inFs, inFile, outFs, outPath, blockSize, stockShape);
+      // Pack in rectangles using an RTree. The same sample is used to
+      // balance the load of reducers
+      Vector<Rectangle> sample = sampleMBRs(inFs, new Path[] {inFile},
+          outFs.getConf(), stockShape);
+      cellInfos = packInRectangles(sample, Sampler.sizeOfLastProcessedFile,
+          blockSize);
+      repartitionMapReduce(inFile, outPath, stockShape, blockSize, cellInfos,
+          sindex, overwrite, null, sample);
+      return;
+    } else if (isCurve(sindex)) {
+      Vector<Rectangle> sample = sampleMBRs(inFs, new Path[] {inFile},
+          outFs.getConf(), stockShape);
+      CurvePartitioning partitioning = partitionAlongCurve(sample,
+          Sampler.sizeOfLastProcessedFile, blockSize, sindex);
+      // Size of records is only known in advance for points
+      partitioning.maxWidth = partitioning.maxHeight =
+          stockShape instanceof Point ? 0 : -1;
+      repartitionMapReduce(inFile, outPath, stockShape, blockSize,
+          partitioning.getCells(), partitioning.curve.getName(), overwrite,
+          partitioning, sample);
+      partitioning.write(outFs, outPath);
+      return;
     } else {
       throw new RuntimeException("Unsupported spatial index: "+sindex);
     }
@@ -290,6 +517,37 @@ public class Repartition {
         sindex, overwrite);
   }
   
+  /**
+   * Tests whether the given index type partitions records along a space
+   * filling curve
+   * @param sindex
+   * @return
+   */
+  static boolean isCurve(String sindex) {
+    return sindex.equals("zcurve") || sindex.equals("hilbert");
+  }
+  
+  /**
+   * Repartitions an input file into disjoint ranges along a space filling
+   * curve.
+   * @param inFile
+   * @param outPath
+   * @param stockShape
+   * @param blockSize
+   * @param partitioning
+   * @param overwrite
+   * @throws IOException
+   */
+  public static void repartitionMapReduce(Path inFile, Path outPath,
+      Shape stockShape, long blockSize, CurvePartitioning partitioning,
+      boolean overwrite) throws IOException {
+    repartitionMapReduce(inFile, outPath, stockShape, blockSize,
+        partitioning.getCells(), partitioning.curve.getName(), overwrite,
+        partitioning, null);
+    FileSystem outFs = outPath.getFileSystem(new Configuration());
+    partitioning.write(outFs, outPath);
+  }
+  
   public static class RepartitionOutputCommitter extends FileOutputCommitter {
     @Override
     public void commitJob(JobContext context) throws IOException {
@@ -327,6 +585,8 @@ public class Repartition {
           outFs.delete(f.getPath(), false);
         }
         destOut.close();
+        SpatialSite.writeLocalIndex(outFs, outPath,
+            job.getOutputFormat() instanceof RTreeGridOutputFormat);
       }
       
       // Plot an image for the partitions used in file
@@ -352,6 +612,28 @@ public class Repartition {
   public static void repartitionMapReduce(Path inFile, Path outPath,
       Shape stockShape, long blockSize, CellInfo[] cellInfos, String sindex,
       boolean overwrite) throws IOException {
+    repartitionMapReduce(inFile, outPath, stockShape, blockSize, cellInfos,
+        sindex, overwrite, null, null);
+  }
+  
+  /**
+   * Repartitions an input file according to the given list of cells.
+   * @param inFile
+   * @param outPath
+   * @param stockShape
+   * @param blockSize
+   * @param cellInfos
+   * @param sindex
+   * @param overwrite
+   * @param partitioning - used to assign records if not <code>null</code>
+   * @param sample - MBRs of a sample of the input used to compute the
+   *   cells, or <code>null</code> to read a new sample to balance reducers
+   * @throws IOException
+   */
+  private static void repartitionMapReduce(Path inFile, Path outPath,
+      Shape stockShape, long blockSize, CellInfo[] cellInfos, String sindex,
+      boolean overwrite, CurvePartitioning partitioning,
+      Vector<Rectangle> sample) throws IOException {
     JobConf job = new JobConf(Repartition.class);
 
     job.setJobName("Repartition");
@@ -367,7 +649,13 @@ public class Repartition {
     }
     
     // Decide which map function to use depending on the type of global index
-    if (sindex.equals("rtree") || sindex.equals("str")) {
+    if (partitioning != null) {
+      // Repartition by keys along a curve
+      Text text = new Text();
+      partitioning.toText(text);
+      job.set(CURVE_PARTITIONING, text.toString());
+      job.setMapperClass(RepartitionMapCurve.class);
+    } else if (sindex.equals("rtree") || sindex.equals("str")) {
       // Repartition without replication
       job.setMapperClass(RepartitionMapNoReplication.class);
     } else {
@@ -379,7 +667,8 @@ public class Repartition {
     ShapeInputFormat.setInputPaths(job, inFile);
     job.setInputFormat(ShapeInputFormat.class);
     boolean pack = sindex.equals("r+tree") || sindex.equals("str+");
-    boolean expand = sindex.equals("rtree") || sindex.equals("str");
+    boolean expand = sindex.equals("rtree") || sindex.equals("str") ||
+        isCurve(sindex);
     job.setBoolean(SpatialSite.PACK_CELLS, pack);
     job.setBoolean(SpatialSite.EXPAND_CELLS, expand);
 
@@ -390,7 +679,8 @@ public class Repartition {
     SpatialSite.setShapeClass(job, stockShape.getClass());
   
     FileOutputFormat.setOutputPath(job,outPath);
-    if (sindex.equals("grid") || sindex.equals("str") || sindex.equals("str+")) {
+    if (sindex.equals("grid") || sindex.equals("str") || sindex.equals("str+") ||
+        isCurve(sindex)) {
       job.setOutputFormat(GridOutputFormat.class);
     } else if (sindex.equals("rtree") || sindex.equals("r+tree")) {
       // For now, the two types of local index are the same
@@ -416,8 +706,10 @@ public class Repartition {
 
     // Set reduce function
     job.setReducerClass(RepartitionReduce.class);
-    job.setNumReduceTasks(Math.max(1, Math.min(cellInfos.length,
-        (clusterStatus.getMaxReduceTasks() * 9 + 5) / 10)));
+    int maxReducers = Math.max(1, Math.min(cellInfos.length,
+        (clusterStatus.getMaxReduceTasks() * 9 + 5) / 10));
+    job.setNumReduceTasks(assignCellsToReducers(job, inFile, stockShape,
+        cellInfos, sindex, partitioning, sample, maxReducers));
 
     // Set output committer that combines output files together
     job.setOutputCommitter(RepartitionOutputCommitter.class);
@@ -435,39 +727,78 @@ public class Repartition {
   public static <S extends Shape> CellInfo[] packInRectangles(FileSystem fs,
       Path[] files, FileSystem outFileSystem, Path outFile, long blocksize, S stockShape)
       throws IOException {
-    final Vector<Point> sample = new Vector<Point>();
+    Vector<Rectangle> sample = sampleMBRs(fs, files,
+        outFileSystem.getConf(), stockShape);
+    return packInRectangles(sample, Sampler.sizeOfLastProcessedFile, blocksize);
+  }
+
+  /**
+   * Reads a sample of the MBRs of records in the given files. The size of
+   * the sampled files is available in {@link Sampler#sizeOfLastProcessedFile}
+   * afterwards.
+   * @param fs
+   * @param files
+   * @param conf - used to retrieve the ratio and size of the sample
+   * @param stockShape
+   * @return
+   * @throws IOException
+   */
+  static Vector<Rectangle> sampleMBRs(FileSystem fs, Path[] files,
+      Configuration conf, Shape stockShape) throws IOException {
+    final Vector<Rectangle> sample = new Vector<Rectangle>();
     
-    double sample_ratio =
-        outFileSystem.getConf().getFloat(SpatialSite.SAMPLE_RATIO, 0.01f);
-    long sample_size =
-      outFileSystem.getConf().getLong(SpatialSite.SAMPLE_SIZE, 100*1024*1024);
+    double sample_ratio = conf.getFloat(SpatialSite.SAMPLE_RATIO, 0.01f);
+    long sample_size = conf.getLong(SpatialSite.SAMPLE_SIZE, 100*1024*1024);
     
     LOG.info("Reading a sample of "+(int)Math.round(sample_ratio*100) + "%");
-    ResultCollector<Point> resultCollector = new ResultCollector<Point>(){
+    ResultCollector<Rectangle> resultCollector = new ResultCollector<Rectangle>(){
       @Override
-      public void collect(Point value) {
+      public void collect(Rectangle value) {
         sample.add(value.clone());
       }
     };
     Sampler.sampleWithRatio(fs, files, sample_ratio, sample_size,
-        System.currentTimeMillis(), resultCollector, stockShape, new Point());
+        System.currentTimeMillis(), resultCollector, stockShape, new Rectangle());
     LOG.info("Finished reading a sample of size: "+sample.size()+" records");
-    
-    long inFileSize = Sampler.sizeOfLastProcessedFile;
+    return sample;
+  }
+
+  /**
+   * Returns the centers of the given MBRs
+   * @param sample
+   * @return
+   */
+  private static Point[] centersOf(Vector<Rectangle> sample) {
+    Point[] centers = new Point[sample.size()];
+    for (int i = 0; i < centers.length; i++)
+      centers[i] = sample.get(i).getCenterPoint();
+    return centers;
+  }
+
+  /**
+   * Computes cells that contain similar numbers of records of a file by
+   * packing the centers of a sample of its records in rectangles.
+   * @param sample - MBRs of a sample of records
+   * @param inFileSize - size of the sampled file
+   * @param blocksize
+   * @return
+   */
+  static CellInfo[] packInRectangles(Vector<Rectangle> sample,
+      long inFileSize, long blocksize) {
+    Point[] centers = centersOf(sample);
 
     // Compute an approximate MBR to determine the desired number of rows
     // and columns
     Rectangle approxMBR = new Rectangle(Double.MAX_VALUE, Double.MAX_VALUE,
         -Double.MAX_VALUE, -Double.MAX_VALUE);
-    for (Point pt : sample) {
+    for (Point pt : centers) {
       approxMBR.expand(pt);
     }
     GridInfo gridInfo = new GridInfo(approxMBR.x1, approxMBR.y1, approxMBR.x2, approxMBR.y2);
     gridInfo.calculateCellDimensions(Math.max(1, (int)((inFileSize + blocksize / 2) / blocksize)));
     gridInfo.set(-Double.MAX_VALUE, -Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE);
     
-    Rectangle[] rectangles = RTree.packInRectangles(gridInfo,
-            sample.toArray(new Point[sample.size()]));
+    Rectangle[] rectangles = RTree.packInRectangles(gridInfo, centers);
     CellInfo[] cellsInfo = new CellInfo[rectangles.length];
     for (int i = 0; i < rectangles.length; i++)
       cellsInfo[i] = new CellInfo(i + 1, rectangles[i]);
@@ -475,6 +806,53 @@ public class Repartition {
     return cellsInfo;
   }
   
+  /**
+   * Splits the given file into partitions of equal sizes along a space
+   * filling curve. Boundaries of partitions are computed from a sample of
+   * the file.
+   * @param fs
+   * @param file
+   * @param outFileSystem
+   * @param outFile
+   * @param blocksize
+   * @param stockShape
+   * @param curveName - either <code>zcurve</code> or <code>hilbert</code>
+   * @return
+   * @throws IOException
+   */
+  public static <S extends Shape> CurvePartitioning partitionAlongCurve(
+      FileSystem fs, Path file, FileSystem outFileSystem, Path outFile,
+      long blocksize, S stockShape, String curveName) throws IOException {
+    Vector<Rectangle> sample = sampleMBRs(fs, new Path[] {file},
+        outFileSystem.getConf(), stockShape);
+    return partitionAlongCurve(sample, Sampler.sizeOfLastProcessedFile,
+        blocksize, curveName);
+  }
+
+  /**
+   * Splits a file into partitions of equal sizes along a space filling curve
+   * using the centers of a sample of its records.
+   * @param sample - MBRs of a sample of records
+   * @param inFileSize - size of the sampled file
+   * @param blocksize
+   * @param curveName - either <code>zcurve</code> or <code>hilbert</code>
+   * @return
+   */
+  static CurvePartitioning partitionAlongCurve(Vector<Rectangle> sample,
+      long inFileSize, long blocksize, String curveName) {
+    Point[] centers = centersOf(sample);
+    
+    // Records outside the MBR of the sample are mapped to its boundary
+    Rectangle space = new Rectangle(Double.MAX_VALUE, Double.MAX_VALUE,
+        -Double.MAX_VALUE, -Double.MAX_VALUE);
+    for (Point pt : centers) {
+      space.expand(pt);
+    }
+    SpaceFillingCurve curve = SpaceFillingCurve.getCurve(curveName, space);
+    int numPartitions = Math.max(1, (int)((inFileSize + blocksize / 2) / blocksize));
+    return new CurvePartitioning(curve, centers, numPartitions);
+  }
+  
   /**
    * @param inFile
    * @param outFile
@@ -538,11 +916,23 @@ public class Repartition {
     } else if (sindex.equals("rtree") || sindex.equals("r+tree") ||
         sindex.equals("str") || sindex.equals("str+")) {
       cellInfos = packInRectangles(inFs, inFile, outFs, outFile, blockSize, stockShape);
+    } else if (isCurve(sindex)) {
+      cellInfos = null;
     } else {
       throw new RuntimeException("Unsupported spatial index: "+sindex);
     }
     
-    repartitionLocal(inFile, outFile, stockShape, blockSize, cellInfos, sindex, overwrite);
+    int numThreads = params.getInt("threads",
+        Runtime.getRuntime().availableProcessors());
+    if (cellInfos == null) {
+      CurvePartitioning partitioning = partitionAlongCurve(inFs, inFile,
+          outFs, outFile, blockSize, stockShape, sindex);
+      repartitionLocal(inFile, outFile, stockShape, blockSize, partitioning,
+          overwrite, numThreads);
+    } else {
+      repartitionLocal(inFile, outFile, stockShape, blockSize, cellInfos, sindex,
+          overwrite, numThreads);
+    }
   }
 
   /**
@@ -560,6 +950,60 @@ public class Repartition {
   public static <S extends Shape> void repartitionLocal(Path in, Path out,
       S stockShape, long blockSize, CellInfo[] cells, String sindex,
       boolean overwrite) throws IOException {
+    repartitionLocal(in, out, stockShape, blockSize, cells, sindex, overwrite, 1);
+  }
+  
+  /**
+   * Repartitions a file on local machine without MapReduce jobs using the
+   * given number of threads. Input splits are parsed and assigned to cells
+   * in parallel, and cells are closed (e.g., R-trees are bulk loaded) in
+   * parallel. Records are written in their original order so the output is
+   * identical to the one produced by a single thread.
+   * @param in
+   * @param out
+   * @param stockShape
+   * @param blockSize
+   * @param cells
+   * @param sindex
+   * @param overwrite
+   * @param numThreads - number of threads to use. If one, the file is
+   *  processed in the calling thread.
+   * @throws IOException
+   */
+  public static <S extends Shape> void repartitionLocal(Path in, Path out,
+      S stockShape, long blockSize, CellInfo[] cells, String sindex,
+      boolean overwrite, int numThreads) throws IOException {
+    repartitionLocal(in, out, stockShape, blockSize, cells, sindex, overwrite,
+        numThreads, null);
+  }
+  
+  /**
+   * Repartitions a file on local machine into disjoint ranges along a space
+   * filling curve. The size of the largest record is computed while the file
+   * is written and stored with the partitioning in the output directory.
+   * @param in
+   * @param out
+   * @param stockShape
+   * @param blockSize
+   * @param partitioning
+   * @param overwrite
+   * @param numThreads
+   * @throws IOException
+   */
+  public static <S extends Shape> void repartitionLocal(Path in, Path out,
+      S stockShape, long blockSize, CurvePartitioning partitioning,
+      boolean overwrite, int numThreads) throws IOException {
+    partitioning.maxWidth = partitioning.maxHeight = 0;
+    repartitionLocal(in, out, stockShape, blockSize, partitioning.getCells(),
+        partitioning.curve.getName(), overwrite, numThreads, partitioning);
+    FileSystem outFs = out.getFileSystem(new Configuration());
+    partitioning.write(outFs, out);
+  }
+  
+  private static <S extends Shape> void repartitionLocal(Path in, Path out,
+      S stockShape, long blockSize, CellInfo[] cells, String sindex,
+      boolean overwrite, int numThreads, CurvePartitioning partitioning)
+      throws IOException {
     FileSystem inFs = in.getFileSystem(new Configuration());
     FileSystem outFs = out.getFileSystem(new Configuration());
     // Overwrite output file
@@ -574,9 +1018,10 @@ public class Repartition {
     
     ShapeRecordWriter<Shape> writer;
     boolean pack = sindex.equals("r+tree") || sindex.equals("str+");
-    boolean expand = sindex.equals("rtree") || sindex.equals("str");
+    boolean expand = sindex.equals("rtree") || sindex.equals("str") ||
+        isCurve(sindex);
     if (sindex.equals("grid") ||
-    	sindex.equals("str") || sindex.equals("str+")) {
+    	sindex.equals("str") || sindex.equals("str+") || isCurve(sindex)) {
       writer = new GridRecordWriter<Shape>(out, null, null, cells, pack, expand);
     } else if (sindex.equals("rtree") || sindex.equals("r+tree")) {
       writer = new RTreeGridRecordWriter<Shape>(out, null, null, cells, pack, expand);
@@ -597,18 +1042,183 @@ public class Repartition {
       ((GridRecordWriter<Shape>)writer).setBlockSize(blockSize);
     
     long length = inFileStatus.getLen();
-    ShapeRecordReader<S> reader = new ShapeRecordReader<S>(new Configuration(),
-        new FileSplit(in, 0, length, new String[] {}));
-    Rectangle c = reader.createKey();
+    // Compressed files and R-trees cannot be split
+    boolean splittable =
+        new CompressionCodecFactory(inFs.getConf()).getCodec(in) == null &&
+        !SpatialSite.isRTree(inFs, in);
+    if (numThreads > 1 && splittable && length > LocalSplitSize) {
+      ((GridRecordWriter<Shape>)writer).setClosingThreads(numThreads);
+      writeParallel(in, length, stockShape, cells, writer, numThreads,
+          partitioning);
+    } else {
+      ShapeRecordReader<S> reader = new ShapeRecordReader<S>(new Configuration(),
+          new FileSplit(in, 0, length, new String[] {}));
+      Rectangle c = reader.createKey();
+      
+      NullWritable dummy = NullWritable.get();
+      
+      while (reader.next(c, stockShape)) {
+        Rectangle mbr = stockShape.getMBR();
+        if (mbr == null)
+          continue;
+        if (partitioning == null) {
+          writer.write(dummy, stockShape);
+        } else {
+          partitioning.expandRecordSize(mbr);
+          writer.write(partitioning.getPartitionId(mbr), stockShape);
+        }
+      }
+      reader.close();
+    }
+    writer.close(null);
+    SpatialSite.writeLocalIndex(outFs, out,
+        writer instanceof RTreeGridRecordWriter);
+  }
+  
+  /**Size of each split parsed by one thread in a parallel local repartition*/
+  private static final long LocalSplitSize = 4 * 1024 * 1024;
+  
+  /**
+   * Records parsed from one split of the input file along with the cells
+   * assigned to each one. The cells of record #i are stored in the range
+   * [cellOffsets[i], cellOffsets[i+1]) of the array cellIndexes.
+   */
+  static class ParsedSplit {
+    Shape[] shapes;
+    int[] cellOffsets;
+    int[] cellIndexes;
+  }
+  
+  /**
+   * Parses one split of the input file and assigns each record to all the
+   * cells it overlaps. Overlapping cells are found through a
+   * {@link CellDictionary} shared by all parsers. If the file is
+   * partitioned along a curve, each record is assigned to the partition
+   * that contains its key.
+   */
+  static class SplitParser implements Callable<ParsedSplit> {
+    private final FileSplit split;
+    private final Shape stockShape;
+    /**Looks up the cells that overlap each record*/
+    private final CellDictionary cellDictionary;
+    /**Assigns records to cells by their keys if not null*/
+    private final CurvePartitioning partitioning;
     
-    NullWritable dummy = NullWritable.get();
+    SplitParser(FileSplit split, Shape stockShape,
+        CellDictionary cellDictionary, CurvePartitioning partitioning) {
+      this.split = split;
+      this.stockShape = stockShape.clone();
+      this.cellDictionary = cellDictionary;
+      this.partitioning = partitioning;
+    }
+
+    @Override
+    public ParsedSplit call() throws IOException {
+      Vector<Shape> shapes = new Vector<Shape>();
+      int[] cellOffsets = new int[1024];
+      int[] cellIndexes = new int[1024];
+      int numCells = 0;
+      int[] overlappingCells = cellDictionary == null ? null :
+          new int[cellDictionary.getCellCount()];
+      
+      ShapeRecordReader<Shape> reader =
+          new ShapeRecordReader<Shape>(new Configuration(), split);
+      Rectangle key = reader.createKey();
+      while (reader.next(key, stockShape)) {
+        Rectangle mbr = stockShape.getMBR();
+        if (mbr == null)
+          continue;
+        if (shapes.size() + 1 >= cellOffsets.length) {
+          int[] newCellOffsets = new int[cellOffsets.length * 2];
+          System.arraycopy(cellOffsets, 0, newCellOffsets, 0, cellOffsets.length);
+          cellOffsets = newCellOffsets;
+        }
+        cellOffsets[shapes.size()] = numCells;
+        if (partitioning != null) {
+          cellIndexes = addCell(cellIndexes, numCells++,
+              partitioning.getPartitionId(mbr));
+        } else {
+          int numOverlappingCells =
+              cellDictionary.getOverlappingCells(mbr, overlappingCells);
+          for (int i = 0; i < numOverlappingCells; i++)
+            cellIndexes = addCell(cellIndexes, numCells++,
+                (int) cellDictionary.getCellId(overlappingCells[i]));
+        }
+        shapes.add(stockShape.clone());
+      }
+      reader.close();
+      cellOffsets[shapes.size()] = numCells;
+      
+      ParsedSplit parsedSplit = new ParsedSplit();
+      parsedSplit.shapes = shapes.toArray(new Shape[shapes.size()]);
+      parsedSplit.cellOffsets = cellOffsets;
+      parsedSplit.cellIndexes = cellIndexes;
+      return parsedSplit;
+    }
     
-    while (reader.next(c, stockShape)) {
-      if (stockShape.getMBR() != null)
-        writer.write(dummy, stockShape);
+    /**
+     * Sets the cell at the given position growing the array if needed
+     * @return the array after the cell is set
+     */
+    private static int[] addCell(int[] cellIndexes, int position, int cellIndex) {
+      if (position == cellIndexes.length) {
+        int[] newCellIndexes = new int[cellIndexes.length * 2];
+        System.arraycopy(cellIndexes, 0, newCellIndexes, 0, cellIndexes.length);
+        cellIndexes = newCellIndexes;
+      }
+      cellIndexes[position] = cellIndex;
+      return cellIndexes;
+    }
+  }
+  
+  /**
+   * Parses the input file in parallel and writes all records to the given
+   * writer. Splits are parsed by a pool of threads while the calling thread
+   * writes parsed splits in their order in the file. Only a limited number
+   * of splits are parsed ahead of the writer to limit memory usage.
+   * @param in
+   * @param length
+   * @param stockShape
+   * @param cells
+   * @param writer
+   * @param numThreads
+   * @param partitioning - assigns records to cells by their keys if not null
+   * @throws IOException
+   */
+  private static void writeParallel(Path in, long length, Shape stockShape,
+      CellInfo[] cells, ShapeRecordWriter<Shape> writer, int numThreads,
+      CurvePartitioning partitioning) throws IOException {
+    CellDictionary cellDictionary =
+        partitioning == null ? new CellDictionary(cells) : null;
+    
+    ExecutorService parsers = Executors.newFixedThreadPool(numThreads);
+    Queue<Future<ParsedSplit>> pendingSplits = new LinkedList<Future<ParsedSplit>>();
+    long splitStart = 0;
+    try {
+      while (splitStart < length || !pendingSplits.isEmpty()) {
+        // Keep all parsing threads busy
+        while (splitStart < length && pendingSplits.size() < 2 * numThreads) {
+          long splitLength = Math.min(LocalSplitSize, length - splitStart);
+          FileSplit split = new FileSplit(in, splitStart, splitLength, new String[] {});
+          pendingSplits.add(parsers.submit(new SplitParser(split, stockShape, cellDictionary,
+              partitioning)));
+          splitStart += splitLength;
+        }
+        ParsedSplit parsedSplit = pendingSplits.poll().get();
+        for (int i = 0; i < parsedSplit.shapes.length; i++) {
+          if (partitioning != null)
+            partitioning.expandRecordSize(parsedSplit.shapes[i].getMBR());
+          for (int j = parsedSplit.cellOffsets[i]; j < parsedSplit.cellOffsets[i + 1]; j++)
+            writer.write(parsedSplit.cellIndexes[j], parsedSplit.shapes[i]);
+        }
+      }
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while parsing input file", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Error parsing input file", e.getCause());
+    } finally {
+      parsers.shutdownNow();
     }
-    reader.close();
-    writer.close(null);
   }
   
   /**
@@ -621,7 +1231,7 @@ public class Repartition {
       CommandLineArguments params) throws IOException {
     FileSystem inFs = inFile.getFileSystem(params);
     FileStatus inFStatus = inFs.getFileStatus(inFile);
-    boolean autoLocal = !(inFStatus.isDir() ||
+    boolean autoLocal = !(inFStatus.isDirectory() ||
         inFStatus.getLen() / inFStatus.getBlockSize() > 3);
     Boolean isLocal = params.is("local", autoLocal);
     
@@ -637,8 +1247,9 @@ public class Repartition {
     System.out.println("<input file> - (*) Path to input file");
     System.out.println("<output file> - (*) Path to output file");
     System.out.println("shape:<point|rectangle|polygon> - (*) Type of shapes stored in input file");
-    System.out.println("sindex:<index> - (*) Type of spatial index (grid|rtree|r+tree|str|str+)");
+    System.out.println("sindex:<index> - (*) Type of spatial index (grid|rtree|r+tree|str|str+|zcurve|hilbert)");
     System.out.println("blocksize:<size> - Size of blocks in output file");
+    System.out.println("threads:<n> - Number of threads used to build a local index");
     System.out.println("-overwrite - Overwrite output file without noitce");
   }
 
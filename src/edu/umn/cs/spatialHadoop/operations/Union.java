@@ -316,7 +316,7 @@ public class Union {
       if (shape instanceof JTSShape)
         shapes.add(((JTSShape)shape).geom);
       else if (shape instanceof OGCShape)
-        shapes.add(((OGCShape)shape).geom);
+        shapes.add(((OGCShape)shape).getGeometry());
     }
     shapeReader.close();
 
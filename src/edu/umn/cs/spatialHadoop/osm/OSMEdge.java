@@ -24,13 +24,15 @@ import org.apache.hadoop.io.Text;
 
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.io.CursorParsable;
+import edu.umn.cs.spatialHadoop.io.TextCursor;
 import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
 
 /**
  * A data type used to index edges for TAREEQ project.
  * @author Ahmed Eldawy
  */
-public class OSMEdge implements Shape {
+public class OSMEdge implements Shape, CursorParsable {
   private static final Log LOG = LogFactory.getLog(OSMEdge.class);
   
   public long edgeId;
@@ -86,15 +88,26 @@ public class OSMEdge implements Shape {
 
   @Override
   public void fromText(Text text) {
-    edgeId = TextSerializerHelper.consumeLong(text, ',');
-    nodeId1 = TextSerializerHelper.consumeLong(text, ',');
-    lat1 = TextSerializerHelper.consumeDouble(text, ',');
-    lon1 = TextSerializerHelper.consumeDouble(text, ',');
-    nodeId2 = TextSerializerHelper.consumeLong(text, ',');
-    lat2 = TextSerializerHelper.consumeDouble(text, ',');
-    lon2 = TextSerializerHelper.consumeDouble(text, ',');
-    wayId = TextSerializerHelper.consumeLong(text, ',');
-    tags = text.toString();
+    TextCursor cursor = TextCursor.acquire(text);
+    try {
+      fromText(cursor);
+    } finally {
+      cursor.release();
+    }
+  }
+
+  /**Parses the ID, the two nodes, the way ID and the tags of this edge*/
+  @Override
+  public void fromText(TextCursor cursor) {
+    edgeId = cursor.nextLong(',');
+    nodeId1 = cursor.nextLong(',');
+    lat1 = cursor.nextDouble(',');
+    lon1 = cursor.nextDouble(',');
+    nodeId2 = cursor.nextLong(',');
+    lat2 = cursor.nextDouble(',');
+    lon2 = cursor.nextDouble(',');
+    wayId = cursor.nextLong(',');
+    tags = cursor.remaining();
   }
 
   @Override